@@ -0,0 +1,260 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Imports many files into one directory with group commit
+ *
+ * Up to concurrency files stream through a shared FileImporter at once,
+ * so small files overlap each other's reads, encryption and writes. The
+ * file system runs in batch mode for the whole import: directory, inode,
+ * bitmap and tail block changes collect in the metadata cache and are
+ * committed every groupFiles files with one flush, instead of a flush
+ * per file system call.
+ *
+ * A file that fails (unreadable source, name taken) is removed and
+ * reported in its Outcome; the others carry on. A failed group commit
+ * ends the import.
+ */
+final class BatchImporter implements Closeable {
+
+    /**
+     * One file to import
+     */
+    interface Source {
+        /**
+         * Name in the target directory
+         */
+        String name();
+
+        /**
+         * Size if known, or -1
+         */
+        long size();
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Progress callback, invoked on import threads
+     */
+    interface Listener {
+        void onProgress(int filesDone, int filesTotal, long bytesDone, double filesPerSecond);
+    }
+
+    /**
+     * Outcome of one file: inode on success, error otherwise
+     */
+    static final class Outcome {
+        final String name;
+        final long inode;
+        final long bytes;
+        final Exception error;
+
+        Outcome(String name, long inode, long bytes, Exception error) {
+            this.name = name;
+            this.inode = inode;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Outcome of a batch, in source order
+     */
+    static final class Result {
+        final List<Outcome> outcomes;
+        final int imported;
+        final long bytes;
+        final long nanos;
+        final int commits;
+
+        Result(List<Outcome> outcomes, long nanos, int commits) {
+            this.outcomes = Collections.unmodifiableList(outcomes);
+            int ok = 0;
+            long total = 0;
+            for (Outcome o : outcomes) {
+                if (o.succeeded()) {
+                    ok++;
+                    total += o.bytes;
+                }
+            }
+            this.imported = ok;
+            this.bytes = total;
+            this.nanos = nanos;
+            this.commits = commits;
+        }
+
+        double filesPerSecond() {
+            return nanos == 0 ? 0 : imported * 1e9 / nanos;
+        }
+
+        double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+    }
+
+    private final VolumeFileSystem fs;
+    private final FileImporter importer;
+    private final int groupFiles;
+    private final ExecutorService files;
+
+    private final Object progressLock = new Object();
+    private int filesDone;
+    private int sinceCommit;
+    private int commits;
+    private long bytesDone;
+
+    /**
+     * @param concurrency Files imported at once
+     * @param groupFiles Completed files per group commit
+     */
+    BatchImporter(VolumeFileSystem fs, FileImporter importer, int concurrency, int groupFiles) {
+        this.fs = fs;
+        this.importer = importer;
+        this.groupFiles = groupFiles;
+        this.files = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "qubesdroid-batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Importer sized for the device: four files at once, a group commit
+     * every 256 files
+     *
+     * The FileImporter is owned by the caller.
+     */
+    static BatchImporter forDevice(VolumeFileSystem fs, FileImporter importer) {
+        return new BatchImporter(fs, importer, 4, 256);
+    }
+
+    /**
+     * Import every source into dir
+     *
+     * @param cancel Set to stop; files already imported are kept
+     * @throws CancellationException if cancelled (after committing what
+     *                               finished)
+     * @throws IOException if a group commit fails
+     */
+    Result importAll(long dir, List<? extends Source> sources, Listener listener,
+                     AtomicBoolean cancel) throws IOException {
+        long start = System.nanoTime();
+        synchronized (progressLock) {
+            filesDone = 0;
+            sinceCommit = 0;
+            commits = 0;
+            bytesDone = 0;
+        }
+        fs.beginBatch();
+        List<Future<Outcome>> futures = new ArrayList<>(sources.size());
+        List<Outcome> outcomes = new ArrayList<>(sources.size());
+        try {
+            for (Source source : sources) {
+                futures.add(files.submit(() -> importOne(dir, source, sources.size(), start, listener, cancel)));
+            }
+            for (Future<Outcome> future : futures) {
+                outcomes.add(await(future));
+            }
+        } finally {
+            // After a failure, skip files not started and let running ones finish
+            for (Future<Outcome> future : futures) {
+                future.cancel(false);
+            }
+            for (Future<Outcome> future : futures) {
+                if (!future.isCancelled()) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ignored) {
+                        // already reported or superseded
+                    }
+                }
+            }
+            fs.endBatch();
+        }
+        synchronized (progressLock) {
+            commits++;
+        }
+        if (cancel != null && cancel.get()) {
+            throw new CancellationException("Import cancelled");
+        }
+        return new Result(outcomes, System.nanoTime() - start, commits);
+    }
+
+    @Override
+    public void close() {
+        files.shutdownNow();
+    }
+
+    private Outcome importOne(long dir, Source source, int total, long start,
+                              Listener listener, AtomicBoolean cancel) throws IOException {
+        if (cancel != null && cancel.get()) {
+            return new Outcome(source.name(), 0, 0, new CancellationException("Import cancelled"));
+        }
+        Outcome outcome;
+        try (InputStream in = source.open()) {
+            Transfer.Result r = importer.importStream(in, dir, source.name(), source.size(), null, cancel);
+            outcome = new Outcome(source.name(), r.inode, r.bytes, null);
+        } catch (IOException | RuntimeException e) {
+            outcome = new Outcome(source.name(), 0, 0, e);
+        }
+
+        boolean commit;
+        int done;
+        long bytes;
+        synchronized (progressLock) {
+            done = ++filesDone;
+            bytesDone += outcome.bytes;
+            bytes = bytesDone;
+            commit = ++sinceCommit >= groupFiles;
+            if (commit) {
+                sinceCommit = 0;
+                commits++;
+            }
+        }
+        if (commit) {
+            fs.commitBatch();
+        }
+        if (listener != null) {
+            long nanos = Math.max(1, System.nanoTime() - start);
+            listener.onProgress(done, total, bytes, done * 1e9 / nanos);
+        }
+        return outcome;
+    }
+
+    private static Outcome await(Future<Outcome> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
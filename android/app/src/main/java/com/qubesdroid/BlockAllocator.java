@@ -0,0 +1,643 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Free-space bitmap and extent allocator of the in-volume file system
+ *
+ * One bit per block (1 = in use), stored in the bitmap blocks that follow
+ * the superblock. The bitmap is mirrored in a BitSet for searching and
+ * every change is written through to the cached bitmap block, which is
+ * marked dirty and reaches the volume with the next metadata write-back.
+ *
+ * Placement, so files stay contiguous and stream as large host I/Os:
+ * - Goal first: an allocation continues at the goal block (the end of the
+ *   file's last extent) when that block is free
+ * - Otherwise best fit: the smallest free run that holds the request,
+ *   found through a summary tree over fixed-size regions
+ * - Per-file preallocation: file data is carved from an in-memory
+ *   reservation sized by a caller hint (or speculatively), so files
+ *   written in parallel do not interleave block by block
+ *
+ * The summary tree keeps, per region of REGION_BLOCKS blocks, the number
+ * of available blocks and the longest available run inside the region;
+ * inner nodes hold the sum and the maximum of their children. Finding a
+ * region that can satisfy a request is a walk down the tree, O(log n).
+ * Reservations are never written to the volume: a remount or rollback
+ * simply forgets them.
+ *
+ * A volume that gains blocks (VolumeExpander) is taken in by grow(); if
+ * the bitmap no longer fits its blocks, it moves to a free run.
+ *
+ * Freed blocks are also remembered as untrimmed until the file system
+ * has trimmed them (BlockStore.trim), which gives their space back to
+ * the host. The set is kept in memory only: after a remount, blocks
+ * freed but not yet trimmed are found again by markFreeUntrimmed().
+ *
+ * A Keeper (SnapshotTable) is told about every allocation and may keep
+ * blocks being freed: those stay in use, now owned by a snapshot.
+ */
+final class BlockAllocator {
+
+    static final int REGION_BLOCKS = 1024;
+    private static final int BEST_FIT_CANDIDATES = 8;
+    private static final int MAX_RESERVATIONS = 64;
+    private static final int DEFAULT_PREALLOC_BYTES = 1024 * 1024;
+
+    private final MetadataCache cache;
+    private long bitmapStart;
+    private long blockCount;
+    private final int bitsPerBlock;
+    private final int defaultPrealloc;
+
+    // used: persistent bitmap; taken: used or reserved (what searches avoid)
+    private final BitSet used;
+    private final BitSet taken;
+    private long freeBlocks;
+    // Free blocks not trimmed since they were freed
+    private final BitSet untrimmed = new BitSet();
+
+    // Summary tree over regions (leaves at leafBase + region)
+    private int regions;
+    private int leafBase;
+    private int[] availTree;
+    private int[] maxRunTree;
+
+    private final LinkedHashMap<Long, Reservation> reservations = new LinkedHashMap<>();
+    private FreeListener freeListener;
+    private Keeper keeper;
+
+    /**
+     * Told about every free (the metadata journal revokes logged blocks)
+     */
+    interface FreeListener {
+        void onFree(long start, int length);
+    }
+
+    /**
+     * Owner of blocks the file system no longer uses (snapshots)
+     */
+    interface Keeper {
+        /**
+         * A block is being freed: take it over and return true to keep
+         * it in use, or return false to let it be freed
+         */
+        boolean keep(long block) throws IOException;
+
+        /**
+         * A range was just marked in use
+         */
+        void onAllocate(long start, int length) throws IOException;
+    }
+
+    BlockAllocator(MetadataCache cache, long bitmapStart, long blockCount) {
+        this.cache = cache;
+        this.bitsPerBlock = cache.store().blockSize() * 8;
+        this.defaultPrealloc = Math.max(1, DEFAULT_PREALLOC_BYTES / cache.store().blockSize());
+        this.used = new BitSet((int) blockCount);
+        this.taken = new BitSet((int) blockCount);
+        resize(bitmapStart, blockCount);
+    }
+
+    /**
+     * Set the geometry the superblock records, sizing the summary tree
+     * for it; load() then reads the bitmap
+     */
+    void resize(long bitmapStart, long blockCount) {
+        if (bitmapStart == this.bitmapStart && blockCount == this.blockCount && availTree != null) {
+            return;
+        }
+        this.bitmapStart = bitmapStart;
+        this.blockCount = blockCount;
+        this.regions = (int) ((blockCount + REGION_BLOCKS - 1) / REGION_BLOCKS);
+        int base = 1;
+        while (base < regions) {
+            base <<= 1;
+        }
+        this.leafBase = base;
+        this.availTree = new int[2 * base];
+        this.maxRunTree = new int[2 * base];
+        for (int r = 0; r < regions; r++) {
+            updateRegion(r);
+        }
+    }
+
+    /**
+     * Number of bitmap blocks needed for a volume of blockCount blocks
+     */
+    static long bitmapBlocks(long blockCount, int blockSize) {
+        long bits = (long) blockSize * 8;
+        return (blockCount + bits - 1) / bits;
+    }
+
+    /**
+     * Read the bitmap blocks and pin them in the cache, replacing any
+     * in-memory state (including reservations)
+     */
+    void load() throws IOException {
+        used.clear();
+        reservations.clear();
+        long blocks = bitmapBlocks(blockCount, cache.store().blockSize());
+        for (long b = 0; b < blocks; b++) {
+            cache.pin(bitmapStart + b);
+            byte[] data = cache.get(bitmapStart + b);
+            long base = b * bitsPerBlock;
+            for (int i = 0; i < bitsPerBlock && base + i < blockCount; i++) {
+                if ((data[i >>> 3] & (1 << (i & 7))) != 0) {
+                    used.set((int) (base + i));
+                }
+            }
+        }
+        taken.clear();
+        taken.or(used);
+        untrimmed.andNot(used);
+        freeBlocks = blockCount - used.cardinality();
+        for (int r = 0; r < regions; r++) {
+            updateRegion(r);
+        }
+    }
+
+    long blockCount() {
+        return blockCount;
+    }
+
+    long bitmapStart() {
+        return bitmapStart;
+    }
+
+    /**
+     * Take in the blocks from the current count up to blockCount, all
+     * free
+     *
+     * The bitmap stays in place while its blocks have room for the new
+     * bits. Otherwise it is copied to a free run (the new blocks first)
+     * and its old blocks are freed. Either way the change is ordinary
+     * dirty metadata, committed with the superblock naming the new
+     * geometry.
+     */
+    void grow(long blockCount) throws IOException {
+        long oldStart = bitmapStart;
+        long oldCount = this.blockCount;
+        if (blockCount < oldCount) {
+            throw new IOException("Cannot shrink the bitmap from " + oldCount + " to " + blockCount + " blocks");
+        }
+        int blockSize = cache.store().blockSize();
+        long oldBlocks = bitmapBlocks(oldCount, blockSize);
+        long newBlocks = bitmapBlocks(blockCount, blockSize);
+        resize(oldStart, blockCount);
+        freeBlocks += blockCount - oldCount;
+        // Written as sealed zeros by the expansion: worth trimming
+        untrimmed.set((int) oldCount, (int) blockCount);
+        if (newBlocks == oldBlocks) {
+            // Bits past the old end were never set, but make sure
+            if (oldCount % bitsPerBlock != 0) {
+                byte[] data = cache.getForWrite(oldStart + oldCount / bitsPerBlock);
+                for (int bit = (int) (oldCount % bitsPerBlock); bit < bitsPerBlock; bit++) {
+                    data[bit >>> 3] &= (byte) ~(1 << (bit & 7));
+                }
+            }
+            return;
+        }
+
+        Extent run = findRun(oldCount, (int) newBlocks);
+        if (run.length < newBlocks) {
+            throw new IOException("No free run of " + newBlocks + " blocks for the bitmap");
+        }
+        bitmapStart = run.start;
+        for (long b = 0; b < newBlocks; b++) {
+            cache.create(bitmapStart + b);
+            cache.pin(bitmapStart + b);
+        }
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            byte[] data = cache.getForWrite(bitmapStart + i / bitsPerBlock);
+            int bit = i % bitsPerBlock;
+            data[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+        markAllocated(bitmapStart, (int) newBlocks);
+        free(oldStart, (int) oldBlocks);
+        for (long b = 0; b < oldBlocks; b++) {
+            cache.forget(oldStart + b);
+        }
+    }
+
+    long freeBlocks() {
+        return freeBlocks;
+    }
+
+    boolean isAllocated(long index) {
+        return used.get((int) index);
+    }
+
+    /**
+     * Longest run of free blocks on the volume (reservations count as free)
+     */
+    long largestFreeRun() {
+        long largest = 0;
+        for (int s = used.nextClearBit(0); s < blockCount; ) {
+            int e = nextUsed(s);
+            largest = Math.max(largest, e - s);
+            s = used.nextClearBit(e);
+        }
+        return largest;
+    }
+
+    /**
+     * Number of separate free runs on the volume
+     */
+    long freeRunCount() {
+        long runs = 0;
+        for (int s = used.nextClearBit(0); s < blockCount; ) {
+            int e = nextUsed(s);
+            runs++;
+            s = used.nextClearBit(e);
+        }
+        return runs;
+    }
+
+    /**
+     * Allocate up to maxLength contiguous blocks for metadata
+     *
+     * @return Extent of 1..maxLength blocks
+     * @throws IOException if the volume is full
+     */
+    Extent allocate(long goal, int maxLength) throws IOException {
+        Extent run = findRun(goal, maxLength);
+        markAllocated(run.start, run.length);
+        return run;
+    }
+
+    /**
+     * Allocate a single block near goal
+     */
+    long allocateOne(long goal) throws IOException {
+        return allocate(goal, 1).start;
+    }
+
+    /**
+     * Allocate up to maxLength contiguous blocks of file data
+     *
+     * Takes blocks from the owner's reservation. Without one, a new
+     * reservation is made first, at goal if possible. Its speculative
+     * part grows with the file (up to 1 MB), so small files stay packed
+     * while a file written in many small pieces gets ever longer runs.
+     *
+     * @param owner File the blocks belong to (inode number)
+     * @param fileBlocks Blocks the file already has
+     */
+    Extent allocateFor(long owner, long goal, int maxLength, long fileBlocks) throws IOException {
+        Reservation reservation = reservations.get(owner);
+        if (reservation == null) {
+            reserve(owner, goal, Math.max(maxLength, Math.min(defaultPrealloc, fileBlocks)));
+            reservation = reservations.get(owner);
+        }
+        int length = (int) Math.min(maxLength, reservation.end - reservation.start);
+        long start = reservation.start;
+        reservation.start += length;
+        if (reservation.start == reservation.end) {
+            reservations.remove(owner);
+        }
+        setRange(start, length, true, false);
+        freeBlocks -= length;
+        return new Extent(start, length);
+    }
+
+    /**
+     * Reserve space for blocks more blocks of a file (preallocation hint)
+     *
+     * The reservation replaces any earlier one of the owner and may be
+     * shorter than asked when no free run is long enough.
+     */
+    void reserve(long owner, long goal, long blocks) throws IOException {
+        release(owner);
+        Extent run = findRun(goal, (int) Math.min(Integer.MAX_VALUE, Math.max(1, blocks)));
+        setTaken(run.start, run.length, true);
+        reservations.put(owner, new Reservation(run.start, run.end()));
+        if (reservations.size() > MAX_RESERVATIONS) {
+            Iterator<Map.Entry<Long, Reservation>> eldest = reservations.entrySet().iterator();
+            Reservation dropped = eldest.next().getValue();
+            eldest.remove();
+            setTaken(dropped.start, (int) (dropped.end - dropped.start), false);
+        }
+    }
+
+    /**
+     * Return the unused part of an owner's reservation
+     */
+    void release(long owner) {
+        Reservation reservation = reservations.remove(owner);
+        if (reservation != null) {
+            setTaken(reservation.start, (int) (reservation.end - reservation.start), false);
+        }
+    }
+
+    /**
+     * What is left of an owner's reservation, or null if it has none
+     */
+    Extent reservation(long owner) {
+        Reservation reservation = reservations.get(owner);
+        return reservation == null ? null
+            : new Extent(reservation.start, (int) (reservation.end - reservation.start));
+    }
+
+    void free(Extent extent) throws IOException {
+        free(extent.start, extent.length);
+    }
+
+    /**
+     * Free a range, except for the blocks the keeper takes over
+     */
+    void free(long start, int length) throws IOException {
+        if (keeper == null) {
+            freeRange(start, length);
+            return;
+        }
+        long run = start;
+        for (long b = start; b < start + length; b++) {
+            if (keeper.keep(b)) {
+                freeRange(run, (int) (b - run));
+                run = b + 1;
+            }
+        }
+        freeRange(run, (int) (start + length - run));
+    }
+
+    private void freeRange(long start, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        setRange(start, length, false, true);
+        freeBlocks += length;
+        untrimmed.set((int) start, (int) (start + length));
+        if (freeListener != null) {
+            freeListener.onFree(start, length);
+        }
+    }
+
+    void setFreeListener(FreeListener listener) {
+        this.freeListener = listener;
+    }
+
+    void setKeeper(Keeper keeper) {
+        this.keeper = keeper;
+    }
+
+    /**
+     * Mark a range in use (format time and allocation)
+     */
+    void markAllocated(long start, int length) throws IOException {
+        setRange(start, length, true, true);
+        freeBlocks -= length;
+    }
+
+    /**
+     * The lowest length free blocks in a row that end at or below limit
+     * (compaction target; allocate with markAllocated())
+     *
+     * @return The run, or null if no free run below limit is that long
+     */
+    Extent lowestRunBelow(long limit, int length) {
+        limit = Math.min(limit, blockCount);
+        for (int s = taken.nextClearBit(0); s + (long) length <= limit; ) {
+            int e = nextTaken(s);
+            if (e - s >= length) {
+                return new Extent(s, length);
+            }
+            s = taken.nextClearBit(e);
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Trimming
+    // ------------------------------------------------------------------------
+
+    long untrimmedBlocks() {
+        return untrimmed.cardinality();
+    }
+
+    /**
+     * Runs of free, unreserved blocks freed since they were last
+     * trimmed, in volume order, up to maxBlocks blocks in all
+     */
+    List<Extent> untrimmedRuns(long maxBlocks) {
+        List<Extent> runs = new ArrayList<>();
+        long budget = Math.min(maxBlocks, blockCount);
+        for (int s = untrimmed.nextSetBit(0); s >= 0 && s < blockCount && budget > 0; ) {
+            int e = (int) Math.min(untrimmed.nextClearBit(s), blockCount);
+            int stop = (int) Math.min(e, s + budget);
+            for (int f = s; f < stop; ) {
+                int from = taken.nextClearBit(f);
+                if (from >= stop) {
+                    break;
+                }
+                int to = Math.min(nextTaken(from), stop);
+                runs.add(new Extent(from, to - from));
+                budget -= to - from;
+                f = to;
+            }
+            s = untrimmed.nextSetBit(stop);
+        }
+        return runs;
+    }
+
+    /**
+     * The blocks of run have been trimmed
+     */
+    void markTrimmed(long start, int length) {
+        untrimmed.clear((int) start, (int) (start + length));
+    }
+
+    /**
+     * Treat every free block as untrimmed, so the next trims cover the
+     * whole free space (blocks freed before this mount included)
+     */
+    void markFreeUntrimmed() {
+        untrimmed.set(0, (int) blockCount);
+        untrimmed.andNot(used);
+    }
+
+    // ------------------------------------------------------------------------
+    // Placement
+    // ------------------------------------------------------------------------
+
+    /**
+     * Choose a free run of 1..want blocks: at goal if free, else best fit
+     */
+    private Extent findRun(long goal, int want) throws IOException {
+        if (goal > 0 && goal < blockCount && !taken.get((int) goal)) {
+            int end = nextTaken((int) goal);
+            return new Extent(goal, (int) Math.min(want, end - goal));
+        }
+        if (availTree[1] == 0) {
+            if (reservations.isEmpty() || freeBlocks == 0) {
+                throw new IOException("Volume is full");
+            }
+            // Only reserved space is left: give it back and retry
+            for (Long owner : reservations.keySet().toArray(new Long[0])) {
+                release(owner);
+            }
+            return findRun(goal, want);
+        }
+
+        int need = Math.min(want, Math.min(REGION_BLOCKS, maxRunTree[1]));
+        int firstRegion = (int) (Math.min(Math.max(goal, 0), blockCount - 1) / REGION_BLOCKS);
+        long bestStart = -1;
+        long bestLength = 0;
+        int region = findRegion(firstRegion, need);
+        if (region < 0) {
+            region = findRegion(0, need);
+        }
+        for (int examined = 0; region >= 0 && examined < BEST_FIT_CANDIDATES; examined++) {
+            long regionStart = (long) region * REGION_BLOCKS;
+            long regionEnd = Math.min(regionStart + REGION_BLOCKS, blockCount);
+            for (int s = taken.nextClearBit((int) regionStart); s < regionEnd; ) {
+                int start = s == regionStart ? previousTaken(s) + 1 : s;
+                int end = nextTaken(s);
+                long length = end - start;
+                boolean fits = length >= want;
+                boolean bestFits = bestLength >= want;
+                if (bestStart < 0 || (fits && (!bestFits || length < bestLength))
+                        || (!fits && !bestFits && length > bestLength)) {
+                    bestStart = start;
+                    bestLength = length;
+                }
+                if (length == want) {
+                    return new Extent(start, want);
+                }
+                s = taken.nextClearBit(end);
+            }
+            region = region + 1 < regions ? findRegion(region + 1, need) : -1;
+        }
+        return new Extent(bestStart, (int) Math.min(want, bestLength));
+    }
+
+    /**
+     * First region at or after from whose longest run is at least need
+     *
+     * @return Region index, or -1
+     */
+    private int findRegion(int from, int need) {
+        return findRegion(1, 0, leafBase, from, need);
+    }
+
+    private int findRegion(int node, int lo, int hi, int from, int need) {
+        if (hi <= from || maxRunTree[node] < need) {
+            return -1;
+        }
+        if (node >= leafBase) {
+            return lo;
+        }
+        int mid = (lo + hi) >>> 1;
+        int left = findRegion(2 * node, lo, mid, from, need);
+        return left >= 0 ? left : findRegion(2 * node + 1, mid, hi, from, need);
+    }
+
+    private int nextTaken(int from) {
+        int next = taken.nextSetBit(from);
+        return next < 0 || next > blockCount ? (int) blockCount : next;
+    }
+
+    private int previousTaken(int from) {
+        return from == 0 ? -1 : taken.previousSetBit(from - 1);
+    }
+
+    private int nextUsed(int from) {
+        int next = used.nextSetBit(from);
+        return next < 0 || next > blockCount ? (int) blockCount : next;
+    }
+
+    // ------------------------------------------------------------------------
+    // Bitmap and summary tree
+    // ------------------------------------------------------------------------
+
+    /**
+     * Set bits in the persistent bitmap
+     *
+     * @param checkTaken Validate against reservations too (false when the
+     *                   range comes out of the caller's own reservation)
+     */
+    private void setRange(long start, int length, boolean value, boolean checkTaken)
+            throws IOException {
+        if (start < 0 || length < 0 || start + length > blockCount) {
+            throw new IOException("Extent " + start + "+" + length + " outside volume");
+        }
+        BitSet check = value && checkTaken ? taken : used;
+        int conflict = value
+            ? check.nextSetBit((int) start)
+            : used.nextClearBit((int) start);
+        if (conflict >= 0 && conflict < start + length) {
+            throw new IOException("Block " + conflict + (value ? " already in use" : " already free"));
+        }
+        long lastBitmapBlock = -1;
+        byte[] data = null;
+        for (long i = start; i < start + length; i++) {
+            used.set((int) i, value);
+            long bitmapBlock = bitmapStart + i / bitsPerBlock;
+            if (bitmapBlock != lastBitmapBlock) {
+                data = cache.getForWrite(bitmapBlock);
+                lastBitmapBlock = bitmapBlock;
+            }
+            int bit = (int) (i % bitsPerBlock);
+            if (value) {
+                data[bit >>> 3] |= (byte) (1 << (bit & 7));
+            } else {
+                data[bit >>> 3] &= (byte) ~(1 << (bit & 7));
+            }
+        }
+        setTaken(start, length, value);
+        if (value) {
+            untrimmed.clear((int) start, (int) (start + length));
+            if (keeper != null && length > 0) {
+                keeper.onAllocate(start, length);
+            }
+        }
+    }
+
+    private void setTaken(long start, int length, boolean value) {
+        if (length == 0) {
+            return;
+        }
+        taken.set((int) start, (int) (start + length), value);
+        int first = (int) (start / REGION_BLOCKS);
+        int last = (int) ((start + length - 1) / REGION_BLOCKS);
+        for (int r = first; r <= last; r++) {
+            updateRegion(r);
+        }
+    }
+
+    private void updateRegion(int region) {
+        int regionStart = region * REGION_BLOCKS;
+        int regionEnd = (int) Math.min((long) regionStart + REGION_BLOCKS, blockCount);
+        int avail = 0;
+        int maxRun = 0;
+        for (int s = taken.nextClearBit(regionStart); s < regionEnd; ) {
+            int e = Math.min(nextTaken(s), regionEnd);
+            avail += e - s;
+            maxRun = Math.max(maxRun, e - s);
+            s = taken.nextClearBit(e);
+        }
+        int node = leafBase + region;
+        availTree[node] = avail;
+        maxRunTree[node] = maxRun;
+        for (node >>>= 1; node >= 1; node >>>= 1) {
+            availTree[node] = availTree[2 * node] + availTree[2 * node + 1];
+            maxRunTree[node] = Math.max(maxRunTree[2 * node], maxRunTree[2 * node + 1]);
+        }
+    }
+
+    private static final class Reservation {
+        long start;
+        final long end;
+
+        Reservation(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block codecs for compressed volumes, and the probe that skips them
+ *
+ * A block is compressed only when it is worth it:
+ * 1. looksIncompressible() estimates the byte entropy of a 2 KB sample;
+ *    JPEG, MP4, ZIP and encrypted data come out near 8 bits per byte
+ *    and are stored as they are without running a codec at all
+ * 2. compress() gives up once the output would save less than an
+ *    eighth of the block, since the block then costs a decompression on
+ *    every read for little gain
+ *
+ * LZ4 writes the LZ4 block format (no frame), DEFLATE the zlib format
+ * through the platform zlib. Both are safe to call from several threads
+ * at once, as BlockEngine.seal() and open() are.
+ */
+final class BlockCompressor {
+
+    /**
+     * Sampled entropy above which a block is stored without trying
+     */
+    static final double BYPASS_ENTROPY_BITS = 7.5;
+
+    private static final int PROBE_WINDOWS = 8;
+    private static final int PROBE_WINDOW_SIZE = 256;
+
+    // LZ4 block format limits
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    private static final ThreadLocal<int[]> LZ4_TABLES =
+        ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private BlockCompressor() {
+    }
+
+    /**
+     * Whether a sample of block looks like already compressed data
+     *
+     * Reads PROBE_WINDOWS windows spread over the block, so the cost is
+     * the same for any block size.
+     */
+    static boolean looksIncompressible(byte[] block) {
+        int[] counts = new int[256];
+        int stride = block.length / PROBE_WINDOWS;
+        int window = Math.min(PROBE_WINDOW_SIZE, stride);
+        for (int w = 0; w < PROBE_WINDOWS; w++) {
+            for (int i = w * stride, end = i + window; i < end; i++) {
+                counts[block[i] & 0xFF]++;
+            }
+        }
+        double total = PROBE_WINDOWS * window;
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = count / total;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2) > BYPASS_ENTROPY_BITS;
+    }
+
+    /**
+     * Compress src into dst
+     *
+     * @param dst At least src.length bytes
+     * @return Compressed length, or -1 if it would not save an eighth of
+     *         src (dst then holds garbage)
+     */
+    static int compress(Compression codec, byte[] src, byte[] dst) {
+        int limit = src.length - src.length / 8;
+        switch (codec) {
+            case LZ4:
+                return lz4Compress(src, dst, limit);
+            case DEFLATE:
+                Deflater deflater = DEFLATERS.get();
+                deflater.reset();
+                deflater.setInput(src);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished() && n < limit) {
+                    n += deflater.deflate(dst, n, limit - n);
+                }
+                return deflater.finished() ? n : -1;
+            default:
+                throw new IllegalArgumentException("Not a codec: " + codec);
+        }
+    }
+
+    /**
+     * Decompress src[off, off + len) into exactly dst.length bytes
+     *
+     * @throws IOException if the input is malformed or does not expand
+     *                     to dst.length bytes
+     */
+    static void decompress(Compression codec, byte[] src, int off, int len, byte[] dst)
+            throws IOException {
+        switch (codec) {
+            case LZ4:
+                lz4Decompress(src, off, len, dst);
+                return;
+            case DEFLATE:
+                Inflater inflater = INFLATERS.get();
+                inflater.reset();
+                inflater.setInput(src, off, len);
+                try {
+                    int n = inflater.inflate(dst);
+                    if (n != dst.length || !inflater.finished()) {
+                        throw new IOException("Compressed block expands to the wrong size");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Malformed compressed block", e);
+                }
+                return;
+            default:
+                throw new IOException("Not a codec: " + codec);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // LZ4 block format
+    // ------------------------------------------------------------------------
+
+    private static int lz4Compress(byte[] src, byte[] dst, int limit) {
+        int[] table = LZ4_TABLES.get();
+        Arrays.fill(table, -1);
+        int length = src.length;
+        int matchLimit = length - LAST_LITERALS;
+        int anchor = 0;
+        int op = 0;
+        int ip = 0;
+        int misses = 0;
+
+        while (ip < length - MATCH_FIND_LIMIT) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Step faster through data that keeps missing
+                ip += 1 + (misses++ >>> 6);
+                continue;
+            }
+            misses = 0;
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, limit);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLength;
+            anchor = ip;
+            if (ip < length - MATCH_FIND_LIMIT) {
+                table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        return writeSequence(src, anchor, length - anchor, 0, 0, dst, op, limit);
+    }
+
+    /**
+     * Append literals plus a match (none if matchLength is 0, which ends
+     * the block)
+     *
+     * @return New output position, or -1 past limit
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset,
+                                     int matchLength, byte[] dst, int op, int limit) {
+        if (op + 1 + literals + literals / 255 + 1 + 2 + matchLength / 255 + 1 > limit) {
+            return -1;
+        }
+        int token = op++;
+        if (literals >= 15) {
+            dst[token] = (byte) 0xF0;
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength == 0) {
+            return op;
+        }
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            dst[token] |= 0x0F;
+            op = writeLength(extra - 15, dst, op);
+        } else {
+            dst[token] |= (byte) extra;
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static void lz4Decompress(byte[] src, int off, int len, byte[] dst) throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        while (true) {
+            if (ip >= end) {
+                throw new IOException("Truncated LZ4 block");
+            }
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 block");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - ip || literals > dst.length - op) {
+                throw new IOException("LZ4 literals overrun the block");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                break;
+            }
+
+            if (end - ip < 2) {
+                throw new IOException("Truncated LZ4 block");
+            }
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op) {
+                throw new IOException("LZ4 match offset out of range");
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 block");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dst.length - op) {
+                throw new IOException("LZ4 match overruns the block");
+            }
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // Overlapping copy repeats the last offset bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != dst.length) {
+            throw new IOException("Compressed block expands to the wrong size");
+        }
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
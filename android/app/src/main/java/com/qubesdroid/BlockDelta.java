@@ -0,0 +1,610 @@
+package com.qubesdroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Incremental backup of a closed volume: the bytes of the container that
+ * changed since an earlier copy of it, and their application to that copy
+ *
+ * The integrity tree records the generation each block was last written
+ * in (see IntegrityTree), so export() reads the generations and ships
+ * only what changed since the copy's generation:
+ * - the header
+ * - the slots of the changed blocks: on v2 their metadata entries and
+ *   their ciphertext, up to the frame length on a compressed volume and
+ *   none for a trimmed block (it reads as zeros whatever its pages hold)
+ * - the tree nodes above them, their generations and the trailer
+ * A delta is then proportional to the change, besides the 4 bytes of
+ * generation per block read to find it. It holds nothing the container
+ * does not hold as is, so no key is involved on either side and a delta
+ * is as safe to store anywhere as the container. When the copy is of
+ * another tracking id, or none at all, the delta is full: every byte
+ * range of the container, which also makes a new copy.
+ *
+ * apply() refuses a delta that is damaged (SHA-256 over the file) or
+ * made against another state than the copy's, which the copy's own
+ * trailer tells. It marks the copy's trailer with the delta before
+ * writing the ranges, checks the copy's stored tree against the tags of
+ * its slots, and clears the mark; a copy whose update was cut short
+ * takes only the same delta again. The root MAC in the copied header is
+ * checked when the copy is mounted.
+ *
+ * Only a volume dismounted cleanly (its trailer not marked dirty) is
+ * exported, since only then do its tree and generations cover every
+ * write.
+ *
+ * Delta file (little-endian):
+ * | Offset | Size | Field                                          |
+ * |--------|------|------------------------------------------------|
+ * | 0      | 8    | Magic "QDDELTA1"                               |
+ * | 8      | 4    | Version (1)                                    |
+ * | 12     | 4    | Flags: 1 = full (applies to any copy)          |
+ * | 16     | 8    | Base tracking id                               |
+ * | 24     | 4    | Base generation                                |
+ * | 28     | 4    | Reserved                                       |
+ * | 32     | 8    | Tracking id after                              |
+ * | 40     | 4    | Generation after                               |
+ * | 44     | 4    | Reserved                                       |
+ * | 48     | 8    | Container length                               |
+ * | 56     | 8    | Reserved                                       |
+ * | 64     | -    | Ranges: offset (8), length (4), bytes; in      |
+ * |        |      | ascending order, the last one the trailer      |
+ * | -      | 12   | End: offset -1, length 0                       |
+ * | -      | 32   | SHA-256 of everything before                   |
+ */
+final class BlockDelta {
+
+    static final int HEADER_SIZE = 64;
+    static final int FLAG_FULL = 1;
+    private static final byte[] MAGIC = "QDDELTA1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int RANGE_HEADER_SIZE = 12;
+    private static final int DIGEST_SIZE = 32;
+    /**
+     * Largest range written as one record; longer runs are split
+     */
+    private static final int MAX_RANGE = 1 << 20;
+
+    /**
+     * State of a copy of a volume, which a delta starts from
+     */
+    static final class Base {
+        final long trackingId;
+        final int generation;
+
+        Base(long trackingId, int generation) {
+            this.trackingId = trackingId;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Base && ((Base) o).trackingId == trackingId
+                && ((Base) o).generation == generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(trackingId) * 31 + generation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x/%d", trackingId, generation);
+        }
+    }
+
+    /**
+     * What an export or apply did
+     */
+    static final class Result {
+        final boolean full;
+        /**
+         * Blocks whose slots are in the delta (0 from apply())
+         */
+        final long blocks;
+        final long ranges;
+        /**
+         * Container bytes in the delta (without the framing)
+         */
+        final long bytes;
+        /**
+         * State of the volume, and of the copy once the delta is applied
+         */
+        final Base after;
+        final long nanos;
+
+        Result(boolean full, long blocks, long ranges, long bytes, Base after, long nanos) {
+            this.full = full;
+            this.blocks = blocks;
+            this.ranges = ranges;
+            this.bytes = bytes;
+            this.after = after;
+            this.nanos = nanos;
+        }
+    }
+
+    private BlockDelta() {
+    }
+
+    /**
+     * State of the volume or copy in file, the base to export the next
+     * delta against
+     *
+     * @return null if it tracks no changes (no stored tree, or one that
+     *         predates tracking) or an update of it was cut short
+     */
+    static Base base(File file) throws IOException {
+        try (BlockDevice device = openDevice(file, true)) {
+            IntegrityTree.Stored stored = IntegrityTree.readTracking(device);
+            if (stored == null || stored.trackingId == 0 || stored.pending != 0) {
+                return null;
+            }
+            return new Base(stored.trackingId, stored.generation);
+        }
+    }
+
+    /**
+     * Write the changes of the closed volume in file since base to out
+     *
+     * @param since State of the copy the delta is for, or null for a full
+     *              delta
+     * @throws IOException if the volume was not dismounted cleanly, or
+     *                     reading or writing fails
+     */
+    static Result export(File file, Base since, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        try (BlockDevice device = openDevice(file, true)) {
+            IntegrityTree.Stored stored = IntegrityTree.readTracking(device);
+            if (stored == null || stored.dirty) {
+                throw new IOException("Volume was not dismounted cleanly; mount and dismount it first");
+            }
+            if (stored.pending != 0) {
+                throw new IOException("Volume is a copy whose update from a delta did not finish");
+            }
+            Base after = new Base(stored.trackingId, stored.generation);
+            boolean full = since == null || since.trackingId == 0 || since.trackingId != stored.trackingId
+                || since.generation > stored.generation;
+
+            MessageDigest digest = sha256();
+            Writer writer = new Writer(device, new BufferedOutputStream(out, MAX_RANGE), digest);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(full ? FLAG_FULL : 0);
+            header.putLong(full ? 0 : since.trackingId);
+            header.putInt(full ? 0 : since.generation);
+            header.putInt(0);
+            header.putLong(after.trackingId);
+            header.putInt(after.generation);
+            header.putInt(0);
+            header.putLong(device.size());
+            writer.emit(header.array(), HEADER_SIZE);
+
+            long blocks;
+            if (full) {
+                blocks = exportAll(device, writer);
+            } else {
+                blocks = exportChanged(device, stored.generations, since.generation, writer);
+            }
+            writer.finish();
+            return new Result(full, blocks, writer.ranges, writer.bytes, after, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Apply a delta file to the copy of a volume in copy (created by a
+     * full delta if missing), checking it first (see class comment)
+     *
+     * @param hasher Hash of the integrity tree, to check the copy
+     * @throws IOException if the delta is damaged or not for this copy
+     *                     (the copy is then unchanged), or the updated
+     *                     copy fails its check
+     */
+    static Result apply(File delta, File copy, IntegrityTree.Hasher hasher) throws IOException {
+        long start = System.nanoTime();
+        Scan scan = scan(delta);
+        long mark = Math.max(1, ByteBuffer.wrap(scan.digest).getLong() & Long.MAX_VALUE);
+
+        if (!scan.full) {
+            if (!copy.exists()) {
+                throw new IOException("No copy to apply an incremental delta to");
+            }
+            IntegrityTree.Stored stored;
+            try (BlockDevice device = openDevice(copy, true)) {
+                stored = IntegrityTree.readTracking(device);
+            }
+            boolean resumed = stored != null && stored.pending == mark;
+            boolean atBase = stored != null && stored.pending == 0 && stored.trackingId == scan.base.trackingId
+                && stored.generation == scan.base.generation;
+            if (!resumed && !atBase) {
+                throw new IOException("Copy is not at the state the delta was made against ("
+                    + scan.base + ")");
+            }
+            if (copy.length() != scan.length) {
+                throw new IOException("Copy of " + copy.length() + " bytes does not match the delta ("
+                    + scan.length + ")");
+            }
+        }
+
+        long ranges = 0;
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta), MAX_RANGE))) {
+            if (scan.full) {
+                channel.truncate(0);
+            } else {
+                writeMark(channel, scan.length, mark);
+                channel.force(false);
+            }
+            in.readFully(new byte[HEADER_SIZE]);
+            ByteBuffer rangeHeader = ByteBuffer.allocate(RANGE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] data = new byte[MAX_RANGE];
+            long markPosition = scan.length - IntegrityTree.TRAILER_SIZE + IntegrityTree.TRAILER_PENDING_OFFSET;
+            while (true) {
+                in.readFully(rangeHeader.array());
+                long offset = rangeHeader.getLong(0);
+                int length = rangeHeader.getInt(8);
+                if (offset < 0) {
+                    break;
+                }
+                in.readFully(data, 0, length);
+                // The trailer goes in marked, until the copy is checked
+                for (int j = 0; j < 8; j++) {
+                    long at = markPosition + j - offset;
+                    if (at >= 0 && at < length) {
+                        data[(int) at] = (byte) (mark >>> (8 * j));
+                    }
+                }
+                ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+                while (src.hasRemaining()) {
+                    offset += channel.write(src, offset);
+                }
+                ranges++;
+                bytes += length;
+            }
+            channel.force(false);
+        }
+
+        try (BlockDevice device = openDevice(copy, true)) {
+            IntegrityTree.Stored stored = IntegrityTree.readTracking(device);
+            if (stored == null || stored.trackingId != scan.after.trackingId
+                    || stored.generation != scan.after.generation || !IntegrityTree.checkStored(device, hasher)) {
+                throw new IOException("Copy does not match its integrity tree after the delta; make a full delta");
+            }
+        }
+        try (FileChannel channel = FileChannel.open(copy.toPath(), StandardOpenOption.WRITE)) {
+            writeMark(channel, scan.length, 0);
+            channel.force(false);
+        }
+        return new Result(scan.full, 0, ranges, bytes, scan.after, System.nanoTime() - start);
+    }
+
+    // ------------------------------------------------------------------------
+    // Internals
+    // ------------------------------------------------------------------------
+
+    /**
+     * Every byte range of the container: the header, the slots (v2
+     * metadata and used ciphertext) and everything stored after them
+     *
+     * @return Blocks exported
+     */
+    private static long exportAll(BlockDevice device, Writer writer) throws IOException {
+        long blockCount = device.blockCount();
+        writer.range(0, device.dataOffset());
+        if (device.isAligned()) {
+            writer.range(device.dataOffset(), blockCount * BlockDevice.METADATA_ENTRY_SIZE);
+            exportCiphertext(device, 0, blockCount, writer);
+        } else {
+            writer.range(device.dataOffset(), blockCount * device.slotSize());
+        }
+        writer.range(device.slotAreaEnd(), device.size() - device.slotAreaEnd());
+        return blockCount;
+    }
+
+    /**
+     * The header, the slots of the blocks written after generation since,
+     * the tree nodes above them and their generations
+     *
+     * @return Blocks exported
+     */
+    private static long exportChanged(BlockDevice device, int[] generations, int since, Writer writer)
+            throws IOException {
+        long blockCount = device.blockCount();
+        writer.range(0, device.dataOffset());
+        // Runs of changed blocks, as [first, end) pairs
+        long[] runs = new long[16];
+        int runCount = 0;
+        long blocks = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (generations[i] <= since) {
+                continue;
+            }
+            blocks++;
+            if (runCount > 0 && runs[2 * runCount - 1] == i) {
+                runs[2 * runCount - 1] = i + 1;
+                continue;
+            }
+            if (2 * runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[2 * runCount] = i;
+            runs[2 * runCount + 1] = i + 1;
+            runCount++;
+        }
+
+        if (device.isAligned()) {
+            for (int r = 0; r < runCount; r++) {
+                long first = runs[2 * r];
+                writer.range(device.dataOffset() + first * BlockDevice.METADATA_ENTRY_SIZE,
+                    (runs[2 * r + 1] - first) * BlockDevice.METADATA_ENTRY_SIZE);
+            }
+            for (int r = 0; r < runCount; r++) {
+                exportCiphertext(device, runs[2 * r], runs[2 * r + 1], writer);
+            }
+        } else {
+            for (int r = 0; r < runCount; r++) {
+                long first = runs[2 * r];
+                writer.range(device.dataOffset() + first * device.slotSize(),
+                    (runs[2 * r + 1] - first) * device.slotSize());
+            }
+        }
+
+        // Nodes above the runs, level by level; a run of nodes halves per level
+        long position = device.slotAreaEnd();
+        int[] sizes = IntegrityTree.levelSizes(blockCount);
+        for (int k = 0; k < sizes.length; k++) {
+            long lastEnd = -1;
+            for (int r = 0; r < runCount; r++) {
+                long first = runs[2 * r] >> k;
+                long end = ((runs[2 * r + 1] - 1) >> k) + 1;
+                first = Math.max(first, lastEnd);
+                if (first < end) {
+                    writer.range(position + first * IntegrityTree.HASH_SIZE, (end - first) * IntegrityTree.HASH_SIZE);
+                }
+                lastEnd = Math.max(lastEnd, end);
+            }
+            position += (long) sizes[k] * IntegrityTree.HASH_SIZE;
+        }
+        for (int r = 0; r < runCount; r++) {
+            long first = runs[2 * r];
+            writer.range(position + first * IntegrityTree.GENERATION_SIZE,
+                (runs[2 * r + 1] - first) * IntegrityTree.GENERATION_SIZE);
+        }
+        writer.range(device.size() - IntegrityTree.TRAILER_SIZE, IntegrityTree.TRAILER_SIZE);
+        return blocks;
+    }
+
+    /**
+     * Ciphertext of the v2 blocks from first to end: whole blocks, up to
+     * the frame length of a framed slot, nothing of a trimmed one
+     */
+    private static void exportCiphertext(BlockDevice device, long first, long end, Writer writer)
+            throws IOException {
+        int blockSize = device.blockSize();
+        int batch = 4096;
+        ByteBuffer entries = ByteBuffer.allocate(batch * BlockDevice.METADATA_ENTRY_SIZE);
+        for (long base = first; base < end; base += batch) {
+            int count = (int) Math.min(batch, end - base);
+            entries.clear().limit(count * BlockDevice.METADATA_ENTRY_SIZE);
+            device.readMetadata(base, entries);
+            byte[] e = entries.array();
+            for (int i = 0; i < count; i++) {
+                int off = i * BlockDevice.METADATA_ENTRY_SIZE;
+                if (isZero(e, off, BlockDevice.METADATA_ENTRY_SIZE)) {
+                    continue;
+                }
+                int length = blockSize;
+                if (device.layout() == BlockDevice.Layout.FRAMED) {
+                    // Framed: codec in the high byte, length in the low 24 bits
+                    int frame = ByteBuffer.wrap(e, off + BlockDevice.NONCE_SIZE, BlockDevice.FRAME_SIZE).getInt();
+                    length = Math.min(blockSize, frame & 0xFFFFFF);
+                }
+                writer.range(device.dataStart() + (base + i) * blockSize, length);
+            }
+        }
+    }
+
+    /**
+     * Streams ranges of the container as records, joining ranges that
+     * meet
+     */
+    private static final class Writer {
+        private final BlockDevice device;
+        private final OutputStream out;
+        private final MessageDigest digest;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_RANGE);
+        private final ByteBuffer recordHeader = ByteBuffer.allocate(RANGE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long start = -1;
+        private long end = -1;
+        long ranges;
+        long bytes;
+
+        Writer(BlockDevice device, OutputStream out, MessageDigest digest) {
+            this.device = device;
+            this.out = out;
+            this.digest = digest;
+        }
+
+        void range(long position, long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            if (position == end) {
+                end += length;
+            } else {
+                flush();
+                start = position;
+                end = position + length;
+            }
+            while (end - start > MAX_RANGE) {
+                long rest = end;
+                long split = start + MAX_RANGE;
+                end = split;
+                flush();
+                start = split;
+                end = rest;
+            }
+        }
+
+        void finish() throws IOException {
+            flush();
+            recordHeader.putLong(0, -1).putInt(8, 0);
+            emit(recordHeader.array(), RANGE_HEADER_SIZE);
+            out.write(digest.digest());
+            out.flush();
+        }
+
+        private void flush() throws IOException {
+            if (start < 0) {
+                return;
+            }
+            int length = (int) (end - start);
+            buffer.clear().limit(length);
+            if (!device.readAt(start, buffer)) {
+                throw new EOFException("Volume ends before " + end);
+            }
+            recordHeader.putLong(0, start).putInt(8, length);
+            emit(recordHeader.array(), RANGE_HEADER_SIZE);
+            emit(buffer.array(), length);
+            ranges++;
+            bytes += length;
+            start = -1;
+            end = -1;
+        }
+
+        void emit(byte[] b, int length) throws IOException {
+            digest.update(b, 0, length);
+            out.write(b, 0, length);
+        }
+    }
+
+    /**
+     * A delta file checked end to end, before anything is written
+     */
+    private static final class Scan {
+        boolean full;
+        Base base;
+        Base after;
+        long length;
+        byte[] digest;
+    }
+
+    private static Scan scan(File delta) throws IOException {
+        MessageDigest digest = sha256();
+        Scan scan = new Scan();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(delta), MAX_RANGE)) {
+            byte[] header = readDigested(in, HEADER_SIZE, digest);
+            ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) || h.getInt(8) != VERSION) {
+                throw new IOException("Not a volume delta");
+            }
+            scan.full = (h.getInt(12) & FLAG_FULL) != 0;
+            scan.base = new Base(h.getLong(16), h.getInt(24));
+            scan.after = new Base(h.getLong(32), h.getInt(40));
+            scan.length = h.getLong(48);
+
+            byte[] data = new byte[MAX_RANGE];
+            long next = 0;
+            long lastEnd = -1;
+            while (true) {
+                ByteBuffer range = ByteBuffer.wrap(readDigested(in, RANGE_HEADER_SIZE, digest))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                long offset = range.getLong(0);
+                int length = range.getInt(8);
+                if (offset == -1 && length == 0) {
+                    break;
+                }
+                if (offset < next || length <= 0 || length > MAX_RANGE || offset + length > scan.length) {
+                    throw new IOException("Volume delta is damaged (range " + offset + "+" + length + ")");
+                }
+                readFully(in, data, length);
+                digest.update(data, 0, length);
+                next = offset + length;
+                lastEnd = next;
+            }
+            if (lastEnd != scan.length) {
+                throw new IOException("Volume delta is damaged (does not end with the tree trailer)");
+            }
+            byte[] stored = new byte[DIGEST_SIZE];
+            readFully(in, stored, DIGEST_SIZE);
+            scan.digest = digest.digest();
+            if (!MessageDigest.isEqual(stored, scan.digest) || in.read() != -1) {
+                throw new IOException("Volume delta is damaged (checksum mismatch)");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Volume delta is truncated", e);
+        }
+        return scan;
+    }
+
+    private static byte[] readDigested(InputStream in, int length, MessageDigest digest) throws IOException {
+        byte[] b = new byte[length];
+        readFully(in, b, length);
+        digest.update(b);
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+        for (int n = 0; n < length; ) {
+            int read = in.read(b, n, length - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    /**
+     * Set the delta mark in the trailer of a copy of length bytes
+     */
+    private static void writeMark(FileChannel channel, long length, long mark) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        field.putLong(0, mark);
+        long position = length - IntegrityTree.TRAILER_SIZE + IntegrityTree.TRAILER_PENDING_OFFSET;
+        while (field.hasRemaining()) {
+            position += channel.write(field, position);
+        }
+    }
+
+    /**
+     * Open the slots of a closed volume as its header describes them
+     */
+    private static BlockDevice openDevice(File file, boolean readOnly) throws IOException {
+        return VolumeHeader.read(file).open(file, readOnly);
+    }
+
+    private static boolean isZero(byte[] b, int offset, int length) {
+        int or = 0;
+        for (int i = offset; i < offset + length; i++) {
+            or |= b[i];
+        }
+        return or == 0;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
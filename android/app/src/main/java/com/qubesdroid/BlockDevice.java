@@ -0,0 +1,620 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Positional access to the sealed block slots of a volume container
+ *
+ * A slot is a sealed block as BlockEngine sees it, in one of two layouts:
+ * - FIXED: Nonce (12) + Ciphertext (block size) + Tag (16)
+ * - FRAMED (compressed volumes): Nonce (12) + Frame (4) + Tag (16) +
+ *   Ciphertext (frame length), with the rest of the slot unused; only
+ *   the used part of a slot is written (see writeFramed)
+ *
+ * How slots are placed in the container depends on the volume version
+ * (see VOLUME_FORMAT.md):
+ * - v1 (open): slots follow the header back to back, so no block starts
+ *   on a page boundary. Only whole blocks are addressable; the short
+ *   tail block a v1 volume may end with is never used by the engine.
+ * - v2 (openAligned): everything but the ciphertext (nonce, frame, tag)
+ *   goes to a metadata region of 32-byte entries after the header, and
+ *   the ciphertext of block i to dataStart() + i * blockSize, where
+ *   dataStart() is aligned to DATA_ALIGNMENT. Each block is then whole
+ *   pages and erase blocks, and a run of blocks is one contiguous read.
+ *   The slot is split on write and put back together on read, so the
+ *   layers above see the same slots in both versions.
+ *   The metadata region may have room for more entries than there are
+ *   blocks (the metadata capacity), so that blocks can be appended
+ *   without moving the data region (see VolumeExpander).
+ *
+ * A v2 block can be trimmed once the file system no longer uses it: its
+ * metadata entry is zeroed, which BlockEngine reads as a block of zeros,
+ * and its ciphertext pages are punched out of the container through a
+ * HolePuncher, so the host file system gets the space back. v1 slots do
+ * not start on page boundaries and are never trimmed.
+ *
+ * A container may carry an IntegrityTree after its slots. The tree ends
+ * with a trailer recording how many slots precede it, so appending the
+ * tree does not change the block count.
+ *
+ * This class does no crypto and no queueing. Reads and writes go straight
+ * to the FileChannel at absolute positions, so it is safe to use from
+ * several threads at once.
+ */
+final class BlockDevice implements Closeable {
+
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    static final int FRAME_SIZE = 4;
+
+    /**
+     * Size of a v2 metadata entry: the slot minus its ciphertext, padded
+     * so that no entry straddles a page
+     */
+    static final int METADATA_ENTRY_SIZE = 32;
+    static final int PAGE_SIZE = 4096;
+    /**
+     * Alignment of the v2 data region: 1 MB covers the erase block of
+     * most flash storage and every supported block size
+     */
+    static final int DATA_ALIGNMENT = 1 << 20;
+
+    /**
+     * Deallocates byte ranges of a container file: CryptoNative on the
+     * device
+     */
+    interface HolePuncher {
+        /**
+         * Punch a hole of length bytes at offset, keeping the file size
+         *
+         * @return false if the host file system cannot punch holes
+         */
+        boolean punch(File file, long offset, long length) throws IOException;
+    }
+
+    /**
+     * HolePuncher over the native fallocate()
+     */
+    static HolePuncher nativePuncher(CryptoNative crypto) {
+        return (file, offset, length) -> {
+            int result = crypto.punchHole(file.getPath(), offset, length);
+            if (result < 0) {
+                throw new IOException("Punching " + length + " bytes at " + offset + " of " + file.getName()
+                    + " failed (errno " + -result + ")");
+            }
+            return result == 0;
+        };
+    }
+
+    /**
+     * Arrangement of a slot (see class comment)
+     */
+    enum Layout {
+        FIXED,
+        FRAMED
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final long dataOffset;
+    private final int blockSize;
+    private final Layout layout;
+    private final int slotSize;
+    private final long blockCount;
+    private final boolean readOnly;
+    // v2 placement: offset of the ciphertext within a slot, and of the
+    // data region in the file (0 for v1)
+    private final boolean aligned;
+    private final int cipherStart;
+    private final long dataStart;
+    // Serializes scattering reads and gathering writes, which use the
+    // channel position
+    private final Object vectorLock = new Object();
+    // Null once the host file system turned out not to punch holes
+    private volatile HolePuncher puncher;
+
+    private BlockDevice(File file, FileChannel channel, long dataOffset, int blockSize,
+                        Layout layout, long alignedBlocks, long metadataCapacity, boolean readOnly)
+            throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.dataOffset = dataOffset;
+        this.blockSize = blockSize;
+        this.layout = layout;
+        this.slotSize = NONCE_SIZE + (layout == Layout.FRAMED ? FRAME_SIZE : 0) + blockSize + TAG_SIZE;
+        this.cipherStart = layout == Layout.FRAMED ? NONCE_SIZE + FRAME_SIZE + TAG_SIZE : NONCE_SIZE;
+        this.readOnly = readOnly;
+        this.aligned = alignedBlocks >= 0;
+        if (aligned) {
+            this.blockCount = alignedBlocks;
+            this.dataStart = alignedDataStart(dataOffset, Math.max(alignedBlocks, metadataCapacity));
+            if (areaEnd(alignedBlocks) > channel.size()) {
+                throw new EOFException("Volume of " + alignedBlocks + " blocks truncated at " + channel.size());
+            }
+        } else {
+            this.dataStart = 0;
+            long trailerBlocks = IntegrityTree.trailerBlockCount(this, channel.size());
+            this.blockCount = trailerBlocks >= 0 ? trailerBlocks : Math.max(0, (channel.size() - dataOffset) / slotSize);
+        }
+    }
+
+    /**
+     * Open the block area of a volume file
+     *
+     * @param file Volume container
+     * @param dataOffset Offset of block 0 (the header size)
+     * @param blockSize Plaintext bytes per block
+     * @param readOnly Open without write access
+     */
+    static BlockDevice open(File file, long dataOffset, int blockSize, boolean readOnly)
+            throws IOException {
+        return open(file, dataOffset, blockSize, Layout.FIXED, readOnly);
+    }
+
+    /**
+     * Open the block area of a volume file whose slots use layout
+     */
+    static BlockDevice open(File file, long dataOffset, int blockSize, Layout layout,
+                            boolean readOnly) throws IOException {
+        return new BlockDevice(file, openChannel(file, readOnly), dataOffset, blockSize, layout, -1, 0, readOnly);
+    }
+
+    /**
+     * Open the block area of a v2 volume file
+     *
+     * @param dataOffset Offset of the metadata region (the header size, a
+     *                   multiple of PAGE_SIZE)
+     * @param blockCount Block count from the header; the data region is
+     *                   placed after room for that many metadata entries
+     */
+    static BlockDevice openAligned(File file, long dataOffset, int blockSize, Layout layout,
+                                   long blockCount, boolean readOnly) throws IOException {
+        return openAligned(file, dataOffset, blockSize, layout, blockCount, 0, readOnly);
+    }
+
+    /**
+     * Open the block area of a v2 volume file whose metadata region has
+     * room for metadataCapacity entries
+     *
+     * @param metadataCapacity Metadata capacity from the header (0 if it
+     *                         records none: room for blockCount entries)
+     */
+    static BlockDevice openAligned(File file, long dataOffset, int blockSize, Layout layout,
+                                   long blockCount, long metadataCapacity, boolean readOnly)
+            throws IOException {
+        if (dataOffset % PAGE_SIZE != 0 || blockCount < 0 || metadataCapacity < 0) {
+            throw new IOException("Invalid v2 geometry: header " + dataOffset + ", " + blockCount + " blocks");
+        }
+        FileChannel channel = openChannel(file, readOnly);
+        try {
+            return new BlockDevice(file, channel, dataOffset, blockSize, layout, blockCount,
+                metadataCapacity, readOnly);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel openChannel(File file, boolean readOnly) throws IOException {
+        return readOnly
+            ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Start of the data region of a v2 volume
+     */
+    static long alignedDataStart(long headerSize, long blockCount) {
+        long metadataEnd = headerSize + blockCount * METADATA_ENTRY_SIZE;
+        return (metadataEnd + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+    }
+
+    /**
+     * End of the last block of a v2 volume (where its IntegrityTree starts)
+     */
+    static long alignedAreaEnd(long headerSize, int blockSize, long blockCount) {
+        return alignedAreaEnd(headerSize, blockSize, blockCount, 0);
+    }
+
+    /**
+     * End of the last block of a v2 volume with the given metadata
+     * capacity
+     */
+    static long alignedAreaEnd(long headerSize, int blockSize, long blockCount, long metadataCapacity) {
+        return alignedDataStart(headerSize, Math.max(blockCount, metadataCapacity)) + blockCount * blockSize;
+    }
+
+    /**
+     * Most blocks a v2 volume of at most volumeSize bytes holds
+     */
+    static long alignedBlocksFor(long volumeSize, long headerSize, int blockSize) {
+        return alignedBlocksFor(volumeSize, headerSize, blockSize, 1);
+    }
+
+    /**
+     * Most blocks a v2 volume of at most volumeSize bytes holds when its
+     * metadata region has room for headroom entries per block
+     */
+    static long alignedBlocksFor(long volumeSize, long headerSize, int blockSize, int headroom) {
+        long count = Math.max(0, (volumeSize - headerSize) / blockSize);
+        while (count > 0 && alignedAreaEnd(headerSize, blockSize, count, count * headroom) > volumeSize) {
+            // Each step back frees at least one block of data region
+            long over = alignedAreaEnd(headerSize, blockSize, count, count * headroom) - volumeSize;
+            count -= Math.max(1, over / blockSize);
+        }
+        return count;
+    }
+
+    File file() {
+        return file;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    Layout layout() {
+        return layout;
+    }
+
+    int slotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Offset of the tag within a slot
+     */
+    int tagOffset() {
+        return layout == Layout.FRAMED ? NONCE_SIZE + FRAME_SIZE : slotSize - TAG_SIZE;
+    }
+
+    long blockCount() {
+        return blockCount;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Whether this is a v2 device (see class comment)
+     */
+    boolean isAligned() {
+        return aligned;
+    }
+
+    /**
+     * Punch the ciphertext of trimmed blocks out of the container with
+     * puncher (v2 devices opened for writing only)
+     */
+    void setHolePuncher(HolePuncher puncher) {
+        this.puncher = aligned && !readOnly ? puncher : null;
+    }
+
+    /**
+     * Whether trim() returns space to the host file system
+     */
+    boolean punchesHoles() {
+        return puncher != null;
+    }
+
+    long dataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Offset of the ciphertext of block 0 on a v2 device
+     */
+    long dataStart() {
+        return dataStart;
+    }
+
+    /**
+     * Blocks a v2 device can hold without moving its data region: the
+     * metadata entries that fit before dataStart()
+     */
+    long metadataRoom() {
+        return aligned ? (dataStart - dataOffset) / METADATA_ENTRY_SIZE : 0;
+    }
+
+    /**
+     * Offset of the tag within a v2 metadata entry
+     */
+    int metadataTagOffset() {
+        int tag = tagOffset();
+        return tag < cipherStart ? tag : tag - blockSize;
+    }
+
+    /**
+     * Offset just past count slots, where an IntegrityTree after them
+     * starts
+     */
+    long areaEnd(long count) {
+        return aligned ? dataStart + count * blockSize : dataOffset + count * slotSize;
+    }
+
+    /**
+     * Offset just past the last whole slot, where an IntegrityTree starts
+     */
+    long slotAreaEnd() {
+        return areaEnd(blockCount);
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Read bytes outside the slot area (header or integrity tree), or
+     * raw bytes of any part of the container (BlockDelta)
+     *
+     * @return false if the container ends before dst is full
+     */
+    boolean readAt(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    /**
+     * Write bytes outside the slot area (header or integrity tree)
+     */
+    void writeAt(long position, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Volume is mounted read-only");
+        }
+        if (position < dataOffset ? position + src.remaining() > dataOffset : position < slotAreaEnd()) {
+            throw new IOException("Raw write at " + position + " overlaps the block slots");
+        }
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Drop everything past size (a stale tree or partial tail slot)
+     */
+    void truncate(long size) throws IOException {
+        if (size < slotAreaEnd()) {
+            throw new IOException("Truncation at " + size + " would cut block slots");
+        }
+        channel.truncate(size);
+    }
+
+    /**
+     * Read consecutive sealed slots starting at firstBlock
+     *
+     * Fills dst from its position to its limit, which must be a whole
+     * number of slots.
+     */
+    void read(long firstBlock, ByteBuffer dst) throws IOException {
+        checkRange(firstBlock, dst.remaining());
+        if (aligned) {
+            readAligned(firstBlock, dst);
+            return;
+        }
+        long position = dataOffset + firstBlock * slotSize;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Volume truncated at block " + firstBlock);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Read the packed v2 metadata entries of consecutive blocks
+     *
+     * Fills dst from its position to its limit, a whole number of
+     * METADATA_ENTRY_SIZE entries; lets a caller that needs only tags
+     * skip the ciphertext.
+     */
+    void readMetadata(long firstBlock, ByteBuffer dst) throws IOException {
+        if (!aligned || dst.remaining() % METADATA_ENTRY_SIZE != 0) {
+            throw new IOException("No metadata region to read " + dst.remaining() + " bytes from");
+        }
+        checkRange(firstBlock, dst.remaining() / METADATA_ENTRY_SIZE * slotSize);
+        if (!readAt(dataOffset + firstBlock * METADATA_ENTRY_SIZE, dst)) {
+            throw new EOFException("Volume truncated at block " + firstBlock);
+        }
+    }
+
+    /**
+     * Write consecutive sealed slots starting at firstBlock
+     */
+    void write(long firstBlock, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Volume is mounted read-only");
+        }
+        checkRange(firstBlock, src.remaining());
+        if (aligned) {
+            writeAligned(firstBlock, src, src.remaining() / slotSize, blockSize);
+            return;
+        }
+        long position = dataOffset + firstBlock * slotSize;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Write the used start of one framed slot, leaving the rest of the
+     * slot as it is
+     */
+    void writeFramed(long block, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Volume is mounted read-only");
+        }
+        if (layout != Layout.FRAMED || src.remaining() > slotSize) {
+            throw new IOException("Partial write of " + src.remaining() + " bytes to a " + layout + " slot");
+        }
+        checkRange(block, slotSize);
+        if (aligned) {
+            if (src.remaining() < cipherStart) {
+                throw new IOException("Framed write of " + src.remaining() + " bytes has no frame");
+            }
+            writeAligned(block, src, 1, src.remaining() - cipherStart);
+            return;
+        }
+        long position = dataOffset + block * slotSize;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Trim count consecutive blocks of a v2 device (see class comment)
+     *
+     * The metadata entries are zeroed first, so a crash before the hole
+     * is punched leaves blocks that read as zeros, only without the
+     * space returned. A host file system that cannot punch holes turns
+     * hole punching off for the rest of the mount.
+     */
+    void trim(long firstBlock, int count) throws IOException {
+        if (readOnly) {
+            throw new IOException("Volume is mounted read-only");
+        }
+        if (!aligned) {
+            throw new IOException("Only v2 volumes can be trimmed");
+        }
+        checkRange(firstBlock, count * slotSize);
+        ByteBuffer entries = ByteBuffer.allocate(count * METADATA_ENTRY_SIZE);
+        long position = dataOffset + firstBlock * METADATA_ENTRY_SIZE;
+        while (entries.hasRemaining()) {
+            position += channel.write(entries, position);
+        }
+        HolePuncher p = puncher;
+        if (p != null && !p.punch(file, dataStart + firstBlock * blockSize, (long) count * blockSize)) {
+            puncher = null;
+        }
+    }
+
+    /**
+     * Flush written slots to stable storage
+     */
+    void force() throws IOException {
+        if (!readOnly) {
+            long span = Tracer.begin(Tracer.Span.FSYNC);
+            try {
+                channel.force(false);
+            } finally {
+                Tracer.end(Tracer.Span.FSYNC, span);
+            }
+        }
+    }
+
+    /**
+     * Read count slots of a v2 device: one read for their metadata
+     * entries, one scattering read for their ciphertext straight into
+     * the slots
+     */
+    private void readAligned(long firstBlock, ByteBuffer dst) throws IOException {
+        int count = dst.remaining() / slotSize;
+        int base = dst.position();
+        ByteBuffer metadata = ByteBuffer.allocate(count * METADATA_ENTRY_SIZE);
+        readMetadata(firstBlock, metadata);
+
+        ByteBuffer[] ciphertexts = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int slot = base + i * slotSize;
+            ByteBuffer view = dst.duplicate();
+            view.limit(slot + cipherStart + blockSize).position(slot + cipherStart);
+            ciphertexts[i] = view.slice();
+        }
+        transfer(dataStart + firstBlock * blockSize, ciphertexts, false);
+
+        byte[] entries = metadata.array();
+        int suffix = slotSize - cipherStart - blockSize;
+        for (int i = 0; i < count; i++) {
+            int slot = base + i * slotSize;
+            int entry = i * METADATA_ENTRY_SIZE;
+            dst.position(slot);
+            dst.put(entries, entry, cipherStart);
+            dst.position(slot + cipherStart + blockSize);
+            dst.put(entries, entry + cipherStart, suffix);
+        }
+        dst.position(base + count * slotSize);
+    }
+
+    /**
+     * Write count slots of a v2 device, the last one only up to
+     * lastCipherLength bytes of ciphertext: ciphertext first by one
+     * gathering write, then the metadata entries by one write
+     */
+    private void writeAligned(long firstBlock, ByteBuffer src, int count, int lastCipherLength)
+            throws IOException {
+        int base = src.position();
+        ByteBuffer metadata = ByteBuffer.allocate(count * METADATA_ENTRY_SIZE);
+        ByteBuffer[] ciphertexts = new ByteBuffer[count];
+        int suffix = slotSize - cipherStart - blockSize;
+        for (int i = 0; i < count; i++) {
+            int slot = base + i * slotSize;
+            ByteBuffer view = src.duplicate();
+            view.limit(slot + cipherStart).position(slot);
+            metadata.position(i * METADATA_ENTRY_SIZE);
+            metadata.put(view);
+            if (suffix > 0) {
+                view.limit(slot + slotSize).position(slot + cipherStart + blockSize);
+                metadata.put(view);
+            }
+            int length = i == count - 1 ? lastCipherLength : blockSize;
+            view.limit(slot + cipherStart + length).position(slot + cipherStart);
+            ciphertexts[i] = view.slice();
+        }
+        transfer(dataStart + firstBlock * blockSize, ciphertexts, true);
+        metadata.clear();
+        long position = dataOffset + firstBlock * METADATA_ENTRY_SIZE;
+        while (metadata.hasRemaining()) {
+            position += channel.write(metadata, position);
+        }
+        src.position(src.limit());
+    }
+
+    /**
+     * Scattering read or gathering write of buffers at position
+     */
+    private void transfer(long position, ByteBuffer[] buffers, boolean write) throws IOException {
+        long total = 0;
+        for (ByteBuffer b : buffers) {
+            total += b.remaining();
+        }
+        synchronized (vectorLock) {
+            channel.position(position);
+            for (long done = 0; done < total; ) {
+                long n = write ? channel.write(buffers) : channel.read(buffers);
+                if (n < 0) {
+                    throw new EOFException("Volume truncated at " + (position + done));
+                }
+                done += n;
+            }
+        }
+    }
+
+    private void checkRange(long firstBlock, int length) throws IOException {
+        if (length % slotSize != 0) {
+            throw new IOException("Transfer of " + length + " bytes is not slot aligned");
+        }
+        long count = length / slotSize;
+        if (firstBlock < 0 || firstBlock + count > blockCount) {
+            throw new IOException("Block range " + firstBlock + "+" + count +
+                " outside volume (" + blockCount + " blocks)");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,771 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Encrypting block layer of a mounted volume
+ *
+ * Seals each plaintext block with ChaCha20-Poly1305 under the master key
+ * (a KeyHandle: the key stays in the KeyVault and is never in a Java
+ * array) and hands the sealed slot to the IoScheduler:
+ * - Nonce: 12 random bytes, fresh on every write (blocks are rewritten,
+ *   so the index alone would repeat nonces)
+ * - AAD: block index (8 bytes, big-endian), so a slot cannot be moved
+ *   to another index without failing authentication
+ *
+ * On a FRAMED device each block is first compressed with the volume's
+ * Compression, unless BlockCompressor finds it not worth it, and only
+ * the frame is encrypted and written:
+ * - Frame: codec (high byte) and ciphertext length (low 24 bits),
+ *   big-endian; a length of blockSize means stored as is
+ * - AAD: block index followed by the frame, so neither can be changed
+ *   without failing authentication
+ * Reading takes the codec from the frame, not from the volume setting.
+ *
+ * With an IntegrityTree, every write records the new tag in the tree and
+ * every open checks the slot against it first, so an older version of a
+ * block put back in place is rejected too. Every flush checkpoints the
+ * tree's root MAC in the header, and closing persists the tree.
+ *
+ * A block the file system has freed can be trimmed (v2 devices with a
+ * tree only): the tree records an all-zero tag for it and the device
+ * zeroes its metadata entry and punches out its ciphertext. A slot whose
+ * nonce, frame and tag are all zero then opens as a block of zeros, but
+ * only if the tree agrees, so zeroing an entry on disk is caught like
+ * any other tampering. Blocks trimmed during the mount are answered
+ * without reading the device at all.
+ *
+ * During a master key rotation (see KeyRotator) the engine holds two key
+ * generations, the current key and the next one:
+ * - Every write is sealed under the next key
+ * - Blocks below rekeyed() are under the next key and open only with it
+ * - Blocks from rekeyed() on are under the current key unless written
+ *   since the rotation started, so they are opened with the current key
+ *   and, failing that, the next one
+ * The rotator reads a window of blocks past rekeyed(), re-seals them and
+ * writes them back; a block written by anyone else in the meantime is
+ * not written back, so the rotation never undoes a newer write.
+ */
+final class BlockEngine implements BlockStore, Closeable {
+
+    /**
+     * ChaCha20-Poly1305 behind the engine: CryptoNative on the device,
+     * under keys in its KeyVault
+     */
+    interface Aead {
+        /**
+         * @return Ciphertext with the 16-byte tag appended, or null on
+         *         failure (a destroyed key among others)
+         */
+        byte[] encrypt(byte[] plaintext, KeyHandle key, byte[] nonce, byte[] aad);
+
+        /**
+         * @return Plaintext, or null if authentication fails
+         */
+        byte[] decrypt(byte[] ciphertextWithTag, KeyHandle key, byte[] nonce, byte[] aad);
+    }
+
+    /**
+     * Aead over the native ChaCha20-Poly1305, keys looked up in the vault;
+     * every JNI call is timed into Metrics
+     */
+    static Aead nativeAead(CryptoNative crypto) {
+        return new Aead() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, KeyHandle key, byte[] nonce, byte[] aad) {
+                long start = System.nanoTime();
+                byte[] sealed = crypto.encryptWithKey(plaintext, key.id(), nonce, aad);
+                Metrics.AEAD_SEAL.recordSince(start);
+                return sealed;
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertextWithTag, KeyHandle key, byte[] nonce, byte[] aad) {
+                long start = System.nanoTime();
+                byte[] plaintext = crypto.decryptWithKey(ciphertextWithTag, key.id(), nonce, aad);
+                Metrics.AEAD_OPEN.recordSince(start);
+                if (plaintext == null) {
+                    Metrics.AEAD_OPEN_FAILED.increment();
+                }
+                return plaintext;
+            }
+        };
+    }
+
+    private final IoScheduler scheduler;
+    private final Aead aead;
+    private volatile KeyHandle masterKey;
+    private final SecureRandom random = new SecureRandom();
+    private final int blockSize;
+    private final int slotSize;
+    private final long blockCount;
+    private final int tagOffset;
+    private final boolean framed;
+    private final Compression compression;
+    private final IntegrityTree tree;
+    // Blocks trimmed and not written since, and the slot they read as
+    private final BitSet trimmed = new BitSet();
+    private final byte[] trimmedSlot;
+
+    // Key rotation: nextKey is null unless one is in progress. keyLock is
+    // held shared from sealing a block to queueing its write, so a
+    // rotation starts between writes; rekeyLock orders the queueing of
+    // writes against the rotator's write-backs
+    private volatile KeyHandle nextKey;
+    private volatile long rekeyed;
+    private volatile long writeBacks;
+    private long rekeyEnd;
+    private final Set<Long> rewritten = new HashSet<>();
+    private final ReadWriteLock keyLock = new ReentrantReadWriteLock();
+    private final Object rekeyLock = new Object();
+    // Orders checkpoints, so the header ends up with the latest root MAC
+    private final Object checkpointLock = new Object();
+
+    /**
+     * @param scheduler Scheduler over the volume's BlockDevice
+     * @param crypto Native crypto
+     * @param masterKey 32-byte master key (copied; the copy is destroyed on close)
+     */
+    BlockEngine(IoScheduler scheduler, CryptoNative crypto, KeyHandle masterKey) {
+        this(scheduler, crypto, masterKey, null);
+    }
+
+    /**
+     * @param tree Integrity tree of the device, or null to rely on the
+     *             per-block tags alone
+     */
+    BlockEngine(IoScheduler scheduler, CryptoNative crypto, KeyHandle masterKey, IntegrityTree tree) {
+        this(scheduler, crypto, masterKey, tree, Compression.NONE);
+    }
+
+    /**
+     * @param compression Codec for new writes; anything but NONE needs a
+     *                    FRAMED device
+     */
+    BlockEngine(IoScheduler scheduler, CryptoNative crypto, KeyHandle masterKey, IntegrityTree tree,
+                Compression compression) {
+        this(scheduler, nativeAead(crypto), masterKey, tree, compression);
+    }
+
+    /**
+     * Engine over another implementation of the same AEAD
+     */
+    BlockEngine(IoScheduler scheduler, Aead aead, KeyHandle masterKey, IntegrityTree tree,
+                Compression compression) {
+        BlockDevice device = scheduler.device();
+        if (compression.layout() != device.layout()) {
+            throw new IllegalArgumentException(compression + " compression needs "
+                + compression.layout() + " slots, device has " + device.layout());
+        }
+        this.scheduler = scheduler;
+        this.tree = tree;
+        this.aead = aead;
+        this.masterKey = masterKey.copy();
+        this.compression = compression;
+        this.blockSize = device.blockSize();
+        this.slotSize = device.slotSize();
+        this.blockCount = device.blockCount();
+        this.tagOffset = device.tagOffset();
+        this.framed = device.layout() == BlockDevice.Layout.FRAMED;
+        this.trimmedSlot = new byte[slotSize];
+    }
+
+    @Override
+    public int blockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long blockCount() {
+        return blockCount;
+    }
+
+    IoScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The integrity tree, or null
+     */
+    IntegrityTree integrityTree() {
+        return tree;
+    }
+
+    Compression compression() {
+        return compression;
+    }
+
+    /**
+     * Read and authenticate one block
+     *
+     * @param dst Receives blockSize plaintext bytes
+     * @throws IOException if the slot cannot be read or fails authentication
+     */
+    @Override
+    public void readBlock(long index, byte[] dst, IoScheduler.IoClass ioClass) throws IOException {
+        long span = Tracer.begin(Tracer.Span.BLOCK_READ);
+        try {
+            readAndOpen(index, dst, ioClass);
+            Metrics.BLOCK_READ.recordSince(span);
+            Metrics.BYTES_READ.add(blockSize);
+        } finally {
+            Tracer.end(Tracer.Span.BLOCK_READ, span, index);
+        }
+    }
+
+    private void readAndOpen(long index, byte[] dst, IoScheduler.IoClass ioClass) throws IOException {
+        if (isTrimmed(index)) {
+            Arrays.fill(dst, 0, blockSize, (byte) 0);
+            return;
+        }
+        ByteBuffer slot = ByteBuffer.allocate(slotSize);
+        while (true) {
+            long before = writeBacks;
+            scheduler.read(index, slot, ioClass);
+            try {
+                open(index, slot.array(), dst);
+                return;
+            } catch (IOException e) {
+                // The rotator may have written the block back between the
+                // read and the tree check; read the new version then
+                if (writeBacks == before) {
+                    throw e;
+                }
+                slot.clear();
+            }
+        }
+    }
+
+    /**
+     * Encrypt and write one block
+     *
+     * @param src blockSize plaintext bytes
+     */
+    @Override
+    public void writeBlock(long index, byte[] src, IoScheduler.IoClass ioClass) throws IOException {
+        long span = Tracer.begin(Tracer.Span.BLOCK_WRITE);
+        try {
+            CompletableFuture<Void> write;
+            keyLock.readLock().lock();
+            try {
+                write = submit(index, seal(index, src), ioClass);
+            } finally {
+                keyLock.readLock().unlock();
+            }
+            IoScheduler.await(write);
+            Metrics.BLOCK_WRITE.recordSince(span);
+            Metrics.BYTES_WRITTEN.add(blockSize);
+        } finally {
+            Tracer.end(Tracer.Span.BLOCK_WRITE, span, index);
+        }
+    }
+
+    /**
+     * Wait for queued writes and flush them to storage, then checkpoint
+     * the integrity tree's root MAC over them
+     */
+    @Override
+    public void flush() throws IOException {
+        if (tree == null || scheduler.device().isReadOnly()) {
+            scheduler.flush();
+            return;
+        }
+        synchronized (checkpointLock) {
+            byte[] mac;
+            // Every write in the tree by now is queued
+            synchronized (rekeyLock) {
+                mac = tree.mac();
+            }
+            scheduler.flush();
+            tree.checkpoint(scheduler.device(), mac);
+        }
+    }
+
+    /**
+     * Encrypt a plaintext block into a sealed slot
+     *
+     * @return Nonce (12) + Ciphertext + Tag (16), or on a FRAMED device
+     *         Nonce (12) + Frame (4) + Tag (16) + Ciphertext; slotSize
+     *         bytes either way
+     */
+    @Override
+    public byte[] seal(long index, byte[] plaintext) throws IOException {
+        if (plaintext.length != blockSize) {
+            throw new IOException("Block " + index + " has " + plaintext.length +
+                " bytes, expected " + blockSize);
+        }
+        KeyHandle next = nextKey;
+        KeyHandle key = next != null ? next : masterKey;
+        if (!framed) {
+            return sealPayload(key, index, plaintext, blockSize);
+        }
+
+        byte[] payload = plaintext;
+        int frame = blockSize;
+        if (compression != Compression.NONE && !BlockCompressor.looksIncompressible(plaintext)) {
+            byte[] packed = new byte[blockSize];
+            int length = BlockCompressor.compress(compression, plaintext, packed);
+            if (length >= 0) {
+                payload = Arrays.copyOf(packed, length);
+                frame = compression.id << 24 | length;
+                Arrays.fill(packed, (byte) 0);
+            }
+        }
+        try {
+            return sealPayload(key, index, payload, frame);
+        } finally {
+            if (payload != plaintext) {
+                Arrays.fill(payload, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Encrypt what goes into a slot (the block, or its compressed form
+     * described by frame) under key with a fresh nonce
+     */
+    private byte[] sealPayload(KeyHandle key, long index, byte[] payload, int frame) throws IOException {
+        byte[] nonce = new byte[BlockDevice.NONCE_SIZE];
+        random.nextBytes(nonce);
+        byte[] slot = new byte[slotSize];
+        System.arraycopy(nonce, 0, slot, 0, nonce.length);
+        byte[] ciphertext = aead.encrypt(payload, key, nonce, framed ? framedAad(index, frame) : blockAad(index));
+        if (ciphertext == null) {
+            throw new IOException("Encryption of block " + index + " failed");
+        }
+        if (!framed) {
+            System.arraycopy(ciphertext, 0, slot, nonce.length, ciphertext.length);
+            return slot;
+        }
+        int length = ciphertext.length - BlockDevice.TAG_SIZE;
+        ByteBuffer.wrap(slot, BlockDevice.NONCE_SIZE, BlockDevice.FRAME_SIZE).putInt(frame);
+        System.arraycopy(ciphertext, length, slot, tagOffset, BlockDevice.TAG_SIZE);
+        System.arraycopy(ciphertext, 0, slot, tagOffset + BlockDevice.TAG_SIZE, length);
+        return slot;
+    }
+
+    /**
+     * Bytes of a sealed slot that carry data: all of a FIXED slot, the
+     * header and ciphertext of a FRAMED one
+     */
+    int usedSize(byte[] slot) {
+        if (!framed) {
+            return slotSize;
+        }
+        int length = ByteBuffer.wrap(slot, BlockDevice.NONCE_SIZE, BlockDevice.FRAME_SIZE).getInt() & 0xFFFFFF;
+        return Math.min(slotSize, tagOffset + BlockDevice.TAG_SIZE + length);
+    }
+
+    @Override
+    public int sealedSize() {
+        return slotSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A slot sealed before a key rotation started must be written before
+     * it started too (see beginKeyRotation).
+     */
+    @Override
+    public CompletableFuture<Void> writeSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        try {
+            return submit(index, sealed, ioClass);
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Record a sealed slot in the tree and queue its write, marking it
+     * as rewritten if the rotator has it in flight
+     */
+    private CompletableFuture<Void> submit(long index, byte[] sealed, IoScheduler.IoClass ioClass)
+            throws IOException {
+        synchronized (rekeyLock) {
+            if (index >= rekeyed && index < rekeyEnd) {
+                rewritten.add(index);
+            }
+            return enqueue(index, sealed, ioClass);
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(long index, byte[] sealed, IoScheduler.IoClass ioClass)
+            throws IOException {
+        if (tree != null) {
+            tree.update(index, sealed, tagOffset);
+        }
+        synchronized (trimmed) {
+            trimmed.clear((int) index);
+        }
+        return scheduler.submitWrite(index, ByteBuffer.wrap(sealed, 0, usedSize(sealed)), ioClass);
+    }
+
+    @Override
+    public CompletableFuture<Void> readSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        if (isTrimmed(index)) {
+            Arrays.fill(sealed, 0, slotSize, (byte) 0);
+            return CompletableFuture.completedFuture(null);
+        }
+        return scheduler.submitRead(index, ByteBuffer.wrap(sealed, 0, slotSize), ioClass);
+    }
+
+    /**
+     * Authenticate and decrypt a sealed slot into dst
+     */
+    @Override
+    public void open(long index, byte[] slot, byte[] dst) throws IOException {
+        if (tree != null) {
+            tree.verify(index, slot, tagOffset);
+            if (isTrimmedSlot(slot)) {
+                Arrays.fill(dst, 0, blockSize, (byte) 0);
+                return;
+            }
+        }
+        int frame = frame(index, slot);
+        KeyHandle next = nextKey;
+        KeyHandle key = next != null && index < rekeyed ? next : masterKey;
+        byte[] plaintext = decryptPayload(key, index, slot, frame);
+        if (plaintext == null && next != null && key != next) {
+            plaintext = decryptPayload(next, index, slot, frame);
+        }
+        if (plaintext == null) {
+            throw new IOException("Block " + index + " failed authentication");
+        }
+        int codec = frame >>> 24;
+        try {
+            if (codec == 0) {
+                System.arraycopy(plaintext, 0, dst, 0, blockSize);
+            } else {
+                BlockCompressor.decompress(Compression.fromId(codec), plaintext, 0, frame & 0xFFFFFF, dst);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Block " + index + " uses an unknown codec " + codec, e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Trimming
+    // ------------------------------------------------------------------------
+
+    /**
+     * Whether trim() returns space to the host file system: a v2 device
+     * that punches holes, under an integrity tree
+     */
+    @Override
+    public boolean canTrim() {
+        return tree != null && scheduler.device().punchesHoles();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reads the block as zeros from now on (see class comment).
+     */
+    @Override
+    public CompletableFuture<Void> trim(long index, IoScheduler.IoClass ioClass) {
+        if (tree == null || !scheduler.device().isAligned()) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Block " + index + " cannot be trimmed"));
+            return failed;
+        }
+        synchronized (rekeyLock) {
+            // A re-keyed copy of the old block must not be written back
+            if (index >= rekeyed && index < rekeyEnd) {
+                rewritten.add(index);
+            }
+            try {
+                tree.update(index, trimmedSlot, tagOffset);
+            } catch (IOException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            synchronized (trimmed) {
+                trimmed.set((int) index);
+            }
+            return scheduler.submitTrim(index, ioClass);
+        }
+    }
+
+    private boolean isTrimmed(long index) {
+        synchronized (trimmed) {
+            return trimmed.get((int) index);
+        }
+    }
+
+    /**
+     * Whether a slot is the trimmed form: zero nonce, frame and tag
+     */
+    private boolean isTrimmedSlot(byte[] slot) {
+        for (int i = 0; i < BlockDevice.NONCE_SIZE; i++) {
+            if (slot[i] != 0) {
+                return false;
+            }
+        }
+        int tagEnd = tagOffset + BlockDevice.TAG_SIZE;
+        for (int i = framed ? BlockDevice.NONCE_SIZE : tagOffset; i < tagEnd; i++) {
+            if (slot[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Frame of a sealed slot (blockSize, stored as is, on a FIXED device)
+     *
+     * @throws IOException if the frame cannot be valid
+     */
+    private int frame(long index, byte[] slot) throws IOException {
+        if (!framed) {
+            return blockSize;
+        }
+        int frame = ByteBuffer.wrap(slot, BlockDevice.NONCE_SIZE, BlockDevice.FRAME_SIZE).getInt();
+        int codec = frame >>> 24;
+        int length = frame & 0xFFFFFF;
+        if (codec == 0 ? length != blockSize : length >= blockSize) {
+            throw new IOException("Block " + index + " failed authentication");
+        }
+        return frame;
+    }
+
+    /**
+     * Decrypt the payload of a slot under key
+     *
+     * @return The block, or its compressed form, or null if the slot does
+     *         not authenticate under key
+     */
+    private byte[] decryptPayload(KeyHandle key, long index, byte[] slot, int frame) {
+        byte[] nonce = Arrays.copyOfRange(slot, 0, BlockDevice.NONCE_SIZE);
+        if (!framed) {
+            byte[] ciphertext = Arrays.copyOfRange(slot, BlockDevice.NONCE_SIZE, slotSize);
+            return aead.decrypt(ciphertext, key, nonce, blockAad(index));
+        }
+        // decryptData wants the tag after the ciphertext
+        int length = frame & 0xFFFFFF;
+        byte[] ciphertext = new byte[length + BlockDevice.TAG_SIZE];
+        System.arraycopy(slot, tagOffset + BlockDevice.TAG_SIZE, ciphertext, 0, length);
+        System.arraycopy(slot, tagOffset, ciphertext, length, BlockDevice.TAG_SIZE);
+        return aead.decrypt(ciphertext, key, nonce, framedAad(index, frame));
+    }
+
+    // ------------------------------------------------------------------------
+    // Key rotation
+    // ------------------------------------------------------------------------
+
+    /**
+     * Start sealing every write under nextKey, with the blocks below
+     * rekeyed already under it (0 for a new rotation, the saved progress
+     * of a resumed one)
+     *
+     * Waits for writeBlock() calls in progress. Slots sealed by seal()
+     * before this call must be written before it, or they end up under
+     * the current key behind the rotator.
+     */
+    void beginKeyRotation(KeyHandle nextKey, long rekeyed) {
+        if (rekeyed < 0 || rekeyed > blockCount) {
+            throw new IllegalArgumentException("Re-key progress " + rekeyed + " outside " + blockCount + " blocks");
+        }
+        keyLock.writeLock().lock();
+        try {
+            synchronized (rekeyLock) {
+                if (this.nextKey != null) {
+                    throw new IllegalStateException("A key rotation is already in progress");
+                }
+                this.rekeyed = rekeyed;
+                this.rekeyEnd = rekeyed;
+                this.rewritten.clear();
+                this.nextKey = nextKey.copy();
+            }
+        } finally {
+            keyLock.writeLock().unlock();
+        }
+    }
+
+    boolean isRotatingKey() {
+        return nextKey != null;
+    }
+
+    /**
+     * Blocks below this are sealed under the next key (blockCount when
+     * no rotation is in progress)
+     */
+    long rekeyed() {
+        return nextKey != null ? rekeyed : blockCount;
+    }
+
+    /**
+     * Blocks from rekeyed() up to end are being re-keyed: writes to them
+     * from now on are recorded so their write-back is skipped
+     */
+    void extendRekeyWindow(long end) {
+        synchronized (rekeyLock) {
+            rekeyEnd = Math.max(rekeyEnd, Math.min(end, blockCount));
+        }
+    }
+
+    /**
+     * Re-seal a slot read from block index under the next key
+     *
+     * @return The new slot, or null if the block is already under the
+     *         next key (written since the rotation started)
+     * @throws IOException if the block authenticates under neither key
+     */
+    byte[] rekey(long index, byte[] sealed) throws IOException {
+        KeyHandle next = nextKey;
+        if (next == null) {
+            throw new IllegalStateException("No key rotation in progress");
+        }
+        if (tree != null) {
+            try {
+                tree.verify(index, sealed, tagOffset);
+            } catch (IOException e) {
+                // Read just before a write that is now in the tree
+                synchronized (rekeyLock) {
+                    if (rewritten.contains(index)) {
+                        return null;
+                    }
+                }
+                throw e;
+            }
+            if (isTrimmedSlot(sealed)) {
+                // No key protects a trimmed block
+                return null;
+            }
+        }
+        int frame = frame(index, sealed);
+        byte[] payload = decryptPayload(masterKey, index, sealed, frame);
+        if (payload == null) {
+            byte[] current = decryptPayload(next, index, sealed, frame);
+            if (current == null) {
+                throw new IOException("Block " + index + " failed authentication");
+            }
+            Arrays.fill(current, (byte) 0);
+            return null;
+        }
+        try {
+            // Same frame: a compressed block is re-encrypted, not recompressed
+            return sealPayload(next, index, payload, frame);
+        } finally {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * Queue the write-back of a slot from rekey(), unless the block was
+     * written since extendRekeyWindow() covered it
+     *
+     * readBlock() retries a read that a write-back overtook; callers of
+     * readSealed() and open() recheck a failing block themselves, as the
+     * Scrubber does.
+     */
+    CompletableFuture<Void> writeRekeyed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        synchronized (rekeyLock) {
+            if (rewritten.remove(index)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            writeBacks++;
+            try {
+                return enqueue(index, sealed, ioClass);
+            } catch (IOException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+    }
+
+    /**
+     * Every block below end has been re-keyed (its write-back queued)
+     */
+    void retireRekeyed(long end) {
+        synchronized (rekeyLock) {
+            rekeyed = end;
+            rewritten.removeIf(index -> index < end);
+        }
+    }
+
+    /**
+     * Make the next key the current one once every block is under it,
+     * re-keying the integrity tree root with it, and destroy the old key
+     */
+    void finishKeyRotation() throws IOException {
+        keyLock.writeLock().lock();
+        try {
+            KeyHandle next = nextKey;
+            if (next == null || rekeyed != blockCount) {
+                throw new IOException("Key rotation is not complete (" + rekeyed() + " of "
+                    + blockCount + " blocks)");
+            }
+            KeyHandle old = masterKey;
+            if (tree != null) {
+                tree.rekey(next);
+            }
+            synchronized (rekeyLock) {
+                masterKey = next;
+                nextKey = null;
+                rekeyEnd = 0;
+            }
+            // A read racing this falls back to the next key
+            old.close();
+        } finally {
+            keyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * AAD binding a sealed block to its index (same encoding as volume creation)
+     */
+    static byte[] blockAad(long index) {
+        return ByteBuffer.allocate(8).putLong(index).array();
+    }
+
+    /**
+     * AAD of a framed block: index, then frame
+     */
+    static byte[] framedAad(long index, int frame) {
+        return ByteBuffer.allocate(8 + BlockDevice.FRAME_SIZE).putLong(index).putInt(frame).array();
+    }
+
+    /**
+     * Drain queued writes, persist the integrity tree (a clean dismount)
+     * and destroy the keys
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (tree != null && !scheduler.device().isReadOnly()) {
+                flush();
+                tree.persist(scheduler.device());
+            }
+        } finally {
+            try {
+                scheduler.close();
+            } finally {
+                if (tree != null) {
+                    tree.close();
+                }
+                masterKey.close();
+                KeyHandle next = nextKey;
+                if (next != null) {
+                    next.close();
+                }
+            }
+        }
+    }
+}
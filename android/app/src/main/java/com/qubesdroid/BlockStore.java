@@ -0,0 +1,90 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Plaintext block space of a mounted volume
+ *
+ * BlockEngine implements this on top of the encrypted container; the file
+ * system layers only ever see plaintext blocks through this interface.
+ */
+interface BlockStore {
+
+    /**
+     * Plaintext bytes per block
+     */
+    int blockSize();
+
+    /**
+     * Number of addressable blocks
+     */
+    long blockCount();
+
+    /**
+     * Read one block into dst (blockSize bytes)
+     */
+    void readBlock(long index, byte[] dst, IoScheduler.IoClass ioClass) throws IOException;
+
+    /**
+     * Write one block from src (blockSize bytes)
+     */
+    void writeBlock(long index, byte[] src, IoScheduler.IoClass ioClass) throws IOException;
+
+    /**
+     * Make every completed write durable
+     */
+    void flush() throws IOException;
+
+    /**
+     * Turn a plaintext block into the form stored at index (the sealed
+     * slot for BlockEngine)
+     *
+     * Safe to call from several threads at once, so pipelines can
+     * encrypt on their own workers and only queue the writes in order.
+     */
+    byte[] seal(long index, byte[] plaintext) throws IOException;
+
+    /**
+     * Bytes in the stored form of a block (what seal() returns)
+     */
+    int sealedSize();
+
+    /**
+     * Queue the write of a block produced by seal()
+     *
+     * @return Completes once the block is written (not yet flushed)
+     */
+    CompletableFuture<Void> writeSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass);
+
+    /**
+     * Queue the read of a block in its stored form
+     *
+     * @param sealed Receives sealedSize() bytes
+     * @return Completes once sealed is filled
+     */
+    CompletableFuture<Void> readSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass);
+
+    /**
+     * Turn a block read by readSealed() back into plaintext
+     *
+     * Safe to call from several threads at once, like seal().
+     *
+     * @param dst Receives blockSize plaintext bytes
+     * @throws IOException if the block fails authentication
+     */
+    void open(long index, byte[] sealed, byte[] dst) throws IOException;
+
+    /**
+     * Whether trim() gives the space of a block back to the host
+     */
+    boolean canTrim();
+
+    /**
+     * Queue the discard of a block nothing refers to any more: it reads
+     * back as zeros and, where canTrim(), takes no space on the host
+     *
+     * @return Completes once the block is trimmed
+     */
+    CompletableFuture<Void> trim(long index, IoScheduler.IoClass ioClass);
+}
@@ -7,6 +7,7 @@ import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
 import android.widget.LinearLayout;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -20,11 +21,8 @@ import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.security.SecureRandom;
+import java.io.RandomAccessFile;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -35,6 +33,10 @@ import java.util.concurrent.Executors;
  * - ML-KEM-1024 post-quantum key encapsulation
  * - Argon2id password-based key derivation
  * - ChaCha20-Poly1305 authenticated encryption
+ * - Optional per-block compression (LZ4 or zlib) before encryption
+ * - Block size chosen per volume, 4 KB to 1 MB
+ * - Aligned v2 layout: page-sized header, nonces and tags in their own
+ *   region, data blocks on erase-block boundaries (see BlockDevice)
  */
 public class CreateVolumeActivity extends AppCompatActivity {
 
@@ -44,6 +46,8 @@ public class CreateVolumeActivity extends AppCompatActivity {
     private TextInputLayout volumeNameLayout;
     private Slider volumeSizeSlider;
     private TextView volumeSizeText;
+    private RadioGroup compressionGroup;
+    private RadioGroup blockSizeGroup;
     private TextInputEditText passwordInput;
     private TextInputLayout passwordLayout;
     private TextInputEditText confirmPasswordInput;
@@ -54,21 +58,18 @@ public class CreateVolumeActivity extends AppCompatActivity {
     private TextView progressText;
 
     // Crypto
-    private CryptoNative crypto;
     private ExecutorService executorService;
 
-    // Volume format constants (from VOLUME_FORMAT.md)
-    private static final byte[] MAGIC_SIGNATURE = "QUBESDRD".getBytes();
-    private static final int VERSION = 0x01000000;
-    private static final int HEADER_SIZE = 1712;
-    private static final int BLOCK_SIZE = 65536; // 64 KB
+    // 1800 bytes of fields, zero padded to a page (VolumeHeader)
+    private static final int HEADER_SIZE = VolumeHeader.V2_SIZE;
+    // Smallest volume the file system is formatted on
+    private static final int MIN_BLOCKS = 16;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_create_volume);
 
-        crypto = new CryptoNative();
         executorService = Executors.newSingleThreadExecutor();
 
         initViews();
@@ -86,6 +87,8 @@ public class CreateVolumeActivity extends AppCompatActivity {
         volumeNameLayout = findViewById(R.id.volumeNameLayout);
         volumeSizeSlider = findViewById(R.id.volumeSizeSlider);
         volumeSizeText = findViewById(R.id.volumeSizeText);
+        compressionGroup = findViewById(R.id.compressionGroup);
+        blockSizeGroup = findViewById(R.id.blockSizeGroup);
         passwordInput = findViewById(R.id.passwordInput);
         passwordLayout = findViewById(R.id.passwordLayout);
         confirmPasswordInput = findViewById(R.id.confirmPasswordInput);
@@ -150,6 +153,15 @@ public class CreateVolumeActivity extends AppCompatActivity {
             passwordLayout.setError(null);
         }
 
+        // The chosen block size must leave room for the file system
+        long volumeSizeBytes = (long) volumeSizeSlider.getValue() * 1024 * 1024;
+        if (BlockDevice.alignedBlocksFor(volumeSizeBytes, HEADER_SIZE, selectedBlockSize(),
+                VolumeExpander.METADATA_HEADROOM) < MIN_BLOCKS) {
+            Toast.makeText(this, "Volume too small for " + selectedBlockSize() / 1024
+                + " KB blocks", Toast.LENGTH_LONG).show();
+            isValid = false;
+        }
+
         // Validate password confirmation
         String confirmPassword = confirmPasswordInput.getText().toString();
         if (!password.equals(confirmPassword)) {
@@ -178,6 +190,8 @@ public class CreateVolumeActivity extends AppCompatActivity {
         String password = passwordInput.getText().toString();
         long volumeSizeMB = (long) volumeSizeSlider.getValue();
         long volumeSizeBytes = volumeSizeMB * 1024 * 1024;
+        Compression compression = selectedCompression();
+        int blockSize = selectedBlockSize();
 
         // Disable UI during creation
         setUIEnabled(false);
@@ -186,7 +200,7 @@ public class CreateVolumeActivity extends AppCompatActivity {
 
         executorService.execute(() -> {
             try {
-                createVolumeFile(volumeName, password, volumeSizeBytes);
+                createVolumeFile(volumeName, password, volumeSizeBytes, blockSize, compression);
                 runOnUiThread(() -> {
                     Toast.makeText(this, "Volume created successfully!", Toast.LENGTH_LONG).show();
                     finish();
@@ -202,7 +216,42 @@ public class CreateVolumeActivity extends AppCompatActivity {
         });
     }
 
-    private void createVolumeFile(String volumeName, String password, long volumeSizeBytes) throws Exception {
+    /**
+     * Compression picked in the volume card
+     */
+    private Compression selectedCompression() {
+        int checked = compressionGroup.getCheckedRadioButtonId();
+        if (checked == R.id.compressionLz4) {
+            return Compression.LZ4;
+        }
+        if (checked == R.id.compressionDeflate) {
+            return Compression.DEFLATE;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * Block size picked in the volume card
+     */
+    private int selectedBlockSize() {
+        int checked = blockSizeGroup.getCheckedRadioButtonId();
+        if (checked == R.id.blockSize4k) {
+            return 4096;
+        }
+        if (checked == R.id.blockSize16k) {
+            return 16384;
+        }
+        if (checked == R.id.blockSize256k) {
+            return 262144;
+        }
+        if (checked == R.id.blockSize1m) {
+            return 1048576;
+        }
+        return MountedVolume.DEFAULT_BLOCK_SIZE;
+    }
+
+    private void createVolumeFile(String volumeName, String password, long volumeSizeBytes,
+                                  int blockSize, Compression compression) throws Exception {
         File volumesDir = new File(getExternalFilesDir(null), "volumes");
         if (!volumesDir.exists()) {
             volumesDir.mkdirs();
@@ -215,106 +264,108 @@ public class CreateVolumeActivity extends AppCompatActivity {
 
         updateProgress(5, "Generating master key...");
 
-        // 1. Generate random 32-byte Master Key
-        SecureRandom random = new SecureRandom();
-        byte[] masterKey = new byte[32];
-        random.nextBytes(masterKey);
-
-        updateProgress(10, "Generating ML-KEM keypair...");
+        // 1. Generate random 32-byte Master Key, in the key vault like every
+        // key below
+        CryptoNative crypto = CryptoRuntime.get();
+        KeyVault vault = new KeyVault(crypto);
+        try (KeyHandle masterKey = vault.generate(KeyVault.KEY_SIZE)) {
+            updateProgress(10, "Generating ML-KEM keypair...");
+
+            // 2. Generate ML-KEM-1024 keypair for post-quantum security; the
+            // secret key leaves the vault only wrapped under the master key
+            byte[] mlkemPublicKey = new byte[KeyVault.MLKEM_PUBLIC_KEY_SIZE];
+            try (KeyHandle mlkemSecretKey = vault.mlkemKeypair(mlkemPublicKey)) {
+                SecretKeyFile.write(SecretKeyFile.of(volumeFile), vault, mlkemSecretKey, masterKey);
+            }
 
-        // 2. Generate ML-KEM-1024 keypair for post-quantum security
-        Object[] keypair = crypto.mlkemKeypair();
-        byte[] mlkemPublicKey = (byte[]) keypair[0];   // 1568 bytes
-        byte[] mlkemSecretKey = (byte[]) keypair[1];   // 3168 bytes
+            updateProgress(30, "Deriving encryption key from password...");
 
-        // Store secret key separately (in secure storage, for now save alongside)
-        File secretKeyFile = new File(volumesDir, volumeName + ".key");
-        try (FileOutputStream fos = new FileOutputStream(secretKeyFile)) {
-            fos.write(mlkemSecretKey);
-        }
+            // 3. Derive Password-Derived Key using Argon2id
+            byte[] salt = crypto.generateSalt();  // 16 bytes (spec says 32, but method returns 16)
+            byte[] encryptedMasterKey;
+            try (KeyHandle passwordDerivedKey = vault.derive(password, salt)) {
+                updateProgress(40, "Encrypting master key...");
 
-        updateProgress(30, "Deriving encryption key from password...");
-
-        // 3. Derive Password-Derived Key using Argon2id
-        byte[] salt = crypto.generateSalt();  // 16 bytes (spec says 32, but method returns 16)
-        byte[] passwordDerivedKey = crypto.deriveKeyFromPassword(password, salt);
-
-        updateProgress(40, "Encrypting master key...");
-
-        // 4. Encrypt Master Key with PDK using ChaCha20-Poly1305
-        byte[] nonce = new byte[12];
-        random.nextBytes(nonce);
-        byte[] encryptedMasterKey = crypto.encryptData(masterKey, passwordDerivedKey, nonce, null);
-
-        updateProgress(50, "Writing volume header...");
-
-        // 5. Build and write volume header
-        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-        header.order(ByteOrder.LITTLE_ENDIAN);
-
-        // Magic signature
-        header.put(MAGIC_SIGNATURE);
-        // Version
-        header.putInt(VERSION);
-        // Header size
-        header.putInt(HEADER_SIZE);
-        // Volume size
-        header.putLong(volumeSizeBytes);
-        // Creation timestamp
-        header.putLong(System.currentTimeMillis() / 1000);
-        // Reserved (32 bytes)
-        header.put(new byte[32]);
-        // ML-KEM Public Key (1568 bytes)
-        header.put(mlkemPublicKey);
-        // Salt (32 bytes - but we have 16, pad with zeros)
-        header.put(salt);
-        header.put(new byte[16]); // Pad to 32 bytes
-        // Encrypted Master Key (48 bytes: 32-byte key + 16-byte tag)
-        header.put(encryptedMasterKey);
-
-        updateProgress(60, "Creating volume file...");
-
-        // 6. Write volume to disk
-        try (FileOutputStream fos = new FileOutputStream(volumeFile)) {
-            // Write header
-            fos.write(header.array());
-
-            // Write encrypted data blocks
-            long dataSize = volumeSizeBytes - HEADER_SIZE;
-            long numBlocks = (dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
-
-            for (long i = 0; i < numBlocks; i++) {
-                int blockProgress = (int) (60 + (i * 40 / numBlocks));
-                updateProgress(blockProgress, String.format("Writing block %d/%d...", i + 1, numBlocks));
-
-                // Generate deterministic nonce for this block
-                ByteBuffer nonceBuffer = ByteBuffer.allocate(12);
-                nonceBuffer.putLong(i);
-                byte[] blockNonce = nonceBuffer.array();
-
-                // Create empty plaintext block
-                int currentBlockSize = (int) Math.min(BLOCK_SIZE, dataSize - (i * BLOCK_SIZE));
-                byte[] plaintext = new byte[currentBlockSize];
-
-                // AAD is block index
-                ByteBuffer aad = ByteBuffer.allocate(8);
-                aad.putLong(i);
-
-                // Encrypt block
-                byte[] ciphertext = crypto.encryptData(plaintext, masterKey, blockNonce, aad.array());
-
-                // Write: nonce (12) + ciphertext + tag (16)
-                fos.write(blockNonce);
-                fos.write(ciphertext);
+                // 4. Encrypt Master Key with PDK using ChaCha20-Poly1305
+                // Zero nonce per VOLUME_FORMAT.md: the PDK is unique per volume (random
+                // salt) and encrypts exactly one message, so the nonce is never reused
+                byte[] nonce = new byte[12];
+                encryptedMasterKey = vault.wrap(masterKey, passwordDerivedKey, nonce);
             }
+
+            updateProgress(50, "Writing volume header...");
+
+            // 5. Build and write volume header
+            // Room in the metadata region for the volume to grow in place
+            long blockCount = BlockDevice.alignedBlocksFor(volumeSizeBytes, HEADER_SIZE, blockSize,
+                VolumeExpander.METADATA_HEADROOM);
+            long metadataCapacity = blockCount * VolumeExpander.METADATA_HEADROOM;
+            VolumeHeader header = VolumeHeader.create(VolumeHeader.VERSION_2)
+                .volumeSize(volumeSizeBytes)
+                .createdTime(System.currentTimeMillis() / 1000)
+                .publicKey(mlkemPublicKey)
+                .salt(salt)
+                .compression(compression)
+                .blockSize(blockSize)
+                .blockCount(blockCount)
+                .metadataCapacity(metadataCapacity)
+                // Encrypted Master Key (48 bytes: 32-byte key + 16-byte tag)
+                .wrappedKey(encryptedMasterKey);
+
+            updateProgress(60, "Creating volume file...");
+
+            // 6. Write volume to disk
+            writeVolume(volumeFile, header.buffer().array(), blockCount, metadataCapacity, blockSize, crypto,
+                masterKey, compression);
         }
 
         updateProgress(100, "Volume created successfully!");
+    }
 
-        // Securely erase sensitive data
-        java.util.Arrays.fill(masterKey, (byte) 0);
-        java.util.Arrays.fill(passwordDerivedKey, (byte) 0);
-        java.util.Arrays.fill(mlkemSecretKey, (byte) 0);
+    /**
+     * Write the header, a sealed zero block in every slot and the
+     * integrity tree over them
+     *
+     * The slots are written by a BlockEngine; on a compressed volume each
+     * one takes only its compressed frame on disk and the rest of the
+     * data region stays sparse. Closing the engine stores the tree and
+     * its root MAC, so the first mount loads the tree like after a clean
+     * dismount.
+     */
+    private void writeVolume(File volumeFile, byte[] header, long blockCount, long metadataCapacity,
+                             int blockSize, CryptoNative crypto, KeyHandle masterKey, Compression compression)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(0);
+            raf.write(header);
+            raf.setLength(BlockDevice.alignedAreaEnd(HEADER_SIZE, blockSize, blockCount, metadataCapacity));
+        }
+        BlockDevice device = BlockDevice.openAligned(volumeFile, HEADER_SIZE, blockSize,
+            compression.layout(), blockCount, metadataCapacity, false);
+        IntegrityTree tree;
+        try {
+            tree = IntegrityTree.create(device, IntegrityTree.nativeHasher(crypto), masterKey);
+        } catch (IOException | RuntimeException e) {
+            device.close();
+            throw e;
+        }
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), crypto, masterKey, tree,
+                compression)) {
+            byte[] zeros = new byte[blockSize];
+            int shownProgress = -1;
+            for (long i = 0; i < blockCount; i++) {
+                int blockProgress = (int) (60 + (i * 40 / blockCount));
+                // Post to the main thread only when the bar moves, not per block
+                if (blockProgress != shownProgress) {
+                    shownProgress = blockProgress;
+                    updateProgress(blockProgress, String.format("Writing block %d/%d...", i + 1, blockCount));
+                }
+                engine.writeBlock(i, zeros, IoScheduler.IoClass.BULK);
+            }
+            engine.flush();
+        } finally {
+            device.close();
+        }
     }
 
     private void updateProgress(int progress, String message) {
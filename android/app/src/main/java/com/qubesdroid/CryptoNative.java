@@ -6,7 +6,10 @@ package com.qubesdroid;
  * Provides access to:
  * - ChaCha20-Poly1305 AEAD encryption
  * - Argon2id key derivation
+ * - BLAKE2s-256 hashing (integrity tree)
+ * - Hole punching in volume files (returning freed blocks to the host)
  * - Kyber-1024 post-quantum KEM (future)
+ * - A key vault: keys held natively and used by handle (see KeyVault)
  */
 public class CryptoNative {
 
@@ -45,6 +48,36 @@ public class CryptoNative {
      */
     public native byte[] decryptData(byte[] ciphertextWithTag, byte[] key, byte[] nonce, byte[] aad);
 
+    /**
+     * BLAKE2s-256 hash, or MAC when keyed
+     *
+     * @param key Up to 32-byte key, or null for a plain hash
+     * @param data Data to hash
+     * @return 32-byte digest, or null if the key is too long
+     */
+    public native byte[] blake2s(byte[] key, byte[] data);
+
+    /**
+     * BLAKE2s-256 of count consecutive inputs of stride bytes each
+     *
+     * @param in At least stride * count bytes
+     * @param out Receives count 32-byte digests back to back
+     * @return false if the arrays are too short
+     */
+    public native boolean blake2sBatch(byte[] in, int stride, int count, byte[] out);
+
+    /**
+     * Deallocate a byte range of a file, keeping its size
+     * (fallocate PUNCH_HOLE)
+     *
+     * @param path File to punch
+     * @param offset Start of the range
+     * @param length Bytes in the range
+     * @return 0 on success, 1 if the file system cannot punch holes, or a
+     *         negated errno
+     */
+    public native int punchHole(String path, long offset, long length);
+
     /**
      * Get version and crypto information
      *
@@ -107,4 +140,92 @@ public class CryptoNative {
      * @return 32-byte shared secret, or null if decapsulation fails
      */
     public native byte[] mlkemDecapsulate(byte[] ciphertext, byte[] secretKey);
+
+    // ========================================================================
+    // Key vault (see KeyVault): key material addressed by handle, 0 for none
+    // ========================================================================
+
+    /**
+     * Random key into the vault
+     *
+     * @param length Key size, up to 3168 bytes
+     * @return Handle of the key, or 0
+     */
+    native long vaultGenerateKey(int length);
+
+    /**
+     * deriveKeyFromPassword() into the vault
+     *
+     * @return Handle of the 32-byte key, or 0
+     */
+    native long vaultDeriveKey(String password, byte[] salt);
+
+    /**
+     * BLAKE2s-256 MAC of label under a key of up to 32 bytes, into the vault
+     *
+     * @return Handle of the 32-byte subkey, or 0 if key is unknown
+     */
+    native long vaultDeriveSubkey(long key, byte[] label);
+
+    /**
+     * @return Handle of a copy of key, destroyed on its own, or 0
+     */
+    native long vaultCopyKey(long key);
+
+    /**
+     * ChaCha20-Poly1305 of the material of key under the 32-byte key kek
+     *
+     * @return Ciphertext with 16-byte tag appended, or null
+     */
+    native byte[] vaultWrapKey(long key, long kek, byte[] nonce);
+
+    /**
+     * Inverse of vaultWrapKey()
+     *
+     * @return Handle of the key, or 0 if wrapped does not authenticate
+     *         under kek
+     */
+    native long vaultUnwrapKey(byte[] wrapped, long kek, byte[] nonce);
+
+    /**
+     * ML-KEM-1024 keypair with the secret key in the vault
+     *
+     * @param publicKey Receives the 1568-byte public key
+     * @return Handle of the 3168-byte secret key, or 0
+     */
+    native long vaultMlkemKeypair(byte[] publicKey);
+
+    /**
+     * mlkemDecapsulate() under a secret key in the vault
+     *
+     * @return Handle of the 32-byte shared secret, or 0
+     */
+    native long vaultMlkemDecapsulate(byte[] ciphertext, long secretKey);
+
+    /**
+     * Wipe and free a key; unknown handles are ignored
+     */
+    native void vaultDestroyKey(long key);
+
+    /**
+     * encryptData() under the 32-byte key behind a handle
+     *
+     * @return Ciphertext with 16-byte tag appended, or null if key is
+     *         unknown
+     */
+    native byte[] encryptWithKey(byte[] plaintext, long key, byte[] nonce, byte[] aad);
+
+    /**
+     * decryptData() under the 32-byte key behind a handle
+     *
+     * @return Plaintext, or null if key is unknown or authentication fails
+     */
+    native byte[] decryptWithKey(byte[] ciphertextWithTag, long key, byte[] nonce, byte[] aad);
+
+    /**
+     * blake2s() keyed with the key behind a handle
+     *
+     * @return 32-byte MAC, or null if key is unknown
+     */
+    native byte[] blake2sWithKey(long key, byte[] data);
 }
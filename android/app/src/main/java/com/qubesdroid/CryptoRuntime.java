@@ -0,0 +1,185 @@
+package com.qubesdroid;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The one CryptoNative of the process, loaded and warmed up off the main
+ * thread when the app starts
+ *
+ * QubesDroidApplication calls preload() from onCreate. The first use of
+ * the native library otherwise pays, on the path the user waits on:
+ *
+ * | Step       | What it costs                                          |
+ * |------------|--------------------------------------------------------|
+ * | Load       | dlopen of the library, JNI_OnLoad, method registration |
+ * | Self-test  | BLAKE2s known answer; AEAD round trip and forgeries    |
+ * | Warm-up    | First use of the sealing and hashing code: page faults |
+ * |            | in the library's code and data, first vault lookups    |
+ *
+ * The warm-up seals, opens and hashes a few blocks, the calls the block
+ * engine makes per block, so those first-use costs land here instead of
+ * on the first block a mount reads. It is too short for the JIT to
+ * compile anything and does not try to.
+ *
+ * Mount and create call get() on their worker threads: by then the
+ * preload has normally finished, else they wait for it rather than load
+ * the library a second time. A library that fails to load or its
+ * self-test fails every get() with the same IOException.
+ */
+final class CryptoRuntime {
+
+    private static final String TAG = "QubesDroid-Crypto";
+
+    // BLAKE2s-256("abc"), RFC 7693 appendix B
+    private static final byte[] ABC = {'a', 'b', 'c'};
+    private static final String ABC_DIGEST =
+        "508c5e8c327c14e2e1a72ba34eeb452f37458b209ed63a294d999b4c86675982";
+
+    static final int WARM_UP_ROUNDS = 4;
+    static final int WARM_UP_BLOCK_SIZE = 4096;
+
+    private static CompletableFuture<CryptoNative> instance;
+
+    private CryptoRuntime() {
+    }
+
+    /**
+     * Start loading the library on a background thread; later calls
+     * return the same future
+     */
+    static synchronized CompletableFuture<CryptoNative> preload() {
+        if (instance == null) {
+            CompletableFuture<CryptoNative> future = new CompletableFuture<>();
+            Thread t = new Thread(() -> {
+                try {
+                    future.complete(load());
+                } catch (Throwable e) {
+                    Log.e(TAG, "Crypto library unavailable", e);
+                    future.completeExceptionally(e);
+                }
+            }, "qubesdroid-crypto-init");
+            t.setDaemon(true);
+            t.start();
+            instance = future;
+        }
+        return instance;
+    }
+
+    /**
+     * The loaded library, waiting for the preload if it is still running
+     *
+     * Not for the main thread.
+     */
+    static CryptoNative get() throws IOException {
+        try {
+            return preload().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException("Crypto library unavailable: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the crypto library", e);
+        }
+    }
+
+    private static CryptoNative load() throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        CryptoNative crypto = new CryptoNative();
+        long loaded = SystemClock.elapsedRealtime();
+
+        byte[] digest = crypto.blake2s(null, ABC);
+        if (digest == null || !ABC_DIGEST.equals(hex(digest))) {
+            throw new IOException("BLAKE2s self-test failed");
+        }
+        BlockEngine.Aead aead = BlockEngine.nativeAead(crypto);
+        IntegrityTree.Hasher hasher = IntegrityTree.nativeHasher(crypto);
+        try (KeyHandle key = new KeyVault(crypto).generate(KeyVault.KEY_SIZE)) {
+            selfTest(aead, hasher, key);
+            long tested = SystemClock.elapsedRealtime();
+            warmUp(aead, hasher, key, WARM_UP_ROUNDS, WARM_UP_BLOCK_SIZE);
+            long warm = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Crypto ready in " + (warm - start) + " ms: load " + (loaded - start)
+                + " ms, self-test " + (tested - loaded) + " ms, warm-up " + (warm - tested) + " ms");
+        }
+        return crypto;
+    }
+
+    /**
+     * Check that aead and hasher behave: a sealed block opens, a flipped
+     * tag bit or the wrong AAD does not, and a batch hash matches the
+     * same inputs hashed one by one
+     */
+    static void selfTest(BlockEngine.Aead aead, IntegrityTree.Hasher hasher, KeyHandle key)
+            throws IOException {
+        byte[] plaintext = new byte[256];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) i;
+        }
+        byte[] nonce = new byte[BlockDevice.NONCE_SIZE];
+        byte[] aad = {1, 2, 3, 4};
+
+        byte[] sealed = aead.encrypt(plaintext, key, nonce, aad);
+        if (sealed == null || sealed.length != plaintext.length + BlockDevice.TAG_SIZE) {
+            throw new IOException("AEAD self-test failed: encrypt");
+        }
+        if (!Arrays.equals(plaintext, aead.decrypt(sealed, key, nonce, aad))) {
+            throw new IOException("AEAD self-test failed: round trip");
+        }
+        byte[] forged = sealed.clone();
+        forged[forged.length - 1] ^= 1;
+        if (aead.decrypt(forged, key, nonce, aad) != null) {
+            throw new IOException("AEAD self-test failed: forged tag accepted");
+        }
+        if (aead.decrypt(sealed, key, nonce, new byte[aad.length]) != null) {
+            throw new IOException("AEAD self-test failed: wrong AAD accepted");
+        }
+
+        int stride = 64;
+        byte[] batch = new byte[2 * 32];
+        hasher.hash(plaintext, stride, 2, batch);
+        byte[] second = new byte[32];
+        hasher.hash(Arrays.copyOfRange(plaintext, stride, 2 * stride), stride, 1, second);
+        if (!Arrays.equals(second, Arrays.copyOfRange(batch, 32, 64))) {
+            throw new IOException("Hash self-test failed: batch");
+        }
+        byte[] mac = hasher.mac(key, plaintext);
+        if (mac == null || Arrays.equals(mac, Arrays.copyOf(batch, 32))) {
+            throw new IOException("Hash self-test failed: MAC");
+        }
+    }
+
+    /**
+     * Seal, open and hash rounds blocks of blockSize bytes, the calls the
+     * block engine and integrity tree make per block
+     */
+    static void warmUp(BlockEngine.Aead aead, IntegrityTree.Hasher hasher, KeyHandle key,
+                       int rounds, int blockSize) throws IOException {
+        byte[] block = new byte[blockSize];
+        byte[] nonce = new byte[BlockDevice.NONCE_SIZE];
+        byte[] aad = new byte[8];
+        byte[] digest = new byte[32];
+        for (int i = 0; i < rounds; i++) {
+            nonce[0] = (byte) i;
+            aad[0] = (byte) i;
+            byte[] sealed = aead.encrypt(block, key, nonce, aad);
+            if (sealed == null || aead.decrypt(sealed, key, nonce, aad) == null) {
+                throw new IOException("AEAD failed during warm-up");
+            }
+            hasher.hash(sealed, sealed.length, 1, digest);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
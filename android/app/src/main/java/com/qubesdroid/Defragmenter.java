@@ -0,0 +1,111 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rewrites the most fragmented files of a mounted volume into contiguous
+ * runs, a budget of blocks at a time
+ *
+ * A file in many extents reads sequentially as many small host I/Os;
+ * once contiguous, the IoScheduler merges its reads into runs of up to
+ * MAX_MERGE_BYTES. A pass:
+ * 1. Takes the files with the most extents that the largest free run
+ *    can hold whole (VolumeFileSystem.fragmentedFiles())
+ * 2. Moves each into one run (VolumeFileSystem.defragment()), blocks
+ *    re-encrypted under their new indices, until the budget is spent
+ *
+ * The work is incremental and safe to stop anywhere:
+ * - Every step of DEFRAG_STEP_BYTES is one journaled operation, committed
+ *   before the next, so a crash loses at most the step in progress and
+ *   leaves the file intact
+ * - cancel is checked between steps, and a file left halfway continues
+ *   after its contiguous prefix in the next pass
+ * - All of its I/O is BACKGROUND, which the scheduler serves only when
+ *   no interactive or bulk request waits (and caps if the class has a
+ *   rate limit)
+ *
+ * SpaceReclaimer runs a pass before each compaction.
+ */
+final class Defragmenter {
+
+    /**
+     * Files a pass looks at, at most
+     */
+    static final int MAX_FILES = 16;
+
+    /**
+     * What a pass did
+     */
+    static final class Result {
+        final int files;
+        final long blocksMoved;
+        final long extentsBefore;
+        final long extentsAfter;
+        final long nanos;
+
+        Result(int files, long blocksMoved, long extentsBefore, long extentsAfter, long nanos) {
+            this.files = files;
+            this.blocksMoved = blocksMoved;
+            this.extentsBefore = extentsBefore;
+            this.extentsAfter = extentsAfter;
+            this.nanos = nanos;
+        }
+    }
+
+    private final VolumeFileSystem fileSystem;
+    private final int maxFiles;
+
+    /**
+     * @param maxFiles Files a pass looks at, at most
+     */
+    Defragmenter(VolumeFileSystem fileSystem, int maxFiles) {
+        this.fileSystem = fileSystem;
+        this.maxFiles = maxFiles;
+    }
+
+    static Defragmenter forVolume(VolumeFileSystem fileSystem) {
+        return new Defragmenter(fileSystem, MAX_FILES);
+    }
+
+    /**
+     * Defragment files, most fragmented first, moving up to maxBlocks
+     * blocks
+     *
+     * @param cancel Set to stop after the current step, or null
+     * @return Files moved (even partly), blocks moved, and the extents
+     *         of those files before and after
+     */
+    Result defragment(long maxBlocks, AtomicBoolean cancel) throws IOException {
+        long start = System.nanoTime();
+        int files = 0;
+        long moved = 0;
+        long before = 0;
+        long after = 0;
+        for (long ino : fileSystem.fragmentedFiles(maxFiles)) {
+            if (moved >= maxBlocks || cancel != null && cancel.get()) {
+                break;
+            }
+            int extents = extents(ino);
+            long n = fileSystem.defragment(ino, maxBlocks - moved, cancel);
+            if (n > 0) {
+                files++;
+                moved += n;
+                before += extents;
+                after += extents(ino);
+            }
+        }
+        return new Result(files, moved, before, after, System.nanoTime() - start);
+    }
+
+    /**
+     * Extents of a file, 0 if it is gone
+     */
+    private int extents(long ino) {
+        try {
+            return fileSystem.stat(ino).extents.size();
+        } catch (IOException gone) {
+            return 0;
+        }
+    }
+}
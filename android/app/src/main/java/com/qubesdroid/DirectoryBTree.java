@@ -0,0 +1,431 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * B+tree directory index stored in volume blocks
+ *
+ * Each node is one block. Names are compared as unsigned UTF-8 bytes.
+ * Lookups and inserts read one node per level, so a directory of 100k
+ * entries costs two or three block reads instead of a scan. Leaves are
+ * linked left to right for listing.
+ *
+ * Node layout (little-endian):
+ * | Offset | Size | Field                                             |
+ * |--------|------|---------------------------------------------------|
+ * | 0      | 1    | Kind (1 leaf, 2 internal)                         |
+ * | 1      | 1    | Reserved                                          |
+ * | 2      | 2    | Entry count                                       |
+ * | 4      | 4    | Reserved                                          |
+ * | 8      | 8    | Leaf: next leaf (0 = last) / internal: leftmost   |
+ * |        |      | child                                             |
+ * | 16     | -    | Entries                                           |
+ *
+ * Leaf entry:     name length (1), name, inode (8), type (1)
+ * Internal entry: key length (1), key, child (8); the child holds names
+ *                 greater than or equal to the key
+ *
+ * Removal does not rebalance: emptied leaves stay linked until the whole
+ * tree is empty, which keeps deletes to a single node write.
+ */
+final class DirectoryBTree {
+
+    static final int MAX_NAME_BYTES = 255;
+
+    private static final int KIND_LEAF = 1;
+    private static final int KIND_INTERNAL = 2;
+    private static final int NODE_HEADER_SIZE = 16;
+
+    private final MetadataCache cache;
+    private final BlockAllocator allocator;
+    private final int blockSize;
+
+    /**
+     * One directory entry
+     */
+    static final class Entry {
+        final String name;
+        final long inode;
+        final int type;
+
+        Entry(String name, long inode, int type) {
+            this.name = name;
+            this.inode = inode;
+            this.type = type;
+        }
+
+        boolean isDirectory() {
+            return type == Inode.TYPE_DIRECTORY;
+        }
+    }
+
+    DirectoryBTree(MetadataCache cache, BlockAllocator allocator) {
+        this.cache = cache;
+        this.allocator = allocator;
+        this.blockSize = cache.store().blockSize();
+    }
+
+    /**
+     * Encode and validate a file name
+     */
+    static byte[] encodeName(String name) {
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..") ||
+                name.indexOf('/') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("Invalid file name: " + name);
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("File name too long: " + name);
+        }
+        return bytes;
+    }
+
+    /**
+     * Find an entry by name
+     *
+     * @param root Root node block (0 = empty directory)
+     * @return Entry, or null if absent
+     */
+    Entry lookup(long root, String name) throws IOException {
+        if (root == 0) {
+            return null;
+        }
+        byte[] key = encodeName(name);
+        Node node = readNode(root);
+        while (node.kind == KIND_INTERNAL) {
+            node = readNode(node.childFor(key));
+        }
+        int pos = node.search(key);
+        return pos >= 0 ? node.entry(pos) : null;
+    }
+
+    /**
+     * Insert a new entry
+     *
+     * @return New root block (changes when the tree is created or grows)
+     * @throws FileAlreadyExistsException if the name is taken
+     */
+    long insert(long root, String name, long inode, int type) throws IOException {
+        byte[] key = encodeName(name);
+        if (root == 0) {
+            root = allocator.allocateOne(0);
+            Node leaf = new Node(KIND_LEAF);
+            leaf.keys.add(key);
+            leaf.values.add(inode);
+            leaf.types.add(type);
+            writeNode(root, leaf, true);
+            return root;
+        }
+
+        Split split = insert(root, key, inode, type, name);
+        if (split == null) {
+            return root;
+        }
+        long newRoot = allocator.allocateOne(root);
+        Node node = new Node(KIND_INTERNAL);
+        node.link = root;
+        node.keys.add(split.key);
+        node.values.add(split.right);
+        writeNode(newRoot, node, true);
+        return newRoot;
+    }
+
+    /**
+     * Remove an entry
+     *
+     * @return New root block (0 once the directory is empty)
+     */
+    long remove(long root, String name) throws IOException {
+        if (root == 0) {
+            return 0;
+        }
+        byte[] key = encodeName(name);
+        long index = root;
+        Node node = readNode(root);
+        while (node.kind == KIND_INTERNAL) {
+            index = node.childFor(key);
+            node = readNode(index);
+        }
+        int pos = node.search(key);
+        if (pos < 0) {
+            return root;
+        }
+        node.keys.remove(pos);
+        node.values.remove(pos);
+        node.types.remove(pos);
+        writeNode(index, node, false);
+
+        if (index != root || !node.keys.isEmpty()) {
+            return root;
+        }
+        // The root leaf emptied: the directory holds no nodes at all
+        destroy(root);
+        return 0;
+    }
+
+    /**
+     * List entries in name order
+     *
+     * @param startAfter Resume after this name (null = from the start)
+     * @param limit Maximum number of entries
+     */
+    List<Entry> list(long root, String startAfter, int limit) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        if (root == 0 || limit <= 0) {
+            return result;
+        }
+        byte[] key = startAfter == null ? new byte[0] : encodeName(startAfter);
+        Node node = readNode(root);
+        while (node.kind == KIND_INTERNAL) {
+            node = readNode(startAfter == null ? node.link : node.childFor(key));
+        }
+        while (true) {
+            for (int i = 0; i < node.keys.size() && result.size() < limit; i++) {
+                if (startAfter == null || compare(node.keys.get(i), key) > 0) {
+                    result.add(node.entry(i));
+                }
+            }
+            if (result.size() >= limit || node.link == 0) {
+                return result;
+            }
+            node = readNode(node.link);
+        }
+    }
+
+    /**
+     * Free every node of the tree
+     */
+    void destroy(long root) throws IOException {
+        if (root == 0) {
+            return;
+        }
+        Node node = readNode(root);
+        if (node.kind == KIND_INTERNAL) {
+            destroy(node.link);
+            for (long child : node.values) {
+                destroy(child);
+            }
+        }
+        cache.forget(root);
+        allocator.free(root, 1);
+    }
+
+    // ------------------------------------------------------------------------
+    // Node handling
+    // ------------------------------------------------------------------------
+
+    private Split insert(long index, byte[] key, long inode, int type, String name)
+            throws IOException {
+        Node node = readNode(index);
+        if (node.kind == KIND_LEAF) {
+            int pos = node.search(key);
+            if (pos >= 0) {
+                throw new FileAlreadyExistsException(name);
+            }
+            pos = -pos - 1;
+            node.keys.add(pos, key);
+            node.values.add(pos, inode);
+            node.types.add(pos, type);
+        } else {
+            int childPos = node.childPosition(key);
+            long child = childPos < 0 ? node.link : node.values.get(childPos);
+            Split split = insert(child, key, inode, type, name);
+            if (split == null) {
+                return null;
+            }
+            node.keys.add(childPos + 1, split.key);
+            node.values.add(childPos + 1, split.right);
+        }
+
+        if (node.encodedSize() <= blockSize) {
+            writeNode(index, node, false);
+            return null;
+        }
+        return split(index, node);
+    }
+
+    /**
+     * Split an overfull node roughly in half by encoded size
+     */
+    private Split split(long index, Node node) throws IOException {
+        int total = node.encodedSize() - NODE_HEADER_SIZE;
+        int half = 0;
+        int mid = 0;
+        while (mid < node.keys.size() - 1 && half + node.entrySize(mid) <= total / 2) {
+            half += node.entrySize(mid);
+            mid++;
+        }
+        mid = Math.max(mid, 1);
+
+        long rightIndex = allocator.allocateOne(index);
+        Node right = new Node(node.kind);
+        byte[] separator;
+        if (node.kind == KIND_LEAF) {
+            separator = node.keys.get(mid);
+            right.keys.addAll(node.keys.subList(mid, node.keys.size()));
+            right.values.addAll(node.values.subList(mid, node.values.size()));
+            right.types.addAll(node.types.subList(mid, node.types.size()));
+            right.link = node.link;
+            node.link = rightIndex;
+        } else {
+            // The middle key moves up; its child becomes the right node's leftmost
+            separator = node.keys.get(mid);
+            right.link = node.values.get(mid);
+            right.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
+            right.values.addAll(node.values.subList(mid + 1, node.values.size()));
+        }
+        node.truncate(mid);
+
+        writeNode(index, node, false);
+        writeNode(rightIndex, right, true);
+        return new Split(separator, rightIndex);
+    }
+
+    private Node readNode(long index) throws IOException {
+        byte[] data = cache.get(index);
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int kind = buf.get(0);
+        if (kind != KIND_LEAF && kind != KIND_INTERNAL) {
+            throw new IOException("Corrupt directory node at block " + index);
+        }
+        Node node = new Node(kind);
+        int count = buf.getShort(2) & 0xFFFF;
+        node.link = buf.getLong(8);
+        int pos = NODE_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int len = data[pos] & 0xFF;
+            byte[] key = new byte[len];
+            System.arraycopy(data, pos + 1, key, 0, len);
+            pos += 1 + len;
+            node.keys.add(key);
+            node.values.add(buf.getLong(pos));
+            pos += 8;
+            if (kind == KIND_LEAF) {
+                node.types.add(data[pos] & 0xFF);
+                pos++;
+            }
+        }
+        return node;
+    }
+
+    private void writeNode(long index, Node node, boolean fresh) throws IOException {
+        byte[] data = fresh ? cache.create(index) : cache.getForWrite(index);
+        java.util.Arrays.fill(data, (byte) 0);
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(0, (byte) node.kind);
+        buf.putShort(2, (short) node.keys.size());
+        buf.putLong(8, node.link);
+        int pos = NODE_HEADER_SIZE;
+        for (int i = 0; i < node.keys.size(); i++) {
+            byte[] key = node.keys.get(i);
+            data[pos] = (byte) key.length;
+            System.arraycopy(key, 0, data, pos + 1, key.length);
+            pos += 1 + key.length;
+            buf.putLong(pos, node.values.get(i));
+            pos += 8;
+            if (node.kind == KIND_LEAF) {
+                data[pos] = (byte) (int) node.types.get(i);
+                pos++;
+            }
+        }
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Decoded node: keys with inode numbers (leaf) or child blocks (internal)
+     */
+    private static final class Node {
+        final int kind;
+        long link;
+        final List<byte[]> keys = new ArrayList<>();
+        final List<Long> values = new ArrayList<>();
+        final List<Integer> types = new ArrayList<>();
+
+        Node(int kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * Binary search; returns index, or (-(insertion point) - 1)
+         */
+        int search(byte[] key) {
+            int lo = 0;
+            int hi = keys.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(keys.get(mid), key);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        /**
+         * Index of the last key <= key, or -1 for the leftmost child
+         */
+        int childPosition(byte[] key) {
+            int pos = search(key);
+            return pos >= 0 ? pos : -pos - 2;
+        }
+
+        long childFor(byte[] key) {
+            int pos = childPosition(key);
+            return pos < 0 ? link : values.get(pos);
+        }
+
+        Entry entry(int i) {
+            return new Entry(new String(keys.get(i), StandardCharsets.UTF_8), values.get(i), types.get(i));
+        }
+
+        int entrySize(int i) {
+            return 1 + keys.get(i).length + 8 + (kind == KIND_LEAF ? 1 : 0);
+        }
+
+        int encodedSize() {
+            int size = NODE_HEADER_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                size += entrySize(i);
+            }
+            return size;
+        }
+
+        void truncate(int count) {
+            keys.subList(count, keys.size()).clear();
+            values.subList(count, values.size()).clear();
+            if (kind == KIND_LEAF) {
+                types.subList(count, types.size()).clear();
+            }
+        }
+    }
+
+    private static final class Split {
+        final byte[] key;
+        final long right;
+
+        Split(byte[] key, long right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+}
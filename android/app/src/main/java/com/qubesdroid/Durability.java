@@ -0,0 +1,61 @@
+package com.qubesdroid;
+
+/**
+ * When VolumeFileSystem makes metadata changes durable, chosen per mount
+ *
+ * - STRICT: every operation commits to the journal and flushes before it
+ *   returns
+ * - GROUP_COMMIT: operations collect in the metadata cache and commit
+ *   together once maxOps have run or intervalMillis have passed since
+ *   the first uncommitted one, whichever comes first
+ * - LAZY: operations commit on sync() and dismount (or when the cache
+ *   holds more dirty blocks than the journal should take at once)
+ *
+ * A crash loses at most the uncommitted operations; it never leaves
+ * a commit half applied.
+ */
+final class Durability {
+
+    enum Mode {
+        STRICT,
+        GROUP_COMMIT,
+        LAZY
+    }
+
+    static final Durability STRICT = new Durability(Mode.STRICT, 0, 1);
+    static final Durability LAZY = new Durability(Mode.LAZY, 0, Integer.MAX_VALUE);
+
+    final Mode mode;
+    final long intervalMillis;
+    final int maxOps;
+
+    private Durability(Mode mode, long intervalMillis, int maxOps) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.maxOps = maxOps;
+    }
+
+    /**
+     * Commit every intervalMillis or every maxOps operations
+     */
+    static Durability groupCommit(long intervalMillis, int maxOps) {
+        if (intervalMillis <= 0 || maxOps <= 0) {
+            throw new IllegalArgumentException("Group commit needs a positive interval and op count");
+        }
+        return new Durability(Mode.GROUP_COMMIT, intervalMillis, maxOps);
+    }
+
+    /**
+     * Group commit as used by the app: every 50 ms or 64 operations
+     */
+    static Durability defaultGroupCommit() {
+        return groupCommit(50, 64);
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.GROUP_COMMIT
+            ? "GROUP_COMMIT(" + intervalMillis + " ms, " + maxOps + " ops)"
+            : mode.name();
+    }
+}
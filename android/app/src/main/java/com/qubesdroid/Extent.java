@@ -0,0 +1,41 @@
+package com.qubesdroid;
+
+/**
+ * Run of physically contiguous blocks
+ */
+final class Extent {
+
+    final long start;
+    final int length;
+
+    Extent(long start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * First block after the extent
+     */
+    long end() {
+        return start + length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Extent)) {
+            return false;
+        }
+        Extent other = (Extent) o;
+        return start == other.start && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + length;
+    }
+
+    @Override
+    public String toString() {
+        return start + "+" + length;
+    }
+}
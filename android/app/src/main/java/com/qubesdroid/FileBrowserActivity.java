@@ -1,47 +1,119 @@
 package com.qubesdroid;
 
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.text.InputType;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.activity.OnBackPressedCallback;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.android.material.progressindicator.LinearProgressIndicator;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Browses the file system of the active MountedVolume
+ *
+ * Directory listings are read on a background thread from the volume's
+ * B-tree directory index and shown in filesRecyclerView. Tapping a folder
+ * descends into it; back goes up one level and dismounts at the root.
+ *
+ * Imports stream straight from the content provider into the volume
+ * through a FileImporter on a separate transfer thread, so plaintext
+ * never touches app storage and listings stay responsive meanwhile.
+ * Picking several documents runs a BatchImporter, which imports them
+ * concurrently and group commits the metadata.
+ * Exports run the other way through a FileExporter into a document the
+ * user creates.
+ * Verify runs a Scrubber over every block on the same transfer thread;
+ * its checkpoint lives in app storage, so an interrupted scrub resumes.
+ * Rotate runs a KeyRotator there too, after asking for the password; its
+ * progress lives in the volume header, and a rotation left unfinished
+ * resumes when the volume is next opened here.
+ */
 public class FileBrowserActivity extends AppCompatActivity {
 
+    private static final int LIST_PAGE = 1000;
+
     private MaterialToolbar toolbar;
     private TextView volumeNameText;
+    private TextView volumeStatsText;
     private TextView emptyStateText;
     private RecyclerView filesRecyclerView;
     private MaterialButton addFileButton;
     private MaterialButton exportFileButton;
+    private MaterialButton verifyVolumeButton;
+    private MaterialButton rotateKeyButton;
     private FloatingActionButton dismountFab;
+    private View transferProgressLayout;
+    private LinearProgressIndicator transferProgress;
+    private TextView transferStatusText;
+    private MaterialButton cancelTransferButton;
 
     private String volumeName;
     private String volumePath;
-    private byte[] masterKey;
+    private MountedVolume volume;
+    private FileListAdapter adapter;
+    private ExecutorService executorService;
+    private ExecutorService transferExecutor;
+    private ActivityResultLauncher<String[]> importPickerLauncher;
+    private ActivityResultLauncher<String> exportTargetLauncher;
+    private boolean choosingExport;
+    private FileListAdapter.Item exportSource;
+    private AtomicBoolean transferCancel;
+
+    // Directory inodes from the root down to the one being shown
+    private final Deque<Long> directoryStack = new ArrayDeque<>();
+    private final Deque<String> pathNames = new ArrayDeque<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // CRITICAL: Show toast immediately to confirm activity is launching
-        Toast.makeText(this, "FILE BROWSER STARTING", Toast.LENGTH_LONG).show();
         android.util.Log.e("QubesDroid", "=== FileBrowserActivity onCreate START ===");
 
         try {
-            Toast.makeText(this, "Setting content view...", Toast.LENGTH_SHORT).show();
             setContentView(R.layout.activity_file_browser);
-            Toast.makeText(this, "Layout loaded!", Toast.LENGTH_SHORT).show();
             android.util.Log.e("QubesDroid", "Layout inflated successfully");
 
-            // Get data from intent
+            // Get data from intent; the key stays inside the mounted volume
             volumeName = getIntent().getStringExtra("volumeName");
             volumePath = getIntent().getStringExtra("volumePath");
-            masterKey = getIntent().getByteArrayExtra("masterKey");
+            volume = MountedVolume.active();
+            if (volume == null) {
+                Toast.makeText(this, "No volume mounted", Toast.LENGTH_SHORT).show();
+                finish();
+                return;
+            }
+            executorService = Executors.newSingleThreadExecutor();
+            transferExecutor = Executors.newSingleThreadExecutor();
             android.util.Log.e("QubesDroid", "Intent data retrieved: volumeName=" + volumeName);
 
             initializeViews();
@@ -50,14 +122,18 @@ public class FileBrowserActivity extends AppCompatActivity {
             setupToolbar();
             android.util.Log.e("QubesDroid", "Toolbar setup");
 
+            setupFilePicker();
             setupListeners();
             android.util.Log.e("QubesDroid", "Listeners setup");
 
             displayVolumeInfo();
             android.util.Log.e("QubesDroid", "Volume info displayed");
 
-            // Show empty state initially
-            showEmptyState();
+            directoryStack.push(VolumeFileSystem.ROOT_INODE);
+            loadDirectory();
+            if (volume.engine().isRotatingKey()) {
+                rotateKey(null);
+            }
             android.util.Log.e("QubesDroid", "=== FileBrowserActivity onCreate COMPLETE ===");
         } catch (Exception e) {
             android.util.Log.e("QubesDroid", "FATAL ERROR in FileBrowserActivity onCreate", e);
@@ -69,11 +145,22 @@ public class FileBrowserActivity extends AppCompatActivity {
     private void initializeViews() {
         toolbar = findViewById(R.id.toolbar);
         volumeNameText = findViewById(R.id.volumeNameText);
+        volumeStatsText = findViewById(R.id.volumeStatsText);
         emptyStateText = findViewById(R.id.emptyStateText);
         filesRecyclerView = findViewById(R.id.filesRecyclerView);
         addFileButton = findViewById(R.id.addFileButton);
         exportFileButton = findViewById(R.id.exportFileButton);
+        verifyVolumeButton = findViewById(R.id.verifyVolumeButton);
+        rotateKeyButton = findViewById(R.id.rotateKeyButton);
         dismountFab = findViewById(R.id.dismountFab);
+        transferProgressLayout = findViewById(R.id.transferProgressLayout);
+        transferProgress = findViewById(R.id.transferProgress);
+        transferStatusText = findViewById(R.id.transferStatusText);
+        cancelTransferButton = findViewById(R.id.cancelTransferButton);
+
+        adapter = new FileListAdapter(this::onItemClicked);
+        filesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        filesRecyclerView.setAdapter(adapter);
     }
 
     private void setupToolbar() {
@@ -81,39 +168,616 @@ public class FileBrowserActivity extends AppCompatActivity {
         if (getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
-        toolbar.setNavigationOnClickListener(v -> onBackPressed());
+        toolbar.setNavigationOnClickListener(v -> getOnBackPressedDispatcher().onBackPressed());
     }
 
     private void setupListeners() {
-        addFileButton.setOnClickListener(v -> {
-            Toast.makeText(this,
-                "File encryption feature coming soon!\n\n" +
-                "This will allow you to:\n" +
-                "• Select files from your device\n" +
-                "• Encrypt them with ChaCha20-Poly1305\n" +
-                "• Store them securely in the volume",
-                Toast.LENGTH_LONG).show();
-        });
+        addFileButton.setOnClickListener(v -> importPickerLauncher.launch(new String[]{"*/*"}));
 
         exportFileButton.setOnClickListener(v -> {
-            Toast.makeText(this,
-                "File decryption feature coming soon!\n\n" +
-                "This will allow you to:\n" +
-                "• View files in the volume\n" +
-                "• Decrypt and export them\n" +
-                "• Save them to your device",
-                Toast.LENGTH_LONG).show();
+            choosingExport = !choosingExport;
+            Toast.makeText(this, choosingExport ? "Tap a file to export" : "Export cancelled",
+                Toast.LENGTH_SHORT).show();
+        });
+
+        verifyVolumeButton.setOnClickListener(v -> verifyVolume());
+
+        rotateKeyButton.setOnClickListener(v -> confirmRotateKey());
+
+        cancelTransferButton.setOnClickListener(v -> {
+            if (transferCancel != null) {
+                transferCancel.set(true);
+                transferStatusText.setText("Cancelling...");
+            }
+        });
+
+        dismountFab.setOnClickListener(v -> dismount());
+
+        getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
+            @Override
+            public void handleOnBackPressed() {
+                // Go up one directory; dismount when leaving the root
+                if (directoryStack.size() > 1) {
+                    directoryStack.pop();
+                    pathNames.pop();
+                    loadDirectory();
+                    return;
+                }
+                dismount();
+            }
+        });
+    }
+
+    private void setupFilePicker() {
+        importPickerLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenMultipleDocuments(),
+            uris -> {
+                if (uris == null || uris.isEmpty()) {
+                    return;
+                }
+                if (uris.size() == 1) {
+                    importFile(uris.get(0));
+                } else {
+                    importFiles(uris);
+                }
+            }
+        );
+        exportTargetLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/octet-stream"),
+            uri -> {
+                FileListAdapter.Item item = exportSource;
+                exportSource = null;
+                if (uri != null && item != null) {
+                    exportFile(item, uri);
+                }
+            }
+        );
+    }
+
+    /**
+     * Stream a picked document into the current directory
+     */
+    private void importFile(Uri uri) {
+        if (transferCancel != null) {
+            Toast.makeText(this, "A transfer is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        long dir = directoryStack.peek();
+        VolumeFileSystem fs = volume.fileSystem();
+        BlockEngine engine = volume.engine();
+        AtomicBoolean cancel = new AtomicBoolean();
+        transferCancel = cancel;
+        showTransfer("Importing...");
+
+        transferExecutor.execute(() -> {
+            try (FileImporter importer = FileImporter.forDevice(fs, engine)) {
+                DocumentSource source = describe(uri, fs, dir, new HashSet<>());
+                String name = source.name;
+                runOnUiThread(() -> transferStatusText.setText("Importing " + name + "..."));
+                Transfer.Result result;
+                try (InputStream in = source.open()) {
+                    result = importer.importStream(in, dir, name, source.size,
+                        (done, total, rate) -> runOnUiThread(() -> updateTransfer(done, total, rate)), cancel);
+                }
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, String.format(Locale.US, "Imported %s (%s, %.1f MB/s)",
+                        name, FileListAdapter.formatSize(result.bytes), result.bytesPerSecond() / 1e6),
+                        Toast.LENGTH_SHORT).show();
+                    loadDirectory();
+                });
+            } catch (CancellationException e) {
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Import cancelled", Toast.LENGTH_SHORT).show();
+                    loadDirectory();
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Import failed", e);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Import failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    loadDirectory();
+                });
+            }
+        });
+    }
+
+    /**
+     * Import several picked documents into the current directory as one
+     * group-committed batch
+     */
+    private void importFiles(List<Uri> uris) {
+        if (transferCancel != null) {
+            Toast.makeText(this, "A transfer is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        long dir = directoryStack.peek();
+        VolumeFileSystem fs = volume.fileSystem();
+        BlockEngine engine = volume.engine();
+        AtomicBoolean cancel = new AtomicBoolean();
+        transferCancel = cancel;
+        showTransfer("Importing " + uris.size() + " files...");
+
+        transferExecutor.execute(() -> {
+            try (FileImporter importer = FileImporter.forDevice(fs, engine);
+                 BatchImporter batch = BatchImporter.forDevice(fs, importer)) {
+                List<DocumentSource> sources = new ArrayList<>(uris.size());
+                Set<String> taken = new HashSet<>();
+                for (Uri uri : uris) {
+                    sources.add(describe(uri, fs, dir, taken));
+                }
+                BatchImporter.Result result = batch.importAll(dir, sources,
+                    (files, total, bytes, rate) -> runOnUiThread(() -> updateBatch(files, total, bytes, rate)),
+                    cancel);
+                int failed = sources.size() - result.imported;
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, String.format(Locale.US, "Imported %d files (%.1f files/s, %.1f MB/s)%s",
+                        result.imported, result.filesPerSecond(), result.bytesPerSecond() / 1e6,
+                        failed > 0 ? ", " + failed + " failed" : ""),
+                        Toast.LENGTH_LONG).show();
+                    loadDirectory();
+                });
+            } catch (CancellationException e) {
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Import cancelled", Toast.LENGTH_SHORT).show();
+                    loadDirectory();
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Batch import failed", e);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Import failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    loadDirectory();
+                });
+            }
         });
+    }
+
+    /**
+     * Display name and size of a picked document, with the name made
+     * unique in dir and among taken (which it is added to)
+     */
+    private DocumentSource describe(Uri uri, VolumeFileSystem fs, long dir, Set<String> taken)
+            throws IOException {
+        String displayName = "imported";
+        long size = -1;
+        try (Cursor cursor = getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                if (!cursor.isNull(0)) {
+                    displayName = cursor.getString(0);
+                }
+                if (!cursor.isNull(1)) {
+                    size = cursor.getLong(1);
+                }
+            }
+        } catch (Exception e) {
+            android.util.Log.e("QubesDroid", "Could not query " + uri, e);
+        }
+        String name = uniqueName(fs, dir, displayName, taken);
+        taken.add(name);
+        return new DocumentSource(uri, name, size);
+    }
+
+    /**
+     * A picked document, opened through the content resolver when its
+     * turn comes
+     */
+    private final class DocumentSource implements BatchImporter.Source {
+        final Uri uri;
+        final String name;
+        final long size;
 
-        dismountFab.setOnClickListener(v -> {
-            // Securely erase master key
-            if (masterKey != null) {
-                java.util.Arrays.fill(masterKey, (byte) 0);
+        DocumentSource(Uri uri, String name, long size) {
+            this.uri = uri;
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream in = getContentResolver().openInputStream(uri);
+            if (in == null) {
+                throw new IOException("Cannot open " + uri);
             }
+            return in;
+        }
+    }
+
+    /**
+     * Decrypt a file into a document created through the storage framework
+     */
+    private void exportFile(FileListAdapter.Item item, Uri uri) {
+        if (transferCancel != null) {
+            Toast.makeText(this, "A transfer is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        VolumeFileSystem fs = volume.fileSystem();
+        BlockEngine engine = volume.engine();
+        AtomicBoolean cancel = new AtomicBoolean();
+        transferCancel = cancel;
+        showTransfer("Exporting " + item.entry.name + "...");
+
+        transferExecutor.execute(() -> {
+            try (FileExporter exporter = FileExporter.forDevice(fs, engine);
+                 ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "wt")) {
+                if (pfd == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                Transfer.Result result;
+                try (FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+                    result = exporter.exportFile(item.entry.inode, out,
+                        (done, total, rate) -> runOnUiThread(() -> updateTransfer(done, total, rate)), cancel);
+                }
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, String.format(Locale.US, "Exported %s (%s, %.1f MB/s)",
+                        item.entry.name, FileListAdapter.formatSize(result.bytes), result.bytesPerSecond() / 1e6),
+                        Toast.LENGTH_SHORT).show();
+                });
+            } catch (CancellationException e) {
+                // Do not leave a truncated copy behind
+                deleteDocument(uri);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Export cancelled", Toast.LENGTH_SHORT).show();
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Export failed", e);
+                deleteDocument(uri);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Export failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
+    /**
+     * Check that every block of the volume authenticates, resuming an
+     * earlier scrub of this volume that did not finish
+     */
+    private void verifyVolume() {
+        if (transferCancel != null) {
+            Toast.makeText(this, "A transfer is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        BlockEngine engine = volume.engine();
+        File saveTo = scrubCheckpointFile(volume);
+        AtomicBoolean cancel = new AtomicBoolean();
+        transferCancel = cancel;
+        showTransfer("Verifying volume...");
+
+        transferExecutor.execute(() -> {
+            Scrubber.Checkpoint checkpoint = Scrubber.Checkpoint.load(saveTo, engine.blockCount());
+            if (checkpoint == null) {
+                checkpoint = Scrubber.Checkpoint.start(engine.blockCount());
+            }
+            try (Scrubber scrubber = Scrubber.forDevice(engine)) {
+                Scrubber.Result result = scrubber.scrub(checkpoint, saveTo,
+                    (done, total, rate, corrupt) -> runOnUiThread(() -> updateScrub(done, total, rate, corrupt)),
+                    cancel);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    showScrubResult(engine.blockCount(), result);
+                });
+            } catch (CancellationException e) {
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Verification paused; it resumes next time",
+                        Toast.LENGTH_SHORT).show();
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Verification failed", e);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Verification failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
+    /**
+     * Ask for the password before starting a key rotation: the next key
+     * is wrapped under it
+     */
+    private void confirmRotateKey() {
+        EditText passwordInput = new EditText(this);
+        passwordInput.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD);
+        passwordInput.setHint("Password");
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+            .setTitle("Rotate master key")
+            .setMessage("Every block is re-encrypted under a new master key. The volume stays usable "
+                + "meanwhile, and an interrupted rotation resumes the next time it is opened.")
+            .setView(passwordInput)
+            .setPositiveButton("Rotate", (dialog, which) -> {
+                String password = passwordInput.getText().toString();
+                if (!password.isEmpty()) {
+                    rotateKey(password);
+                }
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
 
-            Toast.makeText(this, "Volume dismounted securely", Toast.LENGTH_SHORT).show();
+    /**
+     * Re-encrypt every block under a new master key wrapped under
+     * password, or resume the rotation in progress (password null)
+     */
+    private void rotateKey(String password) {
+        if (transferCancel != null) {
+            Toast.makeText(this, "A transfer is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        BlockEngine engine = volume.engine();
+        AtomicBoolean cancel = new AtomicBoolean();
+        transferCancel = cancel;
+        showTransfer(password != null ? "Checking password..." : "Resuming key rotation...");
+
+        transferExecutor.execute(() -> {
+            try {
+                if (password != null) {
+                    KeyRotator.begin(engine, CryptoRuntime.get(), password);
+                }
+                try (KeyRotator rotator = KeyRotator.forDevice(engine)) {
+                    KeyRotator.Result result = rotator.rotate(
+                        (done, total, rate) -> runOnUiThread(() -> updateRekey(done, total, rate)), cancel);
+                    runOnUiThread(() -> {
+                        hideTransfer();
+                        Toast.makeText(this, String.format(Locale.US, "Master key rotated (%d blocks, %.1f MB/s)",
+                            result.blocksDone, result.bytesPerSecond() / 1e6), Toast.LENGTH_LONG).show();
+                    });
+                }
+            } catch (CancellationException e) {
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Key rotation paused; it resumes next time the volume is opened",
+                        Toast.LENGTH_LONG).show();
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Key rotation failed", e);
+                runOnUiThread(() -> {
+                    hideTransfer();
+                    Toast.makeText(this, "Key rotation failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
+    private File scrubCheckpointFile(MountedVolume volume) {
+        String key = Integer.toHexString(volume.file().getAbsolutePath().hashCode());
+        return new File(getFilesDir(), "scrub-" + key + ".ckpt");
+    }
+
+    private void showScrubResult(long blockCount, Scrubber.Result result) {
+        if (result.corrupt.isEmpty()) {
+            Toast.makeText(this, String.format(Locale.US, "All %d blocks intact (%.1f MB/s)",
+                blockCount, result.bytesPerSecond() / 1e6), Toast.LENGTH_LONG).show();
+            return;
+        }
+        StringBuilder indices = new StringBuilder();
+        for (int i = 0; i < result.corrupt.size() && i < 50; i++) {
+            indices.append(i == 0 ? "" : ", ").append(result.corrupt.get(i));
+        }
+        if (result.corrupt.size() > 50) {
+            indices.append(", ...");
+        }
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+            .setTitle("Damaged blocks found")
+            .setMessage(String.format(Locale.US,
+                "%d of %d blocks failed authentication:\n\n%s", result.corrupt.size(), blockCount, indices))
+            .setPositiveButton("OK", null)
+            .show();
+    }
+
+    private void deleteDocument(Uri uri) {
+        try {
+            android.provider.DocumentsContract.deleteDocument(getContentResolver(), uri);
+        } catch (Exception e) {
+            android.util.Log.e("QubesDroid", "Could not remove partial export " + uri, e);
+        }
+    }
+
+    /**
+     * name, or "name (n).ext" for the first n not yet taken in dir or taken
+     */
+    private static String uniqueName(VolumeFileSystem fs, long dir, String name, Set<String> taken)
+            throws IOException {
+        if (!taken.contains(name) && fs.lookup(dir, name) == null) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int n = 1; ; n++) {
+            String candidate = base + " (" + n + ")" + ext;
+            if (!taken.contains(candidate) && fs.lookup(dir, candidate) == null) {
+                return candidate;
+            }
+        }
+    }
+
+    private void showTransfer(String status) {
+        transferProgress.setIndeterminate(true);
+        transferStatusText.setText(status);
+        transferProgressLayout.setVisibility(View.VISIBLE);
+        addFileButton.setEnabled(false);
+        exportFileButton.setEnabled(false);
+        verifyVolumeButton.setEnabled(false);
+        rotateKeyButton.setEnabled(false);
+    }
+
+    private void updateTransfer(long done, long total, double bytesPerSecond) {
+        if (transferCancel == null || transferCancel.get()) {
+            return;
+        }
+        if (total > 0) {
+            transferProgress.setIndeterminate(false);
+            transferProgress.setProgressCompat((int) Math.min(1000, done * 1000 / total), true);
+        }
+        transferStatusText.setText(String.format(Locale.US, "%s%s • %.1f MB/s",
+            FileListAdapter.formatSize(done),
+            total > 0 ? " of " + FileListAdapter.formatSize(total) : "",
+            bytesPerSecond / 1e6));
+    }
+
+    private void updateBatch(int files, int total, long bytes, double filesPerSecond) {
+        if (transferCancel == null || transferCancel.get()) {
+            return;
+        }
+        transferProgress.setIndeterminate(false);
+        transferProgress.setProgressCompat(files * 1000 / Math.max(1, total), true);
+        transferStatusText.setText(String.format(Locale.US, "%d of %d files • %.1f files/s • %s",
+            files, total, filesPerSecond, FileListAdapter.formatSize(bytes)));
+    }
+
+    private void updateScrub(long done, long total, double bytesPerSecond, int corrupt) {
+        if (transferCancel == null || transferCancel.get()) {
+            return;
+        }
+        transferProgress.setIndeterminate(false);
+        transferProgress.setProgressCompat((int) (done * 1000 / Math.max(1, total)), true);
+        transferStatusText.setText(String.format(Locale.US, "%d of %d blocks • %.1f MB/s%s",
+            done, total, bytesPerSecond / 1e6, corrupt > 0 ? " • " + corrupt + " damaged" : ""));
+    }
+
+    private void updateRekey(long done, long total, double bytesPerSecond) {
+        if (transferCancel == null || transferCancel.get()) {
+            return;
+        }
+        transferProgress.setIndeterminate(false);
+        transferProgress.setProgressCompat((int) (done * 1000 / Math.max(1, total)), true);
+        transferStatusText.setText(String.format(Locale.US, "Re-keyed %d of %d blocks • %.1f MB/s",
+            done, total, bytesPerSecond / 1e6));
+    }
+
+    private void hideTransfer() {
+        transferCancel = null;
+        transferProgressLayout.setVisibility(View.GONE);
+        addFileButton.setEnabled(true);
+        exportFileButton.setEnabled(true);
+        verifyVolumeButton.setEnabled(true);
+        rotateKeyButton.setEnabled(true);
+    }
+
+    private void onItemClicked(FileListAdapter.Item item) {
+        if (choosingExport && !item.entry.isDirectory()) {
+            choosingExport = false;
+            exportSource = item;
+            exportTargetLauncher.launch(item.entry.name);
+            return;
+        }
+        if (item.entry.isDirectory()) {
+            directoryStack.push(item.entry.inode);
+            pathNames.push(item.entry.name);
+            loadDirectory();
+        }
+    }
+
+    /**
+     * List the current directory off the UI thread and show it
+     */
+    private void loadDirectory() {
+        long dir = directoryStack.peek();
+        VolumeFileSystem fs = volume.fileSystem();
+        updateTitle();
+        executorService.execute(() -> {
+            try {
+                List<FileListAdapter.Item> items = new ArrayList<>();
+                String last = null;
+                List<DirectoryBTree.Entry> page;
+                do {
+                    page = fs.list(dir, last, LIST_PAGE);
+                    for (DirectoryBTree.Entry entry : page) {
+                        Inode inode = fs.stat(entry.inode);
+                        items.add(new FileListAdapter.Item(entry, inode.size, inode.modifiedTime));
+                        last = entry.name;
+                    }
+                } while (page.size() == LIST_PAGE);
+                String stats = formatStats(fs);
+
+                runOnUiThread(() -> {
+                    if (dir != directoryStack.peek()) {
+                        return;
+                    }
+                    volumeStatsText.setText(stats);
+                    adapter.setItems(items);
+                    if (items.isEmpty()) {
+                        showEmptyState();
+                    } else {
+                        emptyStateText.setVisibility(View.GONE);
+                        filesRecyclerView.setVisibility(View.VISIBLE);
+                    }
+                });
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Failed to list directory " + dir, e);
+                runOnUiThread(() -> Toast.makeText(this,
+                    "Error reading volume: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
+    /**
+     * Free space plus fragmentation: extents per file (1.0 = every file
+     * contiguous) and the largest free run
+     */
+    private static String formatStats(VolumeFileSystem fs) throws IOException {
+        VolumeFileSystem.Fragmentation f = fs.fragmentation();
+        return String.format(Locale.US, "%s free of %s\n%.2f extents/file • largest free run %s",
+            FileListAdapter.formatSize(fs.freeBytes()),
+            FileListAdapter.formatSize(fs.totalBytes()),
+            f.extentsPerFile(),
+            FileListAdapter.formatSize(f.largestFreeRun * f.blockSize));
+    }
+
+    private void updateTitle() {
+        StringBuilder path = new StringBuilder();
+        Iterator<String> it = pathNames.descendingIterator();
+        while (it.hasNext()) {
+            path.append('/').append(it.next());
+        }
+        toolbar.setSubtitle(path.length() == 0 ? "/" : path.toString());
+    }
+
+    /**
+     * Flush and close the volume, wiping the master key, then leave
+     */
+    private void dismount() {
+        MountedVolume closing = volume;
+        volume = null;
+        if (closing == null) {
             finish();
+            return;
+        }
+        if (transferCancel != null) {
+            transferCancel.set(true);
+        }
+        // Queued behind any transfer so its rollback finishes before the close
+        transferExecutor.execute(() -> {
+            try {
+                closing.close();
+                runOnUiThread(() -> Toast.makeText(this,
+                    "Volume dismounted securely", Toast.LENGTH_SHORT).show());
+            } catch (Exception e) {
+                android.util.Log.e("QubesDroid", "Error dismounting volume", e);
+                runOnUiThread(() -> Toast.makeText(this,
+                    "Error dismounting volume: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            }
         });
+        finish();
     }
 
     private void displayVolumeInfo() {
@@ -131,18 +795,15 @@ public class FileBrowserActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Securely erase master key when activity is destroyed
-        if (masterKey != null) {
-            java.util.Arrays.fill(masterKey, (byte) 0);
+        // Securely dismount when the browser goes away for good
+        if (isFinishing() && volume != null) {
+            dismount();
         }
-    }
-
-    @Override
-    public void onBackPressed() {
-        // Securely dismount before going back
-        if (masterKey != null) {
-            java.util.Arrays.fill(masterKey, (byte) 0);
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (transferExecutor != null) {
+            transferExecutor.shutdown();
         }
-        super.onBackPressed();
     }
 }
@@ -0,0 +1,198 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams a file of the volume out as plaintext
+ *
+ * Pipeline:
+ * 1. Sealed blocks are read ahead through the IoScheduler (BULK),
+ *    walking the file's extents in order
+ * 2. A worker pool opens (decrypts) each block as its read completes
+ * 3. The calling thread writes the plaintext to the OutputStream in
+ *    file order
+ *
+ * The pipeline runs over a fixed ring of windowBlocks slots, each a
+ * sealed and a plaintext buffer reused for every block that passes
+ * through it, so memory use does not depend on the file size and no
+ * plaintext is staged on disk. An inline file or packed tail is read
+ * through VolumeFileSystem.read() after the blocks.
+ *
+ * The file is not locked against concurrent writers; callers export
+ * files nothing else is changing.
+ */
+final class FileExporter implements Closeable {
+
+    private final VolumeFileSystem fs;
+    private final BlockStore store;
+    private final int blockSize;
+    private final int windowBlocks;
+    private final ExecutorService workers;
+
+    /**
+     * @param workerCount Decryption threads
+     * @param windowBlocks Blocks read ahead of the writer
+     */
+    FileExporter(VolumeFileSystem fs, BlockStore store, int workerCount, int windowBlocks) {
+        this.fs = fs;
+        this.store = store;
+        this.blockSize = store.blockSize();
+        this.windowBlocks = windowBlocks;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "qubesdroid-export");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Exporter sized for the device, matching FileImporter.forDevice()
+     */
+    static FileExporter forDevice(VolumeFileSystem fs, BlockStore store) {
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return new FileExporter(fs, store, workers, FileImporter.windowBlocks(workers, store.blockSize()));
+    }
+
+    /**
+     * Write the plaintext of file ino to out (out is not closed)
+     *
+     * @param cancel Set to abandon the export
+     * @throws CancellationException if cancelled (out holds a prefix)
+     */
+    Transfer.Result exportFile(long ino, OutputStream out, Transfer.Listener listener,
+                               AtomicBoolean cancel) throws IOException {
+        long start = System.nanoTime();
+        Inode inode = fs.stat(ino);
+        if (inode.type != Inode.TYPE_FILE) {
+            throw new IOException("Inode " + ino + " is not a file");
+        }
+        long size = inode.size;
+        long blocks = inode.isInline() ? 0
+            : inode.hasPackedTail() ? size / blockSize
+            : (size + blockSize - 1) / blockSize;
+
+        Slot[] ring = new Slot[(int) Math.max(1, Math.min(windowBlocks, blocks))];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot(store.sealedSize(), blockSize);
+        }
+        ArrayDeque<CompletableFuture<Slot>> window = new ArrayDeque<>();
+        ExtentCursor cursor = new ExtentCursor(inode);
+        long bytes = 0;
+        long lastProgress = start;
+        try {
+            long issued = 0;
+            for (long written = 0; written < blocks; written++) {
+                while (issued < blocks && window.size() < ring.length) {
+                    window.addLast(readAhead(ring[(int) (issued % ring.length)], cursor.next()));
+                    issued++;
+                }
+                if (cancel != null && cancel.get()) {
+                    throw new CancellationException("Export cancelled");
+                }
+                Slot slot = IoScheduler.await(window.pollFirst());
+                int n = (int) Math.min(blockSize, size - written * blockSize);
+                out.write(slot.plaintext, 0, n);
+                bytes += n;
+
+                long now = System.nanoTime();
+                if (listener != null && now - lastProgress >= Transfer.PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    listener.onProgress(bytes, size, bytes * 1e9 / Math.max(1, now - start));
+                }
+            }
+
+            if (bytes < size) {
+                byte[] rest = new byte[(int) (size - bytes)];
+                int done = 0;
+                while (done < rest.length) {
+                    done += fs.read(ino, bytes + done, rest, done, rest.length - done);
+                }
+                out.write(rest);
+                Arrays.fill(rest, (byte) 0);
+                bytes += rest.length;
+            }
+            out.flush();
+            long nanos = System.nanoTime() - start;
+            if (listener != null) {
+                listener.onProgress(bytes, size, bytes * 1e9 / Math.max(1, nanos));
+            }
+            return new Transfer.Result(ino, bytes, nanos);
+        } finally {
+            // Let in-flight reads and decrypts land before wiping their buffers
+            for (CompletableFuture<Slot> pending : window) {
+                try {
+                    pending.join();
+                } catch (RuntimeException ignored) {
+                    // failure already reported or superseded
+                }
+            }
+            for (Slot slot : ring) {
+                Arrays.fill(slot.plaintext, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * Read block physical into slot, then decrypt it on a worker
+     */
+    private CompletableFuture<Slot> readAhead(Slot slot, long physical) {
+        return store.readSealed(physical, slot.sealed, IoScheduler.IoClass.BULK)
+            .thenApplyAsync(ignored -> {
+                try {
+                    store.open(physical, slot.sealed, slot.plaintext);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return slot;
+            }, workers);
+    }
+
+    private static final class Slot {
+        final byte[] sealed;
+        final byte[] plaintext;
+
+        Slot(int sealedSize, int blockSize) {
+            this.sealed = new byte[sealedSize];
+            this.plaintext = new byte[blockSize];
+        }
+    }
+
+    /**
+     * Physical blocks of a file in logical order
+     */
+    private static final class ExtentCursor {
+        private final Inode inode;
+        private int extent;
+        private int offset;
+
+        ExtentCursor(Inode inode) {
+            this.inode = inode;
+        }
+
+        long next() throws IOException {
+            while (extent < inode.extents.size() && offset == inode.extents.get(extent).length) {
+                extent++;
+                offset = 0;
+            }
+            if (extent == inode.extents.size()) {
+                throw new IOException("Inode " + inode.number + " has fewer blocks than its size");
+            }
+            return inode.extents.get(extent).start + offset++;
+        }
+    }
+}
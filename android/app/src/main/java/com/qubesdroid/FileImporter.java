@@ -0,0 +1,238 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams a plaintext InputStream into a new file of the volume
+ *
+ * Pipeline:
+ * 1. The calling thread reads the source in block-sized chunks
+ * 2. A worker pool seals (encrypts) the chunks in parallel
+ * 3. Sealed blocks are queued to the IoScheduler (BULK) in file order
+ *
+ * At most windowBlocks chunks are between steps 1 and 3 at any time,
+ * each in its own slot of a fixed ring of plaintext buffers, so memory
+ * use does not depend on the file size and nothing is staged on disk.
+ * Whole blocks are mapped through VolumeFileSystem.mapForStreaming()
+ * and the size is published by completeStreaming(), which flushes them
+ * first. A final
+ * partial block goes through the regular write path, which may store
+ * it inline or as a packed tail.
+ *
+ * On cancellation or any error the partial file is deleted, returning
+ * its blocks.
+ */
+final class FileImporter implements Closeable {
+
+    private static final int MAP_BATCH_BLOCKS = 256;
+    private static final int WINDOW_BYTES_PER_WORKER = 256 * 1024;
+
+    private final VolumeFileSystem fs;
+    private final BlockStore store;
+    private final int blockSize;
+    private final int windowBlocks;
+    private final ExecutorService workers;
+
+    /**
+     * @param workerCount Encryption threads
+     * @param windowBlocks Blocks in flight (read but not yet queued for write)
+     */
+    FileImporter(VolumeFileSystem fs, BlockStore store, int workerCount, int windowBlocks) {
+        this.fs = fs;
+        this.store = store;
+        this.blockSize = store.blockSize();
+        this.windowBlocks = windowBlocks;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "qubesdroid-import");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Importer sized for the device: one worker per core (up to 4) and a
+     * window of 256 KB per worker (four 64 KB blocks)
+     */
+    static FileImporter forDevice(VolumeFileSystem fs, BlockStore store) {
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return new FileImporter(fs, store, workers, windowBlocks(workers, store.blockSize()));
+    }
+
+    /**
+     * Blocks in flight for workers at a block size: 256 KB per worker,
+     * but at least two blocks each
+     */
+    static int windowBlocks(int workers, int blockSize) {
+        return workers * Math.max(2, WINDOW_BYTES_PER_WORKER / blockSize);
+    }
+
+    /**
+     * Copy in into a new file dir/name
+     *
+     * @param expectedSize Source size if known (-1 otherwise), used for
+     *                     preallocation and progress
+     * @param cancel Set to abandon the import
+     * @throws CancellationException if cancelled (the file is removed)
+     */
+    Transfer.Result importStream(InputStream in, long dir, String name, long expectedSize,
+                                 Transfer.Listener listener, AtomicBoolean cancel) throws IOException {
+        long start = System.nanoTime();
+        long ino = fs.createFile(dir, name);
+        byte[][] ring = new byte[windowBlocks][blockSize];
+        ArrayDeque<Pending> window = new ArrayDeque<>();
+        ArrayDeque<CompletableFuture<Void>> writes = new ArrayDeque<>();
+        byte[] tail = null;
+        try {
+            if (expectedSize > 0) {
+                fs.preallocate(ino, expectedSize);
+            }
+            long[] mapped = new long[0];
+            long mappedFirst = 0;
+            long nextBlock = 0;
+            long bytes = 0;
+            long lastProgress = start;
+            boolean eof = false;
+
+            while (!eof || !window.isEmpty()) {
+                if (cancel != null && cancel.get()) {
+                    throw new CancellationException("Import cancelled");
+                }
+                if (!eof && window.size() < windowBlocks) {
+                    byte[] buffer = ring[(int) (nextBlock % windowBlocks)];
+                    int n = readFully(in, buffer);
+                    bytes += n;
+                    if (n < blockSize) {
+                        eof = true;
+                        if (n > 0) {
+                            tail = Arrays.copyOf(buffer, n);
+                        }
+                        continue;
+                    }
+                    if (nextBlock >= mappedFirst + mapped.length) {
+                        mappedFirst = nextBlock;
+                        int batch = MAP_BATCH_BLOCKS;
+                        if (expectedSize > 0) {
+                            batch = (int) Math.max(1, Math.min(batch, expectedSize / blockSize - nextBlock));
+                        }
+                        mapped = fs.mapForStreaming(ino, nextBlock, batch);
+                    }
+                    long physical = mapped[(int) (nextBlock - mappedFirst)];
+                    window.addLast(new Pending(physical, CompletableFuture.supplyAsync(
+                        () -> sealQuietly(physical, buffer), workers)));
+                    nextBlock++;
+                } else {
+                    // Window full or input done: queue the oldest block's write
+                    Pending head = window.pollFirst();
+                    writes.addLast(store.writeSealed(head.physical, IoScheduler.await(head.sealed),
+                        IoScheduler.IoClass.BULK));
+                    while (writes.size() > windowBlocks) {
+                        IoScheduler.await(writes.pollFirst());
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (listener != null && now - lastProgress >= Transfer.PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    listener.onProgress(bytes, expectedSize, bytes * 1e9 / Math.max(1, now - start));
+                }
+            }
+
+            while (!writes.isEmpty()) {
+                IoScheduler.await(writes.pollFirst());
+            }
+            fs.completeStreaming(ino, nextBlock * blockSize);
+            if (tail != null) {
+                fs.write(ino, nextBlock * blockSize, tail, 0, tail.length);
+            }
+            long nanos = System.nanoTime() - start;
+            if (listener != null) {
+                listener.onProgress(bytes, expectedSize, bytes * 1e9 / Math.max(1, nanos));
+            }
+            return new Transfer.Result(ino, bytes, nanos);
+        } catch (IOException | RuntimeException e) {
+            abandon(window, writes);
+            try {
+                fs.delete(dir, name);
+            } catch (IOException cleanup) {
+                e.addSuppressed(cleanup);
+            }
+            throw e;
+        } finally {
+            for (byte[] buffer : ring) {
+                Arrays.fill(buffer, (byte) 0);
+            }
+            if (tail != null) {
+                Arrays.fill(tail, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * Wait out work still in flight so no worker touches the ring and no
+     * write lands after the file's blocks are freed
+     */
+    private static void abandon(ArrayDeque<Pending> window, ArrayDeque<CompletableFuture<Void>> writes) {
+        for (Pending p : window) {
+            try {
+                p.sealed.join();
+            } catch (RuntimeException ignored) {
+                // failure already reported or superseded
+            }
+        }
+        for (CompletableFuture<Void> w : writes) {
+            try {
+                w.join();
+            } catch (RuntimeException ignored) {
+                // failure already reported or superseded
+            }
+        }
+    }
+
+    private byte[] sealQuietly(long physical, byte[] plaintext) {
+        try {
+            return store.seal(physical, plaintext);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fill buffer from in, short only at end of stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static final class Pending {
+        final long physical;
+        final CompletableFuture<byte[]> sealed;
+
+        Pending(long physical, CompletableFuture<byte[]> sealed) {
+            this.physical = physical;
+            this.sealed = sealed;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.qubesdroid;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * RecyclerView adapter for the entries of one in-volume directory
+ */
+class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.ViewHolder> {
+
+    /**
+     * Directory entry plus the inode fields shown in the list
+     */
+    static final class Item {
+        final DirectoryBTree.Entry entry;
+        final long size;
+        final long modifiedTime;
+
+        Item(DirectoryBTree.Entry entry, long size, long modifiedTime) {
+            this.entry = entry;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+    }
+
+    interface OnItemClickListener {
+        void onItemClick(Item item);
+    }
+
+    private final List<Item> items = new ArrayList<>();
+    private final OnItemClickListener listener;
+
+    FileListAdapter(OnItemClickListener listener) {
+        this.listener = listener;
+    }
+
+    void setItems(List<Item> newItems) {
+        items.clear();
+        items.addAll(newItems);
+        notifyDataSetChanged();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+            .inflate(R.layout.item_file, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Item item = items.get(position);
+        holder.nameText.setText(item.entry.name);
+        if (item.entry.isDirectory()) {
+            holder.icon.setImageResource(R.drawable.ic_folder);
+            holder.detailText.setText(item.size == 1 ? "1 item" : item.size + " items");
+        } else {
+            holder.icon.setImageResource(R.drawable.ic_lock);
+            holder.detailText.setText(formatSize(item.size));
+        }
+        holder.itemView.setOnClickListener(v -> listener.onItemClick(item));
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.US, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView icon;
+        final TextView nameText;
+        final TextView detailText;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            icon = itemView.findViewById(R.id.fileIcon);
+            nameText = itemView.findViewById(R.id.fileNameText);
+            detailText = itemView.findViewById(R.id.fileDetailText);
+        }
+    }
+}
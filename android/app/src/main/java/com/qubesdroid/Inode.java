@@ -0,0 +1,177 @@
+package com.qubesdroid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory copy of one 512-byte inode record
+ *
+ * Record layout (little-endian):
+ * | Offset | Size | Field                                            |
+ * |--------|------|--------------------------------------------------|
+ * | 0      | 2    | Type (0 free, 1 file, 2 directory)               |
+ * | 2      | 2    | Flags                                            |
+ * | 4      | 4    | Extent count (direct + overflow)                 |
+ * | 8      | 8    | Size in bytes (directories: entry count)         |
+ * | 16     | 8    | Modification time (ms since epoch)               |
+ * | 24     | 8    | Creation time (ms since epoch)                   |
+ * | 32     | 8    | Directory B-tree root / first overflow block     |
+ * | 40     | 8    | Parent directory / next free inode               |
+ * | 48     | 8    | Packed tail address (FLAG_TAIL, see TailPacker)  |
+ * | 56     | 8    | Reserved                                         |
+ * | 64     | 448  | Up to 28 direct extents (start u64, length u32,  |
+ * |        |      | reserved u32), or the file data if FLAG_INLINE   |
+ *
+ * Extents are kept in file order and cover the file's blocks without
+ * holes, so logical block n lives in the extent where the running sum of
+ * lengths passes n. Extents beyond the 28th are stored in a chain of
+ * overflow blocks managed by VolumeFileSystem.
+ *
+ * Small files skip data blocks: up to INLINE_CAPACITY bytes live in the
+ * extent area itself (FLAG_INLINE), and a short final partial block is
+ * kept as a fragment of a shared tail block (FLAG_TAIL), in which case
+ * the extents map only the file's full blocks.
+ */
+final class Inode {
+
+    static final int SIZE = 512;
+    static final int TYPE_FREE = 0;
+    static final int TYPE_FILE = 1;
+    static final int TYPE_DIRECTORY = 2;
+
+    static final int FLAG_INLINE = 1;
+    static final int FLAG_TAIL = 2;
+
+    static final int EXTENT_AREA_OFFSET = 64;
+    static final int EXTENT_SIZE = 16;
+    static final int DIRECT_EXTENTS = (SIZE - EXTENT_AREA_OFFSET) / EXTENT_SIZE;
+    static final int INLINE_CAPACITY = SIZE - EXTENT_AREA_OFFSET;
+
+    final long number;
+    int type;
+    int flags;
+    long size;
+    long modifiedTime;
+    long createdTime;
+    long treeOrOverflow;
+    long parentOrNextFree;
+    long tailAddress;
+    byte[] inline = new byte[0];
+    final List<Extent> extents = new ArrayList<>();
+
+    Inode(long number) {
+        this.number = number;
+    }
+
+    boolean isDirectory() {
+        return type == TYPE_DIRECTORY;
+    }
+
+    boolean isInline() {
+        return (flags & FLAG_INLINE) != 0;
+    }
+
+    boolean hasPackedTail() {
+        return (flags & FLAG_TAIL) != 0;
+    }
+
+    /**
+     * Total blocks mapped by the extent list
+     */
+    long mappedBlocks() {
+        long blocks = 0;
+        for (Extent e : extents) {
+            blocks += e.length;
+        }
+        return blocks;
+    }
+
+    /**
+     * Physical block holding logical block n, or -1 if unmapped
+     */
+    long physicalBlock(long n) {
+        for (Extent e : extents) {
+            if (n < e.length) {
+                return e.start + n;
+            }
+            n -= e.length;
+        }
+        return -1;
+    }
+
+    /**
+     * Append blocks to the extent list, growing the last extent when the
+     * new run is physically adjacent to it
+     */
+    void appendExtent(Extent extent) {
+        int last = extents.size() - 1;
+        if (last >= 0 && extents.get(last).end() == extent.start) {
+            Extent merged = new Extent(extents.get(last).start, extents.get(last).length + extent.length);
+            extents.set(last, merged);
+        } else {
+            extents.add(extent);
+        }
+    }
+
+    /**
+     * Decode the fixed fields and direct extents
+     *
+     * @return Total extent count (may exceed the direct extents decoded)
+     */
+    int decode(byte[] block, int offset) {
+        ByteBuffer buf = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        type = buf.getShort(offset) & 0xFFFF;
+        flags = buf.getShort(offset + 2) & 0xFFFF;
+        int extentCount = buf.getInt(offset + 4);
+        size = buf.getLong(offset + 8);
+        modifiedTime = buf.getLong(offset + 16);
+        createdTime = buf.getLong(offset + 24);
+        treeOrOverflow = buf.getLong(offset + 32);
+        parentOrNextFree = buf.getLong(offset + 40);
+        tailAddress = buf.getLong(offset + 48);
+        extents.clear();
+        if (isInline()) {
+            inline = Arrays.copyOfRange(block, offset + EXTENT_AREA_OFFSET,
+                offset + EXTENT_AREA_OFFSET + (int) Math.min(size, INLINE_CAPACITY));
+            return 0;
+        }
+        inline = new byte[0];
+        int direct = Math.min(extentCount, DIRECT_EXTENTS);
+        for (int i = 0; i < direct; i++) {
+            int pos = offset + EXTENT_AREA_OFFSET + i * EXTENT_SIZE;
+            extents.add(new Extent(buf.getLong(pos), buf.getInt(pos + 8)));
+        }
+        return extentCount;
+    }
+
+    /**
+     * Encode the fixed fields and the first DIRECT_EXTENTS extents (or
+     * the inline data)
+     */
+    void encode(byte[] block, int offset) {
+        Arrays.fill(block, offset, offset + SIZE, (byte) 0);
+        ByteBuffer buf = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort(offset, (short) type);
+        buf.putShort(offset + 2, (short) flags);
+        buf.putInt(offset + 4, extents.size());
+        buf.putLong(offset + 8, size);
+        buf.putLong(offset + 16, modifiedTime);
+        buf.putLong(offset + 24, createdTime);
+        buf.putLong(offset + 32, treeOrOverflow);
+        buf.putLong(offset + 40, parentOrNextFree);
+        buf.putLong(offset + 48, tailAddress);
+        if (isInline()) {
+            System.arraycopy(inline, 0, block, offset + EXTENT_AREA_OFFSET, inline.length);
+            return;
+        }
+        int direct = Math.min(extents.size(), DIRECT_EXTENTS);
+        for (int i = 0; i < direct; i++) {
+            int pos = offset + EXTENT_AREA_OFFSET + i * EXTENT_SIZE;
+            buf.putLong(pos, extents.get(i).start);
+            buf.putInt(pos + 8, extents.get(i).length);
+        }
+    }
+}
@@ -0,0 +1,819 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * BLAKE2s Merkle tree over the tags of a volume's sealed blocks
+ *
+ * Per-block AEAD rejects a modified slot but accepts an older, validly
+ * sealed version of the same block. The tree binds every block's current
+ * tag to one root, so a block that was rolled back or swapped no longer
+ * matches its leaf:
+ * - Leaf i: BLAKE2s(index (8, big-endian) || tag (16) || 8 zero bytes)
+ * - Node: BLAKE2s(left || right), a missing right child being 32 zero
+ *   bytes; the 32-byte leaf input keeps leaves and nodes apart
+ * - The volume header's reserved field (offset 32) holds a keyed BLAKE2s
+ *   of root || block count, under a key derived from the master key
+ *
+ * The whole tree is kept in memory (64 bytes per block at most). A write
+ * recomputes the path from its leaf to the root, so it costs one hash
+ * per level. Mount checks only the root against the header; the stored
+ * nodes below it are trusted lazily, the first time a block under them
+ * is read, by hashing up to the nearest node already trusted.
+ *
+ * The header MAC always covers blocks on storage: BlockEngine.flush()
+ * writes the MAC of the root once every write in it is forced
+ * (checkpoint()), and nothing else changes it. The tree itself is stored
+ * after the last slot, followed by a trailer, on clean dismount only; a
+ * read-write mount marks it dirty first. Mount then:
+ * - Loads a clean stored tree whose root matches the MAC, lazily
+ * - Otherwise rebuilds the tree from the tags on disk, and accepts it
+ *   only if its root matches the MAC (a crash after a checkpoint)
+ * - Otherwise refuses the volume with a MismatchException: blocks were
+ *   rolled back or replaced, the MAC was tampered with, a crash cut off
+ *   writes made since the last checkpoint, or the volume predates the
+ *   tree. The blocks cannot tell these apart, so only the user can
+ *   accept them, with reseal()
+ * Rollback of a whole container, header included, is not detectable
+ * without state kept elsewhere.
+ *
+ * The tree also tracks changes for incremental backups (BlockDelta):
+ * each block records the generation it was last written in, stored as
+ * 4 bytes per block after the levels. A mount continues the stored
+ * tracking in generation + 1. Whenever the stored generations may not
+ * tell every change (the tree was rebuilt, grown or copied to another
+ * placement), tracking restarts under a new random tracking id, with
+ * every block in generation 1, so a delta against the old id is refused
+ * and a full one made instead. The generations are not covered by the
+ * root MAC; a delta applied from wrong ones fails its tree check
+ * (BlockDelta).
+ *
+ * Trailer (little-endian, last 64 bytes of the container):
+ * | Offset | Size | Field                                      |
+ * |--------|------|--------------------------------------------|
+ * | 0      | 8    | Magic "QDMTREE1"                           |
+ * | 8      | 4    | Version (2; 1 has no generations)          |
+ * | 12     | 4    | Hash size (32)                             |
+ * | 16     | 8    | Block count (leaves)                       |
+ * | 24     | 8    | Offset of the tree (end of the last slot)  |
+ * | 32     | 8    | Tree length: every level, leaves first     |
+ * | 40     | 8    | Tracking id (0 = none)                     |
+ * | 48     | 4    | Generation of the last mount               |
+ * | 52     | 4    | Dirty: 1 from a read-write mount until its |
+ * |        |      | dismount stores the tree again             |
+ * | 56     | 8    | Delta being applied (BlockDelta), or 0     |
+ */
+final class IntegrityTree {
+
+    static final int HASH_SIZE = 32;
+    static final int HEADER_ROOT_OFFSET = VolumeHeader.ROOT_MAC_OFFSET;
+    static final int TRAILER_SIZE = 64;
+    static final int GENERATION_SIZE = 4;
+    static final int TRAILER_TRACKING_OFFSET = 40;
+    static final int TRAILER_GENERATION_OFFSET = 48;
+    static final int TRAILER_DIRTY_OFFSET = 52;
+    static final int TRAILER_PENDING_OFFSET = 56;
+    private static final byte[] TRAILER_MAGIC = "QDMTREE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int VERSION_UNTRACKED = 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] ROOT_KEY_LABEL = "QubesDroid integrity tree root".getBytes(StandardCharsets.US_ASCII);
+    private static final int REBUILD_BATCH = 64;
+
+    /**
+     * The hash behind the tree: BLAKE2s-256 through CryptoNative on the
+     * device
+     */
+    interface Hasher {
+        /**
+         * Hash count inputs of stride bytes each, back to back in in,
+         * into count 32-byte digests in out
+         */
+        void hash(byte[] in, int stride, int count, byte[] out);
+
+        /**
+         * Keyed hash of data
+         */
+        byte[] mac(KeyHandle key, byte[] data);
+
+        /**
+         * Key for one purpose, named by label, derived from key
+         */
+        KeyHandle deriveKey(KeyHandle key, byte[] label) throws IOException;
+    }
+
+    static Hasher nativeHasher(CryptoNative crypto) {
+        KeyVault vault = new KeyVault(crypto);
+        return new Hasher() {
+            @Override
+            public void hash(byte[] in, int stride, int count, byte[] out) {
+                if (!crypto.blake2sBatch(in, stride, count, out)) {
+                    throw new IllegalArgumentException("BLAKE2s batch of " + count + " failed");
+                }
+            }
+
+            @Override
+            public byte[] mac(KeyHandle key, byte[] data) {
+                return crypto.blake2sWithKey(key.id(), data);
+            }
+
+            @Override
+            public KeyHandle deriveKey(KeyHandle key, byte[] label) throws IOException {
+                return vault.subkey(key, label);
+            }
+        };
+    }
+
+    private final Hasher hasher;
+    private final long blockCount;
+    // levels[0] holds the leaves, levels[top] the root
+    private final byte[][] levels;
+    private final BitSet[] trusted;
+    private final int top;
+    // Derived from the master key; replaced by rekey()
+    private KeyHandle rootKey;
+    private final boolean rebuilt;
+    private final long trackingId;
+    private final int generation;
+    private final int[] generations;
+
+    private final byte[] scratch = new byte[2 * HASH_SIZE];
+    private final byte[] digest = new byte[HASH_SIZE];
+    private long hashes;
+    // Root MAC in the header as last read or written, null if unknown
+    private byte[] headerMac;
+
+    /**
+     * @param stored Stored tree whose change tracking continues, or null
+     *               to restart it
+     */
+    private IntegrityTree(Hasher hasher, long blockCount, byte[][] levels, KeyHandle rootKey, boolean rebuilt,
+                          Stored stored) {
+        this.hasher = hasher;
+        this.blockCount = blockCount;
+        this.levels = levels;
+        this.top = levels.length - 1;
+        this.rootKey = rootKey;
+        this.rebuilt = rebuilt;
+        if (stored != null && stored.trackingId != 0) {
+            this.trackingId = stored.trackingId;
+            this.generation = stored.generation + 1;
+            this.generations = stored.generations;
+        } else {
+            this.trackingId = newTrackingId();
+            this.generation = 1;
+            this.generations = new int[(int) blockCount];
+            Arrays.fill(generations, generation);
+        }
+        this.trusted = new BitSet[levels.length];
+        for (int k = 0; k <= top; k++) {
+            trusted[k] = new BitSet();
+        }
+        trusted[top].set(0);
+    }
+
+    /**
+     * Rejection of a volume whose blocks do not match the root MAC in its
+     * header (see class comment)
+     */
+    static final class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Load the tree of a device, checking its root against the header, or
+     * rebuild it from the tags on disk if the volume was not dismounted
+     * cleanly; a read-write device has its stored tree marked dirty until
+     * persist()
+     *
+     * @param masterKey Volume master key (the root key is derived from it
+     *                  into a key of the tree's own, destroyed by close())
+     * @throws MismatchException if the blocks do not match the header MAC
+     */
+    static IntegrityTree open(BlockDevice device, Hasher hasher, KeyHandle masterKey) throws IOException {
+        long blockCount = checkGeometry(device);
+        KeyHandle rootKey = hasher.deriveKey(masterKey, ROOT_KEY_LABEL);
+        try {
+            return open(device, hasher, blockCount, rootKey);
+        } catch (IOException | RuntimeException e) {
+            rootKey.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tree of a volume being created, before any block is written
+     * (CreateVolumeActivity)
+     *
+     * Every leaf starts out as zeros, which no block matches, so each
+     * block must be written before it is read. persist() then stores the
+     * tree and its root MAC, and the first mount loads it like after a
+     * clean dismount.
+     */
+    static IntegrityTree create(BlockDevice device, Hasher hasher, KeyHandle masterKey) throws IOException {
+        long blockCount = checkGeometry(device);
+        int[] sizes = levelSizes(blockCount);
+        byte[][] levels = hashLevels(hasher, new byte[sizes[0] * HASH_SIZE], sizes);
+        KeyHandle rootKey = hasher.deriveKey(masterKey, ROOT_KEY_LABEL);
+        IntegrityTree tree = new IntegrityTree(hasher, blockCount, levels, rootKey, false, null);
+        tree.trustAll();
+        return tree;
+    }
+
+    /**
+     * Blocks of device, if the tree can cover them
+     */
+    private static long checkGeometry(BlockDevice device) throws IOException {
+        if (device.dataOffset() < HEADER_ROOT_OFFSET + HASH_SIZE) {
+            throw new IOException("Volume header has no room for the integrity root");
+        }
+        long blockCount = device.blockCount();
+        if (blockCount > Integer.MAX_VALUE / HASH_SIZE) {
+            throw new IOException("Volume of " + blockCount + " blocks is too large for the integrity tree");
+        }
+        return blockCount;
+    }
+
+    private static IntegrityTree open(BlockDevice device, Hasher hasher, long blockCount, KeyHandle rootKey)
+            throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(HASH_SIZE);
+        device.readAt(HEADER_ROOT_OFFSET, field);
+        IntegrityTree tree = null;
+        Stored stored = readStored(device);
+        if (stored != null && !stored.dirty) {
+            IntegrityTree candidate = new IntegrityTree(hasher, blockCount, stored.levels, rootKey, false, stored);
+            if (MessageDigest.isEqual(field.array(), candidate.rootMac())) {
+                tree = candidate;
+            }
+        }
+        if (tree == null) {
+            tree = new IntegrityTree(hasher, blockCount, rebuild(device, hasher), rootKey, true, null);
+            if (!MessageDigest.isEqual(field.array(), tree.rootMac())) {
+                throw new MismatchException("Volume blocks do not match the integrity root in the header: "
+                    + "rolled back, tampered with, or cut off by a crash while being written");
+            }
+            tree.trustAll();
+        }
+        tree.headerMac = field.array();
+
+        if (!device.isReadOnly() && stored != null && !stored.dirty) {
+            // Until a clean dismount, the stored tree may lag the blocks
+            ByteBuffer dirty = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, 1);
+            device.writeAt(device.size() - TRAILER_SIZE + TRAILER_DIRTY_OFFSET, dirty);
+            device.force();
+        }
+        return tree;
+    }
+
+    /**
+     * Accept the blocks of a closed volume as they are: rebuild the tree
+     * from the tags on disk and store it with its root MAC, so the next
+     * mount loads it
+     *
+     * Only on the user's say-so, after open() refused the volume: a
+     * rollback of the blocks is accepted along with everything else.
+     */
+    static void reseal(BlockDevice device, Hasher hasher, KeyHandle masterKey) throws IOException {
+        long blockCount = checkGeometry(device);
+        byte[][] levels = rebuild(device, hasher);
+        KeyHandle rootKey = hasher.deriveKey(masterKey, ROOT_KEY_LABEL);
+        IntegrityTree tree = new IntegrityTree(hasher, blockCount, levels, rootKey, true, null);
+        try {
+            tree.trustAll();
+            tree.persist(device);
+        } finally {
+            tree.close();
+        }
+    }
+
+    /**
+     * Block count recorded in the trailer of a container of the given
+     * size, or -1 if it carries no valid tree
+     */
+    static long trailerBlockCount(BlockDevice device, long fileSize) throws IOException {
+        if (fileSize - TRAILER_SIZE < device.dataOffset()) {
+            return -1;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (!device.readAt(fileSize - TRAILER_SIZE, trailer)) {
+            return -1;
+        }
+        byte[] bytes = trailer.array();
+        int version = trailer.getInt(8);
+        if (!Arrays.equals(Arrays.copyOf(bytes, TRAILER_MAGIC.length), TRAILER_MAGIC)
+                || (version != VERSION && version != VERSION_UNTRACKED) || trailer.getInt(12) != HASH_SIZE) {
+            return -1;
+        }
+        long blockCount = trailer.getLong(16);
+        long offset = trailer.getLong(24);
+        long length = trailer.getLong(32);
+        long generationsLength = version == VERSION ? blockCount * GENERATION_SIZE : 0;
+        if (blockCount < 0 || blockCount > Integer.MAX_VALUE / HASH_SIZE
+                || offset != device.areaEnd(blockCount)
+                || length != treeLength(blockCount)
+                || offset + length + generationsLength + TRAILER_SIZE != fileSize) {
+            return -1;
+        }
+        return blockCount;
+    }
+
+    /**
+     * Whether open() had to rebuild the tree from the blocks
+     */
+    boolean rebuilt() {
+        return rebuilt;
+    }
+
+    long blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Hashes computed since open (leaves and nodes), for measurement
+     */
+    synchronized long hashes() {
+        return hashes;
+    }
+
+    synchronized byte[] root() {
+        return Arrays.copyOf(levels[top], HASH_SIZE);
+    }
+
+    /**
+     * Tracking id of the generations (see class comment)
+     */
+    long trackingId() {
+        return trackingId;
+    }
+
+    /**
+     * Generation that writes are recorded in until the next mount
+     */
+    int generation() {
+        return generation;
+    }
+
+    /**
+     * Generation block index was last written in
+     */
+    synchronized int generationOf(long index) throws IOException {
+        return generations[leafIndex(index)];
+    }
+
+    /**
+     * Check that a sealed slot is the current version of block index
+     *
+     * @param tagOffset Offset of the 16-byte tag in sealed
+     * @throws IOException if the block or the stored tree above it does
+     *                     not match
+     */
+    synchronized void verify(long index, byte[] sealed, int tagOffset) throws IOException {
+        int leaf = leafIndex(index);
+        trust(leaf);
+        leafHash(index, sealed, tagOffset);
+        if (!matches(0, leaf, digest)) {
+            throw new IOException("Block " + index + " does not match the integrity tree (replaced or rolled back)");
+        }
+    }
+
+    /**
+     * Record a new version of block index: one hash per level
+     */
+    synchronized void update(long index, byte[] sealed, int tagOffset) throws IOException {
+        int leaf = leafIndex(index);
+        // Siblings on the path must be trusted before they go into the root
+        trust(leaf);
+        leafHash(index, sealed, tagOffset);
+        System.arraycopy(digest, 0, levels[0], leaf * HASH_SIZE, HASH_SIZE);
+        generations[leaf] = generation;
+        int j = leaf;
+        for (int k = 0; k < top; k++) {
+            hashPair(k, j & ~1);
+            j >>= 1;
+            System.arraycopy(digest, 0, levels[k + 1], j * HASH_SIZE, HASH_SIZE);
+        }
+    }
+
+    /**
+     * Root MAC of the tree as it is, for checkpoint()
+     */
+    synchronized byte[] mac() {
+        return rootMac();
+    }
+
+    /**
+     * Write mac, taken from mac() before the caller flushed every block
+     * write recorded by then, to the header, unless it is there already
+     */
+    synchronized void checkpoint(BlockDevice device, byte[] mac) throws IOException {
+        if (MessageDigest.isEqual(mac, headerMac)) {
+            return;
+        }
+        device.writeAt(HEADER_ROOT_OFFSET, ByteBuffer.wrap(mac));
+        device.force();
+        headerMac = mac;
+    }
+
+    /**
+     * Checkpoint the root MAC, then store the tree after the slots, clean
+     * (dismount); the caller has flushed every block write
+     */
+    synchronized void persist(BlockDevice device) throws IOException {
+        checkpoint(device, rootMac());
+        writeStored(device, levels, blockCount, trackingId, generation, generations);
+        device.force();
+    }
+
+    /**
+     * Copy the stored tree of one device to another holding the same
+     * slots in another placement (v1 to v2 migration), so the root MAC
+     * in the copied header still holds; change tracking restarts, since
+     * a delta against the old placement would not apply
+     *
+     * @return false if from has no clean stored tree (to gets none
+     *         either, and its first mount rebuilds)
+     */
+    static boolean copyStored(BlockDevice from, BlockDevice to) throws IOException {
+        if (from.blockCount() != to.blockCount()) {
+            throw new IOException("Tree of " + from.blockCount() + " blocks copied to "
+                + to.blockCount() + " blocks");
+        }
+        Stored stored = readStored(from);
+        if (stored == null || stored.dirty) {
+            return false;
+        }
+        int[] generations = new int[(int) from.blockCount()];
+        Arrays.fill(generations, 1);
+        writeStored(to, stored.levels, from.blockCount(), newTrackingId(), 1, generations);
+        return true;
+    }
+
+    private static void writeStored(BlockDevice device, byte[][] levels, long blockCount, long trackingId,
+                                    int generation, int[] generations) throws IOException {
+        long length = storedLength(blockCount);
+        ByteBuffer out = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte[] level : levels) {
+            out.put(level);
+        }
+        for (int g : generations) {
+            out.putInt(g);
+        }
+        out.put(TRAILER_MAGIC);
+        out.putInt(VERSION);
+        out.putInt(HASH_SIZE);
+        out.putLong(blockCount);
+        out.putLong(device.slotAreaEnd());
+        out.putLong(treeLength(blockCount));
+        out.putLong(trackingId);
+        out.putInt(generation);
+        out.position(out.capacity());
+        out.flip();
+        device.writeAt(device.slotAreaEnd(), out);
+        device.truncate(device.slotAreaEnd() + length);
+    }
+
+    /**
+     * The tree of this volume grown to blockCount blocks (see
+     * VolumeExpander)
+     *
+     * Every stored node is checked first, so the grown tree vouches for
+     * the existing blocks exactly as this one did. The leaves of the new
+     * blocks start out as zeros, which no block matches; each new block
+     * must be written before it is read. Change tracking restarts, as
+     * the stored tree moves.
+     *
+     * @throws IOException if a stored node does not match the leaves
+     *                     under it
+     */
+    synchronized IntegrityTree grow(long blockCount) throws IOException {
+        if (blockCount < this.blockCount || blockCount > Integer.MAX_VALUE / HASH_SIZE) {
+            throw new IOException("Integrity tree of " + this.blockCount + " blocks cannot grow to " + blockCount);
+        }
+        byte[][] checked = hashLevels(hasher, levels[0], levelSizes(this.blockCount));
+        for (int k = 1; k <= top; k++) {
+            if (!MessageDigest.isEqual(checked[k], levels[k])) {
+                throw new IOException("Integrity tree is damaged at level " + k);
+            }
+        }
+        int[] sizes = levelSizes(blockCount);
+        byte[][] grown = hashLevels(hasher, Arrays.copyOf(levels[0], sizes[0] * HASH_SIZE), sizes);
+        IntegrityTree tree = new IntegrityTree(hasher, blockCount, grown, rootKey.copy(), false, null);
+        tree.trustAll();
+        tree.headerMac = headerMac;
+        return tree;
+    }
+
+    /**
+     * Derive the root key from a new master key (end of a key rotation);
+     * the root MAC written by the next checkpoint() is under it
+     */
+    synchronized void rekey(KeyHandle masterKey) throws IOException {
+        KeyHandle old = rootKey;
+        rootKey = hasher.deriveKey(masterKey, ROOT_KEY_LABEL);
+        old.close();
+    }
+
+    /**
+     * Destroy the derived root key
+     */
+    synchronized void close() {
+        rootKey.close();
+    }
+
+    // ------------------------------------------------------------------------
+    // Internals
+    // ------------------------------------------------------------------------
+
+    private byte[] rootMac() {
+        ByteBuffer input = ByteBuffer.allocate(HASH_SIZE + 8).order(ByteOrder.LITTLE_ENDIAN);
+        input.put(levels[top], 0, HASH_SIZE);
+        input.putLong(blockCount);
+        return hasher.mac(rootKey, input.array());
+    }
+
+    /**
+     * Trust every node, for a tree computed rather than read
+     */
+    private void trustAll() {
+        for (int k = 0; k <= top; k++) {
+            trusted[k].set(0, levels[k].length / HASH_SIZE);
+        }
+    }
+
+    private static long newTrackingId() {
+        long id;
+        do {
+            id = RANDOM.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    private int leafIndex(long index) throws IOException {
+        if (index < 0 || index >= blockCount) {
+            throw new IOException("Block " + index + " outside integrity tree (" + blockCount + " blocks)");
+        }
+        return (int) index;
+    }
+
+    /**
+     * Hash up from leaf until a trusted node, then trust the path and the
+     * siblings that were hashed into it
+     */
+    private void trust(int leaf) throws IOException {
+        int k = 0;
+        int j = leaf;
+        while (!trusted[k].get(j)) {
+            hashPair(k, j & ~1);
+            if (!matches(k + 1, j >> 1, digest)) {
+                throw new IOException("Integrity tree is damaged at level " + (k + 1) + " above block " + leaf);
+            }
+            k++;
+            j >>= 1;
+        }
+        j = leaf;
+        for (int level = 0; level < k; level++) {
+            trusted[level].set(j & ~1);
+            trusted[level].set(j | 1);
+            j >>= 1;
+        }
+    }
+
+    private void leafHash(long index, byte[] sealed, int tagOffset) {
+        ByteBuffer input = ByteBuffer.wrap(scratch, 0, HASH_SIZE);
+        input.putLong(index);
+        input.put(sealed, tagOffset, BlockDevice.TAG_SIZE);
+        Arrays.fill(scratch, 8 + BlockDevice.TAG_SIZE, HASH_SIZE, (byte) 0);
+        hasher.hash(scratch, HASH_SIZE, 1, digest);
+        hashes++;
+    }
+
+    /**
+     * Hash children left and left + 1 of level k into digest
+     */
+    private void hashPair(int k, int left) {
+        byte[] level = levels[k];
+        System.arraycopy(level, left * HASH_SIZE, scratch, 0, HASH_SIZE);
+        if ((left + 1) * HASH_SIZE < level.length) {
+            System.arraycopy(level, (left + 1) * HASH_SIZE, scratch, HASH_SIZE, HASH_SIZE);
+        } else {
+            Arrays.fill(scratch, HASH_SIZE, 2 * HASH_SIZE, (byte) 0);
+        }
+        hasher.hash(scratch, 2 * HASH_SIZE, 1, digest);
+        hashes++;
+    }
+
+    private boolean matches(int k, int j, byte[] hash) {
+        byte[] level = levels[k];
+        int off = j * HASH_SIZE;
+        int diff = 0;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            diff |= level[off + i] ^ hash[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Node counts per level, leaves first, ending with the root
+     */
+    static int[] levelSizes(long blockCount) {
+        int levels = 1;
+        for (long n = Math.max(1, blockCount); n > 1; n = (n + 1) / 2) {
+            levels++;
+        }
+        int[] sizes = new int[levels];
+        long n = Math.max(1, blockCount);
+        for (int k = 0; k < levels; k++) {
+            sizes[k] = (int) n;
+            n = (n + 1) / 2;
+        }
+        return sizes;
+    }
+
+    /**
+     * Bytes of every level, leaves first
+     */
+    static long treeLength(long blockCount) {
+        long length = 0;
+        for (int size : levelSizes(blockCount)) {
+            length += (long) size * HASH_SIZE;
+        }
+        return length;
+    }
+
+    /**
+     * Bytes stored after the slots: levels, generations and trailer
+     */
+    static long storedLength(long blockCount) {
+        return treeLength(blockCount) + blockCount * GENERATION_SIZE + TRAILER_SIZE;
+    }
+
+    /**
+     * What a device stores after its slots
+     */
+    static final class Stored {
+        /**
+         * Every level, leaves first (null from readTracking())
+         */
+        final byte[][] levels;
+        /**
+         * 0 if the tree predates change tracking
+         */
+        final long trackingId;
+        final int generation;
+        /**
+         * Generation of each block, or null without tracking
+         */
+        final int[] generations;
+        /**
+         * Delta being applied to this copy (BlockDelta), or 0
+         */
+        final long pending;
+        /**
+         * Whether a read-write mount has not stored the tree since
+         */
+        final boolean dirty;
+
+        private Stored(byte[][] levels, long trackingId, int generation, int[] generations, long pending,
+                       boolean dirty) {
+            this.levels = levels;
+            this.trackingId = trackingId;
+            this.generation = generation;
+            this.generations = generations;
+            this.pending = pending;
+            this.dirty = dirty;
+        }
+    }
+
+    /**
+     * The tree stored on a device, or null if it has none; nothing is
+     * checked against the blocks or the header
+     */
+    static Stored readStored(BlockDevice device) throws IOException {
+        Stored tracking = readTracking(device);
+        if (tracking == null) {
+            return null;
+        }
+        int[] sizes = levelSizes(device.blockCount());
+        byte[][] levels = new byte[sizes.length][];
+        long position = device.slotAreaEnd();
+        for (int k = 0; k < sizes.length; k++) {
+            levels[k] = new byte[sizes[k] * HASH_SIZE];
+            if (!device.readAt(position, ByteBuffer.wrap(levels[k]))) {
+                return null;
+            }
+            position += levels[k].length;
+        }
+        return new Stored(levels, tracking.trackingId, tracking.generation, tracking.generations, tracking.pending,
+            tracking.dirty);
+    }
+
+    /**
+     * The change tracking stored on a device without the levels, or null
+     * if it has no tree (what BlockDelta reads to export)
+     */
+    static Stored readTracking(BlockDevice device) throws IOException {
+        long blockCount = device.blockCount();
+        if (trailerBlockCount(device, device.size()) != blockCount) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (!device.readAt(device.size() - TRAILER_SIZE, trailer)) {
+            return null;
+        }
+        boolean dirty = trailer.getInt(TRAILER_DIRTY_OFFSET) != 0;
+        if (trailer.getInt(8) != VERSION) {
+            return new Stored(null, 0, 0, null, 0, dirty);
+        }
+        ByteBuffer stored = ByteBuffer.allocate((int) blockCount * GENERATION_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (!device.readAt(device.slotAreaEnd() + treeLength(blockCount), stored)) {
+            return null;
+        }
+        int[] generations = new int[(int) blockCount];
+        stored.flip();
+        stored.asIntBuffer().get(generations);
+        return new Stored(null, trailer.getLong(TRAILER_TRACKING_OFFSET), trailer.getInt(TRAILER_GENERATION_OFFSET),
+            generations, trailer.getLong(TRAILER_PENDING_OFFSET), dirty);
+    }
+
+    /**
+     * Whether the tree stored on a device matches the tags of its slots
+     * at every level (BlockDelta's check of an updated copy; needs no
+     * key, so the root MAC in the header is left to the next mount)
+     */
+    static boolean checkStored(BlockDevice device, Hasher hasher) throws IOException {
+        Stored stored = readStored(device);
+        if (stored == null) {
+            return false;
+        }
+        byte[][] levels = rebuild(device, hasher);
+        for (int k = 0; k < levels.length; k++) {
+            if (!MessageDigest.isEqual(levels[k], stored.levels[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute every level from the tags of the slots on disk
+     *
+     * On a v2 device only the metadata region is read.
+     */
+    private static byte[][] rebuild(BlockDevice device, Hasher hasher) throws IOException {
+        long blockCount = device.blockCount();
+        int[] sizes = levelSizes(blockCount);
+        byte[] leafInputs = new byte[sizes[0] * HASH_SIZE];
+        boolean aligned = device.isAligned();
+        int stride = aligned ? BlockDevice.METADATA_ENTRY_SIZE : device.slotSize();
+        int tagOffset = aligned ? device.metadataTagOffset() : device.tagOffset();
+        int batch = aligned ? REBUILD_BATCH * 64 : REBUILD_BATCH;
+        ByteBuffer slots = ByteBuffer.allocate(batch * stride);
+        for (long first = 0; first < blockCount; first += batch) {
+            int count = (int) Math.min(batch, blockCount - first);
+            slots.clear().limit(count * stride);
+            if (aligned) {
+                device.readMetadata(first, slots);
+            } else {
+                device.read(first, slots);
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer input = ByteBuffer.wrap(leafInputs, (int) (first + i) * HASH_SIZE, HASH_SIZE);
+                input.putLong(first + i);
+                input.put(slots.array(), i * stride + tagOffset, BlockDevice.TAG_SIZE);
+            }
+        }
+        byte[] leaves = new byte[sizes[0] * HASH_SIZE];
+        if (blockCount > 0) {
+            hasher.hash(leafInputs, HASH_SIZE, sizes[0], leaves);
+        }
+        return hashLevels(hasher, leaves, sizes);
+    }
+
+    /**
+     * Every level above the given leaves, the leaves being level 0
+     */
+    private static byte[][] hashLevels(Hasher hasher, byte[] leaves, int[] sizes) {
+        byte[][] levels = new byte[sizes.length][];
+        levels[0] = leaves;
+        for (int k = 1; k < sizes.length; k++) {
+            byte[] children = levels[k - 1];
+            if (children.length < sizes[k] * 2 * HASH_SIZE) {
+                children = Arrays.copyOf(children, sizes[k] * 2 * HASH_SIZE);
+            }
+            levels[k] = new byte[sizes[k] * HASH_SIZE];
+            hasher.hash(children, 2 * HASH_SIZE, sizes[k], levels[k]);
+        }
+        return levels;
+    }
+}
@@ -0,0 +1,665 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * I/O scheduler in front of the BlockDevice
+ *
+ * Every sealed block read or write of a mounted volume is queued here and
+ * issued by a single dispatcher thread:
+ * - Requests for adjacent block indices are merged into one positional
+ *   read or write of up to maxMergeBlocks slots (by default as many as
+ *   fit in MAX_MERGE_BYTES, so 16 of 64 KB or 256 of 4 KB)
+ * - INTERACTIVE requests are served before BULK (import/export), which
+ *   are served before BACKGROUND (prefetch, scrub, re-key)
+ * - Each class can be capped to a throughput in bytes per second
+ *
+ * A read of a block with a queued or in-flight write is answered from the
+ * write's buffer, and a second write to a queued block replaces the first
+ * one (keeping the higher priority), so reordering between classes never
+ * returns stale data.
+ *
+ * A trim is queued like a write of an all-zero slot, which is how a
+ * trimmed block reads back: it supersedes a queued write to the block or
+ * is superseded by a later one, and adjacent trims go to the device as
+ * one BlockDevice.trim().
+ *
+ * A request whose I/O throws, checked or not, fails with it and the
+ * dispatcher goes on. If the dispatcher itself stops (interrupted, or an
+ * Error), every queued and in-flight request fails, and so does every
+ * later one: no caller is left waiting on a future nobody completes.
+ */
+final class IoScheduler implements Closeable {
+
+    /**
+     * Priority classes, highest first
+     */
+    enum IoClass {
+        INTERACTIVE,
+        BULK,
+        BACKGROUND
+    }
+
+    static final int MAX_MERGE_BYTES = 1 << 20;
+
+    private enum Op { READ, WRITE, TRIM }
+
+    private final BlockDevice device;
+    private final int slotSize;
+    private final int maxMergeBlocks;
+    private final ByteBuffer scratch;
+    private final ByteBuffer trimmedSlot;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition requestDone = lock.newCondition();
+
+    private final ClassQueue[] queues;
+    private final Map<Long, Request> pendingWrites = new HashMap<>();
+    private final Map<Long, List<Request>> pendingReads = new HashMap<>();
+    private final Map<Long, Request> inFlightWrites = new HashMap<>();
+
+    private final Thread dispatcher;
+    private boolean started;
+    private boolean closing;
+    // Why the dispatcher stopped before close(), failing every request since
+    private Throwable stopped;
+    private long nextSeq;
+
+    // Counters (guarded by lock)
+    private long dispatchedIos;
+    private long completedRequests;
+
+    IoScheduler(BlockDevice device) {
+        this(device, mergeBlocks(device.blockSize()));
+        start();
+    }
+
+    /**
+     * Default merge limit for a block size
+     */
+    static int mergeBlocks(int blockSize) {
+        return Math.max(1, MAX_MERGE_BYTES / blockSize);
+    }
+
+    /**
+     * Create a scheduler without starting its dispatcher
+     *
+     * Requests submitted before start() are queued, which lets tests
+     * observe merging and ordering deterministically.
+     */
+    IoScheduler(BlockDevice device, int maxMergeBlocks) {
+        this.device = device;
+        this.slotSize = device.slotSize();
+        this.maxMergeBlocks = maxMergeBlocks;
+        this.scratch = ByteBuffer.allocateDirect(maxMergeBlocks * slotSize);
+        this.trimmedSlot = ByteBuffer.allocate(slotSize).asReadOnlyBuffer();
+
+        IoClass[] classes = IoClass.values();
+        queues = new ClassQueue[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            queues[i] = new ClassQueue();
+        }
+
+        dispatcher = new Thread(this::dispatchLoop, "QubesDroid-IO");
+        dispatcher.setDaemon(true);
+    }
+
+    void start() {
+        lock.lock();
+        try {
+            if (!started) {
+                started = true;
+                dispatcher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    BlockDevice device() {
+        return device;
+    }
+
+    /**
+     * Cap a class to the given throughput (0 removes the cap)
+     */
+    void setThroughputCap(IoClass ioClass, long bytesPerSecond) {
+        lock.lock();
+        try {
+            ClassQueue q = queues[ioClass.ordinal()];
+            q.rateBytesPerSecond = bytesPerSecond;
+            q.burstBytes = Math.max(bytesPerSecond / 4, (long) maxMergeBlocks * slotSize);
+            q.tokens = q.burstBytes;
+            q.lastRefillNanos = System.nanoTime();
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a read of one sealed slot into dst
+     *
+     * dst must have slotSize bytes remaining; its position is left as is.
+     */
+    CompletableFuture<Void> submitRead(long block, ByteBuffer dst, IoClass ioClass) {
+        Request request = new Request(Op.READ, block, dst, ioClass);
+        Request source = null;
+        lock.lock();
+        try {
+            checkOpen();
+            source = pendingWrites.get(block);
+            if (source == null) {
+                source = inFlightWrites.get(block);
+            }
+            if (source == null) {
+                request.seq = nextSeq++;
+                pendingReads.computeIfAbsent(block, b -> new ArrayList<>(1)).add(request);
+                enqueue(request, ioClass);
+            } else {
+                // Serve from the queued write so reordering never exposes old data
+                dst.duplicate().put(source.buffer.duplicate());
+            }
+        } catch (IOException e) {
+            request.future.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        if (source != null) {
+            request.future.complete(null);
+        }
+        return request.future;
+    }
+
+    /**
+     * Queue a write of one sealed slot from src
+     *
+     * On a FRAMED device src may hold just the used start of the slot.
+     * src must not be modified until the returned future completes.
+     */
+    CompletableFuture<Void> submitWrite(long block, ByteBuffer src, IoClass ioClass) {
+        return submitChange(new Request(Op.WRITE, block, src, ioClass), ioClass);
+    }
+
+    /**
+     * Queue a trim of one block (see class comment)
+     */
+    CompletableFuture<Void> submitTrim(long block, IoClass ioClass) {
+        return submitChange(new Request(Op.TRIM, block, trimmedSlot.duplicate(), ioClass), ioClass);
+    }
+
+    private CompletableFuture<Void> submitChange(Request request, IoClass ioClass) {
+        long block = request.block;
+        lock.lock();
+        try {
+            checkOpen();
+            request.seq = nextSeq++;
+            request.barrierSeq = request.seq;
+            Request previous = pendingWrites.remove(block);
+            if (previous != null) {
+                // Write combining: the newer data supersedes the queued slot
+                dequeue(previous);
+                request.followers.addAll(previous.followers);
+                request.followers.add(previous);
+                previous.followers.clear();
+                request.barrierSeq = previous.barrierSeq;
+                if (previous.queuedClass.ordinal() < ioClass.ordinal()) {
+                    ioClass = previous.queuedClass;
+                }
+            }
+            pendingWrites.put(block, request);
+            enqueue(request, ioClass);
+        } catch (IOException e) {
+            request.future.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        return request.future;
+    }
+
+    void read(long block, ByteBuffer dst, IoClass ioClass) throws IOException {
+        await(submitRead(block, dst, ioClass));
+    }
+
+    void write(long block, ByteBuffer src, IoClass ioClass) throws IOException {
+        await(submitWrite(block, src, ioClass));
+    }
+
+    /**
+     * Wait for every write submitted so far and force it to storage
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            long barrier = nextSeq;
+            while (hasWritesBefore(barrier)) {
+                requestDone.await();
+            }
+            if (stopped != null) {
+                throw new IOException("I/O dispatcher stopped", stopped);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing");
+        } finally {
+            lock.unlock();
+        }
+        device.force();
+    }
+
+    int queueDepth(IoClass ioClass) {
+        lock.lock();
+        try {
+            return queues[ioClass.ordinal()].pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dispatchedIos() {
+        lock.lock();
+        try {
+            return dispatchedIos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long completedRequests() {
+        lock.lock();
+        try {
+            return completedRequests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drain queued requests and stop the dispatcher
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closing = true;
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (started) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing scheduler");
+            }
+        }
+    }
+
+    /**
+     * Wait for a future, rethrowing its failure as an IOException
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block I/O");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Block I/O failed", cause);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Dispatcher
+    // ------------------------------------------------------------------------
+
+    private void dispatchLoop() {
+        List<Request> batch = new ArrayList<>(maxMergeBlocks);
+        Throwable stop = null;
+        try {
+            while (true) {
+                Op op;
+                long firstBlock;
+                lock.lock();
+                try {
+                    ClassQueue queue;
+                    while ((queue = nextQueue()) == null) {
+                        if (closing && totalPending() == 0) {
+                            return;
+                        }
+                        long wait = throttleWaitNanos();
+                        if (wait == Long.MAX_VALUE) {
+                            workAvailable.await();
+                        } else {
+                            workAvailable.awaitNanos(wait);
+                        }
+                    }
+                    Request head = queue.arrivals.peekFirst();
+                    op = head.op;
+                    firstBlock = collectRun(head, batch);
+                    dispatchedIos++;
+                } finally {
+                    lock.unlock();
+                }
+
+                Throwable failure = null;
+                try {
+                    execute(op, firstBlock, batch);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+                finish(op, batch, failure);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop = new InterruptedIOException("I/O dispatcher interrupted");
+        } catch (Throwable e) {
+            stop = e;
+            throw e;
+        } finally {
+            if (stop != null) {
+                failAll(batch, stop);
+            }
+        }
+    }
+
+    /**
+     * Fail the batch in flight and every queued request, and refuse new
+     * ones, once the dispatcher stops early
+     */
+    private void failAll(List<Request> batch, Throwable cause) {
+        List<Request> failed = new ArrayList<>(batch);
+        lock.lock();
+        try {
+            stopped = cause;
+            failed.addAll(pendingWrites.values());
+            failed.addAll(inFlightWrites.values());
+            for (List<Request> reads : pendingReads.values()) {
+                failed.addAll(reads);
+            }
+            pendingWrites.clear();
+            inFlightWrites.clear();
+            pendingReads.clear();
+            for (ClassQueue q : queues) {
+                q.arrivals.clear();
+                q.pending = 0;
+            }
+            requestDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Request r : failed) {
+            r.complete(cause);
+        }
+    }
+
+    /**
+     * Highest priority class that has work and is within its cap
+     */
+    private ClassQueue nextQueue() {
+        long now = System.nanoTime();
+        for (ClassQueue q : queues) {
+            q.dropDispatched();
+            if (q.pending == 0) {
+                continue;
+            }
+            q.refill(now);
+            if (q.rateBytesPerSecond == 0 || q.tokens > 0) {
+                return q;
+            }
+        }
+        return null;
+    }
+
+    private long throttleWaitNanos() {
+        long wait = Long.MAX_VALUE;
+        for (ClassQueue q : queues) {
+            if (q.pending > 0 && q.rateBytesPerSecond > 0) {
+                long nanos = (long) (-q.tokens * 1_000_000_000.0 / q.rateBytesPerSecond) + 1;
+                wait = Math.min(wait, Math.max(nanos, 1_000_000L));
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Take head plus any queued requests of the same kind on adjacent
+     * blocks, in any class, up to maxMergeBlocks
+     */
+    private long collectRun(Request head, List<Request> batch) {
+        long start = head.block;
+        long end = head.block;
+        take(head.op, head.block, batch);
+        while (end - start + 1 < maxMergeBlocks && hasPending(head.op, end + 1)) {
+            end++;
+            take(head.op, end, batch);
+        }
+        while (end - start + 1 < maxMergeBlocks && start > 0 && hasPending(head.op, start - 1)) {
+            start--;
+            take(head.op, start, batch);
+        }
+        return start;
+    }
+
+    private boolean hasPending(Op op, long block) {
+        if (op == Op.READ) {
+            return pendingReads.containsKey(block);
+        }
+        Request change = pendingWrites.get(block);
+        return change != null && change.op == op;
+    }
+
+    private void take(Op op, long block, List<Request> batch) {
+        if (op != Op.READ) {
+            Request r = pendingWrites.remove(block);
+            dequeue(r);
+            inFlightWrites.put(block, r);
+            batch.add(r);
+        } else {
+            for (Request r : pendingReads.remove(block)) {
+                dequeue(r);
+                batch.add(r);
+            }
+        }
+    }
+
+    private void execute(Op op, long firstBlock, List<Request> batch) throws IOException {
+        long lastBlock = firstBlock;
+        for (Request r : batch) {
+            lastBlock = Math.max(lastBlock, r.block);
+        }
+        int count = (int) (lastBlock - firstBlock + 1);
+        if (op == Op.TRIM) {
+            device.trim(firstBlock, count);
+            return;
+        }
+        scratch.clear();
+        scratch.limit(count * slotSize);
+
+        if (op == Op.WRITE) {
+            if (!wholeSlots(batch)) {
+                // Short framed slots go out one by one, so their unused rest is never written
+                for (Request r : batch) {
+                    device.writeFramed(r.block, r.buffer.duplicate());
+                }
+                return;
+            }
+            for (Request r : batch) {
+                scratch.position((int) (r.block - firstBlock) * slotSize);
+                scratch.put(r.buffer.duplicate());
+            }
+            scratch.position(0);
+            device.write(firstBlock, scratch);
+        } else {
+            device.read(firstBlock, scratch);
+            for (Request r : batch) {
+                ByteBuffer slot = scratch.duplicate();
+                slot.position((int) (r.block - firstBlock) * slotSize);
+                slot.limit(slot.position() + slotSize);
+                r.buffer.duplicate().put(slot);
+            }
+        }
+    }
+
+    private boolean wholeSlots(List<Request> batch) {
+        for (Request r : batch) {
+            if (r.buffer.remaining() != slotSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void finish(Op op, List<Request> batch, Throwable failure) {
+        lock.lock();
+        try {
+            for (Request r : batch) {
+                if (op != Op.READ) {
+                    inFlightWrites.remove(r.block);
+                }
+                // A trim writes a metadata entry, not the slot
+                queues[r.queuedClass.ordinal()].tokens -= op == Op.TRIM
+                    ? BlockDevice.METADATA_ENTRY_SIZE : r.buffer.remaining();
+                completedRequests += 1 + r.followers.size();
+            }
+            requestDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Request r : batch) {
+            r.complete(failure);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Queue bookkeeping (caller holds lock)
+    // ------------------------------------------------------------------------
+
+    private void enqueue(Request request, IoClass ioClass) {
+        request.queuedClass = ioClass;
+        ClassQueue q = queues[ioClass.ordinal()];
+        q.arrivals.addLast(request);
+        q.pending++;
+        Metrics.QUEUE_DEPTH.record(totalPending());
+        workAvailable.signal();
+    }
+
+    private void dequeue(Request request) {
+        request.dispatched = true;
+        queues[request.queuedClass.ordinal()].pending--;
+    }
+
+    private int totalPending() {
+        int total = 0;
+        for (ClassQueue q : queues) {
+            total += q.pending;
+        }
+        return total;
+    }
+
+    private boolean hasWritesBefore(long barrier) {
+        for (Request r : pendingWrites.values()) {
+            if (r.barrierSeq < barrier) {
+                return true;
+            }
+        }
+        for (Request r : inFlightWrites.values()) {
+            if (r.barrierSeq < barrier) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closing) {
+            throw new IOException("I/O scheduler is closed");
+        }
+        if (stopped != null) {
+            throw new IOException("I/O dispatcher stopped", stopped);
+        }
+    }
+
+    /**
+     * Pending requests and token bucket of one priority class
+     */
+    private static final class ClassQueue {
+        final ArrayDeque<Request> arrivals = new ArrayDeque<>();
+        int pending;
+        long rateBytesPerSecond;
+        long burstBytes;
+        double tokens;
+        long lastRefillNanos = System.nanoTime();
+
+        void dropDispatched() {
+            while (!arrivals.isEmpty() && arrivals.peekFirst().dispatched) {
+                arrivals.pollFirst();
+            }
+        }
+
+        void refill(long now) {
+            if (rateBytesPerSecond > 0) {
+                tokens = Math.min(burstBytes,
+                    tokens + (now - lastRefillNanos) * rateBytesPerSecond / 1e9);
+            }
+            lastRefillNanos = now;
+        }
+    }
+
+    /**
+     * One queued slot read or write
+     */
+    private static final class Request {
+        final Op op;
+        final long block;
+        final ByteBuffer buffer;
+        final IoClass ioClass;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final List<Request> followers = new ArrayList<>(0);
+        IoClass queuedClass;
+        long seq;
+        long barrierSeq;
+        boolean dispatched;
+
+        Request(Op op, long block, ByteBuffer buffer, IoClass ioClass) {
+            this.op = op;
+            this.block = block;
+            this.buffer = buffer;
+            this.ioClass = ioClass;
+        }
+
+        void complete(Throwable failure) {
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+            for (Request follower : followers) {
+                follower.complete(failure);
+            }
+        }
+    }
+}
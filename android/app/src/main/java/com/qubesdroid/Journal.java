@@ -0,0 +1,355 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of file system metadata
+ *
+ * A commit first writes the full image of every dirty metadata block to
+ * a fixed region of the volume as one transaction and flushes; only then
+ * are the blocks written in place. The region's blocks are volume blocks
+ * like any other, so the log is encrypted and authenticated by the
+ * BlockEngine. On mount, valid transactions are replayed in order, which
+ * finishes any in-place write a crash interrupted.
+ *
+ * Region layout (block offsets within the region):
+ * - 0: log header
+ * - 1..n: transactions, each a descriptor block followed by its images
+ *
+ * Log header (little-endian):
+ * | Offset | Size | Field                                      |
+ * |--------|------|--------------------------------------------|
+ * | 0      | 8    | Magic "QDJOURNL"                           |
+ * | 8      | 4    | Version (1)                                |
+ * | 16     | 8    | Sequence of the first live transaction     |
+ * | 24     | 8    | Its position in the region                 |
+ *
+ * Transaction descriptor (little-endian):
+ * | Offset | Size | Field                                      |
+ * |--------|------|--------------------------------------------|
+ * | 0      | 8    | Magic "QDJTXN01"                           |
+ * | 8      | 8    | Sequence number                            |
+ * | 16     | 4    | Image count                                |
+ * | 20     | 4    | Revoke count                               |
+ * | 24     | 4    | CRC-32C of descriptor (this field 0) and   |
+ * |        |      | images                                     |
+ * | 32     | 8*n  | Home block of each image, then revoked     |
+ * |        |      | blocks                                     |
+ *
+ * Replay stops at the first transaction whose magic, sequence or
+ * checksum is wrong, i.e. at a torn or never-written commit.
+ *
+ * A metadata block that is freed and reused for file data must not be
+ * overwritten by an older image on replay. Frees of blocks that have
+ * images in the live log are recorded as revokes in the next commit;
+ * replay skips an image when a later transaction revoked its block.
+ *
+ * Transactions never wrap. When the next one does not fit, the log is
+ * checkpointed: in-place writes are flushed and the header moves the
+ * start of the live log to the next transaction at position 1.
+ */
+final class Journal implements BlockAllocator.FreeListener {
+
+    static final int MIN_BLOCKS = 4;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    // Floor for large block sizes, where MAX_BYTES is only a few blocks
+    private static final int MIN_PREFERRED_BLOCKS = 16;
+    private static final byte[] MAGIC = "QDJOURNL".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TXN_MAGIC = "QDJTXN01".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int DESCRIPTOR_HEADER = 32;
+    private static final int CRC_OFFSET = 24;
+
+    private final BlockStore store;
+    private final long start;
+    private final int length;
+    private final int blockSize;
+
+    private long nextSeq;
+    private int head;
+    // Blocks with images in the live log, and those of them freed since the last commit
+    private final Set<Long> live = new HashSet<>();
+    private final List<Long> revokes = new ArrayList<>();
+
+    private long commits;
+    private long checkpoints;
+    private long replayed;
+
+    private Journal(BlockStore store, long start, int length) {
+        this.store = store;
+        this.start = start;
+        this.length = length;
+        this.blockSize = store.blockSize();
+    }
+
+    /**
+     * Region size for a volume: up to 4 MB or 16 blocks, whichever is
+     * more, and at most 1/32 of the blocks
+     *
+     * @return Blocks, or 0 if the volume is too small for a log
+     */
+    static int blocksFor(long blockCount, int blockSize) {
+        long blocks = Math.min(Math.max(MAX_BYTES / blockSize, MIN_PREFERRED_BLOCKS), blockCount / 32);
+        return blocks < MIN_BLOCKS ? 0 : (int) blocks;
+    }
+
+    /**
+     * Initialize an empty log in [start, start + length)
+     */
+    static Journal create(BlockStore store, long start, int length) throws IOException {
+        Journal journal = new Journal(store, start, length);
+        journal.nextSeq = 1;
+        journal.head = 1;
+        journal.writeHeader();
+        store.flush();
+        return journal;
+    }
+
+    /**
+     * Open the log in [start, start + length), replaying committed
+     * transactions into their home blocks
+     */
+    static Journal open(BlockStore store, long start, int length) throws IOException {
+        Journal journal = new Journal(store, start, length);
+        journal.replay();
+        return journal;
+    }
+
+    long start() {
+        return start;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Most dirty blocks a single commit can take
+     */
+    int capacity() {
+        return Math.min(length - 2, (blockSize - DESCRIPTOR_HEADER) / 8 / 2);
+    }
+
+    long commits() {
+        return commits;
+    }
+
+    long checkpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Images written back by the replay at open
+     */
+    long replayed() {
+        return replayed;
+    }
+
+    @Override
+    public void onFree(long first, int count) {
+        if (live.isEmpty()) {
+            return;
+        }
+        if (count > live.size()) {
+            for (long b : live) {
+                if (b >= first && b < first + count) {
+                    revokes.add(b);
+                }
+            }
+        } else {
+            for (long b = first; b < first + count; b++) {
+                if (live.contains(b)) {
+                    revokes.add(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Revokes recorded so far, to undo those of a failed operation
+     */
+    int revokeMark() {
+        return revokes.size();
+    }
+
+    void rollbackRevokes(int mark) {
+        revokes.subList(mark, revokes.size()).clear();
+    }
+
+    /**
+     * Log the current contents of blocks and flush
+     *
+     * Once this returns the change is durable; the caller then writes the
+     * blocks in place (no flush needed before the next commit).
+     *
+     * @param blocks Dirty metadata blocks (ascending)
+     * @param cache Holds the contents
+     * @return false if the change is too large for the log (nothing was
+     *         logged; the caller must write in place and flush)
+     */
+    boolean commit(List<Long> blocks, MetadataCache cache) throws IOException {
+        Set<Long> logged = new HashSet<>(blocks);
+        Set<Long> revoked = new HashSet<>();
+        for (long b : revokes) {
+            if (!logged.contains(b)) {
+                revoked.add(b);
+            }
+        }
+        if (blocks.size() > capacity()) {
+            checkpoint();
+            return false;
+        }
+        if (revoked.size() > capacity()) {
+            // Checkpointing empties the live log, so nothing needs revoking
+            checkpoint();
+            revoked.clear();
+        }
+        if (head + 1 + blocks.size() > length) {
+            checkpoint();
+            revoked.clear();
+        }
+
+        byte[] descriptor = new byte[blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(descriptor).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(TXN_MAGIC);
+        buf.putLong(8, nextSeq);
+        buf.putInt(16, blocks.size());
+        buf.putInt(20, revoked.size());
+        buf.position(DESCRIPTOR_HEADER);
+        for (long b : blocks) {
+            buf.putLong(b);
+        }
+        for (long b : revoked) {
+            buf.putLong(b);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(descriptor);
+        for (long b : blocks) {
+            crc.update(cache.peek(b));
+        }
+        buf.putInt(CRC_OFFSET, (int) crc.getValue());
+
+        store.writeBlock(start + head, descriptor, IoScheduler.IoClass.INTERACTIVE);
+        for (int i = 0; i < blocks.size(); i++) {
+            store.writeBlock(start + head + 1 + i, cache.peek(blocks.get(i)), IoScheduler.IoClass.INTERACTIVE);
+        }
+        store.flush();
+
+        live.addAll(blocks);
+        live.removeAll(revoked);
+        revokes.clear();
+        head += 1 + blocks.size();
+        nextSeq++;
+        commits++;
+        return true;
+    }
+
+    /**
+     * Make every in-place write durable and empty the live log
+     */
+    void checkpoint() throws IOException {
+        store.flush();
+        head = 1;
+        writeHeader();
+        store.flush();
+        live.clear();
+        revokes.clear();
+        checkpoints++;
+    }
+
+    private void replay() throws IOException {
+        byte[] header = new byte[blockSize];
+        store.readBlock(start, header, IoScheduler.IoClass.INTERACTIVE);
+        ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) || hb.getInt(8) != VERSION) {
+            throw new IOException("Metadata journal header is damaged");
+        }
+        long seq = hb.getLong(16);
+        int pos = (int) hb.getLong(24);
+
+        // Pass 1: find the committed transactions and the latest revoke of each block
+        List<long[]> txns = new ArrayList<>();
+        Map<Long, Long> revokedAt = new HashMap<>();
+        byte[] descriptor = new byte[blockSize];
+        byte[] image = new byte[blockSize];
+        while (pos >= 1 && pos < length) {
+            store.readBlock(start + pos, descriptor, IoScheduler.IoClass.INTERACTIVE);
+            ByteBuffer buf = ByteBuffer.wrap(descriptor).order(ByteOrder.LITTLE_ENDIAN);
+            if (!Arrays.equals(Arrays.copyOf(descriptor, TXN_MAGIC.length), TXN_MAGIC)
+                    || buf.getLong(8) != seq) {
+                break;
+            }
+            int count = buf.getInt(16);
+            int revokeCount = buf.getInt(20);
+            if (count < 0 || revokeCount < 0 || pos + 1 + count > length
+                    || DESCRIPTOR_HEADER + 8L * (count + revokeCount) > blockSize) {
+                break;
+            }
+            int stored = buf.getInt(CRC_OFFSET);
+            buf.putInt(CRC_OFFSET, 0);
+            CRC32C crc = new CRC32C();
+            crc.update(descriptor);
+            for (int i = 0; i < count; i++) {
+                store.readBlock(start + pos + 1 + i, image, IoScheduler.IoClass.INTERACTIVE);
+                crc.update(image);
+            }
+            if ((int) crc.getValue() != stored) {
+                break;
+            }
+            long[] txn = new long[2 + count];
+            txn[0] = seq;
+            txn[1] = pos;
+            for (int i = 0; i < count; i++) {
+                txn[2 + i] = buf.getLong(DESCRIPTOR_HEADER + 8 * i);
+            }
+            for (int i = 0; i < revokeCount; i++) {
+                revokedAt.put(buf.getLong(DESCRIPTOR_HEADER + 8 * (count + i)), seq);
+            }
+            txns.add(txn);
+            pos += 1 + count;
+            seq++;
+        }
+
+        // Pass 2: write the images home in commit order
+        for (long[] txn : txns) {
+            for (int i = 2; i < txn.length; i++) {
+                Long revoked = revokedAt.get(txn[i]);
+                if (revoked != null && revoked > txn[0]) {
+                    continue;
+                }
+                store.readBlock(start + txn[1] + i - 1, image, IoScheduler.IoClass.INTERACTIVE);
+                store.writeBlock(txn[i], image, IoScheduler.IoClass.INTERACTIVE);
+                replayed++;
+            }
+        }
+        Arrays.fill(image, (byte) 0);
+
+        nextSeq = seq;
+        if (txns.isEmpty() && pos == (int) hb.getLong(24)) {
+            head = pos;
+        } else {
+            checkpoint();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] header = new byte[blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC);
+        buf.putInt(8, VERSION);
+        buf.putLong(16, nextSeq);
+        buf.putLong(24, head);
+        store.writeBlock(start, header, IoScheduler.IoClass.INTERACTIVE);
+    }
+}
@@ -0,0 +1,81 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opaque reference to key material kept off the Java heap
+ *
+ * On the device the material lives in the native KeyVault: mlock'd
+ * pages between guard pages, left out of core dumps and wiped when the
+ * key is destroyed. Java code passes only the handle around; every call
+ * that needs the key takes the handle and looks the key up natively, so
+ * the key is never copied into a Java array or marshalled through JNI.
+ *
+ * Whoever creates a handle owns it and destroys the key with close().
+ * A component that keeps a key past the call handing it over takes a
+ * copy() of its own, as it would clone a key array. A destroyed handle
+ * has id 0, which no store knows: an operation racing close() fails
+ * like one under a wrong key.
+ */
+final class KeyHandle implements Closeable {
+
+    /**
+     * Holder of the key material behind handles: KeyVault on the device
+     */
+    interface Store {
+        /**
+         * Copy of the key behind id, or 0 if there is none
+         */
+        long copy(long id);
+
+        /**
+         * Wipe and free the key behind id; unknown ids are ignored
+         */
+        void destroy(long id);
+    }
+
+    private final Store store;
+    private final AtomicLong id;
+
+    KeyHandle(Store store, long id) {
+        if (id == 0) {
+            throw new IllegalArgumentException("No key behind handle 0");
+        }
+        this.store = store;
+        this.id = new AtomicLong(id);
+    }
+
+    /**
+     * Id of the key in its store, 0 once destroyed
+     */
+    long id() {
+        return id.get();
+    }
+
+    boolean isDestroyed() {
+        return id.get() == 0;
+    }
+
+    /**
+     * Handle of a copy of the key, destroyed independently of this one
+     */
+    KeyHandle copy() {
+        long copy = store.copy(id.get());
+        if (copy == 0) {
+            throw new IllegalStateException("Key cannot be copied (destroyed, or the vault is full)");
+        }
+        return new KeyHandle(store, copy);
+    }
+
+    /**
+     * Destroy the key; later calls do nothing
+     */
+    @Override
+    public void close() {
+        long old = id.getAndSet(0);
+        if (old != 0) {
+            store.destroy(old);
+        }
+    }
+}
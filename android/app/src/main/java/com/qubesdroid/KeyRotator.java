@@ -0,0 +1,435 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replaces the master key of a mounted volume by re-encrypting every
+ * block in place, while the volume stays in use
+ *
+ * begin() wraps a fresh key under the password (with a new salt), records
+ * it in the header next to the current one and switches the BlockEngine
+ * to sealing every write under it. rotate() then works through the
+ * blocks in order:
+ * 1. Runs of batchBlocks consecutive slots are read as BACKGROUND work,
+ *    which the IoScheduler serves only when nothing else waits and caps
+ *    to bytesPerSecond, so the device stays usable
+ * 2. A worker pool re-seals the blocks of each run under the next key
+ *    (compressed blocks are re-encrypted, not recompressed)
+ * 3. Runs are written back in order and retired, advancing the engine's
+ *    rekeyed() pointer; reads pick the key generation by that pointer
+ *
+ * Progress is saved in the header every few seconds and when the rotation
+ * stops, after flushing what it covers, so a rotation that is paused or
+ * killed resumes there on the next mount (MountVolumeActivity unwraps
+ * both keys while one is in progress). Once every block is under the next
+ * key, it replaces the current key in the header, in a single write of
+ * the salt, wrapped key, key generation and rotation state, and the
+ * integrity tree's root MAC is checkpointed under it right after. A crash
+ * between the two leaves a MAC the next mount cannot check, and so
+ * refuses until the user accepts the volume (see IntegrityTree).
+ *
+ * The ML-KEM key file is wrapped under the next key when the rotation
+ * begins and takes the place of the current one right after the header
+ * commit (see SecretKeyFile).
+ *
+ * Only v2 volumes have room for the rotation record (upgrade v1 first).
+ *
+ * Header fields (little-endian, v2 header padding):
+ * | Offset | Size | Field                                            |
+ * |--------|------|--------------------------------------------------|
+ * | 1712   | 4    | Key generation: rotations completed              |
+ * | 1716   | 4    | Rotation state: 0 none, 1 in progress            |
+ * | 1720   | 8    | Rotation progress: blocks below are re-keyed     |
+ * | 1728   | 16   | Salt of the next key                             |
+ * | 1744   | 48   | Next master key, encrypted like the current one  |
+ */
+final class KeyRotator implements Closeable {
+
+    static final int SALT_OFFSET = VolumeHeader.SALT_OFFSET;
+    static final int SALT_SIZE = VolumeHeader.SALT_SIZE;
+    static final int MASTER_KEY_OFFSET = VolumeHeader.MASTER_KEY_OFFSET;
+    static final int WRAPPED_KEY_SIZE = VolumeHeader.WRAPPED_KEY_SIZE;
+    static final int KEY_GENERATION_OFFSET = VolumeHeader.KEY_GENERATION_OFFSET;
+    static final int ROTATION_STATE_OFFSET = VolumeHeader.ROTATION_STATE_OFFSET;
+    static final int ROTATION_PROGRESS_OFFSET = VolumeHeader.ROTATION_PROGRESS_OFFSET;
+    static final int NEXT_SALT_OFFSET = VolumeHeader.NEXT_SALT_OFFSET;
+    static final int NEXT_KEY_OFFSET = VolumeHeader.NEXT_KEY_OFFSET;
+    static final int ROTATION_END = NEXT_KEY_OFFSET + WRAPPED_KEY_SIZE;
+
+    static final int STATE_NONE = VolumeHeader.ROTATION_NONE;
+    static final int STATE_ROTATING = VolumeHeader.ROTATION_IN_PROGRESS;
+
+    static final long CHECKPOINT_INTERVAL_NANOS = 5_000_000_000L;
+    /**
+     * BACKGROUND I/O cap while rotating (reads and write-backs together)
+     */
+    static final long DEFAULT_BYTES_PER_SECOND = 32L << 20;
+
+    /**
+     * Progress callback, invoked on the rotating thread
+     */
+    interface Listener {
+        /**
+         * @param blocksDone Blocks under the next key, including earlier runs
+         * @param blockCount Blocks in the volume
+         * @param bytesPerSecond Sealed bytes re-keyed per second in this run
+         */
+        void onProgress(long blocksDone, long blockCount, double bytesPerSecond);
+    }
+
+    /**
+     * Outcome of a rotation that ran to the end
+     */
+    static final class Result {
+        final long blocksDone;
+        final long blocksResealed;
+        final long nanos;
+        final long bytes;
+
+        Result(long blocksDone, long blocksResealed, long nanos, long bytes) {
+            this.blocksDone = blocksDone;
+            this.blocksResealed = blocksResealed;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+    }
+
+    private final BlockEngine engine;
+    private final int batchBlocks;
+    private final int windowBatches;
+    private final long bytesPerSecond;
+    private final ExecutorService workers;
+
+    /**
+     * @param workerCount Re-sealing threads
+     * @param batchBlocks Consecutive blocks per read run
+     * @param windowBatches Runs in flight at once
+     * @param bytesPerSecond Cap on BACKGROUND I/O while rotating (0 for none)
+     */
+    KeyRotator(BlockEngine engine, int workerCount, int batchBlocks, int windowBatches, long bytesPerSecond) {
+        this.engine = engine;
+        this.batchBlocks = batchBlocks;
+        this.windowBatches = windowBatches;
+        this.bytesPerSecond = bytesPerSecond;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "qubesdroid-rekey");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Rotator sized for the device: one worker per core, runs of one
+     * scheduler merge, two runs in flight per worker, default I/O cap
+     */
+    static KeyRotator forDevice(BlockEngine engine) {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return new KeyRotator(engine, workers, IoScheduler.mergeBlocks(engine.blockSize()), workers * 2,
+            DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Start a rotation to a fresh random key, wrapped under password
+     *
+     * No block is touched until rotate().
+     *
+     * @throws IOException if password does not unwrap the current key, or
+     *                     the volume cannot take a rotation
+     */
+    static void begin(BlockEngine engine, CryptoNative crypto, String password) throws IOException {
+        BlockDevice device = engine.scheduler().device();
+        // Before the key file of a rotation in progress could be replaced
+        checkCanBegin(engine);
+        VolumeHeader header = VolumeHeader.of(readRecord(device));
+        KeyVault vault = new KeyVault(crypto);
+        // Zero nonce: each password-derived key (its own salt) encrypts
+        // exactly one key
+        byte[] nonce = new byte[12];
+        KeyHandle current;
+        try (KeyHandle passwordDerivedKey = vault.derive(password, header.copySalt())) {
+            current = vault.unwrap(header.copyWrappedKey(), passwordDerivedKey, nonce);
+        }
+        if (current == null) {
+            throw new IOException("Incorrect password");
+        }
+
+        byte[] nextSalt = CryptoNative.generateSalt();
+        try (KeyHandle currentKey = current;
+             KeyHandle nextKey = vault.generate(KeyVault.KEY_SIZE);
+             KeyHandle nextDerivedKey = vault.derive(password, nextSalt)) {
+            SecretKeyFile.prepareRotation(device.file(), vault, currentKey, nextKey);
+            begin(engine, nextKey, nextSalt, vault.wrap(nextKey, nextDerivedKey, nonce));
+        }
+    }
+
+    /**
+     * Start a rotation to nextKey, recording its wrapped form in the
+     * header before any block is sealed under it
+     *
+     * The volume's key file must be wrapped under nextKey already (see
+     * SecretKeyFile.prepareRotation()).
+     *
+     * @param nextKey Next master key (copied by the engine)
+     * @param nextSalt Salt of the password-derived key wrapping nextKey
+     * @param wrappedNextKey nextKey encrypted like the current key (48 bytes)
+     */
+    static void begin(BlockEngine engine, KeyHandle nextKey, byte[] nextSalt, byte[] wrappedNextKey)
+            throws IOException {
+        BlockDevice device = engine.scheduler().device();
+        checkCanBegin(engine);
+        if (nextSalt.length < SALT_SIZE || wrappedNextKey.length != WRAPPED_KEY_SIZE) {
+            throw new IllegalArgumentException("Salt of " + nextSalt.length + " bytes, wrapped key of "
+                + wrappedNextKey.length + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(ROTATION_END - ROTATION_STATE_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(STATE_ROTATING);
+        record.putLong(0);
+        record.put(nextSalt, 0, SALT_SIZE);
+        record.put(wrappedNextKey);
+        record.flip();
+        device.writeAt(ROTATION_STATE_OFFSET, record);
+        device.force();
+        engine.beginKeyRotation(nextKey, 0);
+    }
+
+    private static void checkCanBegin(BlockEngine engine) throws IOException {
+        BlockDevice device = engine.scheduler().device();
+        if (!device.isAligned()) {
+            throw new IOException("Key rotation needs the v2 volume layout; upgrade the volume first");
+        }
+        if (device.isReadOnly()) {
+            throw new IOException("Volume is read-only");
+        }
+        if (engine.isRotatingKey() || savedProgress(device) >= 0) {
+            throw new IOException("A key rotation is already in progress");
+        }
+    }
+
+    /**
+     * Saved progress of the rotation in progress on device, or -1 if there
+     * is none
+     */
+    static long savedProgress(BlockDevice device) throws IOException {
+        if (!device.isAligned()) {
+            return -1;
+        }
+        VolumeHeader header = VolumeHeader.of(readRecord(device));
+        if (!header.isRotatingKey()) {
+            return -1;
+        }
+        long progress = header.rotationProgress();
+        if (progress < 0 || progress > device.blockCount()) {
+            throw new IOException("Key rotation progress " + progress + " outside the volume");
+        }
+        return progress;
+    }
+
+    /**
+     * Re-key every block from engine.rekeyed() to the end, then make the
+     * next key the current one
+     *
+     * @param cancel Set to pause; progress so far is saved
+     * @throws CancellationException if paused
+     * @throws IOException if a block cannot be read or fails
+     *                     authentication under both keys
+     */
+    Result rotate(Listener listener, AtomicBoolean cancel) throws IOException {
+        if (!engine.isRotatingKey()) {
+            throw new IllegalStateException("No key rotation in progress");
+        }
+        IoScheduler scheduler = engine.scheduler();
+        long start = System.nanoTime();
+        long first = engine.rekeyed();
+        long end = engine.blockCount();
+        int sealedSize = engine.sealedSize();
+        if (bytesPerSecond > 0) {
+            scheduler.setThroughputCap(IoScheduler.IoClass.BACKGROUND, bytesPerSecond);
+        }
+
+        ArrayDeque<Batch> free = new ArrayDeque<>();
+        for (int i = 0; i < windowBatches; i++) {
+            free.add(new Batch(batchBlocks, sealedSize));
+        }
+        ArrayDeque<CompletableFuture<Batch>> window = new ArrayDeque<>();
+        ArrayDeque<CompletableFuture<Void>> writes = new ArrayDeque<>();
+        long issued = first;
+        long resealed = 0;
+        long lastProgress = start;
+        long lastSave = start;
+        try {
+            while (engine.rekeyed() < end) {
+                while (issued < end && !free.isEmpty()) {
+                    Batch batch = free.pollFirst();
+                    batch.first = issued;
+                    batch.count = (int) Math.min(batchBlocks, end - issued);
+                    engine.extendRekeyWindow(issued + batch.count);
+                    window.addLast(rekey(batch));
+                    issued += batch.count;
+                }
+                if (cancel != null && cancel.get()) {
+                    throw new CancellationException("Key rotation paused");
+                }
+                Batch batch = IoScheduler.await(window.pollFirst());
+                for (int i = 0; i < batch.count; i++) {
+                    if (batch.resealed[i] != null) {
+                        writes.addLast(engine.writeRekeyed(batch.first + i, batch.resealed[i],
+                            IoScheduler.IoClass.BACKGROUND));
+                        batch.resealed[i] = null;
+                        resealed++;
+                    }
+                }
+                engine.retireRekeyed(batch.first + batch.count);
+                free.addLast(batch);
+                while (!writes.isEmpty() && writes.peekFirst().isDone()) {
+                    IoScheduler.await(writes.pollFirst());
+                }
+
+                long now = System.nanoTime();
+                if (now - lastSave >= CHECKPOINT_INTERVAL_NANOS) {
+                    lastSave = now;
+                    saveProgress(writes);
+                }
+                if (listener != null && now - lastProgress >= Transfer.PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    listener.onProgress(engine.rekeyed(), end,
+                        (engine.rekeyed() - first) * sealedSize * 1e9 / Math.max(1, now - start));
+                }
+            }
+            drain(writes);
+            engine.flush();
+            commit();
+            long nanos = System.nanoTime() - start;
+            if (listener != null) {
+                listener.onProgress(end, end, (end - first) * sealedSize * 1e9 / Math.max(1, nanos));
+            }
+            return new Result(end - first, resealed, nanos, (end - first) * sealedSize);
+        } finally {
+            // Let in-flight runs land before their buffers go
+            for (CompletableFuture<Batch> pending : window) {
+                try {
+                    pending.join();
+                } catch (RuntimeException ignored) {
+                    // failure already reported or superseded
+                }
+            }
+            if (bytesPerSecond > 0) {
+                scheduler.setThroughputCap(IoScheduler.IoClass.BACKGROUND, 0);
+            }
+            if (engine.isRotatingKey()) {
+                saveProgress(writes);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * Read the blocks of batch, then re-seal each one on a worker
+     */
+    private CompletableFuture<Batch> rekey(Batch batch) {
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[batch.count];
+        for (int i = 0; i < batch.count; i++) {
+            reads[i] = engine.readSealed(batch.first + i, batch.sealed[i], IoScheduler.IoClass.BACKGROUND);
+        }
+        return CompletableFuture.allOf(reads).thenApplyAsync(ignored -> {
+            try {
+                for (int i = 0; i < batch.count; i++) {
+                    batch.resealed[i] = engine.rekey(batch.first + i, batch.sealed[i]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return batch;
+        }, workers);
+    }
+
+    /**
+     * Save engine.rekeyed() in the header once the write-backs below it
+     * are flushed
+     */
+    private void saveProgress(ArrayDeque<CompletableFuture<Void>> writes) throws IOException {
+        long done = engine.rekeyed();
+        drain(writes);
+        engine.flush();
+        ByteBuffer progress = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, done);
+        BlockDevice device = engine.scheduler().device();
+        device.writeAt(ROTATION_PROGRESS_OFFSET, progress);
+        device.force();
+    }
+
+    private static void drain(ArrayDeque<CompletableFuture<Void>> writes) throws IOException {
+        while (!writes.isEmpty()) {
+            IoScheduler.await(writes.pollFirst());
+        }
+    }
+
+    /**
+     * Replace the current key with the next one in the header, then in
+     * the key file and the engine
+     *
+     * The salt, wrapped key, key generation and state are rewritten in one
+     * write within a sector, so a crash leaves either the rotation, which
+     * the next mount resumes and finishes, or its result.
+     */
+    private void commit() throws IOException {
+        BlockDevice device = engine.scheduler().device();
+        ByteBuffer header = readRecord(device);
+        ByteBuffer update = ByteBuffer.allocate(ROTATION_PROGRESS_OFFSET - SALT_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        update.put(header.array(), SALT_OFFSET, update.capacity());
+        update.position(0);
+        update.put(header.array(), NEXT_SALT_OFFSET, SALT_SIZE);
+        update.position(MASTER_KEY_OFFSET - SALT_OFFSET);
+        update.put(header.array(), NEXT_KEY_OFFSET, WRAPPED_KEY_SIZE);
+        update.putInt(KEY_GENERATION_OFFSET - SALT_OFFSET, header.getInt(KEY_GENERATION_OFFSET) + 1);
+        update.putInt(ROTATION_STATE_OFFSET - SALT_OFFSET, STATE_NONE);
+        update.clear();
+        device.writeAt(SALT_OFFSET, update);
+        device.force();
+        SecretKeyFile.commitRotation(device.file());
+        engine.finishKeyRotation();
+        // Checkpoint the integrity root MAC under the new key
+        engine.flush();
+
+        // The next key fields now only repeat the current ones
+        device.writeAt(ROTATION_PROGRESS_OFFSET, ByteBuffer.allocate(ROTATION_END - ROTATION_PROGRESS_OFFSET));
+        device.force();
+    }
+
+    private static ByteBuffer readRecord(BlockDevice device) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ROTATION_END).order(ByteOrder.LITTLE_ENDIAN);
+        if (device.dataOffset() < ROTATION_END || !device.readAt(0, header)) {
+            throw new IOException("Volume header has no room for a key rotation");
+        }
+        return header;
+    }
+
+    private static final class Batch {
+        final byte[][] sealed;
+        final byte[][] resealed;
+        long first;
+        int count;
+
+        Batch(int blocks, int sealedSize) {
+            this.sealed = new byte[blocks][sealedSize];
+            this.resealed = new byte[blocks][];
+        }
+    }
+}
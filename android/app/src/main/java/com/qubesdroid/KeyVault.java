@@ -0,0 +1,130 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+
+/**
+ * Native key vault: where the keys of a volume are made, used and
+ * destroyed, by KeyHandle
+ *
+ * The vault (key_vault.c) is one arena of mlock'd pages between two
+ * PROT_NONE guard pages, excluded from core dumps and from forked
+ * processes, and read-only except while a key is stored or wiped. Key
+ * material enters it where it is made and leaves it only wrapped:
+ *
+ * | Key                 | Made by                     | Leaves as           |
+ * |---------------------|-----------------------------|---------------------|
+ * | Password-derived    | derive() (Argon2id)         | -                   |
+ * | Master, next master | generate(), unwrap()        | wrap() under PDK    |
+ * | Integrity root key  | subkey() of the master key  | -                   |
+ * | ML-KEM secret key   | mlkemKeypair()              | SecretKeyFile       |
+ *
+ * The block engine and the integrity tree seal and MAC through
+ * CryptoNative's handle variants, which take no key array.
+ */
+final class KeyVault implements KeyHandle.Store, SecretKeyFile.Wrapper {
+
+    static final int KEY_SIZE = 32;
+    static final int MLKEM_PUBLIC_KEY_SIZE = 1568;
+
+    private final CryptoNative crypto;
+
+    KeyVault(CryptoNative crypto) {
+        this.crypto = crypto;
+    }
+
+    /**
+     * Fresh random key of length bytes
+     */
+    KeyHandle generate(int length) throws IOException {
+        return handle(crypto.vaultGenerateKey(length), "Key generation failed");
+    }
+
+    /**
+     * 32-byte key from password and a 16-byte salt (Argon2id)
+     */
+    KeyHandle derive(String password, byte[] salt) throws IOException {
+        long span = Tracer.begin(Tracer.Span.KEY_DERIVATION);
+        long id;
+        try {
+            id = crypto.vaultDeriveKey(password, salt);
+        } finally {
+            Tracer.end(Tracer.Span.KEY_DERIVATION, span);
+        }
+        Metrics.ARGON2.recordSince(span);
+        return handle(id, "Key derivation failed");
+    }
+
+    /**
+     * 32-byte key derived from key for one purpose, named by label
+     * (keyed BLAKE2s)
+     */
+    KeyHandle subkey(KeyHandle key, byte[] label) throws IOException {
+        return handle(crypto.vaultDeriveSubkey(key.id(), label), "Subkey derivation failed");
+    }
+
+    /**
+     * key encrypted under kek (ChaCha20-Poly1305, no AAD)
+     *
+     * @return Ciphertext with the 16-byte tag appended
+     */
+    @Override
+    public byte[] wrap(KeyHandle key, KeyHandle kek, byte[] nonce) throws IOException {
+        byte[] wrapped = crypto.vaultWrapKey(key.id(), kek.id(), nonce);
+        if (wrapped == null) {
+            throw new IOException("Key wrap failed");
+        }
+        return wrapped;
+    }
+
+    /**
+     * Inverse of wrap()
+     *
+     * @return The key, or null if wrapped does not authenticate under kek
+     *         (a wrong password)
+     */
+    @Override
+    public KeyHandle unwrap(byte[] wrapped, KeyHandle kek, byte[] nonce) {
+        long span = Tracer.begin(Tracer.Span.KEY_UNWRAP);
+        long id;
+        try {
+            id = crypto.vaultUnwrapKey(wrapped, kek.id(), nonce);
+        } finally {
+            Tracer.end(Tracer.Span.KEY_UNWRAP, span);
+        }
+        return id != 0 ? new KeyHandle(this, id) : null;
+    }
+
+    /**
+     * ML-KEM-1024 keypair
+     *
+     * @param publicKey Receives the public key (MLKEM_PUBLIC_KEY_SIZE bytes)
+     * @return The secret key
+     */
+    KeyHandle mlkemKeypair(byte[] publicKey) throws IOException {
+        return handle(crypto.vaultMlkemKeypair(publicKey), "ML-KEM keypair generation failed");
+    }
+
+    /**
+     * Shared secret of an ML-KEM ciphertext under secretKey
+     */
+    KeyHandle mlkemDecapsulate(byte[] ciphertext, KeyHandle secretKey) throws IOException {
+        return handle(crypto.vaultMlkemDecapsulate(ciphertext, secretKey.id()), "ML-KEM decapsulation failed");
+    }
+
+    @Override
+    public long copy(long id) {
+        return crypto.vaultCopyKey(id);
+    }
+
+    @Override
+    public void destroy(long id) {
+        crypto.vaultDestroyKey(id);
+    }
+
+    private KeyHandle handle(long id, String failure) throws IOException {
+        if (id == 0) {
+            throw new IOException(failure);
+        }
+        return new KeyHandle(this, id);
+    }
+}
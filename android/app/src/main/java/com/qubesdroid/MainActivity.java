@@ -16,13 +16,15 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 
-import java.io.File;
+import java.util.List;
 
 /**
  * QubesDroid - Post-Quantum Encrypted Volume Manager
@@ -37,13 +39,15 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSION_REQUEST_CODE = 100;
 
-    private CryptoNative crypto;
     private MaterialToolbar toolbar;
     private TextView versionText;
     private MaterialButton createVolumeButton;
     private MaterialButton mountVolumeButton;
     private MaterialCardView recentVolumesCard;
     private ExtendedFloatingActionButton fab;
+    private VolumeCatalog catalog;
+    private VolumeListAdapter volumeAdapter;
+    private final VolumeCatalog.Listener volumesListener = this::onVolumesChanged;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,22 +64,27 @@ public class MainActivity extends AppCompatActivity {
         recentVolumesCard = findViewById(R.id.recentVolumesCard);
         fab = findViewById(R.id.fab);
 
-        // Initialize crypto native library with error handling
-        String cryptoVersion = "Crypto library not available";
-        try {
-            crypto = new CryptoNative();
-            cryptoVersion = crypto.getVersionInfo();
-            android.util.Log.i("QubesDroid", "Crypto library loaded successfully");
-        } catch (UnsatisfiedLinkError e) {
-            android.util.Log.e("QubesDroid", "Failed to load native library", e);
-            cryptoVersion = "Native library error: " + e.getMessage();
-        } catch (Exception e) {
-            android.util.Log.e("QubesDroid", "Unexpected error initializing crypto", e);
-            cryptoVersion = "Initialization error: " + e.getMessage();
-        }
-
-        // Display version info
-        versionText.setText("QubesDroid v1.0.0-alpha\n" + cryptoVersion);
+        // Known volumes, from the catalog (loaded and kept current off the main thread)
+        catalog = VolumeCatalog.forApp(this);
+        volumeAdapter = new VolumeListAdapter(volume -> {
+            if (checkPermissions()) {
+                startActivity(new Intent(this, MountVolumeActivity.class)
+                    .putExtra(MountVolumeActivity.EXTRA_VOLUME_PATH, volume.file.getPath()));
+            }
+        });
+        RecyclerView volumesRecyclerView = findViewById(R.id.volumesRecyclerView);
+        volumesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        volumesRecyclerView.setAdapter(volumeAdapter);
+
+        // The crypto library loads in the background (CryptoRuntime); show
+        // its version once it is ready
+        versionText.setText("QubesDroid v1.0.0-alpha\nLoading crypto library...");
+        CryptoRuntime.preload().whenComplete((crypto, error) -> {
+            String cryptoVersion = error == null
+                ? crypto.getVersionInfo()
+                : "Native library error: " + error.getMessage();
+            runOnUiThread(() -> versionText.setText("QubesDroid v1.0.0-alpha\n" + cryptoVersion));
+        });
 
         // Set up button listeners
         createVolumeButton.setOnClickListener(v -> {
@@ -98,27 +107,35 @@ public class MainActivity extends AppCompatActivity {
 
         // Check permissions on startup
         checkPermissions();
+    }
 
-        // Load recent volumes if any exist
-        loadRecentVolumes();
+    @Override
+    protected void onStart() {
+        super.onStart();
+        catalog.addListener(volumesListener);
+    }
+
+    @Override
+    protected void onStop() {
+        catalog.removeListener(volumesListener);
+        super.onStop();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        // Reload recent volumes when returning to activity
-        loadRecentVolumes();
+        // Catch up with changes the observers cannot see (e.g. a storage location mounted meanwhile)
+        catalog.rescan();
     }
 
-    private void loadRecentVolumes() {
-        File volumesDir = new File(getExternalFilesDir(null), "volumes");
-        if (volumesDir.exists() && volumesDir.listFiles() != null) {
-            File[] volumes = volumesDir.listFiles((dir, name) -> name.endsWith(".qd"));
-            if (volumes != null && volumes.length > 0) {
-                recentVolumesCard.setVisibility(android.view.View.VISIBLE);
-                // In a full implementation, we would populate the RecyclerView here
-            }
-        }
+    /**
+     * Catalog listener, on the catalog thread
+     */
+    private void onVolumesChanged(List<VolumeCatalog.Entry> volumes) {
+        runOnUiThread(() -> {
+            volumeAdapter.setVolumes(volumes);
+            recentVolumesCard.setVisibility(volumes.isEmpty() ? android.view.View.GONE : android.view.View.VISIBLE);
+        });
     }
 
     @Override
@@ -194,7 +211,7 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == PERMISSION_REQUEST_CODE) {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 Toast.makeText(this, "Permissions granted", Toast.LENGTH_SHORT).show();
-                loadRecentVolumes();
+                catalog.rescan();
             } else {
                 Toast.makeText(this,
                     "Storage permission is required for QubesDroid to function",
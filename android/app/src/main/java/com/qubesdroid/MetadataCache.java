@@ -0,0 +1,252 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-back cache of file system metadata blocks
+ *
+ * Holds superblock, bitmap, inode table, extent and directory blocks as
+ * plaintext arrays. Callers modify the returned arrays in place and mark
+ * them dirty; dirty blocks are never evicted and only reach the
+ * BlockStore on writeBack(), so one file system operation is written out
+ * as a unit. Clean blocks are evicted in LRU order above capacity.
+ *
+ * While a savepoint is open, the first change to each block saves its
+ * prior state, so rollbackToSavepoint() can undo one operation without
+ * losing dirty blocks of earlier ones (group commit).
+ *
+ * Not thread-safe: VolumeFileSystem serializes access.
+ */
+final class MetadataCache {
+
+    private final BlockStore store;
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> blocks = new LinkedHashMap<>(64, 0.75f, true);
+    // Prior state of blocks changed since savepoint(); null value = was not cached
+    private Map<Long, Entry> undo;
+
+    private long hits;
+    private long misses;
+
+    MetadataCache(BlockStore store, int capacity) {
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    BlockStore store() {
+        return store;
+    }
+
+    /**
+     * Cached contents of a block, read from the store on a miss
+     *
+     * The returned array is live: call markDirty() after modifying it.
+     */
+    byte[] get(long index) throws IOException {
+        Entry entry = blocks.get(index);
+        if (entry != null) {
+            hits++;
+            Metrics.CACHE_HITS.increment();
+            return entry.data;
+        }
+        misses++;
+        Metrics.CACHE_MISSES.increment();
+        byte[] data = new byte[store.blockSize()];
+        long span = Tracer.begin(Tracer.Span.CACHE_MISS);
+        try {
+            store.readBlock(index, data, IoScheduler.IoClass.INTERACTIVE);
+        } finally {
+            Tracer.end(Tracer.Span.CACHE_MISS, span, index);
+        }
+        blocks.put(index, new Entry(data));
+        evict();
+        return data;
+    }
+
+    /**
+     * get() followed by markDirty()
+     */
+    byte[] getForWrite(long index) throws IOException {
+        byte[] data = get(index);
+        markDirty(index);
+        return data;
+    }
+
+    /**
+     * Zero-filled dirty block for a freshly allocated index (no read)
+     */
+    byte[] create(long index) {
+        save(index);
+        byte[] data = new byte[store.blockSize()];
+        Entry entry = new Entry(data);
+        entry.dirty = true;
+        blocks.put(index, entry);
+        return data;
+    }
+
+    void markDirty(long index) {
+        Entry entry = blocks.get(index);
+        if (entry == null) {
+            throw new IllegalStateException("Block " + index + " is not cached");
+        }
+        save(index);
+        entry.dirty = true;
+    }
+
+    /**
+     * Keep a block resident regardless of capacity
+     */
+    void pin(long index) throws IOException {
+        get(index);
+        blocks.get(index).pinned = true;
+    }
+
+    /**
+     * Drop a freed block without writing it
+     */
+    void forget(long index) {
+        save(index);
+        blocks.remove(index);
+    }
+
+    boolean isDirty(long index) {
+        Entry entry = blocks.get(index);
+        return entry != null && entry.dirty;
+    }
+
+    /**
+     * Indices of dirty blocks in ascending order
+     */
+    List<Long> dirtyBlocks() {
+        List<Long> dirty = new ArrayList<>();
+        for (Map.Entry<Long, Entry> e : blocks.entrySet()) {
+            if (e.getValue().dirty) {
+                dirty.add(e.getKey());
+            }
+        }
+        Collections.sort(dirty);
+        return dirty;
+    }
+
+    int dirtyCount() {
+        int count = 0;
+        for (Entry entry : blocks.values()) {
+            if (entry.dirty) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Contents of a cached block without touching LRU order or counters
+     */
+    byte[] peek(long index) {
+        Entry entry = blocks.get(index);
+        return entry == null ? null : entry.data;
+    }
+
+    /**
+     * Write every dirty block to the store and mark it clean
+     */
+    void writeBack() throws IOException {
+        for (long index : dirtyBlocks()) {
+            Entry entry = blocks.get(index);
+            store.writeBlock(index, entry.data, IoScheduler.IoClass.INTERACTIVE);
+            entry.dirty = false;
+        }
+        evict();
+    }
+
+    /**
+     * Drop every dirty block, abandoning uncommitted changes
+     */
+    void discardDirty() {
+        blocks.values().removeIf(entry -> entry.dirty);
+    }
+
+    /**
+     * Start recording prior block states (replaces any open savepoint)
+     */
+    void savepoint() {
+        undo = new HashMap<>();
+    }
+
+    /**
+     * Keep the changes made since savepoint() and stop recording
+     */
+    void releaseSavepoint() {
+        undo = null;
+    }
+
+    /**
+     * Undo every change made since savepoint() and stop recording
+     */
+    void rollbackToSavepoint() {
+        if (undo == null) {
+            return;
+        }
+        for (Map.Entry<Long, Entry> e : undo.entrySet()) {
+            if (e.getValue() == null) {
+                blocks.remove(e.getKey());
+            } else {
+                blocks.put(e.getKey(), e.getValue());
+            }
+        }
+        undo = null;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    private void save(long index) {
+        if (undo == null || undo.containsKey(index)) {
+            return;
+        }
+        Entry entry = blocks.get(index);
+        Entry copy = null;
+        if (entry != null) {
+            copy = new Entry(entry.data.clone());
+            copy.dirty = entry.dirty;
+            copy.pinned = entry.pinned;
+        }
+        undo.put(index, copy);
+    }
+
+    private void evict() {
+        if (blocks.size() <= capacity) {
+            return;
+        }
+        // Never evict the most recently used block; the caller may be holding it
+        Iterator<Entry> it = blocks.values().iterator();
+        int candidates = blocks.size() - 1;
+        while (blocks.size() > capacity && candidates-- > 0) {
+            Entry entry = it.next();
+            if (!entry.dirty && !entry.pinned) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final byte[] data;
+        boolean dirty;
+        boolean pinned;
+
+        Entry(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.qubesdroid;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and latency histograms, shown on the debug page
+ * of SettingsActivity and exported as JSON
+ *
+ * Recording is lock-free and allocation-free: a counter is an AtomicLong
+ * and a histogram an AtomicLongArray of buckets, so the hot paths record
+ * into the static fields below without a lookup. Reading takes a
+ * Snapshot, which is where the allocation happens.
+ *
+ * | Name                | Kind      | Recorded by                            |
+ * |---------------------|-----------|----------------------------------------|
+ * | crypto.seal_ns      | histogram | JNI AEAD encrypt (BlockEngine)         |
+ * | crypto.open_ns      | histogram | JNI AEAD decrypt (BlockEngine)         |
+ * | crypto.open_failed  | counter   | JNI AEAD decrypt not authenticating    |
+ * | crypto.argon2_ns    | histogram | Password key derivation (KeyVault)     |
+ * | block.read_ns       | histogram | BlockEngine.readBlock, device included |
+ * | block.write_ns      | histogram | BlockEngine.writeBlock, until written  |
+ * | block.bytes_read    | counter   | Plaintext bytes of those reads         |
+ * | block.bytes_written | counter   | Plaintext bytes of those writes        |
+ * | cache.hits          | counter   | MetadataCache.get                      |
+ * | cache.misses        | counter   | MetadataCache.get                      |
+ * | io.queue_depth      | histogram | IoScheduler: requests pending, queued  |
+ * |                     |           | one included, at every enqueue         |
+ *
+ * Histograms are HDR-style: exact below 2^SUB_BITS, then SUB_BUCKETS
+ * linear buckets per power of two, so any recorded value is reported
+ * within 1/16 (6.25%) of itself, from a nanosecond to days.
+ */
+final class Metrics {
+
+    static final Histogram AEAD_SEAL = histogram("crypto.seal_ns");
+    static final Histogram AEAD_OPEN = histogram("crypto.open_ns");
+    static final Counter AEAD_OPEN_FAILED = counter("crypto.open_failed");
+    static final Histogram ARGON2 = histogram("crypto.argon2_ns");
+    static final Histogram BLOCK_READ = histogram("block.read_ns");
+    static final Histogram BLOCK_WRITE = histogram("block.write_ns");
+    static final Counter BYTES_READ = counter("block.bytes_read");
+    static final Counter BYTES_WRITTEN = counter("block.bytes_written");
+    static final Counter CACHE_HITS = counter("cache.hits");
+    static final Counter CACHE_MISSES = counter("cache.misses");
+    static final Histogram QUEUE_DEPTH = histogram("io.queue_depth");
+
+    private static volatile long resetNanos = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    /**
+     * The counter of that name, registered on first use
+     *
+     * Call sites keep the result in a static field: the lookup is not
+     * free.
+     */
+    static Counter counter(String name) {
+        return Registry.COUNTERS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * The histogram of that name, registered on first use
+     */
+    static Histogram histogram(String name) {
+        return Registry.HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Zero every counter and histogram
+     */
+    static void reset() {
+        for (Counter c : Registry.COUNTERS.values()) {
+            c.value.set(0);
+        }
+        for (Histogram h : Registry.HISTOGRAMS.values()) {
+            h.reset();
+        }
+        resetNanos = System.nanoTime();
+    }
+
+    /**
+     * Current values of every metric
+     */
+    static Snapshot snapshot() {
+        return new Snapshot(Registry.COUNTERS, Registry.HISTOGRAMS, System.nanoTime() - resetNanos);
+    }
+
+    // Holds the maps so they exist before the fields above register in them
+    private static final class Registry {
+        static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+        static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Monotonic count, zeroed only by reset()
+     */
+    static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, nanoseconds for latencies
+     */
+    static final class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // Exact values, then SUB_BUCKETS per power of two up to 2^63
+        static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BITS);
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // Lost the race to a concurrent record(); compare again
+            }
+        }
+
+        /**
+         * record() the nanoseconds since startNanos, a System.nanoTime()
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(copy, count.get(), sum.get(), max.get());
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /**
+         * Largest value that falls in bucket i
+         */
+        static long highestIn(int i) {
+            if (i < SUB_BUCKETS) {
+                return i;
+            }
+            int shift = i / SUB_BUCKETS - 1;
+            long sub = i % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * A histogram's buckets as of snapshot()
+     *
+     * Recording continues during the copy, so count may be slightly off
+     * from the sum of the buckets; quantiles go by the buckets.
+     */
+    static final class HistogramSnapshot {
+        final long count;
+        final long sum;
+        final long max;
+        private final long[] buckets;
+        private final long total;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            long t = 0;
+            for (long b : buckets) {
+                t += b;
+            }
+            this.total = t;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Value at or below which the given fraction of the values fall,
+         * reported as the top of its bucket (never above max)
+         */
+        long quantile(double q) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.highestIn(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Every metric at one moment
+     */
+    static final class Snapshot {
+        final long elapsedNanos;
+        final Map<String, Long> counters = new TreeMap<>();
+        final Map<String, HistogramSnapshot> histograms = new TreeMap<>();
+
+        private Snapshot(Map<String, Counter> counters, Map<String, Histogram> histograms, long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            for (Map.Entry<String, Counter> e : counters.entrySet()) {
+                this.counters.put(e.getKey(), e.getValue().get());
+            }
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+                this.histograms.put(e.getKey(), e.getValue().snapshot());
+            }
+        }
+
+        long counter(String name) {
+            Long value = counters.get(name);
+            return value != null ? value : 0;
+        }
+
+        /**
+         * Fraction of metadata lookups answered by the cache, 0 without any
+         */
+        double cacheHitRate() {
+            long hits = counter("cache.hits");
+            long lookups = hits + counter("cache.misses");
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        /**
+         * Per-second increase of a counter since an earlier snapshot, or
+         * since the last reset when earlier is null
+         */
+        double rate(String name, Snapshot earlier) {
+            long delta = counter(name) - (earlier != null ? earlier.counter(name) : 0);
+            long nanos = elapsedNanos - (earlier != null ? earlier.elapsedNanos : 0);
+            return nanos <= 0 ? 0 : delta * 1e9 / nanos;
+        }
+
+        /**
+         * The snapshot as one JSON object: counters by name, histograms
+         * by name with count, mean, max and quantiles, and the derived
+         * rates since the last reset
+         */
+        String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n  \"elapsed_ns\": ").append(elapsedNanos).append(",\n  \"counters\": {");
+            String sep = "\n";
+            for (Map.Entry<String, Long> e : counters.entrySet()) {
+                sb.append(sep).append("    \"").append(e.getKey()).append("\": ").append(e.getValue());
+                sep = ",\n";
+            }
+            sb.append("\n  },\n  \"histograms\": {");
+            sep = "\n";
+            for (Map.Entry<String, HistogramSnapshot> e : histograms.entrySet()) {
+                HistogramSnapshot h = e.getValue();
+                sb.append(sep).append("    \"").append(e.getKey()).append("\": {")
+                    .append("\"count\": ").append(h.count)
+                    .append(", \"mean\": ").append(String.format(Locale.US, "%.1f", h.mean()))
+                    .append(", \"p50\": ").append(h.quantile(0.50))
+                    .append(", \"p90\": ").append(h.quantile(0.90))
+                    .append(", \"p99\": ").append(h.quantile(0.99))
+                    .append(", \"p999\": ").append(h.quantile(0.999))
+                    .append(", \"max\": ").append(h.max).append('}');
+                sep = ",\n";
+            }
+            sb.append("\n  },\n  \"derived\": {")
+                .append(String.format(Locale.US, "\n    \"cache.hit_rate\": %.4f", cacheHitRate()))
+                .append(String.format(Locale.US, ",\n    \"block.read_bytes_per_s\": %.1f", rate("block.bytes_read", null)))
+                .append(String.format(Locale.US, ",\n    \"block.write_bytes_per_s\": %.1f", rate("block.bytes_written", null)))
+                .append("\n  }\n}\n");
+            return sb.toString();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.LinearLayout;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -20,12 +21,10 @@ import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -38,6 +37,14 @@ import java.util.concurrent.Executors;
  * 2. Derive password key using Argon2id
  * 3. Decrypt master key with ChaCha20-Poly1305
  * 4. Provide access to decrypted data blocks
+ *
+ * A volume with a key rotation in progress (see KeyRotator) also has its
+ * next key unwrapped, from its own salt, which takes a second key
+ * derivation.
+ *
+ * A v2 volume can be grown on the way in: with a size in the grow field,
+ * VolumeExpander appends the blocks once the key is unwrapped and the
+ * mount picks them up.
  */
 public class MountVolumeActivity extends AppCompatActivity {
 
@@ -48,16 +55,19 @@ public class MountVolumeActivity extends AppCompatActivity {
     private TextView volumeNameText;
     private TextView volumeSizeText;
     private TextView volumeCreatedText;
+    private MaterialButton upgradeLayoutButton;
     private MaterialCardView authCard;
     private TextInputEditText passwordInput;
     private TextInputLayout passwordLayout;
+    private RadioGroup durabilityGroup;
+    private TextInputEditText growByInput;
+    private TextInputLayout growByLayout;
     private MaterialButton mountVolumeButton;
     private LinearLayout progressLayout;
     private LinearProgressIndicator progressIndicator;
     private TextView progressText;
 
     // Crypto
-    private CryptoNative crypto;
     private ExecutorService executorService;
 
     // Volume data
@@ -67,22 +77,26 @@ public class MountVolumeActivity extends AppCompatActivity {
     // File picker
     private ActivityResultLauncher<String[]> volumePickerLauncher;
 
-    // Volume format constants
-    private static final byte[] MAGIC_SIGNATURE = "QUBESDRD".getBytes();
-    private static final int VERSION = 0x01000000;
-    private static final int HEADER_SIZE = 1712;
+    /**
+     * Path of a volume to select on start (from the home screen list)
+     */
+    static final String EXTRA_VOLUME_PATH = "volumePath";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_mount_volume);
 
-        crypto = new CryptoNative();
         executorService = Executors.newSingleThreadExecutor();
 
         initViews();
         setupListeners();
         setupFilePicker();
+
+        String volumePath = getIntent().getStringExtra(EXTRA_VOLUME_PATH);
+        if (volumePath != null) {
+            onVolumeSelected(new File(volumePath));
+        }
     }
 
     private void initViews() {
@@ -97,9 +111,13 @@ public class MountVolumeActivity extends AppCompatActivity {
         volumeNameText = findViewById(R.id.volumeNameText);
         volumeSizeText = findViewById(R.id.volumeSizeText);
         volumeCreatedText = findViewById(R.id.volumeCreatedText);
+        upgradeLayoutButton = findViewById(R.id.upgradeLayoutButton);
         authCard = findViewById(R.id.authCard);
         passwordInput = findViewById(R.id.passwordInput);
         passwordLayout = findViewById(R.id.passwordLayout);
+        durabilityGroup = findViewById(R.id.durabilityGroup);
+        growByInput = findViewById(R.id.growByInput);
+        growByLayout = findViewById(R.id.growByLayout);
         mountVolumeButton = findViewById(R.id.mountVolumeButton);
         progressLayout = findViewById(R.id.progressLayout);
         progressIndicator = findViewById(R.id.progressIndicator);
@@ -110,28 +128,52 @@ public class MountVolumeActivity extends AppCompatActivity {
         toolbar.setNavigationOnClickListener(v -> finish());
 
         selectVolumeButton.setOnClickListener(v -> {
-            // Try to browse volumes directory first
-            File volumesDir = new File(getExternalFilesDir(null), "volumes");
-            if (volumesDir.exists() && volumesDir.listFiles() != null) {
-                File[] volumes = volumesDir.listFiles((dir, name) -> name.endsWith(".qd"));
-                if (volumes != null && volumes.length > 0) {
-                    // Show volume from volumes directory
-                    onVolumeSelected(volumes[0]);
-                    return;
-                }
+            // Pick from the known volumes first
+            List<VolumeCatalog.Entry> volumes = VolumeCatalog.forApp(this).volumes();
+            if (volumes.isEmpty()) {
+                volumePickerLauncher.launch(new String[]{"*/*"});
+                return;
             }
-
-            // Fallback to file picker
-            volumePickerLauncher.launch(new String[]{"*/*"});
+            CharSequence[] names = new CharSequence[volumes.size() + 1];
+            for (int i = 0; i < volumes.size(); i++) {
+                names[i] = volumes.get(i).name();
+            }
+            names[volumes.size()] = "Browse\u2026";
+            new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Select Volume")
+                .setItems(names, (dialog, which) -> {
+                    if (which < volumes.size()) {
+                        onVolumeSelected(volumes.get(which).file);
+                    } else {
+                        volumePickerLauncher.launch(new String[]{"*/*"});
+                    }
+                })
+                .show();
         });
 
+        upgradeLayoutButton.setOnClickListener(v -> upgradeLayout());
+
         mountVolumeButton.setOnClickListener(v -> {
             String password = passwordInput.getText().toString();
             if (password.isEmpty()) {
                 passwordLayout.setError("Password is required");
                 return;
             }
-            mountVolume(password);
+            long growBy = 0;
+            String growText = growByInput.getText().toString().trim();
+            if (!growText.isEmpty()) {
+                try {
+                    growBy = Long.parseLong(growText) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    growBy = -1;
+                }
+                if (growBy < volumeHeader.blockSize()) {
+                    growByLayout.setError("Enter at least one block");
+                    return;
+                }
+            }
+            growByLayout.setError(null);
+            mountVolume(password, growBy);
         });
     }
 
@@ -159,11 +201,13 @@ public class MountVolumeActivity extends AppCompatActivity {
 
     private void onVolumeSelected(File volumeFile) {
         selectedVolumeFile = volumeFile;
+        // The catalog entry may be stale (written by another app, removed)
+        VolumeCatalog.forApp(this).validate(volumeFile);
 
         // Read and parse volume header
         executorService.execute(() -> {
             try {
-                volumeHeader = readVolumeHeader(volumeFile);
+                volumeHeader = VolumeHeader.read(volumeFile);
                 runOnUiThread(() -> {
                     displayVolumeInfo(volumeFile, volumeHeader);
                     authCard.setVisibility(View.VISIBLE);
@@ -178,100 +222,127 @@ public class MountVolumeActivity extends AppCompatActivity {
         });
     }
 
-    private VolumeHeader readVolumeHeader(File volumeFile) throws Exception {
-        try (FileInputStream fis = new FileInputStream(volumeFile)) {
-            byte[] headerBytes = new byte[HEADER_SIZE];
-            int bytesRead = fis.read(headerBytes);
-            if (bytesRead != HEADER_SIZE) {
-                throw new Exception("Invalid volume file: header too short");
-            }
-
-            ByteBuffer buffer = ByteBuffer.wrap(headerBytes);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-            VolumeHeader header = new VolumeHeader();
-
-            // Magic signature
-            byte[] magic = new byte[8];
-            buffer.get(magic);
-            if (!java.util.Arrays.equals(magic, MAGIC_SIGNATURE)) {
-                throw new Exception("Invalid volume file: bad magic signature");
-            }
-
-            // Version
-            header.version = buffer.getInt();
-            if (header.version != VERSION) {
-                throw new Exception("Unsupported volume version: " +
-                    String.format("0x%08X", header.version));
-            }
-
-            // Header size
-            header.headerSize = buffer.getInt();
-
-            // Volume size
-            header.volumeSize = buffer.getLong();
-
-            // Creation timestamp
-            header.creationTimestamp = buffer.getLong();
-
-            // Reserved (32 bytes)
-            buffer.position(buffer.position() + 32);
-
-            // ML-KEM Public Key (1568 bytes)
-            header.mlkemPublicKey = new byte[1568];
-            buffer.get(header.mlkemPublicKey);
-
-            // Salt (32 bytes)
-            header.salt = new byte[32];
-            buffer.get(header.salt);
-
-            // Encrypted Master Key (48 bytes)
-            header.encryptedMasterKey = new byte[48];
-            buffer.get(header.encryptedMasterKey);
-
-            return header;
-        }
-    }
-
     private void displayVolumeInfo(File volumeFile, VolumeHeader header) {
         volumeInfoLayout.setVisibility(View.VISIBLE);
 
         volumeNameText.setText(volumeFile.getName());
 
         // Format size
-        long sizeMB = header.volumeSize / (1024 * 1024);
-        volumeSizeText.setText(String.format("%d MB", sizeMB));
+        long sizeMB = header.volumeSize() / (1024 * 1024);
+        String details = String.format("%d MB, %d KB blocks", sizeMB, header.blockSize() / 1024);
+        // Known compression: VolumeHeader.read() checked it
+        Compression compression = Compression.fromId(header.compressionId());
+        if (compression != Compression.NONE) {
+            details += ", compression: " + compression.label;
+        }
+        if (!header.isAligned()) {
+            details += ", v1 layout";
+        }
+        if (header.keyGeneration() > 0) {
+            details += ", key generation " + header.keyGeneration();
+        }
+        if (header.isRotatingKey()) {
+            details += ", key rotation in progress";
+        }
+        volumeSizeText.setText(details);
+        upgradeLayoutButton.setVisibility(header.isAligned() ? View.GONE : View.VISIBLE);
+        // Expansion needs the v2 block count and no rotation in progress
+        growByLayout.setVisibility(header.isAligned() && !header.isRotatingKey()
+            ? View.VISIBLE : View.GONE);
 
         // Format creation date
-        Date creationDate = new Date(header.creationTimestamp * 1000);
+        Date creationDate = new Date(header.createdTime() * 1000);
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm",
             Locale.getDefault());
         volumeCreatedText.setText(dateFormat.format(creationDate));
     }
 
-    private void mountVolume(String password) {
+    /**
+     * Durability picked in the auth card
+     */
+    private Durability selectedDurability() {
+        int checked = durabilityGroup.getCheckedRadioButtonId();
+        if (checked == R.id.durabilityStrict) {
+            return Durability.STRICT;
+        }
+        if (checked == R.id.durabilityLazy) {
+            return Durability.LAZY;
+        }
+        return Durability.defaultGroupCommit();
+    }
+
+    /**
+     * Convert the selected v1 volume to the aligned v2 layout, then show
+     * it again
+     *
+     * Needs no password: the blocks are moved, not re-encrypted.
+     */
+    private void upgradeLayout() {
+        setUIEnabled(false);
+        upgradeLayoutButton.setEnabled(false);
+        progressLayout.setVisibility(View.VISIBLE);
+        progressText.setText("Upgrading volume layout...");
+
+        executorService.execute(() -> {
+            try {
+                VolumeMigrator.migrate(selectedVolumeFile, (done, total) ->
+                    updateProgress(String.format("Upgrading layout: block %d/%d", done, total)));
+                volumeHeader = VolumeHeader.read(selectedVolumeFile);
+                runOnUiThread(() -> {
+                    progressLayout.setVisibility(View.GONE);
+                    displayVolumeInfo(selectedVolumeFile, volumeHeader);
+                    Toast.makeText(this, "Volume upgraded to the aligned layout", Toast.LENGTH_SHORT).show();
+                    setUIEnabled(true);
+                    upgradeLayoutButton.setEnabled(true);
+                });
+            } catch (Exception e) {
+                runOnUiThread(() -> {
+                    progressLayout.setVisibility(View.GONE);
+                    Toast.makeText(this, "Error upgrading volume: " + e.getMessage(),
+                        Toast.LENGTH_LONG).show();
+                    setUIEnabled(true);
+                    upgradeLayoutButton.setEnabled(true);
+                });
+            }
+        });
+    }
+
+    /**
+     * @param growBy Bytes to grow the volume by before mounting it, or 0
+     */
+    private void mountVolume(String password, long growBy) {
+        mountVolume(password, growBy, false);
+    }
+
+    /**
+     * @param reseal Accept the blocks as they are, after the user was told
+     *               that they do not match the integrity root
+     */
+    private void mountVolume(String password, long growBy, boolean reseal) {
+        Durability durability = selectedDurability();
         setUIEnabled(false);
         progressLayout.setVisibility(View.VISIBLE);
         progressText.setText("Deriving encryption key...");
 
         executorService.execute(() -> {
+            long span = Tracer.begin(Tracer.Span.MOUNT);
             try {
-                // 1. Derive Password-Derived Key using Argon2id
+                // 1. Derive Password-Derived Key using Argon2id, into the
+                // key vault like every key below
                 updateProgress("Deriving password key (this may take a few seconds)...");
-                byte[] passwordDerivedKey = crypto.deriveKeyFromPassword(password,
-                    volumeHeader.salt);
+                CryptoNative crypto = CryptoRuntime.get();
+                KeyVault vault = new KeyVault(crypto);
 
-                // 2. Extract nonce from encrypted master key
-                // Note: In CreateVolumeActivity we used a random nonce, but didn't store it!
-                // This is a bug in the format - we need to store the nonce
-                // For now, assume nonce is all zeros (fix this in next version)
+                // 2. Master key nonce: all zeros (VOLUME_FORMAT.md); the
+                // password-derived key is unique per volume via the salt
                 byte[] nonce = new byte[12];
 
-                updateProgress("Decrypting master key...");
-
                 // 3. Decrypt Master Key
-                byte[] masterKey = crypto.decryptData(volumeHeader.encryptedMasterKey,
-                    passwordDerivedKey, nonce, null);
+                KeyHandle masterKey;
+                try (KeyHandle passwordDerivedKey = vault.derive(password, volumeHeader.copySalt())) {
+                    updateProgress("Decrypting master key...");
+                    masterKey = vault.unwrap(volumeHeader.copyWrappedKey(), passwordDerivedKey, nonce);
+                }
 
                 if (masterKey == null) {
                     runOnUiThread(() -> {
@@ -282,39 +353,82 @@ public class MountVolumeActivity extends AppCompatActivity {
                     return;
                 }
 
+                MountedVolume mounted;
+                KeyHandle nextKey = null;
+                try {
+                    // 4. Unwrap the next key of an unfinished key rotation, under
+                    // the same password with its own salt
+                    if (volumeHeader.isRotatingKey()) {
+                        updateProgress("Deriving key of the unfinished key rotation...");
+                        try (KeyHandle nextDerivedKey = vault.derive(password, volumeHeader.copyNextSalt())) {
+                            nextKey = vault.unwrap(volumeHeader.copyNextWrappedKey(), nextDerivedKey, nonce);
+                        }
+                        if (nextKey == null) {
+                            throw new Exception("the key rotation record does not decrypt");
+                        }
+                    }
+
+                    // 5. Store a tree of the blocks as they are, if the user said so
+                    if (reseal) {
+                        updateProgress("Accepting volume as it is...");
+                        try (BlockDevice device = volumeHeader.open(selectedVolumeFile, false)) {
+                            IntegrityTree.reseal(device, IntegrityTree.nativeHasher(crypto), masterKey);
+                        }
+                    }
+
+                    // 6. Append blocks if asked to; the mount grows the file system
+                    if (growBy > 0) {
+                        long blockCount = volumeHeader.blockCount() + growBy / volumeHeader.blockSize();
+                        updateProgress("Expanding volume...");
+                        VolumeExpander.expand(selectedVolumeFile, blockCount, crypto, masterKey, (done, total) ->
+                            updateProgress(String.format("Expanding volume: block %d/%d", done, total)));
+                        volumeHeader = VolumeHeader.read(selectedVolumeFile);
+                    }
+
+                    // 7. Open the block engine and file system (formats a fresh volume)
+                    updateProgress("Opening file system...");
+                    mounted = MountedVolume.open(selectedVolumeFile, volumeHeader.headerSize(),
+                        volumeHeader.blockSize(), volumeHeader.blockCount(), volumeHeader.metadataCapacity(),
+                        volumeHeader.compression(), masterKey, nextKey, crypto, durability);
+                } finally {
+                    // The engine and the integrity tree hold keys of their own
+                    masterKey.close();
+                    if (nextKey != null) {
+                        nextKey.close();
+                    }
+                }
+                String mountMessage;
+                if (reseal) {
+                    mountMessage = "Volume mounted; accepted as it is";
+                } else if (mounted.engine().integrityTree().rebuilt()) {
+                    mountMessage = "Volume mounted; integrity tree rebuilt (not dismounted cleanly)";
+                } else {
+                    mountMessage = "Volume mounted successfully!";
+                }
+
                 updateProgress("Volume mounted successfully!");
 
                 // Success - volume is now mounted
                 runOnUiThread(() -> {
                     android.util.Log.e("QubesDroid", "=== MOUNT SUCCESS - Preparing to launch FileBrowserActivity ===");
-                    Toast.makeText(this,
-                        "Volume mounted successfully!",
-                        Toast.LENGTH_SHORT).show();
+                    Toast.makeText(this, mountMessage, Toast.LENGTH_SHORT).show();
 
-                    // TEST: Launch TestActivity to verify launching works
-                    android.util.Log.e("QubesDroid", "Creating Intent for TestActivity");
-                    Intent intent = new Intent(MountVolumeActivity.this, TestActivity.class);
-                    android.util.Log.e("QubesDroid", "Starting TestActivity");
+                    Intent intent = new Intent(MountVolumeActivity.this, FileBrowserActivity.class);
+                    intent.putExtra("volumeName", selectedVolumeFile.getName());
+                    intent.putExtra("volumePath", selectedVolumeFile.getAbsolutePath());
 
                     try {
                         startActivity(intent);
-                        android.util.Log.e("QubesDroid", "TestActivity started successfully");
-
-                        // CRITICAL TEST: Delay finish() to see if that's preventing activity launch
-                        new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                            android.util.Log.e("QubesDroid", "Finishing MountVolumeActivity after delay");
-                            finish();
-                        }, 2000); // Wait 2 seconds before finishing
+                        android.util.Log.e("QubesDroid", "FileBrowserActivity started successfully");
+                        finish();
                     } catch (Exception e) {
-                        android.util.Log.e("QubesDroid", "FAILED to start TestActivity", e);
-                        Toast.makeText(this, "Error launching test activity: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                        android.util.Log.e("QubesDroid", "FAILED to start FileBrowserActivity", e);
+                        Toast.makeText(this, "Error opening volume: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                        setUIEnabled(true);
                     }
                 });
-
-                // Securely erase sensitive data
-                java.util.Arrays.fill(passwordDerivedKey, (byte) 0);
-                java.util.Arrays.fill(masterKey, (byte) 0);
-
+            } catch (IntegrityTree.MismatchException e) {
+                runOnUiThread(() -> confirmReseal(password, growBy));
             } catch (Exception e) {
                 runOnUiThread(() -> {
                     progressLayout.setVisibility(View.GONE);
@@ -322,10 +436,30 @@ public class MountVolumeActivity extends AppCompatActivity {
                         Toast.LENGTH_LONG).show();
                     setUIEnabled(true);
                 });
+            } finally {
+                Tracer.end(Tracer.Span.MOUNT, span);
             }
         });
     }
 
+    /**
+     * Tell the user the volume failed its integrity check, and mount it
+     * anyway only if they say so
+     */
+    private void confirmReseal(String password, long growBy) {
+        progressLayout.setVisibility(View.GONE);
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+            .setTitle("Integrity check failed")
+            .setMessage("The blocks of this volume do not match its integrity root. A crash while it was "
+                + "being written can cause this, but so can blocks rolled back to an older version or "
+                + "replaced.\n\nMount anyway only if you trust where the volume is stored: it is then "
+                + "accepted as it is, changes included.")
+            .setPositiveButton("Mount anyway", (dialog, which) -> mountVolume(password, growBy, true))
+            .setNegativeButton("Cancel", (dialog, which) -> setUIEnabled(true))
+            .setOnCancelListener(dialog -> setUIEnabled(true))
+            .show();
+    }
+
     private void updateProgress(String message) {
         runOnUiThread(() -> progressText.setText(message));
     }
@@ -333,6 +467,7 @@ public class MountVolumeActivity extends AppCompatActivity {
     private void setUIEnabled(boolean enabled) {
         selectVolumeButton.setEnabled(enabled);
         passwordInput.setEnabled(enabled);
+        growByInput.setEnabled(enabled);
         mountVolumeButton.setEnabled(enabled);
     }
 
@@ -351,17 +486,4 @@ public class MountVolumeActivity extends AppCompatActivity {
             executorService.shutdown();
         }
     }
-
-    /**
-     * Volume header structure matching VOLUME_FORMAT.md
-     */
-    private static class VolumeHeader {
-        int version;
-        int headerSize;
-        long volumeSize;
-        long creationTimestamp;
-        byte[] mlkemPublicKey;
-        byte[] salt;
-        byte[] encryptedMasterKey;
-    }
 }
@@ -0,0 +1,153 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A volume opened for file access: BlockDevice -> IoScheduler ->
+ * BlockEngine (with its IntegrityTree) -> VolumeFileSystem
+ *
+ * MountVolumeActivity opens it after unwrapping the master key and
+ * FileBrowserActivity picks it up through active(), so the key never
+ * travels in an Intent. A volume whose block 0 still decrypts to zeros
+ * (fresh from CreateVolumeActivity) is formatted on first mount.
+ * A volume with a key rotation in progress opens with both keys, and the
+ * rotation resumes where it was saved. A volume that VolumeExpander grew
+ * has its file system grown to match when it is mounted. While mounted,
+ * a SpaceReclaimer defragments files and, where the volume can trim,
+ * trims freed blocks out of the container file.
+ */
+final class MountedVolume implements Closeable {
+
+    /**
+     * Block size of volumes whose header does not record one
+     */
+    static final int DEFAULT_BLOCK_SIZE = 65536;
+    static final int MIN_BLOCK_SIZE = 4096;
+    static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private static MountedVolume active;
+
+    private final File file;
+    private final BlockEngine engine;
+    private final VolumeFileSystem fileSystem;
+    private final SpaceReclaimer reclaimer;
+
+    private MountedVolume(File file, BlockEngine engine, VolumeFileSystem fileSystem) {
+        this.file = file;
+        this.engine = engine;
+        this.fileSystem = fileSystem;
+        this.reclaimer = SpaceReclaimer.forVolume(fileSystem);
+    }
+
+    /**
+     * Open a volume and make it the active one
+     *
+     * @param file Volume container
+     * @param headerSize Header size from the volume header
+     * @param blockSize Block size from the volume header
+     * @param blockCount Block count from a v2 header, or -1 for a v1
+     *                   volume (packed slots, counted from the file size)
+     * @param metadataCapacity Metadata capacity from a v2 header (see
+     *                         VolumeExpander)
+     * @param compression Compression from the volume header
+     * @param masterKey Unwrapped master key (the engine keeps a copy, the
+     *                  integrity tree a key derived from it)
+     * @param nextKey Unwrapped next master key of a key rotation in
+     *                progress (see KeyRotator), or null
+     * @param crypto Native crypto
+     * @param durability When metadata changes reach the volume
+     */
+    static synchronized MountedVolume open(File file, int headerSize, int blockSize, long blockCount,
+                                           long metadataCapacity, Compression compression, KeyHandle masterKey,
+                                           KeyHandle nextKey, CryptoNative crypto, Durability durability)
+            throws IOException {
+        if (!isValidBlockSize(blockSize)) {
+            throw new IOException("Unsupported block size " + blockSize);
+        }
+        if (active != null) {
+            active.close();
+        }
+        if (nextKey == null) {
+            // A rotation's key file rename cut short by a crash
+            SecretKeyFile.settle(file, new KeyVault(crypto), masterKey);
+        }
+        BlockDevice device = blockCount >= 0
+            ? BlockDevice.openAligned(file, headerSize, blockSize, compression.layout(), blockCount,
+                metadataCapacity, false)
+            : BlockDevice.open(file, headerSize, blockSize, compression.layout(), false);
+        device.setHolePuncher(BlockDevice.nativePuncher(crypto));
+        IntegrityTree tree;
+        try {
+            tree = IntegrityTree.open(device, IntegrityTree.nativeHasher(crypto), masterKey);
+        } catch (IOException | RuntimeException e) {
+            device.close();
+            throw e;
+        }
+        BlockEngine engine = new BlockEngine(new IoScheduler(device), crypto, masterKey, tree, compression);
+        try {
+            if (nextKey != null) {
+                long rekeyed = KeyRotator.savedProgress(device);
+                if (rekeyed < 0) {
+                    throw new IOException("Volume has no key rotation in progress");
+                }
+                engine.beginKeyRotation(nextKey, rekeyed);
+            }
+            if (VolumeFileSystem.isBlank(engine)) {
+                VolumeFileSystem.format(engine);
+            }
+            active = new MountedVolume(file, engine, VolumeFileSystem.mount(engine, durability));
+            active.reclaimer.start();
+            return active;
+        } catch (IOException | RuntimeException e) {
+            engine.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a volume may use blockSize: a power of two from 4 KB to 1 MB
+     */
+    static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1;
+    }
+
+    /**
+     * The mounted volume, or null if none
+     */
+    static synchronized MountedVolume active() {
+        return active;
+    }
+
+    File file() {
+        return file;
+    }
+
+    VolumeFileSystem fileSystem() {
+        return fileSystem;
+    }
+
+    BlockEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Commit and checkpoint the file system, then close the engine
+     * (wiping its key copy)
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (MountedVolume.class) {
+            if (active == this) {
+                active = null;
+            }
+        }
+        try {
+            reclaimer.close();
+            fileSystem.close();
+        } finally {
+            engine.close();
+        }
+    }
+}
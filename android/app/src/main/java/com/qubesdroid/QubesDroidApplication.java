@@ -0,0 +1,20 @@
+package com.qubesdroid;
+
+import android.app.Application;
+
+/**
+ * Process-wide setup, before any activity starts
+ *
+ * Starts loading the native crypto library in the background (see
+ * CryptoRuntime), so the first mount or create does not wait for it, and
+ * mirrors Tracer spans to the system trace.
+ */
+public class QubesDroidApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Tracer.mirrorToSystemTrace();
+        CryptoRuntime.preload();
+    }
+}
@@ -0,0 +1,358 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Verifies that every block of a volume still authenticates
+ *
+ * Pipeline:
+ * 1. Runs of batchBlocks consecutive sealed blocks are read through the
+ *    IoScheduler as BACKGROUND work, which it merges into large
+ *    positional reads and serves only when no interactive or bulk
+ *    request is waiting
+ * 2. A worker pool opens each block of a completed run, so the
+ *    Poly1305 checks of several runs proceed on all cores at once
+ * 3. The calling thread retires runs in volume order and records the
+ *    index of every block that fails authentication, after reading it
+ *    once more: a block rewritten between its read and its check fails
+ *    against an IntegrityTree that already has the new tag
+ *
+ * Progress is a Checkpoint: every block below next has been checked.
+ * It is saved to a file every few seconds and when the scrub stops, so
+ * a scrub that is cancelled, fails, or dies with the process resumes
+ * where it left off instead of starting over.
+ *
+ * The scrub only reads. Blocks written while it runs are checked in
+ * whichever version the scheduler returns, which is always a complete
+ * one.
+ */
+final class Scrubber implements Closeable {
+
+    static final long CHECKPOINT_INTERVAL_NANOS = 5_000_000_000L;
+
+    /**
+     * Progress callback, invoked on the scrubbing thread
+     */
+    interface Listener {
+        /**
+         * @param blocksDone Blocks checked so far, including earlier runs
+         * @param blockCount Blocks in the volume
+         * @param bytesPerSecond Sealed bytes checked per second in this run
+         * @param corrupt Corrupt blocks found so far
+         */
+        void onProgress(long blocksDone, long blockCount, double bytesPerSecond, int corrupt);
+    }
+
+    /**
+     * How far a scrub got and what it found
+     *
+     * File format (big-endian): magic, version, block count, next, number
+     * of corrupt blocks, their indices.
+     */
+    static final class Checkpoint {
+        private static final int MAGIC = 0x51445343; // "QDSC"
+        private static final int VERSION = 1;
+
+        final long blockCount;
+        private long next;
+        private final List<Long> corrupt;
+
+        private Checkpoint(long blockCount, long next, List<Long> corrupt) {
+            this.blockCount = blockCount;
+            this.next = next;
+            this.corrupt = corrupt;
+        }
+
+        /**
+         * A scrub from block 0
+         */
+        static Checkpoint start(long blockCount) {
+            return new Checkpoint(blockCount, 0, new ArrayList<>());
+        }
+
+        /**
+         * Load the checkpoint saved in file
+         *
+         * @return null if there is none, it is damaged, it belongs to a
+         *         volume with another block count, or it is complete
+         */
+        static Checkpoint load(File file, long blockCount) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != blockCount) {
+                    return null;
+                }
+                long next = in.readLong();
+                int count = in.readInt();
+                if (next < 0 || next >= blockCount || count < 0 || count > blockCount) {
+                    return null;
+                }
+                List<Long> corrupt = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    corrupt.add(in.readLong());
+                }
+                return new Checkpoint(blockCount, next, corrupt);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Replace file with this checkpoint (written aside, then renamed)
+         */
+        synchronized void save(File file) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(blockCount);
+                out.writeLong(next);
+                out.writeInt(corrupt.size());
+                for (long index : corrupt) {
+                    out.writeLong(index);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Remove a saved checkpoint, if any
+         */
+        static void delete(File file) throws IOException {
+            try {
+                Files.delete(file.toPath());
+            } catch (NoSuchFileException ignored) {
+                // nothing saved
+            }
+        }
+
+        synchronized long next() {
+            return next;
+        }
+
+        synchronized boolean complete() {
+            return next == blockCount;
+        }
+
+        synchronized List<Long> corrupt() {
+            return new ArrayList<>(corrupt);
+        }
+
+        private synchronized void advance(long to, List<Long> found) {
+            next = to;
+            corrupt.addAll(found);
+        }
+    }
+
+    /**
+     * Outcome of a scrub that ran to the end
+     */
+    static final class Result {
+        final long blocksChecked;
+        final long bytesChecked;
+        final long nanos;
+        final List<Long> corrupt;
+
+        Result(long blocksChecked, long bytesChecked, long nanos, List<Long> corrupt) {
+            this.blocksChecked = blocksChecked;
+            this.bytesChecked = bytesChecked;
+            this.nanos = nanos;
+            this.corrupt = Collections.unmodifiableList(corrupt);
+        }
+
+        double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytesChecked * 1e9 / nanos;
+        }
+    }
+
+    private final BlockStore store;
+    private final int batchBlocks;
+    private final int windowBatches;
+    private final ExecutorService workers;
+
+    /**
+     * @param workerCount Verification threads
+     * @param batchBlocks Consecutive blocks per read run
+     * @param windowBatches Runs in flight at once
+     */
+    Scrubber(BlockStore store, int workerCount, int batchBlocks, int windowBatches) {
+        this.store = store;
+        this.batchBlocks = batchBlocks;
+        this.windowBatches = windowBatches;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "qubesdroid-scrub");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Scrubber sized for the device: one worker per core, runs of one
+     * scheduler merge, two runs in flight per worker
+     */
+    static Scrubber forDevice(BlockStore store) {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return new Scrubber(store, workers, IoScheduler.mergeBlocks(store.blockSize()), workers * 2);
+    }
+
+    /**
+     * Check every block from checkpoint.next() to the end
+     *
+     * @param checkpoint Where to start; advanced as runs complete
+     * @param saveTo File to save the checkpoint in periodically and when
+     *               stopped early (removed once complete), or null
+     * @param cancel Set to stop; the checkpoint keeps what was checked
+     * @throws CancellationException if cancelled
+     * @throws IOException if a block cannot be read (as opposed to
+     *                     failing authentication)
+     */
+    Result scrub(Checkpoint checkpoint, File saveTo, Listener listener, AtomicBoolean cancel)
+            throws IOException {
+        if (checkpoint.blockCount != store.blockCount()) {
+            throw new IllegalArgumentException("Checkpoint is for a volume of " + checkpoint.blockCount
+                + " blocks, not " + store.blockCount());
+        }
+        long start = System.nanoTime();
+        long first = checkpoint.next();
+        long end = checkpoint.blockCount;
+        int sealedSize = store.sealedSize();
+
+        ArrayDeque<Batch> free = new ArrayDeque<>();
+        for (int i = 0; i < windowBatches; i++) {
+            free.add(new Batch(batchBlocks, sealedSize, store.blockSize()));
+        }
+        ArrayDeque<CompletableFuture<Batch>> window = new ArrayDeque<>();
+        long issued = first;
+        long lastProgress = start;
+        long lastSave = start;
+        try {
+            while (checkpoint.next() < end) {
+                while (issued < end && !free.isEmpty()) {
+                    Batch batch = free.pollFirst();
+                    batch.first = issued;
+                    batch.count = (int) Math.min(batchBlocks, end - issued);
+                    window.addLast(check(batch));
+                    issued += batch.count;
+                }
+                if (cancel != null && cancel.get()) {
+                    throw new CancellationException("Scrub cancelled");
+                }
+                Batch batch = IoScheduler.await(window.pollFirst());
+                checkpoint.advance(batch.first + batch.count, recheck(batch));
+                free.addLast(batch);
+
+                long now = System.nanoTime();
+                if (saveTo != null && now - lastSave >= CHECKPOINT_INTERVAL_NANOS) {
+                    lastSave = now;
+                    checkpoint.save(saveTo);
+                }
+                if (listener != null && now - lastProgress >= Transfer.PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    listener.onProgress(checkpoint.next(), end,
+                        (checkpoint.next() - first) * sealedSize * 1e9 / Math.max(1, now - start),
+                        checkpoint.corrupt().size());
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            List<Long> corrupt = checkpoint.corrupt();
+            if (listener != null) {
+                listener.onProgress(end, end, (end - first) * sealedSize * 1e9 / Math.max(1, nanos),
+                    corrupt.size());
+            }
+            return new Result(end - first, (end - first) * sealedSize, nanos, corrupt);
+        } finally {
+            // Let in-flight runs land so their buffers are not reused under them
+            for (CompletableFuture<Batch> pending : window) {
+                try {
+                    pending.join();
+                } catch (RuntimeException ignored) {
+                    // failure already reported or superseded
+                }
+            }
+            if (saveTo != null) {
+                if (checkpoint.complete()) {
+                    Checkpoint.delete(saveTo);
+                } else {
+                    checkpoint.save(saveTo);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * Read the blocks of batch, then open each one on a worker
+     */
+    private CompletableFuture<Batch> check(Batch batch) {
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[batch.count];
+        for (int i = 0; i < batch.count; i++) {
+            reads[i] = store.readSealed(batch.first + i, batch.sealed[i], IoScheduler.IoClass.BACKGROUND);
+        }
+        return CompletableFuture.allOf(reads).thenApplyAsync(ignored -> {
+            batch.corrupt.clear();
+            for (int i = 0; i < batch.count; i++) {
+                try {
+                    store.open(batch.first + i, batch.sealed[i], batch.plaintext);
+                } catch (IOException e) {
+                    batch.corrupt.add(batch.first + i);
+                }
+            }
+            Arrays.fill(batch.plaintext, (byte) 0);
+            return batch;
+        }, workers);
+    }
+
+    /**
+     * Blocks of batch that still fail when read again
+     */
+    private List<Long> recheck(Batch batch) throws IOException {
+        List<Long> corrupt = new ArrayList<>();
+        for (long index : batch.corrupt) {
+            byte[] sealed = batch.sealed[(int) (index - batch.first)];
+            IoScheduler.await(store.readSealed(index, sealed, IoScheduler.IoClass.BACKGROUND));
+            try {
+                store.open(index, sealed, batch.plaintext);
+            } catch (IOException e) {
+                corrupt.add(index);
+            }
+        }
+        Arrays.fill(batch.plaintext, (byte) 0);
+        return corrupt;
+    }
+
+    private static final class Batch {
+        final byte[][] sealed;
+        final byte[] plaintext;
+        final List<Long> corrupt = new ArrayList<>();
+        long first;
+        int count;
+
+        Batch(int blocks, int sealedSize, int blockSize) {
+            this.sealed = new byte[blocks][sealedSize];
+            this.plaintext = new byte[blockSize];
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.qubesdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The ML-KEM secret key of a volume, stored in <name>.key next to
+ * <name>.qd and wrapped under the volume's master key
+ *
+ * File: random nonce (12) || ChaCha20-Poly1305 of the key || tag (16)
+ *
+ * A key rotation must not leave the file under a master key that is
+ * gone. KeyRotator.begin() writes <name>.key.next, the same key wrapped
+ * under the next master key, before the header records the rotation;
+ * the rotation's commit renames it over <name>.key right after the
+ * header takes the next key. A crash between the two leaves both files.
+ * settle() at the next mount keeps whichever one opens under the
+ * master key the header now holds.
+ */
+final class SecretKeyFile {
+
+    static final int NONCE_SIZE = 12;
+
+    private static final String VOLUME_SUFFIX = ".qd";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Wraps keys under other keys: KeyVault on the device
+     */
+    interface Wrapper {
+        /**
+         * key encrypted under kek with its tag appended
+         */
+        byte[] wrap(KeyHandle key, KeyHandle kek, byte[] nonce) throws IOException;
+
+        /**
+         * Inverse of wrap(), or null if wrapped does not authenticate
+         * under kek
+         */
+        KeyHandle unwrap(byte[] wrapped, KeyHandle kek, byte[] nonce);
+    }
+
+    private SecretKeyFile() {
+    }
+
+    /**
+     * <name>.key of the volume <name>.qd
+     */
+    static File of(File volumeFile) {
+        String name = volumeFile.getName();
+        if (name.endsWith(VOLUME_SUFFIX)) {
+            name = name.substring(0, name.length() - VOLUME_SUFFIX.length());
+        }
+        return new File(volumeFile.getParentFile(), name + ".key");
+    }
+
+    /**
+     * The secret key wrapped under the next master key of a rotation
+     */
+    static File next(File volumeFile) {
+        File file = of(volumeFile);
+        return new File(file.getPath() + ".next");
+    }
+
+    /**
+     * Store secretKey in file, wrapped under kek with a fresh nonce, and
+     * sync it
+     */
+    static void write(File file, Wrapper wrapper, KeyHandle secretKey, KeyHandle kek) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        byte[] wrapped = wrapper.wrap(secretKey, kek, nonce);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(nonce);
+            out.write(wrapped);
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * The secret key in file
+     *
+     * @return The key, or null if the file does not open under kek
+     */
+    static KeyHandle read(File file, Wrapper wrapper, KeyHandle kek) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length <= NONCE_SIZE) {
+            return null;
+        }
+        return wrapper.unwrap(Arrays.copyOfRange(bytes, NONCE_SIZE, bytes.length), kek,
+            Arrays.copyOf(bytes, NONCE_SIZE));
+    }
+
+    /**
+     * Write <name>.key.next under nextKey, before a rotation from
+     * currentKey to nextKey is recorded in the header
+     *
+     * Does nothing for a volume without a key file.
+     *
+     * @throws IOException if the key file does not open under currentKey
+     */
+    static void prepareRotation(File volumeFile, Wrapper wrapper, KeyHandle currentKey, KeyHandle nextKey)
+            throws IOException {
+        File file = of(volumeFile);
+        if (!file.exists()) {
+            return;
+        }
+        try (KeyHandle secretKey = read(file, wrapper, currentKey)) {
+            if (secretKey == null) {
+                throw new IOException(file.getName() + " does not open under the master key");
+            }
+            write(next(volumeFile), wrapper, secretKey, nextKey);
+        }
+    }
+
+    /**
+     * Make <name>.key.next the key file, once the header holds the next
+     * master key
+     */
+    static void commitRotation(File volumeFile) throws IOException {
+        File next = next(volumeFile);
+        if (next.exists()) {
+            Files.move(next.toPath(), of(volumeFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Finish or drop a <name>.key.next left by a crash, at a mount with no
+     * rotation in progress: it replaces the key file if it opens under
+     * masterKey (the rotation committed), and is deleted otherwise
+     */
+    static void settle(File volumeFile, Wrapper wrapper, KeyHandle masterKey) throws IOException {
+        File next = next(volumeFile);
+        if (!next.exists()) {
+            return;
+        }
+        try (KeyHandle secretKey = read(next, wrapper, masterKey)) {
+            if (secretKey != null) {
+                commitRotation(volumeFile);
+                return;
+            }
+        }
+        try {
+            Files.delete(next.toPath());
+        } catch (NoSuchFileException ignored) {
+            // already gone
+        }
+    }
+}
@@ -1,13 +1,158 @@
 package com.qubesdroid;
 
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Process;
+import android.widget.TextView;
+import android.widget.Toast;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import com.google.android.material.appbar.MaterialToolbar;
+import com.google.android.material.button.MaterialButton;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
+/**
+ * Settings, for now a debug page: the process Metrics, refreshed every
+ * second while shown, with rates over the last second; exports of the
+ * full snapshot as JSON and of the Tracer's spans as a Chrome trace
+ */
 public class SettingsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_MS = 1000;
+
+    private TextView metricsText;
+    private ActivityResultLauncher<String> exportLauncher;
+    private ActivityResultLauncher<String> traceLauncher;
+    private ExecutorService executorService;
+    private Metrics.Snapshot previous;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            showMetrics();
+            metricsText.postDelayed(this, REFRESH_MS);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        // TODO: Implement settings UI
         setContentView(R.layout.activity_settings);
+
+        executorService = Executors.newSingleThreadExecutor();
+
+        MaterialToolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        toolbar.setNavigationOnClickListener(v -> finish());
+
+        metricsText = findViewById(R.id.metricsText);
+        MaterialButton exportButton = findViewById(R.id.exportMetricsButton);
+        MaterialButton traceButton = findViewById(R.id.exportTraceButton);
+        MaterialButton resetButton = findViewById(R.id.resetMetricsButton);
+
+        exportLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/json"),
+            uri -> {
+                if (uri != null) {
+                    Metrics.Snapshot snapshot = Metrics.snapshot();
+                    export(uri, snapshot::toJson, "Metrics");
+                }
+            }
+        );
+        traceLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/json"),
+            uri -> {
+                if (uri != null) {
+                    List<Tracer.Record> spans = Tracer.snapshot();
+                    int pid = Process.myPid();
+                    export(uri, () -> Tracer.toChromeJson(spans, pid), "Trace");
+                }
+            }
+        );
+        exportButton.setOnClickListener(v -> exportLauncher.launch("qubesdroid-metrics.json"));
+        traceButton.setOnClickListener(v -> traceLauncher.launch("qubesdroid-trace.json"));
+        resetButton.setOnClickListener(v -> {
+            Metrics.reset();
+            previous = null;
+            showMetrics();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        metricsText.removeCallbacks(refresh);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        executorService.shutdown();
+    }
+
+    private void showMetrics() {
+        Metrics.Snapshot now = Metrics.snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Read   %8.2f MB/s\nWrite  %8.2f MB/s\nCache  %8.1f %% hits\n\n",
+            now.rate("block.bytes_read", previous) / 1e6,
+            now.rate("block.bytes_written", previous) / 1e6,
+            now.cacheHitRate() * 100));
+        for (Map.Entry<String, Long> e : now.counters.entrySet()) {
+            sb.append(String.format(Locale.US, "%-20s %d\n", e.getKey(), e.getValue()));
+        }
+        sb.append(String.format(Locale.US, "\n%-16s %7s %9s %9s %9s\n", "", "count", "p50", "p99", "max"));
+        for (Map.Entry<String, Metrics.HistogramSnapshot> e : now.histograms.entrySet()) {
+            Metrics.HistogramSnapshot h = e.getValue();
+            boolean nanos = e.getKey().endsWith("_ns");
+            sb.append(String.format(Locale.US, "%-16s %7d %9s %9s %9s\n",
+                nanos ? e.getKey().substring(0, e.getKey().length() - 3) : e.getKey(), h.count,
+                format(h.quantile(0.50), nanos), format(h.quantile(0.99), nanos), format(h.max, nanos)));
+        }
+        metricsText.setText(sb);
+        previous = now;
+    }
+
+    private static String format(long value, boolean nanos) {
+        if (!nanos) {
+            return Long.toString(value);
+        } else if (value < 1_000_000) {
+            return String.format(Locale.US, "%.1fus", value / 1e3);
+        } else {
+            return String.format(Locale.US, "%.1fms", value / 1e6);
+        }
+    }
+
+    /**
+     * Write what json supplies to uri, formatting it off the main thread
+     */
+    private void export(Uri uri, Supplier<String> json, String what) {
+        executorService.execute(() -> {
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                out.write(json.get().getBytes(StandardCharsets.UTF_8));
+                runOnUiThread(() -> Toast.makeText(this, what + " exported", Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                android.util.Log.e("QubesDroid", what + " export failed", e);
+                runOnUiThread(() -> Toast.makeText(this, "Export failed: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show());
+            }
+        });
     }
 }
@@ -0,0 +1,116 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-only BlockStore of a snapshot: every block as it was when the
+ * snapshot was taken (see SnapshotTable)
+ *
+ * Reads go through the live file system, which looks the block up and
+ * reads it under its lock (VolumeFileSystem.readSnapshotBlock()). The
+ * stored form of a block is its plaintext, so readers that use
+ * readSealed() and open() (FileExporter) work unchanged. Writes fail.
+ */
+final class SnapshotStore implements BlockStore, Closeable {
+
+    private final VolumeFileSystem live;
+    private final int epoch;
+    private final int blockSize;
+    private final long blockCount;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param live File system the snapshot belongs to
+     * @param epoch Snapshot (SnapshotTable.Snapshot.epoch)
+     */
+    SnapshotStore(VolumeFileSystem live, int epoch) {
+        this.live = live;
+        this.epoch = epoch;
+        this.blockSize = live.blockSize();
+        this.blockCount = live.totalBytes() / blockSize;
+    }
+
+    @Override
+    public int blockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long blockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public void readBlock(long index, byte[] dst, IoScheduler.IoClass ioClass) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Snapshot is closed");
+        }
+        live.readSnapshotBlock(epoch, index, dst, ioClass);
+    }
+
+    @Override
+    public void writeBlock(long index, byte[] src, IoScheduler.IoClass ioClass) throws IOException {
+        throw new IOException("Snapshot is read-only");
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public byte[] seal(long index, byte[] plaintext) {
+        return plaintext.clone();
+    }
+
+    @Override
+    public int sealedSize() {
+        return blockSize;
+    }
+
+    @Override
+    public CompletableFuture<Void> writeSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("Snapshot is read-only"));
+        return failed;
+    }
+
+    @Override
+    public CompletableFuture<Void> readSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        CompletableFuture<Void> read = new CompletableFuture<>();
+        try {
+            readBlock(index, sealed, ioClass);
+            read.complete(null);
+        } catch (IOException e) {
+            read.completeExceptionally(e);
+        }
+        return read;
+    }
+
+    @Override
+    public void open(long index, byte[] sealed, byte[] dst) {
+        System.arraycopy(sealed, 0, dst, 0, blockSize);
+    }
+
+    @Override
+    public boolean canTrim() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> trim(long index, IoScheduler.IoClass ioClass) {
+        return writeSealed(index, null, ioClass);
+    }
+
+    /**
+     * Release the snapshot, so it can be deleted again
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            live.releaseSnapshot(epoch);
+        }
+    }
+}
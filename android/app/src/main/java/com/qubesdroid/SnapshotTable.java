@@ -0,0 +1,698 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copy-on-write snapshots of the in-volume file system
+ *
+ * A snapshot is the file system as of the last commit before it was
+ * taken. Taking one copies nothing: it appends a catalog entry and
+ * starts a new epoch. Afterwards, a block the snapshot still needs is
+ * never overwritten in place:
+ * - Metadata: at commit, before the journal, the committed content of
+ *   each such dirty block is copied to a new block (preserveDirty())
+ * - File data: VolumeFileSystem writes the new content to a new block
+ *   and remaps the file, so the old block is freed
+ * - A freed block the snapshot needs is not freed but handed over to it
+ *   (keep()), with no copy
+ * Each of these records (home block, copy) in the exception table of
+ * the newest snapshot. Reading block L of snapshot S looks through the
+ * tables of S and every newer snapshot, oldest first, and takes the
+ * first copy found; a block none of them has is unchanged since S and
+ * read in place (resolve()). So only blocks changed since a snapshot are
+ * ever duplicated, and each at most once per snapshot.
+ *
+ * Whether a block is still needed comes from the generation table: the
+ * epoch in which each block was last allocated or copied away. Block L
+ * is protected if a snapshot exists whose epoch is at least L's
+ * generation. Blocks owned by a snapshot (copies, handed-over blocks,
+ * table blocks) have generation OWNED, so they are never protected; the
+ * catalog, the generation directory and the generation blocks are left
+ * out by address.
+ *
+ * Deleting a snapshot walks its exception table a batch at a time
+ * (reclaim()): an entry the next older snapshot lacks moves there (that
+ * snapshot read the same block through it), any other copy is freed.
+ * Once the last snapshot is gone, the generation table is freed too.
+ *
+ * Every change is ordinary metadata in the MetadataCache, so it commits
+ * or rolls back with the file system operation that made it; after a
+ * rollback load() rebuilds the in-memory state from the cache.
+ *
+ * Catalog block layout (little-endian):
+ * | Offset | Size | Field                                       |
+ * |--------|------|---------------------------------------------|
+ * | 0      | 8    | Magic "QDSNAPS1"                            |
+ * | 8      | 4    | Live epoch (the one writes happen in)       |
+ * | 12     | 4    | Snapshot count                              |
+ * | 16     | 8    | First generation directory block            |
+ * | 24     | 4    | Generation directory blocks                 |
+ * | 64     | 64   | Snapshots, oldest first                     |
+ *
+ * Snapshot entry: epoch (4), state (4: 1 = live, 2 = being deleted),
+ * creation time in ms (8), first exception block (8), exceptions (8),
+ * name (32, UTF-8, zero padded). Exception blocks: next (8), count (4),
+ * reserved (4), then (home, copy) pairs of 8 bytes each. The generation
+ * directory is contiguous and holds one block pointer per generation
+ * block (0 = every generation in it is 0); a generation block holds a
+ * 4-byte generation per block.
+ */
+final class SnapshotTable implements BlockAllocator.Keeper {
+
+    static final int NAME_BYTES = 32;
+
+    private static final byte[] MAGIC = "QDSNAPS1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 64;
+    private static final int CHAIN_HEADER_SIZE = 16;
+    private static final int STATE_LIVE = 1;
+    private static final int STATE_DELETING = 2;
+    /**
+     * Generation of blocks that belong to a snapshot
+     */
+    private static final int OWNED = Integer.MAX_VALUE;
+
+    /**
+     * A snapshot as listed
+     */
+    static final class Snapshot {
+        final String name;
+        final int epoch;
+        final long createdTime;
+        /**
+         * Blocks held for it alone: copies and handed-over blocks
+         */
+        final long blocks;
+
+        Snapshot(String name, int epoch, long createdTime, long blocks) {
+            this.name = name;
+            this.epoch = epoch;
+            this.createdTime = createdTime;
+            this.blocks = blocks;
+        }
+    }
+
+    private static final class Entry {
+        int epoch;
+        int state;
+        long createdTime;
+        long head;
+        long count;
+        String name;
+    }
+
+    private final MetadataCache cache;
+    private final BlockAllocator allocator;
+    private final int gensPerBlock;
+    private final int pointersPerBlock;
+    private final int pairsPerBlock;
+    private final int maxSnapshots;
+
+    private long catalog;
+    private int liveEpoch;
+    private long dirStart;
+    private int dirBlocks;
+    private final List<Entry> entries = new ArrayList<>();
+    private int latestLive;
+    private final Set<Long> genBlocks = new HashSet<>();
+    // Exception tables read so far, by epoch
+    private final Map<Integer, Map<Long, Long>> tables = new HashMap<>();
+    // Set while table blocks are allocated or freed: no hooks
+    private boolean internal;
+    // Read-only mounts per epoch (in memory only, kept across load())
+    private final Map<Integer, Integer> mounted = new HashMap<>();
+
+    SnapshotTable(MetadataCache cache, BlockAllocator allocator) {
+        int blockSize = cache.store().blockSize();
+        this.cache = cache;
+        this.allocator = allocator;
+        this.gensPerBlock = blockSize / 4;
+        this.pointersPerBlock = blockSize / 8;
+        this.pairsPerBlock = (blockSize - CHAIN_HEADER_SIZE) / 16;
+        this.maxSnapshots = (blockSize - HEADER_SIZE) / ENTRY_SIZE;
+    }
+
+    /**
+     * Read the catalog the superblock names (0 = none), replacing all
+     * in-memory state
+     */
+    void load(long catalogBlock) throws IOException {
+        catalog = catalogBlock;
+        liveEpoch = 1;
+        dirStart = 0;
+        dirBlocks = 0;
+        entries.clear();
+        genBlocks.clear();
+        tables.clear();
+        if (catalog != 0) {
+            cache.pin(catalog);
+            ByteBuffer buf = ByteBuffer.wrap(cache.get(catalog)).order(ByteOrder.LITTLE_ENDIAN);
+            if (!Arrays.equals(Arrays.copyOf(buf.array(), MAGIC.length), MAGIC)) {
+                throw new IOException("Invalid snapshot catalog in block " + catalog);
+            }
+            liveEpoch = buf.getInt(8);
+            int count = buf.getInt(12);
+            dirStart = buf.getLong(16);
+            dirBlocks = buf.getInt(24);
+            if (count > maxSnapshots) {
+                throw new IOException("Invalid snapshot count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                int pos = HEADER_SIZE + i * ENTRY_SIZE;
+                Entry e = new Entry();
+                e.epoch = buf.getInt(pos);
+                e.state = buf.getInt(pos + 4);
+                e.createdTime = buf.getLong(pos + 8);
+                e.head = buf.getLong(pos + 16);
+                e.count = buf.getLong(pos + 24);
+                byte[] name = Arrays.copyOfRange(buf.array(), pos + 32, pos + 32 + NAME_BYTES);
+                int length = 0;
+                while (length < NAME_BYTES && name[length] != 0) {
+                    length++;
+                }
+                e.name = new String(name, 0, length, StandardCharsets.UTF_8);
+                entries.add(e);
+            }
+            for (long d = 0; d < dirBlocks; d++) {
+                ByteBuffer dir = ByteBuffer.wrap(cache.get(dirStart + d)).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < pointersPerBlock; i++) {
+                    long g = dir.getLong(i * 8);
+                    if (g != 0) {
+                        genBlocks.add(g);
+                    }
+                }
+            }
+        }
+        updateLatest();
+    }
+
+    /**
+     * Catalog block for the superblock, 0 if there are no snapshots
+     */
+    long catalogBlock() {
+        return catalog;
+    }
+
+    /**
+     * Whether any snapshot (not being deleted) exists
+     */
+    boolean active() {
+        return latestLive != 0;
+    }
+
+    /**
+     * Snapshots not being deleted, oldest first
+     */
+    List<Snapshot> list() {
+        List<Snapshot> list = new ArrayList<>();
+        for (Entry e : entries) {
+            if (e.state == STATE_LIVE) {
+                list.add(new Snapshot(e.name, e.epoch, e.createdTime, e.count));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The snapshot called name
+     *
+     * @throws NoSuchFileException if there is none (or it is being deleted)
+     */
+    Snapshot find(String name) throws IOException {
+        Entry e = live(name);
+        return new Snapshot(e.name, e.epoch, e.createdTime, e.count);
+    }
+
+    /**
+     * Take a snapshot of the last committed state
+     *
+     * The first snapshot allocates the catalog and the generation
+     * directory; after that, this only writes a catalog entry.
+     */
+    Snapshot create(String name, long now) throws IOException {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if (name.isEmpty() || encoded.length > NAME_BYTES || name.indexOf('\0') >= 0) {
+            throw new IOException("Invalid snapshot name: " + name);
+        }
+        for (Entry e : entries) {
+            if (e.name.equals(name)) {
+                throw new FileAlreadyExistsException(name);
+            }
+        }
+        if (entries.size() >= maxSnapshots) {
+            throw new IOException("Too many snapshots (at most " + maxSnapshots + ")");
+        }
+        internal = true;
+        try {
+            if (catalog == 0) {
+                catalog = allocator.allocateOne(0);
+                cache.create(catalog);
+                cache.pin(catalog);
+                liveEpoch = 1;
+            }
+            if (dirStart == 0) {
+                int blocks = dirBlocksFor(allocator.blockCount());
+                Extent dir = allocator.allocate(0, blocks);
+                if (dir.length < blocks) {
+                    allocator.free(dir);
+                    throw new IOException("No free run of " + blocks + " blocks for the snapshot table");
+                }
+                for (long b = dir.start; b < dir.end(); b++) {
+                    cache.create(b);
+                }
+                dirStart = dir.start;
+                dirBlocks = blocks;
+            }
+        } finally {
+            internal = false;
+        }
+        Entry e = new Entry();
+        e.epoch = liveEpoch++;
+        e.state = STATE_LIVE;
+        e.createdTime = now;
+        e.name = name;
+        entries.add(e);
+        storeCatalog();
+        return new Snapshot(e.name, e.epoch, e.createdTime, 0);
+    }
+
+    /**
+     * Start deleting a snapshot: it can no longer be listed or mounted,
+     * and reclaim() frees its blocks
+     */
+    void markDeleted(String name) throws IOException {
+        Entry e = live(name);
+        if (mounted.containsKey(e.epoch)) {
+            throw new IOException("Snapshot " + name + " is mounted");
+        }
+        e.state = STATE_DELETING;
+        storeCatalog();
+    }
+
+    /**
+     * Whether a snapshot is being deleted
+     */
+    boolean deleting() {
+        for (Entry e : entries) {
+            if (e.state == STATE_DELETING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Process up to maxEntries exception entries of a snapshot being
+     * deleted, and drop it once its table is empty
+     *
+     * @return Entries and blocks processed, 0 if nothing is left to do
+     */
+    long reclaim(long maxEntries) throws IOException {
+        Entry doomed = null;
+        Entry older = null;
+        for (Entry e : entries) {
+            if (e.state == STATE_DELETING) {
+                doomed = e;
+                break;
+            }
+            older = e;
+        }
+        if (doomed == null) {
+            return 0;
+        }
+        Map<Long, Long> doomedTable = tables.get(doomed.epoch);
+        long done = 0;
+        while (done < maxEntries && doomed.head != 0) {
+            long head = doomed.head;
+            ByteBuffer buf = ByteBuffer.wrap(cache.getForWrite(head)).order(ByteOrder.LITTLE_ENDIAN);
+            int count = buf.getInt(8);
+            if (count == 0) {
+                doomed.head = buf.getLong(0);
+                cache.forget(head);
+                allocator.free(head, 1);
+                done++;
+                continue;
+            }
+            int pos = CHAIN_HEADER_SIZE + (count - 1) * 16;
+            long home = buf.getLong(pos);
+            long copy = buf.getLong(pos + 8);
+            buf.putInt(8, count - 1);
+            doomed.count--;
+            if (doomedTable != null) {
+                doomedTable.remove(home);
+            }
+            if (older != null && !table(older).containsKey(home)) {
+                // The older snapshot read this block through the doomed one
+                append(older, home, copy);
+            } else {
+                // Owned blocks are never kept, so this really frees it
+                cache.forget(copy);
+                allocator.free(copy, 1);
+            }
+            done++;
+        }
+        if (doomed.head == 0) {
+            entries.remove(doomed);
+            tables.remove(doomed.epoch);
+            done++;
+            if (entries.isEmpty()) {
+                dropAll();
+            }
+        }
+        storeCatalog();
+        return done;
+    }
+
+    /**
+     * Where block index of the snapshot of epoch reads from now
+     */
+    long resolve(int epoch, long index) throws IOException {
+        for (Entry e : entries) {
+            if (e.epoch >= epoch) {
+                Long copy = table(e).get(index);
+                if (copy != null) {
+                    return copy;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Count a read-only mount of a snapshot, which it cannot be deleted
+     * under
+     */
+    void mount(int epoch) {
+        mounted.merge(epoch, 1, Integer::sum);
+    }
+
+    void unmount(int epoch) {
+        mounted.computeIfPresent(epoch, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /**
+     * Whether the committed content of block must be kept for a
+     * snapshot before it changes
+     */
+    boolean isProtected(long block) throws IOException {
+        return latestLive != 0 && !isTableBlock(block) && generation(block) <= latestLive;
+    }
+
+    /**
+     * Copy every protected dirty block's committed content to a block of
+     * the newest snapshot, and mark the block as changed in this epoch
+     *
+     * Called by the commit before the dirty blocks are journaled. The
+     * copies are new dirty metadata themselves, committed along with
+     * the rest; allocating them can dirty further protected blocks
+     * (bitmap), so this repeats until there are none.
+     *
+     * @return Blocks copied
+     */
+    int preserveDirty() throws IOException {
+        if (latestLive == 0) {
+            return 0;
+        }
+        Entry owner = entry(latestLive);
+        int copied = 0;
+        for (boolean again = true; again; ) {
+            again = false;
+            for (long block : cache.dirtyBlocks()) {
+                if (!isProtected(block)) {
+                    continue;
+                }
+                long copy = allocator.allocateOne(0);
+                cache.store().readBlock(block, cache.create(copy), IoScheduler.IoClass.INTERACTIVE);
+                setGeneration(copy, OWNED);
+                setGeneration(block, liveEpoch);
+                append(owner, block, copy);
+                copied++;
+                again = true;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Give a grown volume's new blocks generations (see
+     * VolumeFileSystem.grow())
+     */
+    void grow(long blockCount) throws IOException {
+        int blocks = dirBlocksFor(blockCount);
+        if (dirStart == 0 || blocks <= dirBlocks) {
+            return;
+        }
+        internal = true;
+        try {
+            Extent dir = allocator.allocate(dirStart, blocks);
+            if (dir.length < blocks) {
+                allocator.free(dir);
+                throw new IOException("No free run of " + blocks + " blocks for the snapshot table");
+            }
+            for (int b = 0; b < blocks; b++) {
+                byte[] data = cache.create(dir.start + b);
+                if (b < dirBlocks) {
+                    System.arraycopy(cache.get(dirStart + b), 0, data, 0, data.length);
+                }
+            }
+            for (int b = 0; b < dirBlocks; b++) {
+                cache.forget(dirStart + b);
+            }
+            allocator.free(dirStart, dirBlocks);
+            dirStart = dir.start;
+            dirBlocks = blocks;
+        } finally {
+            internal = false;
+        }
+        storeCatalog();
+    }
+
+    // ------------------------------------------------------------------------
+    // BlockAllocator.Keeper
+    // ------------------------------------------------------------------------
+
+    /**
+     * Hand a protected block over to the newest snapshot instead of
+     * freeing it
+     */
+    @Override
+    public boolean keep(long block) throws IOException {
+        if (internal || !isProtected(block)) {
+            return false;
+        }
+        // Whatever the cache holds for it is no longer the file system's
+        cache.forget(block);
+        setGeneration(block, OWNED);
+        append(entry(latestLive), block, block);
+        return true;
+    }
+
+    @Override
+    public void onAllocate(long start, int length) throws IOException {
+        if (internal || dirStart == 0) {
+            return;
+        }
+        for (long b = start; b < start + length; b++) {
+            setGeneration(b, liveEpoch);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Exception tables
+    // ------------------------------------------------------------------------
+
+    /**
+     * Record that the snapshot reads home from copy
+     */
+    private void append(Entry e, long home, long copy) throws IOException {
+        ByteBuffer buf = e.head == 0 ? null
+            : ByteBuffer.wrap(cache.getForWrite(e.head)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf == null || buf.getInt(8) == pairsPerBlock) {
+            long block = allocator.allocateOne(e.head == 0 ? 0 : e.head + 1);
+            setGeneration(block, OWNED);
+            buf = ByteBuffer.wrap(cache.create(block)).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putLong(0, e.head);
+            e.head = block;
+        }
+        int count = buf.getInt(8);
+        int pos = CHAIN_HEADER_SIZE + count * 16;
+        buf.putLong(pos, home);
+        buf.putLong(pos + 8, copy);
+        buf.putInt(8, count + 1);
+        e.count++;
+        Map<Long, Long> table = tables.get(e.epoch);
+        if (table != null) {
+            table.put(home, copy);
+        }
+        storeCatalog();
+    }
+
+    /**
+     * Exception table of a snapshot, read on first use
+     */
+    private Map<Long, Long> table(Entry e) throws IOException {
+        Map<Long, Long> table = tables.get(e.epoch);
+        if (table == null) {
+            table = new HashMap<>();
+            for (long b = e.head; b != 0; ) {
+                ByteBuffer buf = ByteBuffer.wrap(cache.get(b)).order(ByteOrder.LITTLE_ENDIAN);
+                int count = buf.getInt(8);
+                for (int i = 0; i < count; i++) {
+                    int pos = CHAIN_HEADER_SIZE + i * 16;
+                    table.putIfAbsent(buf.getLong(pos), buf.getLong(pos + 8));
+                }
+                b = buf.getLong(0);
+            }
+            tables.put(e.epoch, table);
+        }
+        return table;
+    }
+
+    // ------------------------------------------------------------------------
+    // Generation table
+    // ------------------------------------------------------------------------
+
+    private int dirBlocksFor(long blockCount) {
+        long genBlockCount = (blockCount + gensPerBlock - 1) / gensPerBlock;
+        return (int) Math.max(1, (genBlockCount + pointersPerBlock - 1) / pointersPerBlock);
+    }
+
+    private boolean isTableBlock(long block) {
+        return block == catalog || block >= dirStart && block < dirStart + dirBlocks
+            || genBlocks.contains(block);
+    }
+
+    private int generation(long block) throws IOException {
+        long genBlock = genBlock(block);
+        if (genBlock == 0) {
+            return 0;
+        }
+        return ByteBuffer.wrap(cache.get(genBlock)).order(ByteOrder.LITTLE_ENDIAN)
+            .getInt((int) (block % gensPerBlock) * 4);
+    }
+
+    private void setGeneration(long block, int generation) throws IOException {
+        long genBlock = genBlock(block);
+        if (genBlock == 0) {
+            if (generation == 0 || dirStart == 0) {
+                return;
+            }
+            long index = block / gensPerBlock;
+            boolean wasInternal = internal;
+            internal = true;
+            try {
+                genBlock = allocator.allocateOne(0);
+            } finally {
+                internal = wasInternal;
+            }
+            cache.create(genBlock);
+            genBlocks.add(genBlock);
+            ByteBuffer.wrap(cache.getForWrite(dirStart + index / pointersPerBlock)).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong((int) (index % pointersPerBlock) * 8, genBlock);
+        }
+        ByteBuffer.wrap(cache.getForWrite(genBlock)).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt((int) (block % gensPerBlock) * 4, generation);
+    }
+
+    /**
+     * Generation block covering block, 0 if there is none
+     */
+    private long genBlock(long block) throws IOException {
+        long index = block / gensPerBlock;
+        long d = index / pointersPerBlock;
+        if (dirStart == 0 || d >= dirBlocks) {
+            return 0;
+        }
+        return ByteBuffer.wrap(cache.get(dirStart + d)).order(ByteOrder.LITTLE_ENDIAN)
+            .getLong((int) (index % pointersPerBlock) * 8);
+    }
+
+    /**
+     * Free the generation table and the catalog (no snapshots are left)
+     */
+    private void dropAll() throws IOException {
+        for (long g : genBlocks) {
+            cache.forget(g);
+            allocator.free(g, 1);
+        }
+        genBlocks.clear();
+        for (int b = 0; b < dirBlocks; b++) {
+            cache.forget(dirStart + b);
+        }
+        allocator.free(dirStart, dirBlocks);
+        cache.forget(catalog);
+        allocator.free(catalog, 1);
+        catalog = 0;
+        dirStart = 0;
+        dirBlocks = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Catalog
+    // ------------------------------------------------------------------------
+
+    private Entry live(String name) throws IOException {
+        for (Entry e : entries) {
+            if (e.state == STATE_LIVE && e.name.equals(name)) {
+                return e;
+            }
+        }
+        throw new NoSuchFileException(name);
+    }
+
+    private Entry entry(int epoch) {
+        for (Entry e : entries) {
+            if (e.epoch == epoch) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("No snapshot of epoch " + epoch);
+    }
+
+    private void updateLatest() {
+        latestLive = 0;
+        for (Entry e : entries) {
+            if (e.state == STATE_LIVE) {
+                latestLive = e.epoch;
+            }
+        }
+    }
+
+    private void storeCatalog() throws IOException {
+        updateLatest();
+        if (catalog == 0) {
+            return;
+        }
+        byte[] data = cache.getForWrite(catalog);
+        Arrays.fill(data, (byte) 0);
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        buf.putInt(8, liveEpoch);
+        buf.putInt(12, entries.size());
+        buf.putLong(16, dirStart);
+        buf.putInt(24, dirBlocks);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            int pos = HEADER_SIZE + i * ENTRY_SIZE;
+            buf.putInt(pos, e.epoch);
+            buf.putInt(pos + 4, e.state);
+            buf.putLong(pos + 8, e.createdTime);
+            buf.putLong(pos + 16, e.head);
+            buf.putLong(pos + 24, e.count);
+            byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(name, 0, data, pos + 32, name.length);
+        }
+    }
+}
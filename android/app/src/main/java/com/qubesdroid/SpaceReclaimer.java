@@ -0,0 +1,154 @@
+package com.qubesdroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Returns the space of freed blocks to the host file system, and keeps
+ * files contiguous, while a volume is mounted
+ *
+ * Two periodic passes on one background thread:
+ * - Trim: VolumeFileSystem.trimFreed() trims what was freed since the
+ *   last pass, a batch at a time so the file system lock is taken only
+ *   briefly. A snapshot deletion cut short (by a crash or unmount) is
+ *   finished first, so the blocks it frees are trimmed too.
+ * - Compaction: a Defragmenter pass rewrites the most fragmented files
+ *   into contiguous runs, VolumeFileSystem.compact() moves small extents
+ *   towards the start of the volume with what is left of the budget,
+ *   then the whole free space is trimmed, which also catches blocks
+ *   freed before this mount
+ * All of their I/O is BACKGROUND. On a store that cannot trim only the
+ * defragmentation does anything. A pass that fails stops the reclaimer
+ * (the volume is most likely failing too); failure() tells why.
+ */
+final class SpaceReclaimer implements Closeable {
+
+    static final long TRIM_INTERVAL_MILLIS = 30_000;
+    static final long COMPACT_INTERVAL_MILLIS = 15 * 60_000;
+    /**
+     * Data a compaction pass moves at most, defragmentation included
+     */
+    static final long COMPACT_BYTES = 64L * 1024 * 1024;
+    private static final long TRIM_BATCH_BYTES = 16L * 1024 * 1024;
+
+    private final VolumeFileSystem fileSystem;
+    private final Defragmenter defragmenter;
+    private final long trimIntervalMillis;
+    private final long compactIntervalMillis;
+    private final long compactBlocks;
+    private final long trimBatch;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile IOException failure;
+
+    /**
+     * @param compactBlocks Blocks a compaction pass moves at most
+     */
+    SpaceReclaimer(VolumeFileSystem fileSystem, long trimIntervalMillis, long compactIntervalMillis,
+                   long compactBlocks) {
+        this.fileSystem = fileSystem;
+        this.defragmenter = Defragmenter.forVolume(fileSystem);
+        this.trimIntervalMillis = trimIntervalMillis;
+        this.compactIntervalMillis = compactIntervalMillis;
+        this.compactBlocks = compactBlocks;
+        this.trimBatch = Math.max(1, TRIM_BATCH_BYTES / fileSystem.blockSize());
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "qubesdroid-reclaim");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Reclaimer with the default intervals and compaction budget
+     */
+    static SpaceReclaimer forVolume(VolumeFileSystem fileSystem) {
+        return new SpaceReclaimer(fileSystem, TRIM_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS,
+            Math.max(1, COMPACT_BYTES / fileSystem.blockSize()));
+    }
+
+    /**
+     * Schedule both passes; the first compaction comes after one
+     * interval, not at mount
+     */
+    void start() {
+        executor.scheduleWithFixedDelay(() -> run(false), trimIntervalMillis, trimIntervalMillis,
+            TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(() -> run(true), compactIntervalMillis, compactIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finish pending snapshot deletions, then trim everything freed so
+     * far, on the calling thread
+     *
+     * @return Blocks trimmed
+     */
+    long trimPass() throws IOException {
+        while (!closed.get() && fileSystem.reclaimSnapshots(trimBatch) > 0) {
+            // One committed step per call
+        }
+        long total = 0;
+        for (long n; !closed.get() && (n = fileSystem.trimFreed(trimBatch)) > 0; ) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Defragment, compact, then trim the whole free space, on the calling
+     * thread
+     *
+     * @return Blocks moved
+     */
+    long compactPass() throws IOException {
+        long moved = defragmenter.defragment(compactBlocks, closed).blocksMoved;
+        moved += fileSystem.compact(compactBlocks - moved);
+        trimPass();
+        return moved;
+    }
+
+    /**
+     * Why the passes stopped, or null
+     */
+    IOException failure() {
+        return failure;
+    }
+
+    private void run(boolean compact) {
+        if (closed.get() || failure != null) {
+            return;
+        }
+        try {
+            if (compact) {
+                compactPass();
+            } else {
+                trimPass();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException("Space reclaim failed", e);
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stop the passes, waiting for one in progress
+     */
+    @Override
+    public void close() throws IOException {
+        closed.set(true);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping space reclaim");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Packs short file tails into shared tail blocks
+ *
+ * A tail block is split into UNIT-byte units. A fragment takes a run of
+ * whole units and is addressed as block * unitsPerBlock + firstUnit, the
+ * value VolumeFileSystem stores in the inode. Tail blocks are metadata:
+ * they live in the MetadataCache and are written with the operation that
+ * changed them, so editing a small file costs one share of a block write
+ * instead of a full block of its own.
+ *
+ * Tail block layout (little-endian):
+ * | Offset | Size | Field                                      |
+ * |--------|------|--------------------------------------------|
+ * | 0      | 4    | Units in use (including the header)        |
+ * | 4      | 4    | Reserved                                   |
+ * | 8      | n/8  | Unit bitmap (1 = in use)                   |
+ *
+ * New fragments go to the current tail block (recorded in the
+ * superblock), then to blocks this mount has seen free space in. A tail
+ * block whose last fragment is freed is returned to the allocator.
+ */
+final class TailPacker {
+
+    static final int UNIT = 256;
+    private static final int HEADER_FIXED = 8;
+    private static final int MAX_CANDIDATES = 8;
+    private static final int MAX_KNOWN = 256;
+
+    private final MetadataCache cache;
+    private final BlockAllocator allocator;
+    private final int unitsPerBlock;
+    private final int headerUnits;
+    private final LinkedHashSet<Long> withSpace = new LinkedHashSet<>();
+    private long current;
+
+    TailPacker(MetadataCache cache, BlockAllocator allocator, long current) {
+        this.cache = cache;
+        this.allocator = allocator;
+        this.unitsPerBlock = cache.store().blockSize() / UNIT;
+        this.headerUnits = (HEADER_FIXED + (unitsPerBlock + 7) / 8 + UNIT - 1) / UNIT;
+        this.current = current;
+    }
+
+    /**
+     * Largest tail worth packing for a block size (a quarter block)
+     */
+    static int maxTail(int blockSize) {
+        return blockSize / 4;
+    }
+
+    /**
+     * Tail block new fragments go to first (0 = none yet)
+     */
+    long currentBlock() {
+        return current;
+    }
+
+    /**
+     * Forget in-memory hints after a rollback
+     */
+    void reset(long current) {
+        this.current = current;
+        withSpace.clear();
+    }
+
+    /**
+     * Store a fragment
+     *
+     * @return Fragment address
+     */
+    long store(byte[] data, int len) throws IOException {
+        int need = unitsFor(len);
+        int tried = 0;
+        if (current != 0) {
+            long address = tryStore(current, data, len, need);
+            if (address >= 0) {
+                return address;
+            }
+            tried++;
+        }
+        for (Iterator<Long> it = withSpace.iterator(); it.hasNext() && tried < MAX_CANDIDATES; tried++) {
+            long block = it.next();
+            long address = tryStore(block, data, len, need);
+            if (address >= 0) {
+                return address;
+            }
+            it.remove();
+        }
+
+        long block = allocator.allocateOne(0);
+        byte[] blk = cache.create(block);
+        for (int u = 0; u < headerUnits; u++) {
+            blk[HEADER_FIXED + (u >>> 3)] |= (byte) (1 << (u & 7));
+        }
+        ByteBuffer.wrap(blk).order(ByteOrder.LITTLE_ENDIAN).putInt(0, headerUnits);
+        if (current != 0) {
+            remember(current);
+        }
+        current = block;
+        return tryStore(block, data, len, need);
+    }
+
+    void read(long address, byte[] dst, int off, int len) throws IOException {
+        byte[] blk = cache.get(address / unitsPerBlock);
+        System.arraycopy(blk, (int) (address % unitsPerBlock) * UNIT, dst, off, len);
+    }
+
+    void free(long address, int len) throws IOException {
+        long block = address / unitsPerBlock;
+        int first = (int) (address % unitsPerBlock);
+        int count = unitsFor(len);
+        byte[] blk = cache.getForWrite(block);
+        for (int u = first; u < first + count; u++) {
+            blk[HEADER_FIXED + (u >>> 3)] &= (byte) ~(1 << (u & 7));
+        }
+        Arrays.fill(blk, first * UNIT, (first + count) * UNIT, (byte) 0);
+        ByteBuffer buf = ByteBuffer.wrap(blk).order(ByteOrder.LITTLE_ENDIAN);
+        int used = buf.getInt(0) - count;
+        buf.putInt(0, used);
+        if (used == headerUnits && block != current) {
+            withSpace.remove(block);
+            cache.forget(block);
+            allocator.free(block, 1);
+        } else if (block != current) {
+            remember(block);
+        }
+    }
+
+    private long tryStore(long block, byte[] data, int len, int need) throws IOException {
+        byte[] blk = cache.get(block);
+        int run = 0;
+        for (int u = headerUnits; u < unitsPerBlock; u++) {
+            boolean used = (blk[HEADER_FIXED + (u >>> 3)] & (1 << (u & 7))) != 0;
+            run = used ? 0 : run + 1;
+            if (run == need) {
+                int first = u - need + 1;
+                blk = cache.getForWrite(block);
+                for (int v = first; v <= u; v++) {
+                    blk[HEADER_FIXED + (v >>> 3)] |= (byte) (1 << (v & 7));
+                }
+                ByteBuffer buf = ByteBuffer.wrap(blk).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(0, buf.getInt(0) + need);
+                System.arraycopy(data, 0, blk, first * UNIT, len);
+                return block * unitsPerBlock + first;
+            }
+        }
+        return -1;
+    }
+
+    private void remember(long block) {
+        withSpace.add(block);
+        if (withSpace.size() > MAX_KNOWN) {
+            Iterator<Long> it = withSpace.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static int unitsFor(int len) {
+        return Math.max(1, (len + UNIT - 1) / UNIT);
+    }
+}
@@ -0,0 +1,253 @@
+package com.qubesdroid;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide recorder of timed spans, the last CAPACITY of them, for a
+ * timeline of a slow mount or a stall
+ *
+ * | Span           | Around                                   | Arg     |
+ * |----------------|------------------------------------------|---------|
+ * | mount          | MountVolumeActivity, password to mounted | -       |
+ * | key_derivation | KeyVault.derive (Argon2id)               | -       |
+ * | header_parse   | VolumeHeader.read                        | -       |
+ * | key_unwrap     | KeyVault.unwrap                          | -       |
+ * | block_read     | BlockEngine.readBlock                    | block   |
+ * | block_write    | BlockEngine.writeBlock                   | block   |
+ * | cache_miss     | MetadataCache.get reading the store      | block   |
+ * | fsync          | BlockDevice.force                        | -       |
+ *
+ * A span is begin() and end() on one thread:
+ *
+ *     long span = Tracer.begin(Tracer.Span.BLOCK_READ);
+ *     ...
+ *     Tracer.end(Tracer.Span.BLOCK_READ, span, index);
+ *
+ * Spans land in a ring of preallocated primitive arrays, so recording
+ * allocates nothing; the oldest span is overwritten once the ring is
+ * full. Each slot is guarded by a sequence number (a seqlock): a writer
+ * claims the slot by swapping in the negated number of its span, fills
+ * it and publishes the number, and snapshot() skips a slot whose number
+ * changed while it was copied. A writer a whole ring behind finds its
+ * slot claimed or already holding a newer span and drops its own.
+ *
+ * Once mirrorToSystemTrace() is called (QubesDroidApplication does),
+ * every span is also an android.os.Trace section while the system trace
+ * is recording, so spans line up with the platform's in Perfetto.
+ * Without it the class touches no Android API, which keeps it usable in
+ * unit tests.
+ *
+ * The token begin() returns is the System.nanoTime() of the start with
+ * the low bit saying whether a Trace section was opened; off by at most
+ * a nanosecond, it doubles as the start time for Metrics.
+ */
+final class Tracer {
+
+    enum Span {
+        MOUNT("mount", null),
+        KEY_DERIVATION("key_derivation", null),
+        HEADER_PARSE("header_parse", null),
+        KEY_UNWRAP("key_unwrap", null),
+        BLOCK_READ("block_read", "block"),
+        BLOCK_WRITE("block_write", "block"),
+        CACHE_MISS("cache_miss", "block"),
+        FSYNC("fsync", null);
+
+        final String label;
+        // Name of the span's argument in the trace, null for none
+        final String argName;
+
+        Span(String label, String argName) {
+            this.label = label;
+            this.argName = argName;
+        }
+    }
+
+    static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final Span[] SPANS = Span.values();
+
+    private static final AtomicLong next = new AtomicLong();
+    // Per slot: 0 while empty, else the span's number + 1, negated while
+    // being written
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray starts = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray durations = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray threads = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray args = new AtomicLongArray(CAPACITY);
+    private static final AtomicIntegerArray kinds = new AtomicIntegerArray(CAPACITY);
+
+    private static volatile boolean mirror;
+
+    private Tracer() {
+    }
+
+    /**
+     * Also open an android.os.Trace section for every span while the
+     * system trace is recording
+     */
+    static void mirrorToSystemTrace() {
+        mirror = true;
+    }
+
+    /**
+     * Start a span
+     *
+     * @return Token to hand to end()
+     */
+    static long begin(Span span) {
+        long token = System.nanoTime() & ~1L;
+        if (mirror && systemTraceEnabled()) {
+            Trace.beginSection(span.label);
+            token |= 1;
+        }
+        return token;
+    }
+
+    static void end(Span span, long token) {
+        end(span, token, 0);
+    }
+
+    /**
+     * Finish a span begun on this thread and record it
+     *
+     * @param arg The span's argument (see Span.argName)
+     */
+    static void end(Span span, long token, long arg) {
+        long now = System.nanoTime();
+        if ((token & 1) != 0) {
+            Trace.endSection();
+        }
+        long start = token & ~1L;
+        long n = next.getAndIncrement();
+        int i = (int) (n & MASK);
+        long current = sequence.get(i);
+        if (current < 0 || current > n || !sequence.compareAndSet(i, current, -(n + 1))) {
+            return;
+        }
+        starts.set(i, start);
+        durations.set(i, now - start);
+        threads.set(i, Thread.currentThread().getId());
+        args.set(i, arg);
+        kinds.set(i, span.ordinal());
+        sequence.set(i, n + 1);
+    }
+
+    /**
+     * Forget every span recorded so far
+     */
+    static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequence.set(i, 0);
+        }
+    }
+
+    /**
+     * The spans in the ring, oldest first
+     */
+    static List<Record> snapshot() {
+        List<Record> records = new ArrayList<>();
+        long end = next.get();
+        for (long n = Math.max(0, end - CAPACITY); n < end; n++) {
+            int i = (int) (n & MASK);
+            if (sequence.get(i) != n + 1) {
+                continue;
+            }
+            Record r = new Record(SPANS[kinds.get(i)], starts.get(i), durations.get(i), threads.get(i),
+                args.get(i));
+            if (sequence.get(i) == n + 1) {
+                records.add(r);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * The spans in the ring as a Chrome trace-event file, for
+     * chrome://tracing or ui.perfetto.dev: one complete ("X") event per
+     * span, timestamps in microseconds of System.nanoTime(), and the
+     * name of every thread still alive
+     *
+     * @param pid Process id to file the events under
+     */
+    static String toChromeJson(List<Record> records, int pid) {
+        Map<Long, String> threadNames = new HashMap<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            threadNames.put(t.getId(), t.getName());
+        }
+
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [");
+        String sep = "\n";
+        Set<Long> named = new HashSet<>();
+        for (Record r : records) {
+            if (named.add(r.thread) && threadNames.containsKey(r.thread)) {
+                sb.append(sep).append(String.format(Locale.US,
+                    "{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": %d, \"tid\": %d, \"args\": {\"name\": \"%s\"}}",
+                    pid, r.thread, escape(threadNames.get(r.thread))));
+                sep = ",\n";
+            }
+            sb.append(sep).append(String.format(Locale.US,
+                "{\"name\": \"%s\", \"cat\": \"qubesdroid\", \"ph\": \"X\", \"ts\": %.3f, \"dur\": %.3f, "
+                    + "\"pid\": %d, \"tid\": %d",
+                r.span.label, r.startNanos / 1e3, r.durationNanos / 1e3, pid, r.thread));
+            if (r.span.argName != null) {
+                sb.append(", \"args\": {\"").append(r.span.argName).append("\": ").append(r.arg).append('}');
+            }
+            sb.append('}');
+            sep = ",\n";
+        }
+        return sb.append("\n]}\n").toString();
+    }
+
+    private static boolean systemTraceEnabled() {
+        // Before Q, beginSection() checks for itself and costs about as
+        // much as the check would
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || Trace.isEnabled();
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One recorded span
+     */
+    static final class Record {
+        final Span span;
+        final long startNanos;
+        final long durationNanos;
+        final long thread;
+        final long arg;
+
+        Record(Span span, long startNanos, long durationNanos, long thread, long arg) {
+            this.span = span;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.thread = thread;
+            this.arg = arg;
+        }
+    }
+}
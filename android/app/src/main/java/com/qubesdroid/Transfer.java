@@ -0,0 +1,43 @@
+package com.qubesdroid;
+
+/**
+ * Progress reporting shared by FileImporter and FileExporter
+ */
+final class Transfer {
+
+    static final long PROGRESS_INTERVAL_NANOS = 250_000_000L;
+
+    private Transfer() {
+    }
+
+    /**
+     * Progress callback, invoked on the transferring thread
+     */
+    interface Listener {
+        /**
+         * @param bytesDone Bytes moved so far
+         * @param bytesTotal Expected size, or -1 if unknown
+         * @param bytesPerSecond Average throughput since the start
+         */
+        void onProgress(long bytesDone, long bytesTotal, double bytesPerSecond);
+    }
+
+    /**
+     * Outcome of a completed transfer
+     */
+    static final class Result {
+        final long inode;
+        final long bytes;
+        final long nanos;
+
+        Result(long inode, long bytes, long nanos) {
+            this.inode = inode;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.qubesdroid;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.FileObserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Known volumes and what their headers say, kept in a file so the home
+ * screen lists them without opening any
+ *
+ * The volumes are the .qd files in a set of root directories (the
+ * "volumes" directory of every storage location the app has). Each one
+ * is recorded with what its header tells (creation time, version, block
+ * geometry, compression) and a fingerprint of the header, along with the
+ * size and modification time it had when the header was read:
+ * - start() loads the stored catalog and hands it to the listeners
+ *   first, then lists the roots and reads the header only of volumes
+ *   that are new or whose size or modification time changed; anything
+ *   gone is dropped
+ * - While started, a FileObserver per root applies each creation,
+ *   write, move or deletion of a .qd file as it happens
+ * - A volume is looked at again before it is used (validate()), by the
+ *   same size and time test
+ * All of it runs on one background thread; listeners are called there
+ * with the whole list after every change, and the file is rewritten
+ * (next to it, then renamed over it).
+ *
+ * A header only needs to be read again when the volume was written, and
+ * a file that stops being a volume is dropped. The fingerprint is a
+ * SHA-256 prefix of the header fields with the integrity root MAC zeroed,
+ * since every mount rewrites that field; it changes with the salt, the
+ * wrapped key or the geometry (key rotation, expansion, upgrade).
+ *
+ * Stored catalog (DataOutputStream, big-endian):
+ * | Field                  | Size     |                              |
+ * |------------------------|----------|------------------------------|
+ * | Magic "QDCATLG1"       | 8        |                              |
+ * | Version (1)            | 4        |                              |
+ * | Entry count            | 4        |                              |
+ * | Per entry: path        | UTF      | absolute                     |
+ * | size, mtime            | 8 + 8    | when the header was read     |
+ * | creation time          | 8        | header, seconds since epoch  |
+ * | version, block size    | 4 + 4    | header                       |
+ * | block count            | 8        | -1 for v1                    |
+ * | compression            | 1        | Compression id               |
+ * | fingerprint            | 16       |                              |
+ */
+final class VolumeCatalog {
+
+    static final String EXTENSION = ".qd";
+    static final int FINGERPRINT_SIZE = 16;
+    private static final byte[] MAGIC = "QDCATLG1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+        | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    /**
+     * One volume as the catalog knows it
+     */
+    static final class Entry {
+        final File file;
+        final long size;
+        final long modifiedTime;
+        final long createdTime;
+        final int version;
+        final int blockSize;
+        final long blockCount;
+        final int compression;
+        final byte[] fingerprint;
+
+        Entry(File file, long size, long modifiedTime, long createdTime, int version, int blockSize,
+              long blockCount, int compression, byte[] fingerprint) {
+            this.file = file;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.createdTime = createdTime;
+            this.version = version;
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            this.compression = compression;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Whether the file still has the size and time this entry was
+         * read at
+         */
+        boolean isCurrent() {
+            return file.length() == size && file.lastModified() == modifiedTime;
+        }
+
+        String name() {
+            String name = file.getName();
+            return name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+        }
+    }
+
+    /**
+     * Told about the whole list after every change, on the catalog thread
+     * (see addListener())
+     */
+    interface Listener {
+        void onVolumesChanged(List<Entry> volumes);
+    }
+
+    private static VolumeCatalog instance;
+
+    private final File store;
+    private final List<File> roots;
+    private final ExecutorService executor;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<FileObserver> observers = new ArrayList<>();
+    // Owned by the catalog thread (or the caller, in tests)
+    private final Map<String, Entry> entries = new HashMap<>();
+    private volatile List<Entry> published = Collections.emptyList();
+    // One header buffer and digest for every header read
+    private final VolumeHeader header = VolumeHeader.of(ByteBuffer.allocateDirect(VolumeHeader.FIELDS_END));
+    private final MessageDigest sha256;
+    private boolean started;
+    private long headerReads;
+
+    /**
+     * @param store File the catalog is kept in
+     * @param roots Directories whose .qd files are the volumes
+     */
+    VolumeCatalog(File store, List<File> roots) {
+        this.store = store;
+        this.roots = new ArrayList<>(roots);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "qubesdroid-catalog");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * The app's catalog, over the "volumes" directory of every storage
+     * location; started on first use
+     */
+    static synchronized VolumeCatalog forApp(Context context) {
+        if (instance == null) {
+            List<File> roots = new ArrayList<>();
+            for (File dir : context.getExternalFilesDirs(null)) {
+                // Null for a storage location that is not mounted
+                if (dir != null) {
+                    roots.add(new File(dir, "volumes"));
+                }
+            }
+            instance = new VolumeCatalog(new File(context.getFilesDir(), "volume_catalog"), roots);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Be told about the list, starting with the current one on the
+     * calling thread
+     */
+    void addListener(Listener listener) {
+        listeners.add(listener);
+        listener.onVolumesChanged(published);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The volumes as last published, newest first; may lag the roots
+     * until start() has reconciled them
+     */
+    List<Entry> volumes() {
+        return published;
+    }
+
+    /**
+     * Load, reconcile and watch the roots, on the catalog thread (see
+     * class comment)
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        executor.execute(() -> {
+            load();
+            watch();
+            reconcile();
+        });
+    }
+
+    /**
+     * Reconcile again on the catalog thread, for changes the observers
+     * cannot see (a storage location mounted, missed events)
+     */
+    void rescan() {
+        executor.execute(this::reconcile);
+    }
+
+    /**
+     * Check one volume again on the catalog thread, reading its header if
+     * it changed, before it is used
+     */
+    void validate(File file) {
+        executor.execute(() -> refresh(file));
+    }
+
+    // ------------------------------------------------------------------------
+    // Catalog thread (called directly by tests)
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read the stored catalog and publish it as is; a missing or damaged
+     * file gives an empty catalog, which reconcile() fills
+     */
+    void load() {
+        entries.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(store)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw new IOException("Not a volume catalog");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(in.readUTF());
+                long size = in.readLong();
+                long modifiedTime = in.readLong();
+                long createdTime = in.readLong();
+                int version = in.readInt();
+                int blockSize = in.readInt();
+                long blockCount = in.readLong();
+                int compression = in.readUnsignedByte();
+                byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+                in.readFully(fingerprint);
+                entries.put(file.getPath(), new Entry(file, size, modifiedTime, createdTime, version, blockSize,
+                    blockCount, compression, fingerprint));
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+        publish();
+    }
+
+    /**
+     * List the roots: read the header of volumes new or changed since
+     * the catalog last saw them, drop the ones gone
+     *
+     * @return Whether anything changed
+     */
+    boolean reconcile() {
+        Set<String> seen = new HashSet<>();
+        boolean changed = false;
+        for (File root : roots) {
+            File[] files = root.listFiles((dir, name) -> name.endsWith(EXTENSION));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                seen.add(file.getPath());
+                changed |= update(file);
+            }
+        }
+        changed |= entries.keySet().retainAll(seen);
+        if (changed) {
+            commit();
+        }
+        return changed;
+    }
+
+    /**
+     * Apply a FileObserver event of root (see class comment)
+     */
+    void onFileEvent(File root, int event, String name) {
+        if (name == null || !name.endsWith(EXTENSION)) {
+            return;
+        }
+        File file = new File(root, name);
+        boolean changed;
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            changed = entries.remove(file.getPath()) != null;
+        } else {
+            changed = update(file);
+        }
+        if (changed) {
+            commit();
+        }
+    }
+
+    /**
+     * Bring the entry of one file up to date; files outside the roots
+     * (e.g. a picked copy) are not catalogued
+     */
+    void refresh(File file) {
+        if (roots.contains(file.getParentFile()) && update(file)) {
+            commit();
+        }
+    }
+
+    /**
+     * Headers read since the catalog was created, for measurement
+     */
+    long headerReads() {
+        return headerReads;
+    }
+
+    /**
+     * Stop watching the roots
+     */
+    void close() {
+        executor.execute(() -> {
+            for (FileObserver observer : observers) {
+                observer.stopWatching();
+            }
+            observers.clear();
+        });
+        executor.shutdown();
+    }
+
+    // ------------------------------------------------------------------------
+    // Internals
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return Whether the entry of file changed
+     */
+    private boolean update(File file) {
+        Entry known = entries.get(file.getPath());
+        if (known != null && known.isCurrent()) {
+            return false;
+        }
+        Entry entry = readEntry(file);
+        headerReads++;
+        if (entry == null) {
+            return entries.remove(file.getPath()) != null;
+        }
+        entries.put(file.getPath(), entry);
+        return true;
+    }
+
+    /**
+     * Entry of file from its header, or null if it is not a volume
+     */
+    private Entry readEntry(File file) {
+        long size = file.length();
+        long modifiedTime = file.lastModified();
+        try (FileInputStream in = new FileInputStream(file)) {
+            header.readFrom(in.getChannel());
+            header.check();
+        } catch (IOException e) {
+            return null;
+        }
+        header.digestFields(sha256);
+        return new Entry(file, size, modifiedTime, header.createdTime(), header.version(), header.blockSize(),
+            header.blockCount(), header.compressionId(), Arrays.copyOf(sha256.digest(), FINGERPRINT_SIZE));
+    }
+
+    private void watch() {
+        for (File root : roots) {
+            root.mkdirs();
+            FileObserver observer = observe(root,
+                (path, event) -> executor.execute(() -> onFileEvent(root, event, path)));
+            observer.startWatching();
+            observers.add(observer);
+        }
+    }
+
+    /**
+     * Observer of OBSERVED_EVENTS in root, handing each to listener on
+     * the observer's thread
+     */
+    private static FileObserver observe(File root, ObjIntConsumer<String> listener) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return observeLegacy(root, listener);
+        }
+        return new FileObserver(root, OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                listener.accept(path, event);
+            }
+        };
+    }
+
+    // FileObserver(File, int) is API 29
+    @SuppressWarnings("deprecation")
+    private static FileObserver observeLegacy(File root, ObjIntConsumer<String> listener) {
+        return new FileObserver(root.getPath(), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                listener.accept(path, event);
+            }
+        };
+    }
+
+    private void commit() {
+        publish();
+        try {
+            save();
+        } catch (IOException e) {
+            // Only costs header reads at the next start
+            android.util.Log.w("QubesDroid", "Saving the volume catalog failed", e);
+        }
+    }
+
+    private void publish() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> Long.compare(b.modifiedTime, a.modifiedTime));
+        published = Collections.unmodifiableList(list);
+        for (Listener listener : listeners) {
+            listener.onVolumesChanged(published);
+        }
+    }
+
+    private void save() throws IOException {
+        File temp = new File(store.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeUTF(e.file.getPath());
+                out.writeLong(e.size);
+                out.writeLong(e.modifiedTime);
+                out.writeLong(e.createdTime);
+                out.writeInt(e.version);
+                out.writeInt(e.blockSize);
+                out.writeLong(e.blockCount);
+                out.writeByte(e.compression);
+                out.write(e.fingerprint);
+            }
+        }
+        Files.move(temp.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,272 @@
+package com.qubesdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Grows a v2 volume in place by appending blocks
+ *
+ * The metadata region of a v2 volume can have room for more entries than
+ * the volume has blocks: its metadata capacity, METADATA_HEADROOM entries
+ * per block on volumes created since expansion exists (or rewritten by
+ * it), and otherwise whatever the alignment of the data region leaves.
+ * Blocks up to that room go after the last one without moving anything,
+ * so growing a volume costs the new blocks only:
+ * 1. The integrity tree is opened (checked against the header MAC) and
+ *    grown, with every stored node checked
+ * 2. The file is extended and a pool of workers writes a sealed zero
+ *    block to every new slot, each tag going into the grown tree
+ * 3. The new block count is written to the header in one 8-byte write,
+ *    which commits the expansion; the root MAC of the grown tree and the
+ *    volume size field follow
+ * 4. Closing the engine stores the grown tree
+ * The file system takes in the new blocks the next time it is mounted
+ * (VolumeFileSystem.grow()), in one journaled transaction.
+ *
+ * An expansion cut short before step 3 leaves the volume at its old size
+ * in a longer file, with its old blocks and root MAC: the next mount
+ * rebuilds the tree from the tags on disk and the next dismount trims the
+ * file. One cut short after the root MAC leaves a volume whose new
+ * blocks are all written, mounted the same way. A crash between the
+ * block count and the root MAC leaves a MAC for the old size, which the
+ * next mount refuses until the user accepts the volume (IntegrityTree).
+ *
+ * A volume without the room is first rewritten next to the original with
+ * room for METADATA_HEADROOM times the new block count. Like a v1 upgrade
+ * (VolumeMigrator) this moves sealed slots without a key, is renamed over
+ * the original once complete and needs space for a second copy; with the
+ * headroom it happens at most once per fourfold growth.
+ *
+ * Only v2 volumes record a block count (upgrade v1 first), and a volume
+ * with a key rotation in progress is not expanded until it finishes.
+ *
+ * Header fields (little-endian):
+ * | Offset | Size | Field                                             |
+ * |--------|------|---------------------------------------------------|
+ * | 16     | 8    | Volume size, grown by the bytes of the new blocks |
+ * | 1656   | 8    | Block count                                       |
+ * | 1792   | 8    | Metadata capacity: entries the metadata region    |
+ * |        |      | has room for (0 = the block count)                |
+ */
+final class VolumeExpander {
+
+    static final int METADATA_CAPACITY_OFFSET = VolumeHeader.METADATA_CAPACITY_OFFSET;
+    /**
+     * End of the v2 header fields read at mount
+     */
+    static final int HEADER_FIELDS_END = VolumeHeader.FIELDS_END;
+    /**
+     * Metadata entries reserved per block; the entries past the block
+     * count are never written, so on file systems with sparse files the
+     * reserve takes no space
+     */
+    static final int METADATA_HEADROOM = 4;
+
+    private VolumeExpander() {
+    }
+
+    /**
+     * Grow the closed volume in file to blockCount blocks
+     *
+     * @param masterKey Unwrapped master key (not kept)
+     * @param progress Told about the slots copied by a rewrite, then the
+     *                 new blocks written, or null
+     * @throws IOException if the volume cannot grow (see class comment) or
+     *                     the expansion fails
+     */
+    static void expand(File file, long blockCount, CryptoNative crypto, KeyHandle masterKey,
+                       VolumeMigrator.Progress progress) throws IOException {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        expand(file, blockCount, BlockEngine.nativeAead(crypto), IntegrityTree.nativeHasher(crypto),
+            masterKey, workers, progress);
+    }
+
+    /**
+     * Grow the closed volume in file to blockCount blocks, sealing the new
+     * ones on workerCount threads
+     */
+    static void expand(File file, long blockCount, BlockEngine.Aead aead, IntegrityTree.Hasher hasher,
+                       KeyHandle masterKey, int workerCount, VolumeMigrator.Progress progress)
+            throws IOException {
+        VolumeHeader header = readHeader(file);
+        int blockSize = header.blockSize();
+        long oldCount = header.blockCount();
+        long capacity = header.metadataCapacity();
+        Compression compression = header.compression();
+        if (oldCount < 0 || capacity < 0) {
+            throw new IOException("Unsupported v2 geometry: block size " + blockSize + ", "
+                + oldCount + " blocks");
+        }
+        if (blockCount <= oldCount) {
+            throw new IOException("Volume already has " + oldCount + " blocks");
+        }
+        BlockDevice.Layout layout = compression.layout();
+
+        long room;
+        try (BlockDevice device = BlockDevice.openAligned(file, VolumeMigrator.V2_HEADER_SIZE, blockSize,
+                layout, oldCount, capacity, true)) {
+            room = device.metadataRoom();
+        }
+        if (blockCount > room) {
+            capacity = blockCount * METADATA_HEADROOM;
+            rewrite(file, header, blockSize, layout, oldCount, capacity, progress);
+        }
+
+        IntegrityTree tree;
+        ByteBuffer oldMac = ByteBuffer.allocate(IntegrityTree.HASH_SIZE);
+        try (BlockDevice device = BlockDevice.openAligned(file, VolumeMigrator.V2_HEADER_SIZE, blockSize,
+                layout, oldCount, capacity, true)) {
+            device.readAt(IntegrityTree.HEADER_ROOT_OFFSET, oldMac);
+            IntegrityTree old = IntegrityTree.open(device, hasher, masterKey);
+            try {
+                tree = old.grow(blockCount);
+            } finally {
+                old.close();
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(BlockDevice.alignedAreaEnd(VolumeMigrator.V2_HEADER_SIZE, blockSize, blockCount, capacity));
+        }
+
+        BlockDevice device = BlockDevice.openAligned(file, VolumeMigrator.V2_HEADER_SIZE, blockSize,
+            layout, blockCount, capacity, false);
+        boolean committed = false;
+        try {
+            try (BlockEngine engine = new BlockEngine(new IoScheduler(device), aead, masterKey, tree, compression)) {
+                writeZeros(engine, oldCount, workerCount, progress);
+                // The header keeps the old root MAC until the commit
+                engine.scheduler().flush();
+
+                ByteBuffer field = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                field.putLong(0, blockCount);
+                device.writeAt(VolumeHeader.BLOCK_COUNT_OFFSET, field);
+                device.force();
+                committed = true;
+                engine.flush();
+                field.clear();
+                field.putLong(0, header.volumeSize() + (blockCount - oldCount) * blockSize);
+                device.writeAt(VolumeHeader.VOLUME_SIZE_OFFSET, field);
+                device.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!committed) {
+                // Closing the engine checkpointed the grown tree, which the old size does not have
+                oldMac.clear();
+                device.writeAt(IntegrityTree.HEADER_ROOT_OFFSET, oldMac);
+                device.force();
+            }
+            throw e;
+        } finally {
+            device.close();
+        }
+    }
+
+    /**
+     * Write a sealed zero block to every block from first on
+     *
+     * Workers take a scheduler merge of blocks at a time, seal them and
+     * queue their writes together, so each one becomes a single large
+     * write.
+     */
+    private static void writeZeros(BlockEngine engine, long first, int workerCount,
+                                   VolumeMigrator.Progress progress) throws IOException {
+        long end = engine.blockCount();
+        int run = IoScheduler.mergeBlocks(engine.blockSize());
+        AtomicLong next = new AtomicLong(first);
+        AtomicLong done = new AtomicLong(first);
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "qubesdroid-expand");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            CompletableFuture<?>[] tasks = new CompletableFuture<?>[workerCount];
+            for (int w = 0; w < workerCount; w++) {
+                tasks[w] = CompletableFuture.runAsync(() -> {
+                    byte[] zeros = new byte[engine.blockSize()];
+                    CompletableFuture<?>[] writes = new CompletableFuture<?>[run];
+                    try {
+                        for (long start = next.getAndAdd(run); start < end; start = next.getAndAdd(run)) {
+                            int count = (int) Math.min(run, end - start);
+                            for (int i = 0; i < count; i++) {
+                                writes[i] = engine.writeSealed(start + i, engine.seal(start + i, zeros),
+                                    IoScheduler.IoClass.BULK);
+                            }
+                            IoScheduler.await(CompletableFuture.allOf(Arrays.copyOf(writes, count)));
+                            long total = done.addAndGet(count);
+                            if (progress != null) {
+                                synchronized (done) {
+                                    progress.onProgress(total, end);
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Stop the other workers at their next run
+                        next.set(end);
+                        throw new UncheckedIOException(e);
+                    }
+                }, workers);
+            }
+            IoScheduler.await(CompletableFuture.allOf(tasks));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Copy the volume to a file with room for capacity metadata entries
+     * and rename it over the original (see class comment)
+     */
+    private static void rewrite(File file, VolumeHeader header, int blockSize, BlockDevice.Layout layout,
+                                long blockCount, long capacity, VolumeMigrator.Progress progress)
+            throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".growtmp");
+        boolean done = false;
+        try (BlockDevice from = BlockDevice.openAligned(file, VolumeMigrator.V2_HEADER_SIZE, blockSize, layout,
+                blockCount, header.metadataCapacity(), true)) {
+            VolumeHeader copy = header.copy(VolumeMigrator.V2_HEADER_SIZE).metadataCapacity(capacity);
+            Files.deleteIfExists(temp.toPath());
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.write(copy.buffer().array());
+                raf.setLength(BlockDevice.alignedAreaEnd(VolumeMigrator.V2_HEADER_SIZE, blockSize,
+                    blockCount, capacity));
+            }
+
+            try (BlockDevice to = BlockDevice.openAligned(temp, VolumeMigrator.V2_HEADER_SIZE, blockSize,
+                    layout, blockCount, capacity, false)) {
+                VolumeMigrator.copySlots(from, to, progress);
+                IntegrityTree.copyStored(from, to);
+                to.force();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static VolumeHeader readHeader(File file) throws IOException {
+        VolumeHeader header = VolumeHeader.read(file);
+        if (!header.isAligned()) {
+            throw new IOException("Expansion needs the v2 volume layout; upgrade the volume first");
+        }
+        if (header.rotationState() != VolumeHeader.ROTATION_NONE) {
+            throw new IOException("Finish the key rotation before expanding the volume");
+        }
+        return header;
+    }
+}
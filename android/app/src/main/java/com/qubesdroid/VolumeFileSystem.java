@@ -0,0 +1,1837 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Encrypted file system stored inside the volume's blocks
+ *
+ * Block layout (plaintext block indices of the BlockStore):
+ * - Block 0: superblock, which also holds the inode of the inode table
+ * - Blocks 1..n: free-space bitmap (BlockAllocator), unless the volume
+ *   was expanded past what those blocks cover (see grow())
+ * - Next: metadata journal region (Journal), sized by Journal.blocksFor()
+ * - Everything else is allocated on demand: inode table blocks, directory
+ *   B-tree nodes (DirectoryBTree), extent overflow blocks, shared tail
+ *   blocks (TailPacker) and file data
+ *
+ * Superblock layout (little-endian):
+ * | Offset | Size | Field                                      |
+ * |--------|------|--------------------------------------------|
+ * | 0      | 8    | Magic "QDROIDFS"                           |
+ * | 8      | 4    | Version (1)                                |
+ * | 12     | 4    | Block size                                 |
+ * | 16     | 8    | Block count (at most the store's)          |
+ * | 24     | 8    | First bitmap block                         |
+ * | 32     | 8    | Inode slots in the inode table             |
+ * | 40     | 8    | Inode high-water mark (next unused slot)   |
+ * | 48     | 8    | Head of the free inode list (0 = empty)    |
+ * | 56     | 8    | Current tail block (TailPacker, 0 = none)  |
+ * | 64     | 8    | First journal block (0 = no journal)       |
+ * | 72     | 8    | Journal blocks                             |
+ * | 80     | 8    | Snapshot catalog (SnapshotTable, 0 = none) |
+ * | 512    | 512  | Inode 0: the inode table file              |
+ *
+ * The inode table is itself an extent-mapped file that grows one block at
+ * a time, so small volumes do not pay for a large fixed table. Inode 1 is
+ * the root directory.
+ *
+ * Small files do not get data blocks of their own. Files of up to
+ * Inode.INLINE_CAPACITY bytes are stored in their inode, and a final
+ * partial block of up to a quarter block is packed with other files'
+ * tails into shared tail blocks. Both live in metadata blocks, so
+ * thousands of small files share a handful of block writes.
+ *
+ * Every mutating call runs as one operation: metadata changes collect in
+ * the MetadataCache and are committed together: logged to the Journal
+ * and flushed, then written in place. If the operation fails, the dirty
+ * blocks are dropped and the in-memory state is reloaded, so a failed
+ * call leaves no partial metadata behind, and a crash at any point
+ * leaves the last commit intact once the journal is replayed on mount.
+ * How many operations go into one commit is the mount's Durability.
+ *
+ * Between beginBatch() and endBatch(), and under GROUP_COMMIT or LAZY
+ * durability, operations are deferred: each one only updates the cache
+ * (a failed one is undone through a MetadataCache savepoint), and the
+ * next commit takes everything changed since the last one. A crash loses
+ * the uncommitted group but never leaves it half applied.
+ *
+ * Freed blocks are given back to the host file system by trimFreed(),
+ * once the operation that freed them is committed (a crash must find
+ * the old blocks intact), and on close. compact() moves small extents
+ * from the end of the volume into free runs nearer the start, so the
+ * free space collects in long runs that trim into large holes. Both are
+ * driven by a SpaceReclaimer while the volume is mounted.
+ *
+ * defragment() rewrites a fragmented file into one contiguous run a step
+ * at a time, so its sequential reads merge into large host I/Os again;
+ * fragmentedFiles() picks the files most worth it (see Defragmenter).
+ *
+ * createSnapshot() takes a copy-on-write snapshot of the committed state
+ * (see SnapshotTable): from then on, blocks it still reads are copied or
+ * handed over to it instead of being overwritten or freed, file data by
+ * writing changed blocks elsewhere. openSnapshot() mounts one read-only,
+ * and deleteSnapshot() frees what only it held. Compaction and
+ * defragmentation pause while snapshots exist, as moving a shared block
+ * would duplicate it.
+ */
+final class VolumeFileSystem {
+
+    static final long ROOT_INODE = 1;
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "QDROIDFS".getBytes(StandardCharsets.US_ASCII);
+    private static final long SUPERBLOCK = 0;
+    private static final long BITMAP_START = 1;
+    private static final int INODE_TABLE_OFFSET = 512;
+    private static final int OVERFLOW_HEADER_SIZE = 16;
+    private static final int CACHE_BYTES = 8 * 1024 * 1024;
+    /**
+     * Largest extent compact() moves; longer ones stay where they are
+     */
+    static final int COMPACT_MAX_EXTENT_BYTES = 4 * 1024 * 1024;
+    /**
+     * File data one defragmentation step moves and commits
+     */
+    static final int DEFRAG_STEP_BYTES = 4 * 1024 * 1024;
+
+    private final BlockStore store;
+    private final MetadataCache cache;
+    private final BlockAllocator allocator;
+    private final DirectoryBTree directories;
+    private final TailPacker tails;
+    private final SnapshotTable snapshots;
+    private final int blockSize;
+    private final int inodesPerBlock;
+
+    private Inode inodeTable;
+    private long inodeSlots;
+    private long inodeHighWater;
+    private long freeInodeHead;
+    private boolean batching;
+
+    private final Durability durability;
+    private Journal journal;
+    private long journalStart;
+    private long journalBlocks;
+    private int uncommittedOps;
+    private long firstUncommittedNanos;
+    // File data written in place since the last commit
+    private boolean dataWritten;
+    private ScheduledExecutorService commitTimer;
+    private IOException deferredFailure;
+    // Mounted by openSnapshot(): no writes, snapshotView released on close
+    private boolean readOnly;
+    private SnapshotStore snapshotView;
+
+    private VolumeFileSystem(BlockStore store, MetadataCache cache, BlockAllocator allocator,
+                             Durability durability) {
+        this.store = store;
+        this.durability = durability;
+        this.cache = cache;
+        this.allocator = allocator;
+        this.directories = new DirectoryBTree(cache, allocator);
+        this.tails = new TailPacker(cache, allocator, 0);
+        this.snapshots = new SnapshotTable(cache, allocator);
+        allocator.setKeeper(snapshots);
+        this.blockSize = store.blockSize();
+        this.inodesPerBlock = blockSize / Inode.SIZE;
+    }
+
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    // ------------------------------------------------------------------------
+    // Format and mount
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create an empty file system (root directory only) on the store
+     */
+    static void format(BlockStore store) throws IOException {
+        long blockCount = store.blockCount();
+        long bitmapBlocks = BlockAllocator.bitmapBlocks(blockCount, store.blockSize());
+        if (blockCount < BITMAP_START + bitmapBlocks + 2) {
+            throw new IOException("Volume too small for a file system");
+        }
+
+        MetadataCache cache = new MetadataCache(store, cacheCapacity(store));
+        cache.create(SUPERBLOCK);
+        for (long b = 0; b < bitmapBlocks; b++) {
+            cache.create(BITMAP_START + b);
+        }
+        BlockAllocator allocator = new BlockAllocator(cache, BITMAP_START, blockCount);
+        allocator.markAllocated(0, (int) (BITMAP_START + bitmapBlocks));
+
+        VolumeFileSystem fs = new VolumeFileSystem(store, cache, allocator, Durability.STRICT);
+        int journalBlocks = Journal.blocksFor(blockCount, store.blockSize());
+        if (journalBlocks > 0) {
+            fs.journalStart = BITMAP_START + bitmapBlocks;
+            fs.journalBlocks = journalBlocks;
+            allocator.markAllocated(fs.journalStart, journalBlocks);
+        }
+        fs.inodeTable = new Inode(0);
+        fs.inodeTable.type = Inode.TYPE_FILE;
+        fs.inodeHighWater = ROOT_INODE;
+
+        long now = System.currentTimeMillis();
+        Inode root = new Inode(fs.allocateInode());
+        root.type = Inode.TYPE_DIRECTORY;
+        root.createdTime = now;
+        root.modifiedTime = now;
+        root.parentOrNextFree = ROOT_INODE;
+        fs.storeInode(root);
+        fs.commit();
+        if (journalBlocks > 0) {
+            Journal.create(store, fs.journalStart, journalBlocks);
+        }
+    }
+
+    /**
+     * Open the file system on a formatted store with STRICT durability
+     *
+     * @throws IOException if block 0 does not hold a valid superblock
+     */
+    static VolumeFileSystem mount(BlockStore store) throws IOException {
+        return mount(store, Durability.STRICT);
+    }
+
+    /**
+     * Open the file system on a formatted store, replaying its journal
+     *
+     * A file system formatted before journaling gets a journal now if
+     * there is room for one.
+     *
+     * @throws IOException if block 0 does not hold a valid superblock
+     */
+    static VolumeFileSystem mount(BlockStore store, Durability durability) throws IOException {
+        Journal journal = replayJournal(store);
+        VolumeFileSystem fs = open(store, durability, false);
+        if (journal == null) {
+            fs.addJournal();
+        } else {
+            fs.journal = journal;
+        }
+        if (fs.journal != null) {
+            fs.allocator.setFreeListener(fs.journal);
+        }
+        if (fs.allocator.blockCount() < store.blockCount()) {
+            // Expanded, possibly by a run that stopped before this step
+            fs.grow();
+        }
+        if (durability.mode == Durability.Mode.GROUP_COMMIT) {
+            fs.startCommitTimer();
+        }
+        return fs;
+    }
+
+    /**
+     * Read the superblock and the bitmap of a store whose journal needs
+     * no replay
+     *
+     * @param readOnly For a snapshot (see openSnapshot()): its own
+     *                 snapshot catalog is not loaded
+     */
+    private static VolumeFileSystem open(BlockStore store, Durability durability, boolean readOnly)
+            throws IOException {
+        MetadataCache cache = new MetadataCache(store, cacheCapacity(store));
+        cache.pin(SUPERBLOCK);
+        byte[] sb = cache.get(SUPERBLOCK);
+        if (!Arrays.equals(Arrays.copyOf(sb, MAGIC.length), MAGIC)) {
+            throw new IOException("No file system on volume");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb).order(ByteOrder.LITTLE_ENDIAN);
+        int version = buf.getInt(8);
+        if (version != VERSION) {
+            throw new IOException("Unsupported file system version: " + version);
+        }
+        long blockCount = buf.getLong(16);
+        if (buf.getInt(12) != store.blockSize() || blockCount > store.blockCount()) {
+            throw new IOException("File system geometry does not match volume");
+        }
+
+        BlockAllocator allocator = new BlockAllocator(cache, buf.getLong(24), blockCount);
+        allocator.load();
+        VolumeFileSystem fs = new VolumeFileSystem(store, cache, allocator, durability);
+        fs.readOnly = readOnly;
+        fs.readSuperblock();
+        fs.journalStart = buf.getLong(64);
+        fs.journalBlocks = buf.getLong(72);
+        return fs;
+    }
+
+    /**
+     * Find the journal and replay it before anything reads metadata
+     *
+     * The superblock names the journal. If the superblock itself cannot
+     * be read (a torn in-place write), the journal is looked for where
+     * format() puts it.
+     *
+     * @return Open journal, or null if the file system has none
+     */
+    private static Journal replayJournal(BlockStore store) throws IOException {
+        byte[] sb = new byte[store.blockSize()];
+        try {
+            store.readBlock(SUPERBLOCK, sb, IoScheduler.IoClass.INTERACTIVE);
+        } catch (IOException e) {
+            long start = BITMAP_START + BlockAllocator.bitmapBlocks(store.blockCount(), store.blockSize());
+            int blocks = Journal.blocksFor(store.blockCount(), store.blockSize());
+            if (blocks == 0) {
+                throw e;
+            }
+            try {
+                return Journal.open(store, start, blocks);
+            } catch (IOException notThere) {
+                e.addSuppressed(notThere);
+                throw e;
+            }
+        }
+        if (!Arrays.equals(Arrays.copyOf(sb, MAGIC.length), MAGIC)) {
+            throw new IOException("No file system on volume");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb).order(ByteOrder.LITTLE_ENDIAN);
+        long start = buf.getLong(64);
+        long blocks = buf.getLong(72);
+        if (start == 0 || blocks == 0) {
+            return null;
+        }
+        if (blocks < Journal.MIN_BLOCKS || start + blocks > store.blockCount()) {
+            throw new IOException("Invalid journal location " + start + "+" + blocks);
+        }
+        return Journal.open(store, start, (int) blocks);
+    }
+
+    /**
+     * Give a file system formatted without one a journal, if there is a
+     * free run long enough
+     */
+    private void addJournal() throws IOException {
+        int want = Journal.blocksFor(allocator.blockCount(), blockSize);
+        if (want == 0 || allocator.largestFreeRun() < want) {
+            return;
+        }
+        Extent run = allocator.allocate(BITMAP_START, want);
+        journalStart = run.start;
+        journalBlocks = run.length;
+        commit();
+        journal = Journal.create(store, journalStart, run.length);
+    }
+
+    /**
+     * Take in the blocks the store has beyond the file system's (see
+     * VolumeExpander): a bigger bitmap and the new block count, committed
+     * as one transaction
+     *
+     * Called by mount(), so a volume expanded underneath the file system
+     * picks up its new blocks the next time it is mounted.
+     */
+    synchronized void grow() throws IOException {
+        if (store.blockCount() <= allocator.blockCount()) {
+            return;
+        }
+        if (batching) {
+            throw new IllegalStateException("Cannot grow inside a batch");
+        }
+        commit();
+        try {
+            allocator.grow(store.blockCount());
+            snapshots.grow(store.blockCount());
+            commit();
+        } catch (IOException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * True if block 0 was never written since volume creation (all zeros)
+     */
+    static boolean isBlank(BlockStore store) throws IOException {
+        byte[] block = new byte[store.blockSize()];
+        store.readBlock(SUPERBLOCK, block, IoScheduler.IoClass.INTERACTIVE);
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int cacheCapacity(BlockStore store) {
+        return Math.max(32, CACHE_BYTES / store.blockSize());
+    }
+
+    // ------------------------------------------------------------------------
+    // Namespace
+    // ------------------------------------------------------------------------
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    synchronized long totalBytes() {
+        return allocator.blockCount() * blockSize;
+    }
+
+    synchronized long freeBytes() {
+        return allocator.freeBlocks() * blockSize;
+    }
+
+    /**
+     * Resolve an absolute path ("/", "/docs/a.txt") to an inode number
+     */
+    synchronized long resolve(String path) throws IOException {
+        long ino = ROOT_INODE;
+        for (String part : path.split("/")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            DirectoryBTree.Entry entry = lookup(ino, part);
+            if (entry == null) {
+                throw new NoSuchFileException(path);
+            }
+            ino = entry.inode;
+        }
+        return ino;
+    }
+
+    /**
+     * Find a name in a directory
+     *
+     * @return Entry, or null if absent
+     */
+    synchronized DirectoryBTree.Entry lookup(long dir, String name) throws IOException {
+        return directories.lookup(loadDirectory(dir).treeOrOverflow, name);
+    }
+
+    /**
+     * List a directory in name order
+     *
+     * @param startAfter Resume after this name (null = from the start)
+     */
+    synchronized List<DirectoryBTree.Entry> list(long dir, String startAfter, int limit)
+            throws IOException {
+        return directories.list(loadDirectory(dir).treeOrOverflow, startAfter, limit);
+    }
+
+    synchronized Inode stat(long ino) throws IOException {
+        return loadInode(ino);
+    }
+
+    synchronized long createFile(long dir, String name) throws IOException {
+        return mutate(() -> createNode(dir, name, Inode.TYPE_FILE));
+    }
+
+    synchronized long mkdir(long dir, String name) throws IOException {
+        return mutate(() -> createNode(dir, name, Inode.TYPE_DIRECTORY));
+    }
+
+    /**
+     * Remove a file or an empty directory
+     */
+    synchronized void delete(long dir, String name) throws IOException {
+        mutate(() -> {
+            Inode parent = loadDirectory(dir);
+            DirectoryBTree.Entry entry = directories.lookup(parent.treeOrOverflow, name);
+            if (entry == null) {
+                throw new NoSuchFileException(name);
+            }
+            Inode inode = loadInode(entry.inode);
+            if (inode.isDirectory()) {
+                if (inode.size > 0) {
+                    throw new DirectoryNotEmptyException(name);
+                }
+                directories.destroy(inode.treeOrOverflow);
+            } else {
+                allocator.release(inode.number);
+                rewrite(inode, 0, 0, null, 0, 0);
+                writeOverflow(inode);
+            }
+            parent.treeOrOverflow = directories.remove(parent.treeOrOverflow, name);
+            parent.size--;
+            parent.modifiedTime = System.currentTimeMillis();
+            storeInode(parent);
+            freeInode(inode);
+            return null;
+        });
+    }
+
+    /**
+     * Move an entry to another name and/or directory
+     *
+     * @throws FileAlreadyExistsException if the target name is taken
+     */
+    synchronized void rename(long dir, String name, long newDir, String newName)
+            throws IOException {
+        mutate(() -> {
+            Inode source = loadDirectory(dir);
+            DirectoryBTree.Entry entry = directories.lookup(source.treeOrOverflow, name);
+            if (entry == null) {
+                throw new NoSuchFileException(name);
+            }
+            Inode target = newDir == dir ? source : loadDirectory(newDir);
+            if (directories.lookup(target.treeOrOverflow, newName) != null) {
+                throw new FileAlreadyExistsException(newName);
+            }
+            if (entry.isDirectory()) {
+                for (long p = newDir; ; p = loadInode(p).parentOrNextFree) {
+                    if (p == entry.inode) {
+                        throw new IOException("Cannot move a directory into itself");
+                    }
+                    if (p == ROOT_INODE) {
+                        break;
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            source.treeOrOverflow = directories.remove(source.treeOrOverflow, name);
+            source.size--;
+            source.modifiedTime = now;
+            if (target != source) {
+                storeInode(source);
+            }
+            target.treeOrOverflow = directories.insert(target.treeOrOverflow, newName,
+                entry.inode, entry.type);
+            target.size++;
+            target.modifiedTime = now;
+            storeInode(target);
+
+            if (entry.isDirectory() && newDir != dir) {
+                Inode moved = loadInode(entry.inode);
+                moved.parentOrNextFree = newDir;
+                storeInode(moved);
+            }
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    // File data
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read file bytes starting at offset
+     *
+     * @return Bytes read, or -1 at end of file
+     */
+    synchronized int read(long ino, long offset, byte[] buf, int off, int len) throws IOException {
+        Inode inode = loadFile(ino);
+        if (offset >= inode.size) {
+            return -1;
+        }
+        int total = (int) Math.min(len, inode.size - offset);
+        long tailStart = tailStart(inode);
+        byte[] block = null;
+        int done = 0;
+        while (done < total) {
+            long pos = offset + done;
+            if (pos >= tailStart) {
+                byte[] tail = readTail(inode);
+                System.arraycopy(tail, (int) (pos - tailStart), buf, off + done, total - done);
+                break;
+            }
+            if (block == null) {
+                block = new byte[blockSize];
+            }
+            int inBlock = (int) (pos % blockSize);
+            int n = Math.min(total - done, blockSize - inBlock);
+            store.readBlock(mapBlock(inode, pos / blockSize), block, IoScheduler.IoClass.INTERACTIVE);
+            System.arraycopy(block, inBlock, buf, off + done, n);
+            done += n;
+        }
+        return total;
+    }
+
+    /**
+     * Write file bytes at offset, growing the file as needed
+     *
+     * Any gap between the old end of file and offset reads back as zeros.
+     */
+    synchronized void write(long ino, long offset, byte[] buf, int off, int len) throws IOException {
+        mutate(() -> {
+            Inode inode = loadFile(ino);
+            rewrite(inode, Math.max(inode.size, offset + len), offset, buf, off, len);
+            storeInode(inode);
+            return null;
+        });
+    }
+
+    /**
+     * Set the file length, freeing blocks past the new end or
+     * zero-filling when growing
+     */
+    synchronized void truncate(long ino, long size) throws IOException {
+        mutate(() -> {
+            Inode inode = loadFile(ino);
+            if (size < inode.size) {
+                allocator.release(ino);
+            }
+            rewrite(inode, size, size, null, 0, 0);
+            storeInode(inode);
+            return null;
+        });
+    }
+
+    /**
+     * Map logical blocks [first, first + count) of a file for a streaming
+     * writer, allocating as needed
+     *
+     * The writer seals and writes the blocks itself (see BlockStore.seal)
+     * and then calls completeStreaming(). Until then the blocks are
+     * allocated past the end of file, so a crash or rollback never
+     * exposes unwritten data.
+     *
+     * @return Physical block of each logical block
+     */
+    synchronized long[] mapForStreaming(long ino, long first, int count) throws IOException {
+        return mutate(() -> {
+            Inode inode = loadFile(ino);
+            if (inode.isInline() && inode.size > 0 || inode.hasPackedTail()
+                    || inode.size > first * blockSize) {
+                throw new IOException("Streaming writes must append whole blocks to inode " + ino);
+            }
+            inode.flags &= ~Inode.FLAG_INLINE;
+            ensureBlocks(inode, first + count);
+            long[] physical = new long[count];
+            for (int i = 0; i < count; i++) {
+                physical[i] = mapBlock(inode, first + i);
+            }
+            storeInode(inode);
+            return physical;
+        });
+    }
+
+    /**
+     * Extend the file over streamed blocks that are now written, freeing
+     * blocks mapped past the new size
+     *
+     * The blocks are flushed before the new size is committed (in a
+     * batch, by the group commit).
+     *
+     * @param size New size, a multiple of the block size
+     */
+    synchronized void completeStreaming(long ino, long size) throws IOException {
+        if (!deferred()) {
+            store.flush();
+        }
+        mutate(() -> {
+            Inode inode = loadFile(ino);
+            if (size % blockSize != 0 || size < inode.size || size > inode.mappedBlocks() * blockSize) {
+                throw new IOException("Invalid streamed size " + size + " for inode " + ino);
+            }
+            // Return blocks mapped ahead of the data and any preallocation left
+            releaseBlocks(inode, size / blockSize);
+            allocator.release(ino);
+            inode.size = size;
+            inode.modifiedTime = System.currentTimeMillis();
+            storeInode(inode);
+            return null;
+        });
+    }
+
+    /**
+     * Preallocation hint: the file is expected to grow to expectedSize
+     *
+     * Reserves one contiguous run for the missing blocks (best fit), so the
+     * following writes land in a single extent. The reservation lives in
+     * memory only and is dropped on delete, truncate or unmount.
+     */
+    synchronized void preallocate(long ino, long expectedSize) throws IOException {
+        Inode inode = loadFile(ino);
+        long missing = (expectedSize + blockSize - 1) / blockSize - inode.mappedBlocks();
+        if (missing > 0) {
+            allocator.reserve(ino, allocationGoal(inode), missing);
+        }
+    }
+
+    /**
+     * Extent and free-space statistics for the whole volume
+     *
+     * Walks the inode table, so it is O(files); meant for the UI, not
+     * for hot paths.
+     */
+    synchronized Fragmentation fragmentation() throws IOException {
+        Fragmentation f = new Fragmentation();
+        Inode scratch = new Inode(0);
+        for (long ino = ROOT_INODE; ino < inodeHighWater; ino++) {
+            int extentCount = scratch.decode(cache.get(inodeBlock(ino)), inodeOffset(ino));
+            if (scratch.type == Inode.TYPE_FILE && extentCount > 0) {
+                f.files++;
+                f.extents += extentCount;
+                f.maxExtents = Math.max(f.maxExtents, extentCount);
+            }
+        }
+        f.blockSize = blockSize;
+        f.freeBlocks = allocator.freeBlocks();
+        f.freeRuns = allocator.freeRunCount();
+        f.largestFreeRun = allocator.largestFreeRun();
+        return f;
+    }
+
+    /**
+     * Snapshot returned by fragmentation()
+     */
+    static final class Fragmentation {
+        long files;
+        long extents;
+        long maxExtents;
+        int blockSize;
+        long freeBlocks;
+        long freeRuns;
+        long largestFreeRun;
+
+        /**
+         * Average extents per non-empty file (1.0 = fully contiguous)
+         */
+        double extentsPerFile() {
+            return files == 0 ? 0 : (double) extents / files;
+        }
+
+        /**
+         * Largest free run as a fraction of free space (1.0 = unfragmented)
+         */
+        double freeSpaceContiguity() {
+            return freeBlocks == 0 ? 1 : (double) largestFreeRun / freeBlocks;
+        }
+    }
+
+    /**
+     * Commit any pending metadata and flush the volume
+     *
+     * @throws IOException also if a background group commit failed since
+     *                     the last call (its operations were dropped)
+     */
+    synchronized void sync() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        IOException failure = deferredFailure;
+        deferredFailure = null;
+        commitDeferred();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * sync(), then checkpoint the journal so the next mount replays
+     * nothing
+     *
+     * A snapshot mounted by openSnapshot() is just released.
+     */
+    synchronized void close() throws IOException {
+        if (readOnly) {
+            if (snapshotView != null) {
+                snapshotView.close();
+                snapshotView = null;
+            }
+            return;
+        }
+        if (commitTimer != null) {
+            commitTimer.shutdown();
+            commitTimer = null;
+        }
+        sync();
+        if (journal != null) {
+            journal.checkpoint();
+        }
+        trimFreed(Long.MAX_VALUE);
+    }
+
+    // ------------------------------------------------------------------------
+    // Space reclaim
+    // ------------------------------------------------------------------------
+
+    /**
+     * Trim up to maxBlocks blocks freed since they were last trimmed
+     *
+     * Deferred operations are committed first, so only frees that a
+     * crash cannot undo are trimmed. The trims are queued as BACKGROUND
+     * I/O and waited for outside the file system lock; a block allocated
+     * again meanwhile is safe, since its write is queued after the trim.
+     * Does nothing inside a batch or on a store that cannot trim.
+     *
+     * @return Blocks trimmed
+     */
+    long trimFreed(long maxBlocks) throws IOException {
+        List<CompletableFuture<Void>> trims = new ArrayList<>();
+        long blocks = 0;
+        synchronized (this) {
+            if (batching || !store.canTrim() || allocator.untrimmedBlocks() == 0) {
+                return 0;
+            }
+            if (uncommittedOps > 0) {
+                commitDeferred();
+            }
+            for (Extent run : allocator.untrimmedRuns(maxBlocks)) {
+                for (long b = run.start; b < run.end(); b++) {
+                    trims.add(store.trim(b, IoScheduler.IoClass.BACKGROUND));
+                }
+                allocator.markTrimmed(run.start, run.length);
+                blocks += run.length;
+            }
+        }
+        IoScheduler.await(CompletableFuture.allOf(trims.toArray(new CompletableFuture<?>[0])));
+        return blocks;
+    }
+
+    /**
+     * Move file data towards the start of the volume, up to maxBlocks
+     * blocks, then mark all free space for trimming
+     *
+     * Extents are taken from the end of the volume backwards, and each
+     * one moves whole into the lowest free run that holds it, so no file
+     * gains extents. Only extents of up to COMPACT_MAX_EXTENT_BYTES that
+     * lie within the file size move (blocks past it may belong to a
+     * streaming writer). Every move is one operation of its own,
+     * committed at once (see relocate()), so the file system lock is
+     * released in between. Does nothing where the store cannot trim, as
+     * there is no hole to make, or while snapshots exist.
+     *
+     * @return Blocks moved
+     */
+    long compact(long maxBlocks) throws IOException {
+        List<long[]> candidates = new ArrayList<>();
+        synchronized (this) {
+            if (batching || !store.canTrim() || snapshots.active()) {
+                return 0;
+            }
+            int maxLength = Math.max(1, COMPACT_MAX_EXTENT_BYTES / blockSize);
+            Inode scratch = new Inode(0);
+            for (long ino = ROOT_INODE; ino < inodeHighWater; ino++) {
+                if (scratch.decode(cache.get(inodeBlock(ino)), inodeOffset(ino)) == 0
+                        || scratch.type != Inode.TYPE_FILE) {
+                    continue;
+                }
+                Inode inode = loadInode(ino);
+                long fileBlock = 0;
+                for (int i = 0; i < inode.extents.size(); i++) {
+                    Extent e = inode.extents.get(i);
+                    fileBlock += e.length;
+                    if (e.length <= maxLength && fileBlock * blockSize <= inode.size) {
+                        candidates.add(new long[] {e.start, e.length, ino, i});
+                    }
+                }
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(b[0], a[0]));
+
+        long moved = 0;
+        for (long[] c : candidates) {
+            if (moved + c[1] <= maxBlocks) {
+                moved += moveExtent(c[2], (int) c[3], new Extent(c[0], (int) c[1]));
+            }
+        }
+        synchronized (this) {
+            allocator.markFreeUntrimmed();
+        }
+        return moved;
+    }
+
+    /**
+     * Move extent index of a file to the lowest free run below it, if it
+     * is still what compact() found
+     *
+     * @return Blocks moved
+     */
+    private synchronized long moveExtent(long ino, int index, Extent expected) throws IOException {
+        if (batching) {
+            return 0;
+        }
+        Inode inode;
+        try {
+            inode = loadFile(ino);
+        } catch (IOException gone) {
+            return 0;
+        }
+        if (index >= inode.extents.size() || !inode.extents.get(index).equals(expected)) {
+            return 0;
+        }
+        long end = 0;
+        for (int i = 0; i <= index; i++) {
+            end += inode.extents.get(i).length;
+        }
+        if (end * blockSize > inode.size) {
+            return 0;
+        }
+        Extent target = allocator.lowestRunBelow(expected.start, expected.length);
+        if (target == null) {
+            return 0;
+        }
+        return relocate(inode, end - expected.length, () -> {
+            allocator.markAllocated(target.start, target.length);
+            return target;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    // Defragmentation
+    // ------------------------------------------------------------------------
+
+    /**
+     * Files worth defragmenting, most extents first, at most limit
+     *
+     * A file qualifies if it has more than one extent, every mapped block
+     * holds data (a streaming writer maps blocks ahead of the size) and
+     * the largest free run could hold it whole. Walks the inode table
+     * like fragmentation(). None while snapshots exist.
+     *
+     * @return Inode numbers
+     */
+    synchronized long[] fragmentedFiles(int limit) throws IOException {
+        if (readOnly || snapshots.active()) {
+            return new long[0];
+        }
+        long largestRun = allocator.largestFreeRun();
+        List<long[]> files = new ArrayList<>();
+        Inode scratch = new Inode(0);
+        for (long ino = ROOT_INODE; ino < inodeHighWater; ino++) {
+            if (scratch.decode(cache.get(inodeBlock(ino)), inodeOffset(ino)) < 2
+                    || scratch.type != Inode.TYPE_FILE) {
+                continue;
+            }
+            Inode inode = loadInode(ino);
+            if (inode.mappedBlocks() <= largestRun && holdsOnlyData(inode)) {
+                files.add(new long[] {ino, inode.extents.size()});
+            }
+        }
+        files.sort((a, b) -> Long.compare(b[1], a[1]));
+        long[] inos = new long[Math.min(limit, files.size())];
+        for (int i = 0; i < inos.length; i++) {
+            inos[i] = files.get(i)[0];
+        }
+        return inos;
+    }
+
+    /**
+     * Move the blocks of a file into one contiguous run, up to maxBlocks
+     * blocks
+     *
+     * The run is reserved first: right after the first extent if the rest
+     * of the file fits there (which is also where an interrupted call
+     * left off), otherwise wherever the whole file fits best. Blocks then
+     * move in file order, DEFRAG_STEP_BYTES per operation, each step
+     * committed on its own (see relocate()) with the file system lock
+     * released in between. Stopping at any point, by cancel, budget or
+     * crash, leaves the file intact with a contiguous prefix. Does
+     * nothing inside a batch, while snapshots exist or for a file no
+     * free run can hold.
+     *
+     * @param cancel Checked between steps, or null
+     * @return Blocks moved
+     */
+    long defragment(long ino, long maxBlocks, AtomicBoolean cancel) throws IOException {
+        // Owner distinct from the file's own reservation, which its writes use
+        long owner = -ino;
+        long from;
+        long blocks;
+        synchronized (this) {
+            Inode inode;
+            try {
+                inode = loadFile(ino);
+            } catch (IOException gone) {
+                return 0;
+            }
+            blocks = inode.mappedBlocks();
+            if (batching || readOnly || snapshots.active() || inode.extents.size() < 2
+                    || !holdsOnlyData(inode)) {
+                return 0;
+            }
+            Extent first = inode.extents.get(0);
+            allocator.reserve(owner, first.end(), blocks - first.length);
+            Extent run = allocator.reservation(owner);
+            if (run.start == first.end() && run.length >= blocks - first.length) {
+                from = first.length;
+            } else {
+                allocator.reserve(owner, 0, blocks);
+                if (allocator.reservation(owner).length < blocks) {
+                    allocator.release(owner);
+                    return 0;
+                }
+                from = 0;
+            }
+        }
+
+        int step = Math.max(1, DEFRAG_STEP_BYTES / blockSize);
+        long moved = 0;
+        try {
+            while (from < blocks && moved < maxBlocks && (cancel == null || !cancel.get())) {
+                int count = (int) Math.min(step, Math.min(blocks - from, maxBlocks - moved));
+                int n = relocateRange(ino, owner, from, count);
+                if (n == 0) {
+                    break;
+                }
+                from += n;
+                moved += n;
+            }
+        } finally {
+            synchronized (this) {
+                allocator.release(owner);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move logical blocks [from, from + count) of a file to blocks from
+     * owner's reservation, continuing after logical block from - 1
+     *
+     * @return Blocks moved: fewer if the file shrank or the reservation
+     *         was dropped (by a rollback) and the blocks after the goal
+     *         are taken, 0 if the file is gone
+     */
+    private synchronized int relocateRange(long ino, long owner, long from, int count) throws IOException {
+        if (batching) {
+            return 0;
+        }
+        Inode inode;
+        try {
+            inode = loadFile(ino);
+        } catch (IOException gone) {
+            return 0;
+        }
+        long blocks = inode.mappedBlocks();
+        if (from >= blocks || !holdsOnlyData(inode)) {
+            return 0;
+        }
+        int length = (int) Math.min(count, blocks - from);
+        long goal = from == 0 ? 0 : mapBlock(inode, from - 1) + 1;
+        return relocate(inode, from, () -> allocator.allocateFor(owner, goal, length, 0));
+    }
+
+    /**
+     * Whether every mapped block of the file lies within its size
+     */
+    private boolean holdsOnlyData(Inode inode) {
+        return inode.mappedBlocks() <= (inode.size + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Move logical blocks of a file, from from on, to the extent allocate
+     * returns, as one operation that is committed before returning
+     *
+     * Each block is re-encrypted under its new index. The old blocks are
+     * freed by the operation, so under deferred durability the commit
+     * cannot wait for the group: another operation could take the old
+     * blocks and overwrite them, and a crash before the commit would
+     * bring back the old mapping over that data.
+     *
+     * @return Blocks moved
+     */
+    private int relocate(Inode inode, long from, Operation<Extent> allocate) throws IOException {
+        int moved = mutate(() -> {
+            Extent target = allocate.run();
+            copyBlocks(inode, from, target);
+            remap(inode, from, target);
+            storeInode(inode);
+            return target.length;
+        });
+        if (uncommittedOps > 0) {
+            commitDeferred();
+        }
+        return moved;
+    }
+
+    /**
+     * Copy logical blocks [from, from + target.length) of a file to
+     * target, reading them as one BACKGROUND batch the scheduler can merge
+     */
+    private void copyBlocks(Inode inode, long from, Extent target) throws IOException {
+        long[] source = new long[target.length];
+        byte[][] sealed = new byte[target.length][store.sealedSize()];
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[target.length];
+        for (int i = 0; i < target.length; i++) {
+            source[i] = mapBlock(inode, from + i);
+            reads[i] = store.readSealed(source[i], sealed[i], IoScheduler.IoClass.BACKGROUND);
+        }
+        IoScheduler.await(CompletableFuture.allOf(reads));
+        byte[] block = new byte[blockSize];
+        try {
+            for (int i = 0; i < target.length; i++) {
+                store.open(source[i], sealed[i], block);
+                store.writeBlock(target.start + i, block, IoScheduler.IoClass.BACKGROUND);
+            }
+        } finally {
+            Arrays.fill(block, (byte) 0);
+        }
+        dataWritten = true;
+    }
+
+    /**
+     * Point logical blocks [from, from + target.length) of a file at
+     * target and free the blocks they were at
+     */
+    private void remap(Inode inode, long from, Extent target) throws IOException {
+        List<Extent> old = new ArrayList<>(inode.extents);
+        inode.extents.clear();
+        long to = from + target.length;
+        long seen = 0;
+        for (Extent e : old) {
+            long next = seen + e.length;
+            long cutFrom = Math.max(seen, from);
+            long cutTo = Math.min(next, to);
+            if (cutFrom < cutTo) {
+                if (cutFrom > seen) {
+                    inode.appendExtent(new Extent(e.start, (int) (cutFrom - seen)));
+                }
+                if (cutFrom == from) {
+                    inode.appendExtent(target);
+                }
+                allocator.free(e.start + (cutFrom - seen), (int) (cutTo - cutFrom));
+                if (next > cutTo) {
+                    inode.appendExtent(new Extent(e.start + (cutTo - seen), (int) (next - cutTo)));
+                }
+            } else {
+                inode.appendExtent(e);
+            }
+            seen = next;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Snapshots
+    // ------------------------------------------------------------------------
+
+    /**
+     * Take a copy-on-write snapshot of the file system as it is now
+     *
+     * Deferred operations are committed first, so the snapshot holds
+     * every call that has returned. Taking it writes one catalog entry
+     * (the first snapshot also allocates the generation table); blocks
+     * are copied only later, as they change (see SnapshotTable).
+     *
+     * @param name Up to SnapshotTable.NAME_BYTES bytes of UTF-8, unique
+     * @throws IOException also if the file system has no journal, which
+     *                     keeps the copies crash safe
+     */
+    synchronized SnapshotTable.Snapshot createSnapshot(String name) throws IOException {
+        checkWritable();
+        if (batching) {
+            throw new IllegalStateException("Cannot take a snapshot inside a batch");
+        }
+        if (journal == null) {
+            throw new IOException("Snapshots need a journaled file system");
+        }
+        if (uncommittedOps > 0) {
+            commitDeferred();
+        }
+        SnapshotTable.Snapshot snapshot = mutate(() -> snapshots.create(name, System.currentTimeMillis()));
+        if (uncommittedOps > 0) {
+            commitDeferred();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Snapshots, oldest first
+     */
+    synchronized List<SnapshotTable.Snapshot> listSnapshots() {
+        return snapshots.list();
+    }
+
+    /**
+     * Delete a snapshot and free the blocks only it held
+     *
+     * The snapshot is gone as soon as this is committed; its blocks are
+     * then freed by reclaimSnapshots() steps, each committed on its own
+     * with the file system lock released in between. If that is cut
+     * short, a later reclaimSnapshots() (SpaceReclaimer) finishes it.
+     *
+     * @throws IOException also if the snapshot is mounted
+     */
+    void deleteSnapshot(String name) throws IOException {
+        synchronized (this) {
+            if (batching) {
+                throw new IllegalStateException("Cannot delete a snapshot inside a batch");
+            }
+            mutate(() -> {
+                snapshots.markDeleted(name);
+                return null;
+            });
+            if (uncommittedOps > 0) {
+                commitDeferred();
+            }
+        }
+        while (reclaimSnapshots(Long.MAX_VALUE) > 0) {
+            // One step per call
+        }
+    }
+
+    /**
+     * Free blocks of snapshots being deleted, one step of at most
+     * maxEntries exception entries (and at most a quarter of the journal)
+     *
+     * Committed at once, as it frees blocks (see relocate()).
+     *
+     * @return Entries processed, 0 if no deletion is pending
+     */
+    synchronized long reclaimSnapshots(long maxEntries) throws IOException {
+        if (readOnly || batching || !snapshots.deleting()) {
+            return 0;
+        }
+        long step = Math.min(maxEntries, Math.max(1, journal.capacity() / 4));
+        long done = mutate(() -> snapshots.reclaim(step));
+        if (uncommittedOps > 0) {
+            commitDeferred();
+        }
+        return done;
+    }
+
+    /**
+     * Mount a snapshot read-only
+     *
+     * The returned file system reads every block as it was when the
+     * snapshot was taken, through this one (see SnapshotStore), and all
+     * its mutating calls fail. The snapshot cannot be deleted while it is
+     * mounted; close it before this file system.
+     */
+    synchronized VolumeFileSystem openSnapshot(String name) throws IOException {
+        checkWritable();
+        SnapshotTable.Snapshot snapshot = snapshots.find(name);
+        snapshots.mount(snapshot.epoch);
+        SnapshotStore view = new SnapshotStore(this, snapshot.epoch);
+        try {
+            VolumeFileSystem fs = open(view, Durability.STRICT, true);
+            fs.snapshotView = view;
+            return fs;
+        } catch (IOException | RuntimeException e) {
+            view.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read block index as the snapshot of epoch has it (SnapshotStore)
+     *
+     * Under the file system lock, so no commit overwrites the block
+     * between the lookup and the read.
+     */
+    synchronized void readSnapshotBlock(int epoch, long index, byte[] dst, IoScheduler.IoClass ioClass)
+            throws IOException {
+        store.readBlock(snapshots.resolve(epoch, index), dst, ioClass);
+    }
+
+    /**
+     * A mount of the snapshot of epoch was closed
+     */
+    synchronized void releaseSnapshot(int epoch) {
+        snapshots.unmount(epoch);
+    }
+
+    Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Journal of the file system, or null for volumes too small for one
+     */
+    synchronized Journal journal() {
+        return journal;
+    }
+
+    /**
+     * Start group committing operations (see class comment)
+     */
+    synchronized void beginBatch() throws IOException {
+        checkWritable();
+        if (batching) {
+            throw new IllegalStateException("Batch already open");
+        }
+        commit();
+        batching = true;
+    }
+
+    /**
+     * Commit the operations of the open batch and keep it open
+     *
+     * If the commit fails, every operation since the last one is dropped.
+     */
+    synchronized void commitBatch() throws IOException {
+        commitDeferred();
+    }
+
+    /**
+     * Commit the open batch and return to one commit per operation
+     */
+    synchronized void endBatch() throws IOException {
+        try {
+            commitBatch();
+        } finally {
+            batching = false;
+        }
+    }
+
+    synchronized boolean inBatch() {
+        return batching;
+    }
+
+    // ------------------------------------------------------------------------
+    // Operations
+    // ------------------------------------------------------------------------
+
+    private <T> T mutate(Operation<T> operation) throws IOException {
+        checkWritable();
+        if (deferred()) {
+            int revokeMark = journal == null ? 0 : journal.revokeMark();
+            T result;
+            cache.savepoint();
+            try {
+                result = operation.run();
+                writeSuperblock();
+            } catch (IOException | RuntimeException e) {
+                cache.rollbackToSavepoint();
+                if (journal != null) {
+                    journal.rollbackRevokes(revokeMark);
+                }
+                reload();
+                throw e;
+            } finally {
+                cache.releaseSavepoint();
+            }
+            if (uncommittedOps++ == 0) {
+                firstUncommittedNanos = System.nanoTime();
+            }
+            if (commitDue()) {
+                commitDeferred();
+            }
+            return result;
+        }
+        try {
+            T result = operation.run();
+            commit();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("File system is read-only");
+        }
+    }
+
+    /**
+     * Whether deferred operations should be committed now
+     */
+    private boolean commitDue() {
+        int dirtyLimit = journal == null ? cacheCapacity(store) / 2 : journal.capacity() / 2;
+        if (cache.dirtyCount() >= dirtyLimit) {
+            return true;
+        }
+        if (batching || durability.mode != Durability.Mode.GROUP_COMMIT) {
+            return false;
+        }
+        return uncommittedOps >= durability.maxOps
+            || System.nanoTime() - firstUncommittedNanos >= TimeUnit.MILLISECONDS.toNanos(durability.intervalMillis);
+    }
+
+    /**
+     * Commit deferred operations; if that fails, drop them all
+     */
+    private void commitDeferred() throws IOException {
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    private void commit() throws IOException {
+        writeSuperblock();
+        // Before anything is written in place
+        snapshots.preserveDirty();
+        if (dataWritten || deferred()) {
+            // File data must be durable before metadata points at it
+            store.flush();
+            dataWritten = false;
+        }
+        List<Long> dirty = cache.dirtyBlocks();
+        boolean logged = journal != null && journal.commit(dirty, cache);
+        cache.writeBack();
+        if (!logged) {
+            store.flush();
+        }
+        uncommittedOps = 0;
+    }
+
+    /**
+     * Drop uncommitted metadata and reload in-memory state from the cache
+     */
+    private void rollback() throws IOException {
+        cache.discardDirty();
+        if (journal != null) {
+            journal.rollbackRevokes(0);
+        }
+        uncommittedOps = 0;
+        reload();
+    }
+
+    private boolean deferred() {
+        return batching || durability.mode != Durability.Mode.STRICT;
+    }
+
+    private void startCommitTimer() {
+        commitTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "qubesdroid-commit");
+            t.setDaemon(true);
+            return t;
+        });
+        commitTimer.scheduleWithFixedDelay(() -> {
+            synchronized (this) {
+                if (uncommittedOps > 0 && !batching && commitDue()) {
+                    try {
+                        commitDeferred();
+                    } catch (IOException e) {
+                        deferredFailure = e;
+                    }
+                }
+            }
+        }, durability.intervalMillis, durability.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reload() throws IOException {
+        cache.pin(SUPERBLOCK);
+        ByteBuffer sb = ByteBuffer.wrap(cache.get(SUPERBLOCK)).order(ByteOrder.LITTLE_ENDIAN);
+        allocator.resize(sb.getLong(24), sb.getLong(16));
+        allocator.load();
+        readSuperblock();
+    }
+
+    private long createNode(long dir, String name, int type) throws IOException {
+        Inode parent = loadDirectory(dir);
+        if (directories.lookup(parent.treeOrOverflow, name) != null) {
+            throw new FileAlreadyExistsException(name);
+        }
+        long now = System.currentTimeMillis();
+        Inode inode = new Inode(allocateInode());
+        inode.type = type;
+        inode.createdTime = now;
+        inode.modifiedTime = now;
+        if (type == Inode.TYPE_DIRECTORY) {
+            inode.parentOrNextFree = dir;
+        }
+        storeInode(inode);
+
+        parent.treeOrOverflow = directories.insert(parent.treeOrOverflow, name, inode.number, type);
+        parent.size++;
+        parent.modifiedTime = now;
+        storeInode(parent);
+        return inode.number;
+    }
+
+    /**
+     * Give the file newSize bytes: its old content up to the new end, buf
+     * (null = nothing) at offset, zeros everywhere else
+     *
+     * The result is stored in the layout the new size calls for: inline in
+     * the inode, full blocks plus a packed tail, or blocks only. Only
+     * blocks whose content changes are written, and a block entirely
+     * covered by the new data is not read first.
+     */
+    private void rewrite(Inode inode, long newSize, long offset, byte[] buf, int off, int len)
+            throws IOException {
+        long oldSize = inode.size;
+        long oldTailStart = tailStart(inode);
+        byte[] oldTail = readTail(inode);
+        long end = offset + len;
+
+        boolean inline = newSize <= Inode.INLINE_CAPACITY;
+        long newTailStart;
+        if (inline) {
+            newTailStart = 0;
+        } else if (newSize % blockSize != 0 && newSize % blockSize <= TailPacker.maxTail(blockSize)) {
+            newTailStart = newSize - newSize % blockSize;
+        } else {
+            newTailStart = newSize;
+        }
+        long newBlocks = (newTailStart + blockSize - 1) / blockSize;
+
+        // New tail first, while every old block is still in place
+        byte[] newTail = new byte[(int) (newSize - newTailStart)];
+        readOld(inode, oldTail, oldTailStart, Math.min(oldSize, newSize), newTailStart, newTail, 0, newTail.length);
+        overlay(newTail, newTailStart, offset, buf, off, len);
+
+        // Blocks whose content changes: new data, zero fill past the old
+        // end, or old tail bytes moving into a block. Old blocks past the
+        // written range keep their content and are not rewritten.
+        ensureBlocks(inode, newBlocks);
+        long changedFrom = Math.min(Math.min(offset, oldSize), oldTailStart);
+        long oldBlocksEnd = Math.min(oldSize, oldTailStart);
+        byte[] block = new byte[blockSize];
+        for (long b = changedFrom / blockSize; b < newBlocks; b++) {
+            long blockStart = b * blockSize;
+            long blockEnd = Math.min(blockStart + blockSize, newTailStart);
+            if (blockStart >= end && blockEnd <= oldBlocksEnd) {
+                continue;
+            }
+            Arrays.fill(block, (byte) 0);
+            if (buf == null || offset > blockStart || end < blockEnd) {
+                readOld(inode, oldTail, oldTailStart, Math.min(oldSize, newSize), blockStart, block, 0,
+                    (int) (blockEnd - blockStart));
+            }
+            overlay(block, blockStart, offset, buf, off, len);
+            long physical = mapBlock(inode, b);
+            if (snapshots.isProtected(physical)) {
+                physical = redirect(inode, b);
+            }
+            store.writeBlock(physical, block, IoScheduler.IoClass.INTERACTIVE);
+            dataWritten = true;
+        }
+
+        // Drop what the new layout no longer uses, then store the tail
+        if (inode.mappedBlocks() > newBlocks) {
+            releaseBlocks(inode, newBlocks);
+        }
+        if (inode.hasPackedTail()) {
+            tails.free(inode.tailAddress, oldTail.length);
+            inode.tailAddress = 0;
+        }
+        inode.flags &= ~(Inode.FLAG_INLINE | Inode.FLAG_TAIL);
+        inode.inline = new byte[0];
+        if (inline) {
+            inode.flags |= Inode.FLAG_INLINE;
+            inode.inline = newTail;
+        } else if (newTail.length > 0) {
+            inode.flags |= Inode.FLAG_TAIL;
+            inode.tailAddress = tails.store(newTail, newTail.length);
+        }
+        inode.size = newSize;
+        inode.modifiedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Copy the old content of [pos, pos + len) into dst, stopping at
+     * validEnd (bytes past it are left as they are)
+     */
+    private void readOld(Inode inode, byte[] oldTail, long oldTailStart, long validEnd,
+                         long pos, byte[] dst, int dstOff, int len) throws IOException {
+        long end = Math.min(pos + len, validEnd);
+        byte[] block = null;
+        while (pos < end) {
+            if (pos >= oldTailStart) {
+                System.arraycopy(oldTail, (int) (pos - oldTailStart), dst, dstOff, (int) (end - pos));
+                return;
+            }
+            long fileBlock = pos / blockSize;
+            int inBlock = (int) (pos % blockSize);
+            int n = (int) Math.min(Math.min(end, oldTailStart) - pos, blockSize - inBlock);
+            if (inBlock == 0 && n == blockSize && dstOff == 0 && dst.length == blockSize) {
+                store.readBlock(mapBlock(inode, fileBlock), dst, IoScheduler.IoClass.INTERACTIVE);
+            } else {
+                if (block == null) {
+                    block = new byte[blockSize];
+                }
+                store.readBlock(mapBlock(inode, fileBlock), block, IoScheduler.IoClass.INTERACTIVE);
+                System.arraycopy(block, inBlock, dst, dstOff, n);
+            }
+            pos += n;
+            dstOff += n;
+        }
+    }
+
+    /**
+     * Copy the part of buf[off, off + len) (file range starting at offset)
+     * that falls into dst, which holds the file range starting at dstStart
+     */
+    private static void overlay(byte[] dst, long dstStart, long offset, byte[] buf, int off, int len) {
+        if (buf == null) {
+            return;
+        }
+        long from = Math.max(offset, dstStart);
+        long to = Math.min(offset + len, dstStart + dst.length);
+        if (from < to) {
+            System.arraycopy(buf, off + (int) (from - offset), dst, (int) (from - dstStart), (int) (to - from));
+        }
+    }
+
+    /**
+     * File offset where the blocks end and the inline or packed tail
+     * begins (the file size if it has neither)
+     */
+    private long tailStart(Inode inode) {
+        if (inode.isInline()) {
+            return 0;
+        }
+        return inode.hasPackedTail() ? inode.mappedBlocks() * blockSize : inode.size;
+    }
+
+    private byte[] readTail(Inode inode) throws IOException {
+        if (inode.isInline()) {
+            return inode.inline;
+        }
+        byte[] tail = new byte[(int) (inode.size - tailStart(inode))];
+        if (inode.hasPackedTail()) {
+            tails.read(inode.tailAddress, tail, 0, tail.length);
+        }
+        return tail;
+    }
+
+    /**
+     * Map at least blocks logical blocks, appending extents near the end
+     * of the file so it stays contiguous
+     */
+    private void ensureBlocks(Inode inode, long blocks) throws IOException {
+        long mapped = inode.mappedBlocks();
+        while (mapped < blocks) {
+            Extent extent = allocator.allocateFor(inode.number, allocationGoal(inode),
+                (int) Math.min(Integer.MAX_VALUE, blocks - mapped), mapped);
+            inode.appendExtent(extent);
+            mapped += extent.length;
+        }
+    }
+
+    /**
+     * Move logical block b of a file to a new block, handing the old one
+     * to the snapshot that still reads it (SnapshotTable.keep())
+     *
+     * @return The new block
+     */
+    private long redirect(Inode inode, long b) throws IOException {
+        long goal = b == 0 ? 0 : mapBlock(inode, b - 1) + 1;
+        Extent fresh = allocator.allocateFor(inode.number, goal, 1, inode.mappedBlocks());
+        remap(inode, b, fresh);
+        return fresh.start;
+    }
+
+    private static long allocationGoal(Inode inode) {
+        return inode.extents.isEmpty() ? 0 : inode.extents.get(inode.extents.size() - 1).end();
+    }
+
+    /**
+     * Free every mapped block from logical block keep onwards
+     */
+    private void releaseBlocks(Inode inode, long keep) throws IOException {
+        long seen = 0;
+        List<Extent> kept = new ArrayList<>();
+        for (Extent e : inode.extents) {
+            if (seen + e.length <= keep) {
+                kept.add(e);
+            } else if (seen >= keep) {
+                allocator.free(e);
+            } else {
+                int retain = (int) (keep - seen);
+                kept.add(new Extent(e.start, retain));
+                allocator.free(e.start + retain, e.length - retain);
+            }
+            seen += e.length;
+        }
+        inode.extents.clear();
+        inode.extents.addAll(kept);
+    }
+
+    private long mapBlock(Inode inode, long fileBlock) throws IOException {
+        long physical = inode.physicalBlock(fileBlock);
+        if (physical < 0) {
+            throw new IOException("Block " + fileBlock + " of inode " + inode.number + " is not mapped");
+        }
+        return physical;
+    }
+
+    // ------------------------------------------------------------------------
+    // Inodes
+    // ------------------------------------------------------------------------
+
+    private Inode loadDirectory(long ino) throws IOException {
+        Inode inode = loadInode(ino);
+        if (!inode.isDirectory()) {
+            throw new NotDirectoryException(String.valueOf(ino));
+        }
+        return inode;
+    }
+
+    private Inode loadFile(long ino) throws IOException {
+        Inode inode = loadInode(ino);
+        if (inode.type != Inode.TYPE_FILE) {
+            throw new IOException("Inode " + ino + " is not a file");
+        }
+        return inode;
+    }
+
+    private Inode loadInode(long ino) throws IOException {
+        if (ino <= 0 || ino >= inodeHighWater) {
+            throw new IOException("Invalid inode number " + ino);
+        }
+        Inode inode = new Inode(ino);
+        int extentCount = inode.decode(cache.get(inodeBlock(ino)), inodeOffset(ino));
+        if (inode.type == Inode.TYPE_FREE) {
+            throw new IOException("Inode " + ino + " is not in use");
+        }
+        readOverflow(inode, extentCount);
+        return inode;
+    }
+
+    private void storeInode(Inode inode) throws IOException {
+        writeOverflow(inode);
+        if (inode.number == 0) {
+            inode.encode(cache.getForWrite(SUPERBLOCK), INODE_TABLE_OFFSET);
+        } else {
+            inode.encode(cache.getForWrite(inodeBlock(inode.number)), inodeOffset(inode.number));
+        }
+    }
+
+    private long inodeBlock(long ino) throws IOException {
+        long physical = inodeTable.physicalBlock(ino / inodesPerBlock);
+        if (physical < 0) {
+            throw new IOException("Inode " + ino + " outside inode table");
+        }
+        return physical;
+    }
+
+    private int inodeOffset(long ino) {
+        return (int) (ino % inodesPerBlock) * Inode.SIZE;
+    }
+
+    private long allocateInode() throws IOException {
+        if (freeInodeHead != 0) {
+            long ino = freeInodeHead;
+            Inode free = new Inode(ino);
+            free.decode(cache.get(inodeBlock(ino)), inodeOffset(ino));
+            freeInodeHead = free.parentOrNextFree;
+            return ino;
+        }
+        if (inodeHighWater >= inodeSlots) {
+            growInodeTable();
+        }
+        return inodeHighWater++;
+    }
+
+    private void freeInode(Inode inode) throws IOException {
+        Inode free = new Inode(inode.number);
+        free.parentOrNextFree = freeInodeHead;
+        storeInode(free);
+        freeInodeHead = inode.number;
+    }
+
+    private void growInodeTable() throws IOException {
+        long goal = inodeTable.extents.isEmpty()
+            ? 0 : inodeTable.extents.get(inodeTable.extents.size() - 1).end();
+        long block = allocator.allocateOne(goal);
+        cache.create(block);
+        inodeTable.appendExtent(new Extent(block, 1));
+        inodeSlots += inodesPerBlock;
+        inodeTable.size = inodeSlots * Inode.SIZE;
+        storeInode(inodeTable);
+    }
+
+    // ------------------------------------------------------------------------
+    // Extent overflow chain: next (8), count (4), reserved (4), extents
+    // ------------------------------------------------------------------------
+
+    private int extentsPerOverflowBlock() {
+        return (blockSize - OVERFLOW_HEADER_SIZE) / Inode.EXTENT_SIZE;
+    }
+
+    private void readOverflow(Inode inode, int extentCount) throws IOException {
+        long next = inode.type == Inode.TYPE_FILE ? inode.treeOrOverflow : 0;
+        while (inode.extents.size() < extentCount && next != 0) {
+            ByteBuffer buf = ByteBuffer.wrap(cache.get(next)).order(ByteOrder.LITTLE_ENDIAN);
+            int count = buf.getInt(8);
+            for (int i = 0; i < count; i++) {
+                int pos = OVERFLOW_HEADER_SIZE + i * Inode.EXTENT_SIZE;
+                inode.extents.add(new Extent(buf.getLong(pos), buf.getInt(pos + 8)));
+            }
+            next = buf.getLong(0);
+        }
+        if (inode.extents.size() != extentCount) {
+            throw new IOException("Extent map of inode " + inode.number + " is truncated");
+        }
+    }
+
+    private void writeOverflow(Inode inode) throws IOException {
+        if (inode.type != Inode.TYPE_FILE) {
+            return;
+        }
+        List<Long> chain = new ArrayList<>();
+        for (long b = inode.treeOrOverflow; b != 0; ) {
+            chain.add(b);
+            b = ByteBuffer.wrap(cache.get(b)).order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+        }
+
+        int perBlock = extentsPerOverflowBlock();
+        int overflow = Math.max(0, inode.extents.size() - Inode.DIRECT_EXTENTS);
+        int needed = (overflow + perBlock - 1) / perBlock;
+        while (chain.size() > needed) {
+            long b = chain.remove(chain.size() - 1);
+            cache.forget(b);
+            allocator.free(b, 1);
+        }
+        int existing = chain.size();
+        while (chain.size() < needed) {
+            long goal = chain.isEmpty() ? 0 : chain.get(chain.size() - 1) + 1;
+            chain.add(allocator.allocateOne(goal));
+        }
+
+        for (int i = 0; i < needed; i++) {
+            byte[] data = i < existing ? cache.getForWrite(chain.get(i)) : cache.create(chain.get(i));
+            Arrays.fill(data, (byte) 0);
+            ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            int first = Inode.DIRECT_EXTENTS + i * perBlock;
+            int count = Math.min(perBlock, inode.extents.size() - first);
+            buf.putLong(0, i + 1 < needed ? chain.get(i + 1) : 0);
+            buf.putInt(8, count);
+            for (int j = 0; j < count; j++) {
+                Extent e = inode.extents.get(first + j);
+                int pos = OVERFLOW_HEADER_SIZE + j * Inode.EXTENT_SIZE;
+                buf.putLong(pos, e.start);
+                buf.putInt(pos + 8, e.length);
+            }
+        }
+        inode.treeOrOverflow = needed > 0 ? chain.get(0) : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Superblock
+    // ------------------------------------------------------------------------
+
+    private void readSuperblock() throws IOException {
+        byte[] sb = cache.get(SUPERBLOCK);
+        ByteBuffer buf = ByteBuffer.wrap(sb).order(ByteOrder.LITTLE_ENDIAN);
+        inodeSlots = buf.getLong(32);
+        inodeHighWater = buf.getLong(40);
+        freeInodeHead = buf.getLong(48);
+        tails.reset(buf.getLong(56));
+        if (!readOnly) {
+            snapshots.load(buf.getLong(80));
+        }
+        inodeTable = new Inode(0);
+        int extentCount = inodeTable.decode(sb, INODE_TABLE_OFFSET);
+        readOverflow(inodeTable, extentCount);
+    }
+
+    private void writeSuperblock() throws IOException {
+        byte[] sb = cache.getForWrite(SUPERBLOCK);
+        ByteBuffer buf = ByteBuffer.wrap(sb).order(ByteOrder.LITTLE_ENDIAN);
+        System.arraycopy(MAGIC, 0, sb, 0, MAGIC.length);
+        buf.putInt(8, VERSION);
+        buf.putInt(12, blockSize);
+        buf.putLong(16, allocator.blockCount());
+        buf.putLong(24, allocator.bitmapStart());
+        buf.putLong(32, inodeSlots);
+        buf.putLong(40, inodeHighWater);
+        buf.putLong(48, freeInodeHead);
+        buf.putLong(56, tails.currentBlock());
+        buf.putLong(64, journalStart);
+        buf.putLong(72, journalBlocks);
+        buf.putLong(80, snapshots.catalogBlock());
+        storeInode(inodeTable);
+    }
+}
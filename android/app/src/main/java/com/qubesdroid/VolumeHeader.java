@@ -0,0 +1,569 @@
+package com.qubesdroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * View of a volume header in a ByteBuffer, for reading and writing it
+ * in place
+ *
+ * Every field is read from (or written to) the buffer when asked for;
+ * nothing is parsed up front and byte fields are only copied out by the
+ * copy*() calls, so one instance over one reused buffer can go through
+ * any number of headers (VolumeCatalog) without allocating.
+ *
+ * Layout (little-endian; see VOLUME_FORMAT.md):
+ * | Offset | Size | Field                                   | Since |
+ * |--------|------|-----------------------------------------|-------|
+ * | 0      | 8    | Magic "QUBESDRD"                        | v1    |
+ * | 8      | 4    | Version                                 | v1    |
+ * | 12     | 4    | Header size (1712 v1, 4096 v2)          | v1    |
+ * | 16     | 8    | Volume size                             | v1    |
+ * | 24     | 8    | Creation time, seconds since epoch      | v1    |
+ * | 32     | 32   | Integrity root MAC (reserved in v1)     | v1    |
+ * | 64     | 1568 | ML-KEM-1024 public key                  | v1    |
+ * | 1632   | 16   | Salt                                    | v1    |
+ * | 1648   | 1    | Compression id (salt padding)           | v1    |
+ * | 1652   | 4    | Block size, 0 = 64 KB (salt padding)    | v1    |
+ * | 1656   | 8    | Block count (salt padding)              | v2    |
+ * | 1664   | 48   | Wrapped master key                      | v1    |
+ * | 1712   | 80   | Key rotation record (see KeyRotator)    | v2    |
+ * | 1792   | 8    | Metadata capacity (see VolumeExpander)  | v2    |
+ * | 1800   | ...  | Extensions, to the end of the header    | v2    |
+ *
+ * Fields a version does not have read as their default (no block count,
+ * no rotation). A later version adds its fields past the ones it keeps
+ * and an entry to fieldsEnd() and headerSize(); check() refuses any
+ * version it does not know.
+ *
+ * Extensions are optional records in the zero padding of a v2 header,
+ * one after the other from EXTENSIONS_OFFSET: a 2-byte type, a 2-byte
+ * payload length and the payload; type 0 (the padding) ends them. Data
+ * that older code can ignore goes there without a new version, and
+ * since rewrites of the other fields leave them alone, unknown ones are
+ * kept.
+ */
+final class VolumeHeader {
+
+    static final int VERSION_1 = 0x01000000;
+    static final int VERSION_2 = 0x02000000;
+    static final int V1_SIZE = 1712;
+    static final int V2_SIZE = BlockDevice.PAGE_SIZE;
+
+    static final int VERSION_OFFSET = 8;
+    static final int HEADER_SIZE_OFFSET = 12;
+    static final int VOLUME_SIZE_OFFSET = 16;
+    static final int CREATED_OFFSET = 24;
+    static final int ROOT_MAC_OFFSET = 32;
+    static final int ROOT_MAC_SIZE = 32;
+    static final int PUBLIC_KEY_OFFSET = 64;
+    static final int PUBLIC_KEY_SIZE = 1568;
+    static final int SALT_OFFSET = 1632;
+    static final int SALT_SIZE = 16;
+    static final int COMPRESSION_OFFSET = 1648;
+    static final int BLOCK_SIZE_OFFSET = 1652;
+    static final int BLOCK_COUNT_OFFSET = 1656;
+    static final int MASTER_KEY_OFFSET = 1664;
+    static final int WRAPPED_KEY_SIZE = 48;
+    static final int KEY_GENERATION_OFFSET = 1712;
+    static final int ROTATION_STATE_OFFSET = 1716;
+    static final int ROTATION_PROGRESS_OFFSET = 1720;
+    static final int NEXT_SALT_OFFSET = 1728;
+    static final int NEXT_KEY_OFFSET = 1744;
+    static final int METADATA_CAPACITY_OFFSET = 1792;
+    /**
+     * End of the v2 fields, which is all a mount reads
+     */
+    static final int FIELDS_END = METADATA_CAPACITY_OFFSET + 8;
+    static final int EXTENSIONS_OFFSET = FIELDS_END;
+    static final int EXTENSION_HEADER_SIZE = 4;
+
+    static final int ROTATION_NONE = 0;
+    static final int ROTATION_IN_PROGRESS = 1;
+
+    private static final byte[] MAGIC = "QUBESDRD".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ZERO_MAC = new byte[ROOT_MAC_SIZE];
+
+    private ByteBuffer buffer;
+
+    /**
+     * Unbound view; wrap() a buffer before use
+     */
+    VolumeHeader() {
+    }
+
+    /**
+     * View of buffer, whose index 0 is the first header byte and whose
+     * limit is the bytes of it present; sets the buffer little-endian
+     */
+    static VolumeHeader of(ByteBuffer buffer) {
+        return new VolumeHeader().wrap(buffer);
+    }
+
+    /**
+     * Fresh zeroed header of version, with its magic, version and size
+     */
+    static VolumeHeader create(int version) {
+        int size = headerSize(version);
+        if (size < 0) {
+            throw new IllegalArgumentException(String.format("Unknown volume version 0x%08X", version));
+        }
+        VolumeHeader header = of(ByteBuffer.allocate(size));
+        for (int i = 0; i < MAGIC.length; i++) {
+            header.buffer.put(i, MAGIC[i]);
+        }
+        header.buffer.putInt(VERSION_OFFSET, version);
+        header.buffer.putInt(HEADER_SIZE_OFFSET, size);
+        return header;
+    }
+
+    /**
+     * Header of the volume in file, checked
+     *
+     * @throws IOException if file is not a volume of a known version
+     */
+    static VolumeHeader read(File file) throws IOException {
+        long span = Tracer.begin(Tracer.Span.HEADER_PARSE);
+        try {
+            VolumeHeader header = of(ByteBuffer.allocate(V2_SIZE));
+            try (FileInputStream in = new FileInputStream(file)) {
+                header.readFrom(in.getChannel());
+            }
+            header.check();
+            // A v1 header is followed by slots, not padding
+            header.buffer.limit(header.headerSize());
+            return header;
+        } finally {
+            Tracer.end(Tracer.Span.HEADER_PARSE, span);
+        }
+    }
+
+    /**
+     * Point this view at another buffer (see of())
+     */
+    VolumeHeader wrap(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return this;
+    }
+
+    /**
+     * Fill the buffer from the start of channel, up to its capacity or the
+     * end of the file; the limit is then the bytes read
+     */
+    void readFrom(FileChannel channel) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // Short reads only at the end of the file
+        }
+        buffer.flip();
+    }
+
+    /**
+     * The header bytes, position 0 to the limit
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Copy of the header in a buffer of size bytes (zero padded), e.g. to
+     * rewrite it in another layout
+     */
+    VolumeHeader copy(int size) {
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.limit(Math.min(Math.min(buffer.limit(), headerSize()), size));
+        copy.put(source);
+        copy.clear();
+        return of(copy);
+    }
+
+    /**
+     * Open the slots of the volume in file, which has this header, as
+     * its version lays them out
+     */
+    BlockDevice open(File file, boolean readOnly) throws IOException {
+        BlockDevice.Layout layout = compression().layout();
+        if (!isAligned()) {
+            return BlockDevice.open(file, V1_SIZE, blockSize(), layout, readOnly);
+        }
+        return BlockDevice.openAligned(file, V2_SIZE, blockSize(), layout, blockCount(), metadataCapacity(),
+            readOnly);
+    }
+
+    // ------------------------------------------------------------------------
+    // Versions
+    // ------------------------------------------------------------------------
+
+    /**
+     * Header size of version, or -1 if it is not known
+     */
+    static int headerSize(int version) {
+        switch (version) {
+            case VERSION_1:
+                return V1_SIZE;
+            case VERSION_2:
+                return V2_SIZE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * End of the fields of version, or -1 if it is not known
+     */
+    static int fieldsEnd(int version) {
+        switch (version) {
+            case VERSION_1:
+                return V1_SIZE;
+            case VERSION_2:
+                return FIELDS_END;
+            default:
+                return -1;
+        }
+    }
+
+    boolean hasMagic() {
+        if (buffer.limit() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check this is a whole header of a known version, with a block size
+     * and compression this build handles
+     *
+     * @throws IOException telling what is wrong
+     */
+    void check() throws IOException {
+        if (!hasMagic()) {
+            throw new IOException("Not a QubesDroid volume");
+        }
+        if (buffer.limit() < V1_SIZE) {
+            throw new IOException("Volume header too short");
+        }
+        int version = version();
+        if (fieldsEnd(version) < 0) {
+            throw new IOException(String.format("Unsupported volume version 0x%08X", version));
+        }
+        if (headerSize() != headerSize(version)) {
+            throw new IOException("Invalid volume header size " + headerSize());
+        }
+        if (buffer.limit() < fieldsEnd(version)) {
+            throw new IOException("Volume header too short");
+        }
+        if (!MountedVolume.isValidBlockSize(blockSize())) {
+            throw new IOException("Unsupported volume: block size " + blockSize());
+        }
+        compression();
+    }
+
+    // ------------------------------------------------------------------------
+    // Fields
+    // ------------------------------------------------------------------------
+
+    int version() {
+        return buffer.getInt(VERSION_OFFSET);
+    }
+
+    VolumeHeader version(int version) {
+        buffer.putInt(VERSION_OFFSET, version);
+        buffer.putInt(HEADER_SIZE_OFFSET, headerSize(version));
+        return this;
+    }
+
+    boolean isAligned() {
+        return version() != VERSION_1;
+    }
+
+    int headerSize() {
+        return buffer.getInt(HEADER_SIZE_OFFSET);
+    }
+
+    long volumeSize() {
+        return buffer.getLong(VOLUME_SIZE_OFFSET);
+    }
+
+    VolumeHeader volumeSize(long bytes) {
+        buffer.putLong(VOLUME_SIZE_OFFSET, bytes);
+        return this;
+    }
+
+    /**
+     * Seconds since the epoch
+     */
+    long createdTime() {
+        return buffer.getLong(CREATED_OFFSET);
+    }
+
+    VolumeHeader createdTime(long seconds) {
+        buffer.putLong(CREATED_OFFSET, seconds);
+        return this;
+    }
+
+    int compressionId() {
+        return buffer.get(COMPRESSION_OFFSET) & 0xFF;
+    }
+
+    /**
+     * @throws IOException if this build does not know the compression
+     */
+    Compression compression() throws IOException {
+        try {
+            return Compression.fromId(compressionId());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported volume: " + e.getMessage(), e);
+        }
+    }
+
+    VolumeHeader compression(Compression compression) {
+        buffer.put(COMPRESSION_OFFSET, (byte) compression.id);
+        return this;
+    }
+
+    /**
+     * Block size, 0 (volumes created before it was configurable) read as
+     * the default
+     */
+    int blockSize() {
+        int blockSize = buffer.getInt(BLOCK_SIZE_OFFSET);
+        return blockSize == 0 ? MountedVolume.DEFAULT_BLOCK_SIZE : blockSize;
+    }
+
+    VolumeHeader blockSize(int blockSize) {
+        buffer.putInt(BLOCK_SIZE_OFFSET, blockSize);
+        return this;
+    }
+
+    /**
+     * Blocks of a v2 volume, -1 for v1 (counted from the file size)
+     */
+    long blockCount() {
+        return isAligned() ? buffer.getLong(BLOCK_COUNT_OFFSET) : -1;
+    }
+
+    VolumeHeader blockCount(long blocks) {
+        buffer.putLong(BLOCK_COUNT_OFFSET, blocks);
+        return this;
+    }
+
+    /**
+     * Metadata entries the region has room for, 0 for the block count
+     */
+    long metadataCapacity() {
+        return isAligned() ? buffer.getLong(METADATA_CAPACITY_OFFSET) : 0;
+    }
+
+    VolumeHeader metadataCapacity(long entries) {
+        buffer.putLong(METADATA_CAPACITY_OFFSET, entries);
+        return this;
+    }
+
+    int keyGeneration() {
+        return isAligned() ? buffer.getInt(KEY_GENERATION_OFFSET) : 0;
+    }
+
+    int rotationState() {
+        return isAligned() ? buffer.getInt(ROTATION_STATE_OFFSET) : ROTATION_NONE;
+    }
+
+    boolean isRotatingKey() {
+        return rotationState() == ROTATION_IN_PROGRESS;
+    }
+
+    long rotationProgress() {
+        return buffer.getLong(ROTATION_PROGRESS_OFFSET);
+    }
+
+    byte[] copyPublicKey() {
+        return copy(PUBLIC_KEY_OFFSET, PUBLIC_KEY_SIZE);
+    }
+
+    VolumeHeader publicKey(byte[] key) {
+        return put(PUBLIC_KEY_OFFSET, key, PUBLIC_KEY_SIZE);
+    }
+
+    byte[] copySalt() {
+        return copy(SALT_OFFSET, SALT_SIZE);
+    }
+
+    VolumeHeader salt(byte[] salt) {
+        return put(SALT_OFFSET, salt, SALT_SIZE);
+    }
+
+    byte[] copyWrappedKey() {
+        return copy(MASTER_KEY_OFFSET, WRAPPED_KEY_SIZE);
+    }
+
+    VolumeHeader wrappedKey(byte[] wrapped) {
+        return put(MASTER_KEY_OFFSET, wrapped, WRAPPED_KEY_SIZE);
+    }
+
+    /**
+     * Salt of the key a rotation in progress goes to
+     */
+    byte[] copyNextSalt() {
+        return copy(NEXT_SALT_OFFSET, SALT_SIZE);
+    }
+
+    byte[] copyNextWrappedKey() {
+        return copy(NEXT_KEY_OFFSET, WRAPPED_KEY_SIZE);
+    }
+
+    /**
+     * Feed the fields of this version to digest, with the root MAC (which
+     * every mount rewrites) as zeros
+     */
+    void digestFields(MessageDigest digest) {
+        int end = Math.min(buffer.limit(), Math.max(fieldsEnd(version()), V1_SIZE));
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(ROOT_MAC_OFFSET).position(0);
+        digest.update(buffer);
+        digest.update(ZERO_MAC);
+        buffer.limit(end).position(ROOT_MAC_OFFSET + ROOT_MAC_SIZE);
+        digest.update(buffer);
+        buffer.limit(limit).position(position);
+    }
+
+    // ------------------------------------------------------------------------
+    // Extensions
+    // ------------------------------------------------------------------------
+
+    /**
+     * Offset of the payload of the extension of type, or -1 if there is
+     * none
+     */
+    int findExtension(int type) {
+        for (int at = EXTENSIONS_OFFSET; isExtension(at); at = nextExtension(at)) {
+            if ((buffer.getShort(at) & 0xFFFF) == type) {
+                return at + EXTENSION_HEADER_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Payload length of the extension whose payload is at offset
+     */
+    int extensionLength(int offset) {
+        return buffer.getShort(offset - 2) & 0xFFFF;
+    }
+
+    /**
+     * Payload of the extension of type as a view into the header, or null
+     */
+    ByteBuffer extension(int type) {
+        int offset = findExtension(type);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + extensionLength(offset)).position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Set the extension of type to payload, replacing any earlier one
+     *
+     * @throws IOException if the header has no room for it (v1 has none)
+     */
+    VolumeHeader putExtension(int type, byte[] payload) throws IOException {
+        if (type <= 0 || type > 0xFFFF || payload.length > 0xFFFF) {
+            throw new IllegalArgumentException("Extension type " + type + ", " + payload.length + " bytes");
+        }
+        removeExtension(type);
+        int end = extensionsEnd();
+        if (end + EXTENSION_HEADER_SIZE + payload.length > extensionsLimit()) {
+            throw new IOException("No room in the volume header for a " + payload.length + "-byte extension");
+        }
+        buffer.putShort(end, (short) type);
+        buffer.putShort(end + 2, (short) payload.length);
+        return put(end + EXTENSION_HEADER_SIZE, payload, payload.length);
+    }
+
+    /**
+     * Drop the extension of type, moving the ones after it down
+     */
+    VolumeHeader removeExtension(int type) {
+        int offset = findExtension(type);
+        if (offset < 0) {
+            return this;
+        }
+        int start = offset - EXTENSION_HEADER_SIZE;
+        int next = offset + extensionLength(offset);
+        int end = extensionsEnd();
+        for (int i = next; i < end; i++) {
+            buffer.put(start + i - next, buffer.get(i));
+        }
+        for (int i = start + end - next; i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * End of the room for extensions: none in v1
+     */
+    private int extensionsLimit() {
+        return isAligned() ? Math.min(headerSize(), buffer.limit()) : EXTENSIONS_OFFSET;
+    }
+
+    /**
+     * Whether a whole extension starts at at
+     */
+    private boolean isExtension(int at) {
+        int limit = extensionsLimit();
+        return at + EXTENSION_HEADER_SIZE <= limit && buffer.getShort(at) != 0 && nextExtension(at) <= limit;
+    }
+
+    private int nextExtension(int at) {
+        return at + EXTENSION_HEADER_SIZE + (buffer.getShort(at + 2) & 0xFFFF);
+    }
+
+    /**
+     * Offset the next extension would go at
+     */
+    private int extensionsEnd() {
+        int at = EXTENSIONS_OFFSET;
+        while (isExtension(at)) {
+            at = nextExtension(at);
+        }
+        return at;
+    }
+
+    // ------------------------------------------------------------------------
+    // Internals
+    // ------------------------------------------------------------------------
+
+    private byte[] copy(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private VolumeHeader put(int offset, byte[] bytes, int length) {
+        if (bytes.length < length) {
+            throw new IllegalArgumentException(bytes.length + " bytes for a " + length + "-byte field");
+        }
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + i, bytes[i]);
+        }
+        return this;
+    }
+}
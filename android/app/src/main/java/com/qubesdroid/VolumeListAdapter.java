@@ -0,0 +1,76 @@
+package com.qubesdroid;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * RecyclerView adapter for the volumes of the VolumeCatalog
+ */
+class VolumeListAdapter extends RecyclerView.Adapter<VolumeListAdapter.ViewHolder> {
+
+    interface OnVolumeClickListener {
+        void onVolumeClick(VolumeCatalog.Entry volume);
+    }
+
+    private final List<VolumeCatalog.Entry> volumes = new ArrayList<>();
+    private final OnVolumeClickListener listener;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+
+    VolumeListAdapter(OnVolumeClickListener listener) {
+        this.listener = listener;
+    }
+
+    void setVolumes(List<VolumeCatalog.Entry> newVolumes) {
+        volumes.clear();
+        volumes.addAll(newVolumes);
+        notifyDataSetChanged();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+            .inflate(R.layout.item_file, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        VolumeCatalog.Entry volume = volumes.get(position);
+        holder.icon.setImageResource(R.drawable.ic_lock);
+        holder.nameText.setText(volume.name());
+        holder.detailText.setText(FileListAdapter.formatSize(volume.size) + ", created "
+            + dateFormat.format(new Date(volume.createdTime * 1000)));
+        holder.itemView.setOnClickListener(v -> listener.onVolumeClick(volume));
+    }
+
+    @Override
+    public int getItemCount() {
+        return volumes.size();
+    }
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView icon;
+        final TextView nameText;
+        final TextView detailText;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            icon = itemView.findViewById(R.id.fileIcon);
+            nameText = itemView.findViewById(R.id.fileNameText);
+            detailText = itemView.findViewById(R.id.fileDetailText);
+        }
+    }
+}
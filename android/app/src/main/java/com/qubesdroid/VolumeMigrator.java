@@ -0,0 +1,134 @@
+package com.qubesdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Converts a v1 volume to the aligned v2 layout (see BlockDevice)
+ *
+ * Both versions hold the same sealed slots, only placed differently, so
+ * the conversion moves bytes and needs no key: every block keeps its
+ * nonce, tag and AAD, the integrity tree over the tags stays valid and
+ * the root MAC in the header still holds.
+ *
+ * The v2 volume is written next to the original and renamed over it once
+ * complete and flushed, so a conversion cut short leaves the v1 volume
+ * as it was (and a stale temporary file that the next attempt replaces).
+ * It needs free space for a second copy while it runs.
+ *
+ * v2 header changes, the rest of the 1712 bytes being copied as is:
+ * | Offset | Size | Field                                         |
+ * |--------|------|-----------------------------------------------|
+ * | 8      | 4    | Version 0x02000000                            |
+ * | 12     | 4    | Header size 4096 (zero padded)                |
+ * | 1652   | 4    | Block size, always recorded                   |
+ * | 1656   | 8    | Block count (sizes the metadata region)       |
+ */
+final class VolumeMigrator {
+
+    static final int VERSION_1 = VolumeHeader.VERSION_1;
+    static final int VERSION_2 = VolumeHeader.VERSION_2;
+    static final int V2_HEADER_SIZE = VolumeHeader.V2_SIZE;
+    static final int BLOCK_COUNT_OFFSET = VolumeHeader.BLOCK_COUNT_OFFSET;
+
+    /**
+     * Progress callback, called from the converting thread
+     */
+    interface Progress {
+        void onProgress(long blocksDone, long blockCount);
+    }
+
+    private VolumeMigrator() {
+    }
+
+    /**
+     * Version of the volume in file
+     *
+     * @throws IOException if file is not a QubesDroid volume
+     */
+    static int version(File file) throws IOException {
+        return VolumeHeader.read(file).version();
+    }
+
+    /**
+     * Convert the v1 volume in file to v2 in place
+     *
+     * @throws IOException if file is not a v1 volume or the conversion
+     *                     fails (file is then unchanged)
+     */
+    static void migrate(File file, Progress progress) throws IOException {
+        VolumeHeader v1Header = VolumeHeader.read(file);
+        if (v1Header.version() != VERSION_1) {
+            throw new IOException(String.format("Not a v1 volume (version 0x%08X)", v1Header.version()));
+        }
+        int blockSize = v1Header.blockSize();
+        Compression compression = v1Header.compression();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".v2tmp");
+        boolean done = false;
+        try (BlockDevice from = v1Header.open(file, true)) {
+            long blockCount = from.blockCount();
+            VolumeHeader header = v1Header.copy(V2_HEADER_SIZE)
+                .version(VERSION_2)
+                .blockSize(blockSize)
+                .blockCount(blockCount);
+            Files.deleteIfExists(temp.toPath());
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.write(header.buffer().array());
+                raf.setLength(BlockDevice.alignedAreaEnd(V2_HEADER_SIZE, blockSize, blockCount));
+            }
+
+            try (BlockDevice to = BlockDevice.openAligned(temp, V2_HEADER_SIZE, blockSize,
+                    compression.layout(), blockCount, false)) {
+                copySlots(from, to, progress);
+                IntegrityTree.copyStored(from, to);
+                to.force();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copy every slot, a merged batch at a time; a framed slot only up to
+     * the end of its frame, so compressed volumes stay sparse (also used
+     * by VolumeExpander to move slots)
+     */
+    static void copySlots(BlockDevice from, BlockDevice to, Progress progress) throws IOException {
+        long blockCount = from.blockCount();
+        int slotSize = from.slotSize();
+        int batch = IoScheduler.mergeBlocks(from.blockSize());
+        boolean framed = from.layout() == BlockDevice.Layout.FRAMED;
+        ByteBuffer slots = ByteBuffer.allocateDirect(batch * slotSize);
+        for (long first = 0; first < blockCount; first += batch) {
+            int count = (int) Math.min(batch, blockCount - first);
+            slots.clear().limit(count * slotSize);
+            from.read(first, slots);
+            slots.flip();
+            if (!framed) {
+                to.write(first, slots);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int slot = i * slotSize;
+                    int frame = slots.getInt(slot + BlockDevice.NONCE_SIZE);
+                    int length = Math.min(frame & 0xFFFFFF, from.blockSize());
+                    slots.limit(slot + to.tagOffset() + BlockDevice.TAG_SIZE + length).position(slot);
+                    to.writeFramed(first + i, slots);
+                    slots.limit(count * slotSize);
+                }
+            }
+            if (progress != null) {
+                progress.onProgress(first + count, blockCount);
+            }
+        }
+    }
+}
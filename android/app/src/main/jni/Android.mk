@@ -13,6 +13,7 @@ MLKEM_SRC := $(CRYPTO_SRC)/ML-KEM-1024
 # Crypto source files
 LOCAL_SRC_FILES := \
     qubesdroid_crypto.c \
+    key_vault.c \
     $(CRYPTO_SRC)/cpu.c \
     $(CRYPTO_SRC)/chacha20poly1305.c \
     $(CRYPTO_SRC)/chacha256.c \
@@ -0,0 +1,192 @@
+/*
+ * QubesDroid key vault - key material outside the Java heap
+ *
+ * One arena, set up on first use:
+ *
+ *   [guard page][ARENA_SIZE data, mlock'd, MADV_DONTDUMP][guard page]
+ *
+ * The data pages are read-only except inside the write lock, while a
+ * key is copied in or wiped, so a stray write faults instead of
+ * corrupting a key. Keys take runs of GRANULE-byte granules, first fit;
+ * an ML-KEM secret key takes 50 of the 512, a symmetric key one.
+ *
+ * A handle is (slot generation << 16) | (slot index + 1). Every key
+ * stored in a slot bumps its generation, so the handle of a destroyed
+ * key never reaches the next key in the same slot.
+ *
+ * A 32 KB arena stays well under the default RLIMIT_MEMLOCK of Android
+ * apps (64 KB); if mlock fails anyway the vault still works, with a
+ * logged warning, as the keys may then reach swap (zram).
+ */
+
+#define _GNU_SOURCE  // MADV_DONTDUMP
+#include "key_vault.h"
+
+#include <errno.h>
+#include <pthread.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#include <android/log.h>
+
+#define LOG_TAG "QubesDroid-Vault"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+
+#define ARENA_SIZE (32 * 1024)
+#define GRANULE 64
+#define GRANULES (ARENA_SIZE / GRANULE)
+#define SLOTS 64
+
+struct slot {
+    uint32_t generation;
+    uint16_t first;   // First granule
+    uint16_t count;   // Granules taken, 0 for a free slot
+    size_t len;
+};
+
+static pthread_once_t arena_once = PTHREAD_ONCE_INIT;
+static pthread_rwlock_t vault_lock = PTHREAD_RWLOCK_INITIALIZER;
+static uint8_t *arena;         // NULL if the arena could not be set up
+static size_t arena_bytes;     // ARENA_SIZE rounded up to pages
+static uint8_t used[GRANULES];
+static struct slot slots[SLOTS];
+
+void key_vault_wipe(void *p, size_t len)
+{
+    volatile uint8_t *b = p;
+    while (len--) {
+        *b++ = 0;
+    }
+}
+
+static void arena_init(void)
+{
+    size_t page = (size_t) sysconf(_SC_PAGESIZE);
+    size_t bytes = (ARENA_SIZE + page - 1) / page * page;
+    uint8_t *base = mmap(NULL, bytes + 2 * page, PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (base == MAP_FAILED) {
+        LOGE("Key vault mmap failed: %d", errno);
+        return;
+    }
+    uint8_t *data = base + page;
+    if (mprotect(data, bytes, PROT_READ | PROT_WRITE) != 0) {
+        LOGE("Key vault mprotect failed: %d", errno);
+        munmap(base, bytes + 2 * page);
+        return;
+    }
+    // Fault the pages in before locking them
+    memset(data, 0, bytes);
+    if (mlock(data, bytes) != 0) {
+        LOGE("Key vault mlock failed: %d; keys may be swapped", errno);
+    }
+    madvise(data, bytes, MADV_DONTDUMP);
+    madvise(data, bytes, MADV_DONTFORK);
+    mprotect(data, bytes, PROT_READ);
+    arena_bytes = bytes;
+    arena = data;
+    LOGI("Key vault of %zu bytes ready", bytes);
+}
+
+static struct slot *lookup(int64_t handle)
+{
+    int64_t index = (handle & 0xFFFF) - 1;
+    if (handle <= 0 || index < 0 || index >= SLOTS) {
+        return NULL;
+    }
+    struct slot *s = &slots[index];
+    if (s->count == 0 || s->generation != (uint32_t) (handle >> 16)) {
+        return NULL;
+    }
+    return s;
+}
+
+/*
+ * First run of count free granules, or -1
+ */
+static int find_run(int count)
+{
+    int run = 0;
+    for (int i = 0; i < GRANULES; i++) {
+        run = used[i] ? 0 : run + 1;
+        if (run == count) {
+            return i - count + 1;
+        }
+    }
+    return -1;
+}
+
+int64_t key_vault_store(const uint8_t *key, size_t len)
+{
+    pthread_once(&arena_once, arena_init);
+    if (arena == NULL || len == 0 || len > KEY_VAULT_MAX_KEY) {
+        return 0;
+    }
+    int count = (int) ((len + GRANULE - 1) / GRANULE);
+
+    int64_t handle = 0;
+    pthread_rwlock_wrlock(&vault_lock);
+    int index = 0;
+    while (index < SLOTS && slots[index].count != 0) {
+        index++;
+    }
+    int first = index < SLOTS ? find_run(count) : -1;
+    if (first < 0) {
+        LOGE("Key vault full");
+    } else {
+        mprotect(arena, arena_bytes, PROT_READ | PROT_WRITE);
+        memcpy(arena + (size_t) first * GRANULE, key, len);
+        mprotect(arena, arena_bytes, PROT_READ);
+        memset(used + first, 1, count);
+
+        struct slot *s = &slots[index];
+        s->generation = (s->generation + 1) & 0x7FFFFFFF;
+        if (s->generation == 0) {
+            s->generation = 1;
+        }
+        s->first = (uint16_t) first;
+        s->count = (uint16_t) count;
+        s->len = len;
+        handle = ((int64_t) s->generation << 16) | (index + 1);
+    }
+    pthread_rwlock_unlock(&vault_lock);
+    return handle;
+}
+
+void key_vault_lock(void)
+{
+    pthread_rwlock_rdlock(&vault_lock);
+}
+
+const uint8_t *key_vault_get(int64_t handle, size_t *len)
+{
+    struct slot *s = lookup(handle);
+    if (s == NULL) {
+        return NULL;
+    }
+    *len = s->len;
+    return arena + (size_t) s->first * GRANULE;
+}
+
+void key_vault_unlock(void)
+{
+    pthread_rwlock_unlock(&vault_lock);
+}
+
+void key_vault_destroy(int64_t handle)
+{
+    if (arena == NULL) {
+        return;
+    }
+    pthread_rwlock_wrlock(&vault_lock);
+    struct slot *s = lookup(handle);
+    if (s != NULL) {
+        mprotect(arena, arena_bytes, PROT_READ | PROT_WRITE);
+        key_vault_wipe(arena + (size_t) s->first * GRANULE, (size_t) s->count * GRANULE);
+        mprotect(arena, arena_bytes, PROT_READ);
+        memset(used + s->first, 0, s->count);
+        s->count = 0;
+        s->len = 0;
+    }
+    pthread_rwlock_unlock(&vault_lock);
+}
@@ -0,0 +1,49 @@
+/*
+ * QubesDroid key vault - key material outside the Java heap
+ *
+ * Keys live in one arena of mlock'd pages between two PROT_NONE guard
+ * pages, excluded from core dumps and from forked children, read-only
+ * except while a key is stored or wiped. Java holds opaque handles only.
+ */
+
+#ifndef QUBESDROID_KEY_VAULT_H
+#define QUBESDROID_KEY_VAULT_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// Largest key the vault stores: an ML-KEM-1024 secret key
+#define KEY_VAULT_MAX_KEY 3168
+
+/*
+ * Store a copy of len bytes of key material; the caller wipes its own
+ * copy. Returns a non-zero handle, or 0 if the vault is full or cannot
+ * be set up.
+ */
+int64_t key_vault_store(const uint8_t *key, size_t len);
+
+/*
+ * Hold the vault shared: no key can be destroyed until key_vault_unlock().
+ * Nothing may be stored or destroyed by the holder in between.
+ */
+void key_vault_lock(void);
+
+/*
+ * The key behind handle, with the vault held; NULL for an unknown or
+ * destroyed handle
+ */
+const uint8_t *key_vault_get(int64_t handle, size_t *len);
+
+void key_vault_unlock(void);
+
+/*
+ * Wipe and free the key behind handle; unknown handles are ignored
+ */
+void key_vault_destroy(int64_t handle);
+
+/*
+ * Zero len bytes at p in a way the compiler cannot drop
+ */
+void key_vault_wipe(void *p, size_t len);
+
+#endif
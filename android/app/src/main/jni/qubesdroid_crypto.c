@@ -5,9 +5,14 @@
  * to the Android Java layer.
  */
 
+#define _GNU_SOURCE  // fallocate()
 #include <jni.h>
 #include <string.h>
 #include <stdlib.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <linux/falloc.h>
 #include <android/log.h>
 
 // Include crypto headers (use include paths from Android.mk)
@@ -16,6 +21,9 @@
 #include "chacha256.h"
 #include "argon2.h"
 #include "mlkem1024.h"
+#include "blake2s.h"
+#include "randombytes.h"
+#include "key_vault.h"
 
 #define LOG_TAG "QubesDroid-Crypto"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
@@ -23,33 +31,19 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 
 /*
- * Class:     com_qubesdroid_CryptoNative
- * Method:    deriveKeyFromPassword
- * Signature: (Ljava/lang/String;[B)[B
- *
- * Derive encryption key from password using Argon2id
- * Returns 32-byte key suitable for ChaCha20
+ * Argon2id of password and the 16-byte salt into key (32 bytes)
+ * Returns 0 on success
  */
-JNIEXPORT jbyteArray JNICALL
-Java_com_qubesdroid_CryptoNative_deriveKeyFromPassword(
-    JNIEnv *env,
-    jobject thiz,
-    jstring password,
-    jbyteArray salt)
+static int derive_password_key(JNIEnv *env, jstring password, jbyteArray salt, uint8_t key[32])
 {
-    const char *pwd = (*env)->GetStringUTFChars(env, password, NULL);
-    jbyte *salt_bytes = (*env)->GetByteArrayElements(env, salt, NULL);
     jsize salt_len = (*env)->GetArrayLength(env, salt);
-
     if (salt_len != 16) {
         LOGE("Invalid salt length: %d (expected 16)", salt_len);
-        (*env)->ReleaseStringUTFChars(env, password, pwd);
-        (*env)->ReleaseByteArrayElements(env, salt, salt_bytes, JNI_ABORT);
-        return NULL;
+        return -1;
     }
 
-    // Allocate output key
-    uint8_t key[32];
+    const char *pwd = (*env)->GetStringUTFChars(env, password, NULL);
+    jbyte *salt_bytes = (*env)->GetByteArrayElements(env, salt, NULL);
 
     // Argon2id parameters (mobile-friendly)
     uint32_t t_cost = 4;        // 4 iterations
@@ -67,7 +61,7 @@ Java_com_qubesdroid_CryptoNative_deriveKeyFromPassword(
         salt_bytes,
         salt_len,
         key,
-        sizeof(key),
+        32,
         NULL  // pAbortKeyDerivation - not using abort functionality
     );
 
@@ -78,7 +72,29 @@ Java_com_qubesdroid_CryptoNative_deriveKeyFromPassword(
 
     if (result != ARGON2_OK) {
         LOGE("Argon2id key derivation failed: %d", result);
-        memset(key, 0, sizeof(key));
+        key_vault_wipe(key, 32);
+        return -1;
+    }
+    return 0;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    deriveKeyFromPassword
+ * Signature: (Ljava/lang/String;[B)[B
+ *
+ * Derive encryption key from password using Argon2id
+ * Returns 32-byte key suitable for ChaCha20
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_deriveKeyFromPassword(
+    JNIEnv *env,
+    jobject thiz,
+    jstring password,
+    jbyteArray salt)
+{
+    uint8_t key[32];
+    if (derive_password_key(env, password, salt, key) != 0) {
         return NULL;
     }
 
@@ -87,7 +103,7 @@ Java_com_qubesdroid_CryptoNative_deriveKeyFromPassword(
     (*env)->SetByteArrayRegion(env, java_key, 0, sizeof(key), (jbyte*)key);
 
     // Clear sensitive data
-    memset(key, 0, sizeof(key));
+    key_vault_wipe(key, sizeof(key));
 
     LOGI("Key derived successfully");
     return java_key;
@@ -447,3 +463,629 @@ Java_com_qubesdroid_CryptoNative_mlkemDecapsulate(
     LOGI("ML-KEM-1024 decapsulation successful");
     return java_ss;
 }
+
+/*
+ * =====================================================================
+ * BLAKE2s-256 (integrity tree)
+ * =====================================================================
+ */
+
+/*
+ * BLAKE2s-256 of data into out; keyed (RFC 7693 MAC mode) if key_len is
+ * not 0 (at most BLAKE2S_KEYBYTES)
+ */
+static void blake2s_keyed(uint8_t out[BLAKE2S_OUTBYTES], const uint8_t *key, size_t key_len,
+                          const uint8_t *data, size_t data_len)
+{
+    blake2s_state S;
+
+    // blake2s_init also selects the compression function
+    blake2s_init(&S);
+
+    if (key_len > 0) {
+        blake2s_param P;
+        memset(&P, 0, sizeof(P));
+        P.digest_length = BLAKE2S_OUTBYTES;
+        P.key_length = (uint8_t) key_len;
+        P.fanout = 1;
+        P.depth = 1;
+        blake2s_init_param(&S, &P);
+
+        // Key is absorbed as a first, zero-padded block
+        uint8_t block[BLAKE2S_BLOCKBYTES];
+        memset(block, 0, sizeof(block));
+        memcpy(block, key, key_len);
+        blake2s_update(&S, block, sizeof(block));
+        key_vault_wipe(block, sizeof(block));
+    }
+
+    blake2s_update(&S, data, data_len);
+    blake2s_final(&S, out);
+    key_vault_wipe(&S, sizeof(S));
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    blake2s
+ * Signature: ([B[B)[B
+ *
+ * BLAKE2s-256 of data; keyed (RFC 7693 MAC mode) if key is not NULL
+ * Returns 32-byte digest, or NULL if the key is longer than 32 bytes
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_blake2s(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray key,
+    jbyteArray data)
+{
+    uint8_t key_bytes[BLAKE2S_KEYBYTES];
+    jsize key_len = 0;
+    if (key != NULL) {
+        key_len = (*env)->GetArrayLength(env, key);
+        if (key_len == 0 || key_len > BLAKE2S_KEYBYTES) {
+            LOGE("Invalid BLAKE2s key length");
+            return NULL;
+        }
+        (*env)->GetByteArrayRegion(env, key, 0, key_len, (jbyte*)key_bytes);
+    }
+
+    uint8_t out[BLAKE2S_OUTBYTES];
+    jsize data_len = (*env)->GetArrayLength(env, data);
+    jbyte *data_bytes = (*env)->GetByteArrayElements(env, data, NULL);
+    blake2s_keyed(out, key_bytes, key_len, (uint8_t*)data_bytes, data_len);
+    (*env)->ReleaseByteArrayElements(env, data, data_bytes, JNI_ABORT);
+    key_vault_wipe(key_bytes, sizeof(key_bytes));
+
+    jbyteArray output = (*env)->NewByteArray(env, BLAKE2S_OUTBYTES);
+    (*env)->SetByteArrayRegion(env, output, 0, BLAKE2S_OUTBYTES, (jbyte*)out);
+    key_vault_wipe(out, sizeof(out));
+    return output;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    blake2sBatch
+ * Signature: ([BII[B)Z
+ *
+ * Unkeyed BLAKE2s-256 of count consecutive inputs of stride bytes each,
+ * digests written back to back into out. One call hashes a whole tree
+ * level, so the JNI transition is paid once per level, not per node.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_qubesdroid_CryptoNative_blake2sBatch(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray in,
+    jint stride,
+    jint count,
+    jbyteArray out)
+{
+    if (stride <= 0 || count < 0
+            || (jlong) stride * count > (*env)->GetArrayLength(env, in)
+            || (jlong) BLAKE2S_OUTBYTES * count > (*env)->GetArrayLength(env, out)) {
+        LOGE("Invalid BLAKE2s batch");
+        return JNI_FALSE;
+    }
+
+    // No JNI calls or blocking between Get and Release of critical arrays
+    uint8_t *in_bytes = (*env)->GetPrimitiveArrayCritical(env, in, NULL);
+    uint8_t *out_bytes = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+    if (in_bytes == NULL || out_bytes == NULL) {
+        if (out_bytes != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, out, out_bytes, JNI_ABORT);
+        }
+        if (in_bytes != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, in, in_bytes, JNI_ABORT);
+        }
+        return JNI_FALSE;
+    }
+
+    for (jint i = 0; i < count; i++) {
+        blake2s(out_bytes + (size_t) i * BLAKE2S_OUTBYTES, in_bytes + (size_t) i * stride, stride);
+    }
+
+    (*env)->ReleasePrimitiveArrayCritical(env, out, out_bytes, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, in, in_bytes, JNI_ABORT);
+    return JNI_TRUE;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    punchHole
+ * Signature: (Ljava/lang/String;JJ)I
+ *
+ * Deallocate length bytes of the file at path from offset, keeping its
+ * size: the range reads back as zeros and no longer takes space on the
+ * host file system. Returns 0 on success, 1 if the file system cannot
+ * punch holes, or a negated errno.
+ */
+JNIEXPORT jint JNICALL
+Java_com_qubesdroid_CryptoNative_punchHole(
+    JNIEnv *env,
+    jobject thiz,
+    jstring path,
+    jlong offset,
+    jlong length)
+{
+    if (offset < 0 || length <= 0) {
+        return -EINVAL;
+    }
+    const char *file = (*env)->GetStringUTFChars(env, path, NULL);
+    if (file == NULL) {
+        return -ENOMEM;
+    }
+    int fd = open(file, O_WRONLY | O_CLOEXEC);
+    (*env)->ReleaseStringUTFChars(env, path, file);
+    if (fd < 0) {
+        return -errno;
+    }
+
+    int result = 0;
+    if (fallocate(fd, FALLOC_FL_PUNCH_HOLE | FALLOC_FL_KEEP_SIZE, (off_t) offset, (off_t) length) != 0) {
+        result = errno == EOPNOTSUPP || errno == ENOSYS ? 1 : -errno;
+    }
+    close(fd);
+    return result;
+}
+
+/*
+ * =====================================================================
+ * Key vault: keys addressed by handle (see key_vault.c)
+ *
+ * Key material enters the vault straight from where it is made (random
+ * bytes, Argon2id, BLAKE2s, an unwrap, ML-KEM) through a stack buffer
+ * wiped right after, and leaves it only wrapped. The handle variants of
+ * the AEAD and MAC take no key array, so nothing is marshalled for the
+ * key on the per-block path.
+ * =====================================================================
+ */
+
+static jlong store_and_wipe(uint8_t *key, size_t len)
+{
+    jlong handle = key_vault_store(key, len);
+    key_vault_wipe(key, len);
+    return handle;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultGenerateKey
+ * Signature: (I)J
+ *
+ * Random key of length bytes; returns its handle, or 0
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultGenerateKey(
+    JNIEnv *env,
+    jobject thiz,
+    jint length)
+{
+    uint8_t key[KEY_VAULT_MAX_KEY];
+    if (length <= 0 || length > KEY_VAULT_MAX_KEY || randombytes(key, length) != 0) {
+        LOGE("Key generation of %d bytes failed", length);
+        return 0;
+    }
+    return store_and_wipe(key, length);
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultDeriveKey
+ * Signature: (Ljava/lang/String;[B)J
+ *
+ * deriveKeyFromPassword() into the vault; returns the handle, or 0
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultDeriveKey(
+    JNIEnv *env,
+    jobject thiz,
+    jstring password,
+    jbyteArray salt)
+{
+    uint8_t key[32];
+    if (derive_password_key(env, password, salt, key) != 0) {
+        return 0;
+    }
+    return store_and_wipe(key, sizeof(key));
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultDeriveSubkey
+ * Signature: (J[B)J
+ *
+ * 32-byte key BLAKE2s-MAC(key, label); returns its handle, or 0 if key
+ * is unknown or longer than 32 bytes
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultDeriveSubkey(
+    JNIEnv *env,
+    jobject thiz,
+    jlong key,
+    jbyteArray label)
+{
+    jsize label_len = (*env)->GetArrayLength(env, label);
+    jbyte *label_bytes = (*env)->GetByteArrayElements(env, label, NULL);
+    uint8_t subkey[BLAKE2S_OUTBYTES];
+    size_t key_len = 0;
+
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    int ok = key_bytes != NULL && key_len <= BLAKE2S_KEYBYTES;
+    if (ok) {
+        blake2s_keyed(subkey, key_bytes, key_len, (uint8_t*)label_bytes, label_len);
+    }
+    key_vault_unlock();
+    (*env)->ReleaseByteArrayElements(env, label, label_bytes, JNI_ABORT);
+
+    if (!ok) {
+        LOGE("Subkey of an unknown key");
+        return 0;
+    }
+    return store_and_wipe(subkey, sizeof(subkey));
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultCopyKey
+ * Signature: (J)J
+ *
+ * Second, independently destroyed copy of a key; returns its handle, or 0
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultCopyKey(
+    JNIEnv *env,
+    jobject thiz,
+    jlong key)
+{
+    uint8_t copy[KEY_VAULT_MAX_KEY];
+    size_t key_len = 0;
+
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    if (key_bytes != NULL) {
+        memcpy(copy, key_bytes, key_len);
+    }
+    key_vault_unlock();
+
+    if (key_bytes == NULL) {
+        return 0;
+    }
+    return store_and_wipe(copy, key_len);
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultWrapKey
+ * Signature: (JJ[B)[B
+ *
+ * ChaCha20-Poly1305 of the key material behind key under the 32-byte
+ * key behind kek; returns ciphertext || tag, or NULL
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_vaultWrapKey(
+    JNIEnv *env,
+    jobject thiz,
+    jlong key,
+    jlong kek,
+    jbyteArray nonce)
+{
+    if ((*env)->GetArrayLength(env, nonce) != 12) {
+        LOGE("Invalid nonce length");
+        return NULL;
+    }
+    uint8_t nonce_bytes[12];
+    (*env)->GetByteArrayRegion(env, nonce, 0, sizeof(nonce_bytes), (jbyte*)nonce_bytes);
+
+    uint8_t wrapped[KEY_VAULT_MAX_KEY + 16];
+    size_t key_len = 0;
+    size_t kek_len = 0;
+    int result = -1;
+
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    const uint8_t *kek_bytes = key_vault_get(kek, &kek_len);
+    if (key_bytes != NULL && kek_bytes != NULL && kek_len == 32) {
+        result = chacha20poly1305_encrypt(wrapped, wrapped + key_len, key_bytes, key_len,
+                                          NULL, 0, kek_bytes, nonce_bytes);
+    }
+    key_vault_unlock();
+
+    if (result != 0) {
+        LOGE("Key wrap failed");
+        return NULL;
+    }
+    jbyteArray output = (*env)->NewByteArray(env, key_len + 16);
+    (*env)->SetByteArrayRegion(env, output, 0, key_len + 16, (jbyte*)wrapped);
+    return output;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultUnwrapKey
+ * Signature: ([BJ[B)J
+ *
+ * Inverse of vaultWrapKey(); returns the handle of the key, or 0 if the
+ * wrapped key does not authenticate under kek
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultUnwrapKey(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray wrapped,
+    jlong kek,
+    jbyteArray nonce)
+{
+    jsize wrapped_len = (*env)->GetArrayLength(env, wrapped);
+    if (wrapped_len <= 16 || wrapped_len > KEY_VAULT_MAX_KEY + 16
+            || (*env)->GetArrayLength(env, nonce) != 12) {
+        LOGE("Invalid wrapped key");
+        return 0;
+    }
+    size_t key_len = wrapped_len - 16;
+    uint8_t wrapped_bytes[KEY_VAULT_MAX_KEY + 16];
+    uint8_t nonce_bytes[12];
+    (*env)->GetByteArrayRegion(env, wrapped, 0, wrapped_len, (jbyte*)wrapped_bytes);
+    (*env)->GetByteArrayRegion(env, nonce, 0, sizeof(nonce_bytes), (jbyte*)nonce_bytes);
+
+    uint8_t key[KEY_VAULT_MAX_KEY];
+    size_t kek_len = 0;
+    int result = -1;
+
+    key_vault_lock();
+    const uint8_t *kek_bytes = key_vault_get(kek, &kek_len);
+    if (kek_bytes != NULL && kek_len == 32) {
+        result = chacha20poly1305_decrypt(key, wrapped_bytes, key_len, wrapped_bytes + key_len,
+                                          NULL, 0, kek_bytes, nonce_bytes);
+    }
+    key_vault_unlock();
+
+    if (result != 0) {
+        key_vault_wipe(key, key_len);
+        return 0;
+    }
+    return store_and_wipe(key, key_len);
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultMlkemKeypair
+ * Signature: ([B)J
+ *
+ * ML-KEM-1024 keypair: the public key into publicKey (1568 bytes), the
+ * secret key into the vault; returns its handle, or 0
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultMlkemKeypair(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray publicKey)
+{
+    if ((*env)->GetArrayLength(env, publicKey) != MLKEM1024_PUBLICKEYBYTES) {
+        LOGE("Invalid public key length");
+        return 0;
+    }
+    uint8_t pk[MLKEM1024_PUBLICKEYBYTES];
+    uint8_t sk[MLKEM1024_SECRETKEYBYTES];
+
+    if (mlkem1024_keypair(pk, sk) != 0) {
+        LOGE("ML-KEM-1024 keypair generation failed");
+        key_vault_wipe(sk, sizeof(sk));
+        return 0;
+    }
+    (*env)->SetByteArrayRegion(env, publicKey, 0, sizeof(pk), (jbyte*)pk);
+    return store_and_wipe(sk, sizeof(sk));
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultMlkemDecapsulate
+ * Signature: ([BJ)J
+ *
+ * mlkemDecapsulate() with the secret key behind secretKey; returns the
+ * handle of the shared secret, or 0
+ */
+JNIEXPORT jlong JNICALL
+Java_com_qubesdroid_CryptoNative_vaultMlkemDecapsulate(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray ciphertext,
+    jlong secretKey)
+{
+    if ((*env)->GetArrayLength(env, ciphertext) != MLKEM1024_CIPHERTEXTBYTES) {
+        LOGE("Invalid ciphertext length");
+        return 0;
+    }
+    uint8_t ct[MLKEM1024_CIPHERTEXTBYTES];
+    (*env)->GetByteArrayRegion(env, ciphertext, 0, sizeof(ct), (jbyte*)ct);
+
+    uint8_t ss[MLKEM1024_BYTES];
+    size_t sk_len = 0;
+    int result = -1;
+
+    key_vault_lock();
+    const uint8_t *sk = key_vault_get(secretKey, &sk_len);
+    if (sk != NULL && sk_len == MLKEM1024_SECRETKEYBYTES) {
+        result = mlkem1024_dec(ss, ct, sk);
+    }
+    key_vault_unlock();
+
+    if (result != 0) {
+        LOGE("ML-KEM-1024 decapsulation failed");
+        key_vault_wipe(ss, sizeof(ss));
+        return 0;
+    }
+    return store_and_wipe(ss, sizeof(ss));
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    vaultDestroyKey
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL
+Java_com_qubesdroid_CryptoNative_vaultDestroyKey(
+    JNIEnv *env,
+    jobject thiz,
+    jlong key)
+{
+    key_vault_destroy(key);
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    encryptWithKey
+ * Signature: ([BJ[B[B)[B
+ *
+ * encryptData() under the 32-byte key behind key; NULL if it is unknown
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_encryptWithKey(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray plaintext,
+    jlong key,
+    jbyteArray nonce,
+    jbyteArray aad)
+{
+    if ((*env)->GetArrayLength(env, nonce) != 12) {
+        LOGE("Invalid nonce length");
+        return NULL;
+    }
+    uint8_t nonce_bytes[12];
+    (*env)->GetByteArrayRegion(env, nonce, 0, sizeof(nonce_bytes), (jbyte*)nonce_bytes);
+    jsize pt_len = (*env)->GetArrayLength(env, plaintext);
+    jsize aad_len = aad != NULL ? (*env)->GetArrayLength(env, aad) : 0;
+    jbyteArray output = (*env)->NewByteArray(env, pt_len + 16);
+    if (output == NULL) {
+        return NULL;
+    }
+
+    size_t key_len = 0;
+    int result = -1;
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    if (key_bytes != NULL && key_len == 32) {
+        // No JNI calls or blocking between Get and Release of critical arrays
+        uint8_t *pt = (*env)->GetPrimitiveArrayCritical(env, plaintext, NULL);
+        uint8_t *ad = aad != NULL ? (*env)->GetPrimitiveArrayCritical(env, aad, NULL) : NULL;
+        uint8_t *out = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+        if (pt != NULL && out != NULL && (aad == NULL || ad != NULL)) {
+            result = chacha20poly1305_encrypt(out, out + pt_len, pt, pt_len, ad, aad_len,
+                                              key_bytes, nonce_bytes);
+        }
+        if (out != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, output, out, 0);
+        }
+        if (ad != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, aad, ad, JNI_ABORT);
+        }
+        if (pt != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, plaintext, pt, JNI_ABORT);
+        }
+    }
+    key_vault_unlock();
+
+    return result == 0 ? output : NULL;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    decryptWithKey
+ * Signature: ([BJ[B[B)[B
+ *
+ * decryptData() under the 32-byte key behind key; NULL if it is unknown
+ * or the ciphertext does not authenticate under it. Failures are not
+ * logged: during a key rotation a block is tried under both keys.
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_decryptWithKey(
+    JNIEnv *env,
+    jobject thiz,
+    jbyteArray ciphertext_with_tag,
+    jlong key,
+    jbyteArray nonce,
+    jbyteArray aad)
+{
+    jsize ct_total_len = (*env)->GetArrayLength(env, ciphertext_with_tag);
+    if (ct_total_len < 16 || (*env)->GetArrayLength(env, nonce) != 12) {
+        LOGE("Invalid ciphertext or nonce length");
+        return NULL;
+    }
+    uint8_t nonce_bytes[12];
+    (*env)->GetByteArrayRegion(env, nonce, 0, sizeof(nonce_bytes), (jbyte*)nonce_bytes);
+    jsize ct_len = ct_total_len - 16;
+    jsize aad_len = aad != NULL ? (*env)->GetArrayLength(env, aad) : 0;
+    jbyteArray output = (*env)->NewByteArray(env, ct_len);
+    if (output == NULL) {
+        return NULL;
+    }
+
+    size_t key_len = 0;
+    int result = -1;
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    if (key_bytes != NULL && key_len == 32) {
+        // No JNI calls or blocking between Get and Release of critical arrays
+        uint8_t *ct = (*env)->GetPrimitiveArrayCritical(env, ciphertext_with_tag, NULL);
+        uint8_t *ad = aad != NULL ? (*env)->GetPrimitiveArrayCritical(env, aad, NULL) : NULL;
+        uint8_t *out = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+        if (ct != NULL && out != NULL && (aad == NULL || ad != NULL)) {
+            result = chacha20poly1305_decrypt(out, ct, ct_len, ct + ct_len, ad, aad_len,
+                                              key_bytes, nonce_bytes);
+            if (result != 0) {
+                key_vault_wipe(out, ct_len);
+            }
+        }
+        if (out != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, output, out, 0);
+        }
+        if (ad != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, aad, ad, JNI_ABORT);
+        }
+        if (ct != NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, ciphertext_with_tag, ct, JNI_ABORT);
+        }
+    }
+    key_vault_unlock();
+
+    return result == 0 ? output : NULL;
+}
+
+/*
+ * Class:     com_qubesdroid_CryptoNative
+ * Method:    blake2sWithKey
+ * Signature: (J[B)[B
+ *
+ * blake2s() keyed with the key behind key (at most 32 bytes); NULL if
+ * it is unknown
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_qubesdroid_CryptoNative_blake2sWithKey(
+    JNIEnv *env,
+    jobject thiz,
+    jlong key,
+    jbyteArray data)
+{
+    jsize data_len = (*env)->GetArrayLength(env, data);
+    jbyte *data_bytes = (*env)->GetByteArrayElements(env, data, NULL);
+    uint8_t out[BLAKE2S_OUTBYTES];
+    size_t key_len = 0;
+
+    key_vault_lock();
+    const uint8_t *key_bytes = key_vault_get(key, &key_len);
+    int ok = key_bytes != NULL && key_len <= BLAKE2S_KEYBYTES;
+    if (ok) {
+        blake2s_keyed(out, key_bytes, key_len, (uint8_t*)data_bytes, data_len);
+    }
+    key_vault_unlock();
+    (*env)->ReleaseByteArrayElements(env, data, data_bytes, JNI_ABORT);
+
+    if (!ok) {
+        return NULL;
+    }
+    jbyteArray output = (*env)->NewByteArray(env, BLAKE2S_OUTBYTES);
+    (*env)->SetByteArrayRegion(env, output, 0, BLAKE2S_OUTBYTES, (jbyte*)out);
+    return output;
+}
@@ -0,0 +1,181 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for batch import with group commit
+ *
+ * Tests:
+ * - A batch import yields the same tree as importing one file at a time,
+ *   with far fewer flushes
+ * - A failing source is dropped without affecting the rest of the batch
+ */
+public class BatchImporterTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 4096;
+
+    private FileImporter importer;
+
+    @After
+    public void tearDown() {
+        if (importer != null) {
+            importer.close();
+        }
+    }
+
+    @Test
+    public void testBatchMatchesSequential() throws Exception {
+        List<MemorySource> sources = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            int size = random.nextInt(4) == 0 ? random.nextInt(6 * BLOCK_SIZE) : random.nextInt(2000);
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            sources.add(new MemorySource(String.format("photo-%04d.jpg", i), content, false));
+        }
+
+        MemoryBlockStore sequentialStore = newStore();
+        VolumeFileSystem sequential = VolumeFileSystem.mount(sequentialStore);
+        importer = new FileImporter(sequential, sequentialStore, 2, 8);
+        int flushesBefore = sequentialStore.flushes;
+        for (MemorySource source : sources) {
+            importer.importStream(source.open(), VolumeFileSystem.ROOT_INODE, source.name(),
+                source.size(), null, null);
+        }
+        int sequentialFlushes = sequentialStore.flushes - flushesBefore;
+        importer.close();
+
+        MemoryBlockStore batchStore = newStore();
+        VolumeFileSystem batch = VolumeFileSystem.mount(batchStore);
+        importer = new FileImporter(batch, batchStore, 2, 8);
+        flushesBefore = batchStore.flushes;
+        BatchImporter.Result result;
+        try (BatchImporter batchImporter = new BatchImporter(batch, importer, 4, 64)) {
+            result = batchImporter.importAll(VolumeFileSystem.ROOT_INODE, sources, null, null);
+        }
+        int batchFlushes = batchStore.flushes - flushesBefore;
+
+        assertEquals("Every file should be imported", sources.size(), result.imported);
+        assertTrue("Group commit should flush far less (" + batchFlushes + " vs " + sequentialFlushes + ")",
+            batchFlushes * 10 < sequentialFlushes);
+
+        batch = VolumeFileSystem.mount(batchStore);
+        assertTreesEqual(sequential, batch, sources);
+    }
+
+    @Test
+    public void testFailingSourceSkipped() throws Exception {
+        MemoryBlockStore store = newStore();
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        long free = fs.freeBytes();
+        importer = new FileImporter(fs, store, 2, 8);
+        List<MemorySource> sources = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] content = new byte[3 * BLOCK_SIZE + 10];
+            new Random(i).nextBytes(content);
+            sources.add(new MemorySource("file" + i, content, i == 7));
+        }
+
+        BatchImporter.Result result;
+        try (BatchImporter batchImporter = new BatchImporter(fs, importer, 4, 8)) {
+            result = batchImporter.importAll(VolumeFileSystem.ROOT_INODE, sources, null, null);
+        }
+
+        assertEquals("All but the failing file should be imported", 19, result.imported);
+        assertFalse("Failing file should be reported", result.outcomes.get(7).succeeded());
+
+        fs = VolumeFileSystem.mount(store);
+        assertNull("Failing file should not exist", fs.lookup(VolumeFileSystem.ROOT_INODE, "file7"));
+        for (int i = 0; i < 20; i++) {
+            if (i != 7) {
+                assertArrayEquals("Content of file" + i, sources.get(i).content,
+                    readAll(fs, fs.lookup(VolumeFileSystem.ROOT_INODE, "file" + i).inode));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            if (i != 7) {
+                fs.delete(VolumeFileSystem.ROOT_INODE, "file" + i);
+            }
+        }
+        // Kept: the directory leaf and two inode table blocks for inodes 8-20
+        assertEquals("Deleting everything should leak no data or tail blocks",
+            free - 3 * BLOCK_SIZE, fs.freeBytes());
+    }
+
+    private static MemoryBlockStore newStore() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT);
+        VolumeFileSystem.format(store);
+        return store;
+    }
+
+    private static void assertTreesEqual(VolumeFileSystem expected, VolumeFileSystem actual,
+                                         List<MemorySource> sources) throws IOException {
+        List<DirectoryBTree.Entry> a = expected.list(VolumeFileSystem.ROOT_INODE, null, 10_000);
+        List<DirectoryBTree.Entry> b = actual.list(VolumeFileSystem.ROOT_INODE, null, 10_000);
+        assertEquals("Same number of entries", a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            assertEquals("Same names in order", a.get(i).name, b.get(i).name);
+            assertArrayEquals("Same content for " + a.get(i).name,
+                readAll(expected, a.get(i).inode), readAll(actual, b.get(i).inode));
+        }
+        for (MemorySource source : sources) {
+            assertArrayEquals("Content should match the source for " + source.name(), source.content,
+                readAll(actual, actual.lookup(VolumeFileSystem.ROOT_INODE, source.name()).inode));
+        }
+    }
+
+    private static byte[] readAll(VolumeFileSystem fs, long ino) throws IOException {
+        byte[] data = new byte[(int) fs.stat(ino).size];
+        int done = 0;
+        while (done < data.length) {
+            done += fs.read(ino, done, data, done, data.length - done);
+        }
+        return data;
+    }
+
+    private static final class MemorySource implements BatchImporter.Source {
+        final String name;
+        final byte[] content;
+        final boolean fail;
+
+        MemorySource(String name, byte[] content, boolean fail) {
+            this.name = name;
+            this.content = content;
+            this.fail = fail;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(content) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (fail && pos >= content.length / 2) {
+                        throw new IllegalStateException("source went away");
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+        }
+    }
+}
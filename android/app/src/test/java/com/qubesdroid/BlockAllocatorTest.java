@@ -0,0 +1,156 @@
+package com.qubesdroid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BlockAllocator placement and the region summary tree
+ *
+ * Tests:
+ * - Best fit picks the smallest hole that holds the request
+ * - Allocation continues at the goal block when it is free
+ * - Files allocated in alternation keep to their own reservations
+ * - Reserved space is handed out once nothing else is left
+ * - The summary tree agrees with the bitmap after random churn
+ */
+public class BlockAllocatorTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 4096;
+
+    private MetadataCache cache;
+    private BlockAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT);
+        cache = new MetadataCache(store, 64);
+        allocator = new BlockAllocator(cache, 1, BLOCK_COUNT);
+        allocator.load();
+        allocator.markAllocated(0, 2);
+    }
+
+    @Test
+    public void testBestFitChoosesSmallestHole() throws Exception {
+        // Holes of 3, 10 and 5 blocks separated by used blocks, rest used
+        allocator.markAllocated(2, 100);
+        allocator.free(10, 3);
+        allocator.free(20, 10);
+        allocator.free(40, 5);
+        allocator.markAllocated(102, BLOCK_COUNT - 102);
+
+        assertEquals("5 blocks should fill the 5-block hole", new Extent(40, 5),
+            allocator.allocate(0, 5));
+        assertEquals("4 blocks should go to the 10-block hole", new Extent(20, 4),
+            allocator.allocate(0, 4));
+        assertEquals("3 blocks should fill the 3-block hole", new Extent(10, 3),
+            allocator.allocate(0, 3));
+    }
+
+    @Test
+    public void testGoalContinuesExtent() throws Exception {
+        Extent first = allocator.allocate(0, 8);
+        allocator.allocate(first.end() + 100, 1);
+        assertEquals("Allocation at a free goal should start there",
+            first.end(), allocator.allocate(first.end(), 4).start);
+    }
+
+    @Test
+    public void testReservationsKeepFilesApart() throws Exception {
+        List<Extent> a = new ArrayList<>();
+        List<Extent> b = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            append(a, allocator.allocateFor(1, goal(a), 1, blocks(a)));
+            append(b, allocator.allocateFor(2, goal(b), 1, blocks(b)));
+        }
+        assertTrue("Interleaved file should have few extents, had " + a.size(), a.size() <= 10);
+        assertTrue("Interleaved file should have few extents, had " + b.size(), b.size() <= 10);
+
+        allocator.reserve(3, 0, 300);
+        List<Extent> c = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            append(c, allocator.allocateFor(3, goal(c), 1, blocks(c)));
+            allocator.allocate(0, 1);
+        }
+        assertEquals("Hinted file should be one extent", 1, c.size());
+    }
+
+    @Test
+    public void testReservedSpaceUsedWhenFull() throws Exception {
+        allocator.reserve(7, 0, 1000);
+        long free = allocator.freeBlocks();
+        for (long i = 0; i < free; i++) {
+            allocator.allocateOne(0);
+        }
+        assertEquals("Every free block should be allocatable", 0, allocator.freeBlocks());
+        try {
+            allocator.allocateOne(0);
+            fail("Full volume should refuse allocation");
+        } catch (java.io.IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSummaryMatchesBitmapAfterChurn() throws Exception {
+        Random random = new Random(42);
+        List<Extent> live = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (live.isEmpty() || random.nextInt(3) > 0) {
+                if (allocator.freeBlocks() > 64) {
+                    live.add(allocator.allocate(random.nextInt(BLOCK_COUNT), 1 + random.nextInt(16)));
+                }
+            } else {
+                allocator.free(live.remove(random.nextInt(live.size())));
+            }
+        }
+
+        long largest = 0;
+        long run = 0;
+        long free = 0;
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            run = allocator.isAllocated(i) ? 0 : run + 1;
+            largest = Math.max(largest, run);
+            free += allocator.isAllocated(i) ? 0 : 1;
+        }
+        assertEquals("Free count should match bitmap", free, allocator.freeBlocks());
+        assertEquals("Largest run should match bitmap", largest, allocator.largestFreeRun());
+
+        // Every free block must still be reachable through the tree
+        for (long i = 0; i < free; i++) {
+            allocator.allocateOne(0);
+        }
+        assertEquals("Volume should be exactly full", 0, allocator.freeBlocks());
+
+        // A reloaded bitmap gives the same picture
+        allocator.load();
+        assertEquals("Reload should see a full volume", 0, allocator.freeBlocks());
+    }
+
+    private static void append(List<Extent> extents, Extent e) {
+        int last = extents.size() - 1;
+        if (last >= 0 && extents.get(last).end() == e.start) {
+            extents.set(last, new Extent(extents.get(last).start, extents.get(last).length + e.length));
+        } else {
+            extents.add(e);
+        }
+    }
+
+    private static long goal(List<Extent> extents) {
+        return extents.isEmpty() ? 0 : extents.get(extents.size() - 1).end();
+    }
+
+    private static long blocks(List<Extent> extents) {
+        long n = 0;
+        for (Extent e : extents) {
+            n += e.length;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,286 @@
+package com.qubesdroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for block compression and the entropy bypass
+ *
+ * Tests:
+ * - LZ4 and DEFLATE blocks decompress to the original, for text, runs,
+ *   overlapping matches and odd block sizes
+ * - Already compressed and random blocks are bypassed by the probe;
+ *   text and zeros are not
+ * - Damaged compressed blocks fail with IOException, never with a
+ *   runtime exception or a wrong-sized block
+ * - Ratio and net seal/open throughput of each mode on documents,
+ *   already compressed media and a mix (ChaCha20-Poly1305 from the JDK
+ *   stands in for the native one)
+ */
+public class BlockCompressorTest {
+
+    private static final int BLOCK_SIZE = 65536;
+    private static final Compression[] CODECS = {Compression.LZ4, Compression.DEFLATE};
+
+    private final Random random = new Random(11);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[][] inputs = {
+            text(BLOCK_SIZE),
+            new byte[BLOCK_SIZE],
+            pattern(BLOCK_SIZE, 1),
+            pattern(BLOCK_SIZE, 3),
+            pattern(BLOCK_SIZE, 70_000),
+            text(4096),
+            text(13),
+            pattern(17, 2),
+            halfAndHalf(),
+        };
+        for (Compression codec : CODECS) {
+            for (byte[] input : inputs) {
+                byte[] packed = new byte[input.length];
+                int length = BlockCompressor.compress(codec, input, packed);
+                if (length < 0) {
+                    assertTrue(codec + " may only give up on tiny blocks", input.length < 64);
+                    continue;
+                }
+                assertTrue(codec + " should save an eighth", length <= input.length - input.length / 8);
+                byte[] out = new byte[input.length];
+                BlockCompressor.decompress(codec, packed, 0, length, out);
+                assertArrayEquals(codec + " round trip of " + input.length + " bytes", input, out);
+            }
+        }
+    }
+
+    @Test
+    public void testProbeBypassesCompressedData() {
+        byte[] media = alreadyCompressed(BLOCK_SIZE);
+        byte[] noise = new byte[BLOCK_SIZE];
+        random.nextBytes(noise);
+
+        assertTrue("Deflated data should be bypassed", BlockCompressor.looksIncompressible(media));
+        assertTrue("Random data should be bypassed", BlockCompressor.looksIncompressible(noise));
+        assertFalse("Text should be compressed", BlockCompressor.looksIncompressible(text(BLOCK_SIZE)));
+        assertFalse("Zeros should be compressed", BlockCompressor.looksIncompressible(new byte[BLOCK_SIZE]));
+        assertFalse("Small blocks are probed too", BlockCompressor.looksIncompressible(text(4096)));
+        for (Compression codec : CODECS) {
+            assertEquals(codec + " should give up on random data", -1,
+                BlockCompressor.compress(codec, noise, new byte[BLOCK_SIZE]));
+        }
+    }
+
+    @Test
+    public void testDamagedBlockRejected() throws Exception {
+        byte[] input = text(BLOCK_SIZE);
+        for (Compression codec : CODECS) {
+            byte[] packed = new byte[BLOCK_SIZE];
+            int length = BlockCompressor.compress(codec, input, packed);
+            int rejected = 0;
+            for (int trial = 0; trial < 2000; trial++) {
+                byte[] damaged = Arrays.copyOf(packed, length);
+                int cut = trial % 5 == 0 ? random.nextInt(length) : length;
+                damaged[random.nextInt(cut == 0 ? 1 : cut)] ^= (byte) (1 + random.nextInt(255));
+                byte[] out = new byte[BLOCK_SIZE];
+                try {
+                    BlockCompressor.decompress(codec, damaged, 0, cut, out);
+                } catch (IOException expected) {
+                    rejected++;
+                }
+            }
+            assertTrue(codec + " should reject most damaged blocks", rejected > 100);
+        }
+    }
+
+    @Test
+    public void testCompressionBenchmark() throws Exception {
+        int blocks = 64;
+        byte[][] documents = new byte[blocks][];
+        byte[][] media = new byte[blocks][];
+        byte[][] mixed = new byte[blocks][];
+        for (int i = 0; i < blocks; i++) {
+            documents[i] = text(BLOCK_SIZE);
+            media[i] = alreadyCompressed(BLOCK_SIZE);
+            mixed[i] = i % 2 == 0 ? documents[i] : media[i];
+        }
+        String[] names = {"documents", "compressed media", "mixed"};
+        byte[][][] workloads = {documents, media, mixed};
+        Compression[] modes = Compression.values();
+
+        StringBuilder report = new StringBuilder(String.format(
+            "Compress-then-encrypt, %d x 64 KB blocks per workload:%n", blocks));
+        double[][] ratio = new double[workloads.length][modes.length];
+        int[][] bypassed = new int[workloads.length][modes.length];
+        for (int w = 0; w < workloads.length; w++) {
+            for (int m = 0; m < modes.length; m++) {
+                Sealer sealer = new Sealer(modes[m]);
+                // Warm up the JIT, then measure
+                for (int i = 0; i < 3; i++) {
+                    sealer.run(workloads[w]);
+                }
+                Sealer.Run run = sealer.run(workloads[w]);
+                ratio[w][m] = (double) blocks * BLOCK_SIZE / run.storedBytes;
+                bypassed[w][m] = run.bypassed;
+                report.append(String.format("  %-17s %-8s ratio %5.2f  bypassed %3d/%d  "
+                        + "seal %6.1f MB/s  open %6.1f MB/s  cipher bytes %5.1f%%%n",
+                    names[w], modes[m], ratio[w][m], run.bypassed, blocks,
+                    blocks * BLOCK_SIZE / 1e6 / (run.sealNanos / 1e9),
+                    blocks * BLOCK_SIZE / 1e6 / (run.openNanos / 1e9),
+                    100.0 * run.cipherBytes / ((double) blocks * BLOCK_SIZE)));
+            }
+        }
+        System.out.print(report);
+
+        assertTrue("LZ4 should save a third on documents", ratio[0][1] > 1.5);
+        assertTrue("zlib should beat LZ4 on documents", ratio[0][2] > ratio[0][1]);
+        assertEquals("Every media block should be bypassed by LZ4", blocks, bypassed[1][1]);
+        assertEquals("Every media block should be bypassed by zlib", blocks, bypassed[1][2]);
+        assertTrue("Bypassed media should cost only the frame", ratio[1][1] > 0.99);
+        assertTrue("Mixed data should still shrink", ratio[2][1] > 1.2);
+    }
+
+    /**
+     * Seals and opens blocks the way BlockEngine does on a FRAMED device
+     */
+    private static final class Sealer {
+        final Compression mode;
+        final byte[] key = new byte[32];
+        long nonceCounter;
+
+        static final class Run {
+            long storedBytes;
+            long cipherBytes;
+            int bypassed;
+            long sealNanos;
+            long openNanos;
+        }
+
+        Sealer(Compression mode) {
+            this.mode = mode;
+        }
+
+        Run run(byte[][] blocks) throws Exception {
+            Run run = new Run();
+            byte[][] sealed = new byte[blocks.length][];
+            byte[][] nonces = new byte[blocks.length][];
+            int[] frames = new int[blocks.length];
+            byte[] packed = new byte[BLOCK_SIZE];
+
+            long start = System.nanoTime();
+            for (int i = 0; i < blocks.length; i++) {
+                byte[] payload = blocks[i];
+                int frame = BLOCK_SIZE;
+                if (mode != Compression.NONE && !BlockCompressor.looksIncompressible(payload)) {
+                    int length = BlockCompressor.compress(mode, payload, packed);
+                    if (length >= 0) {
+                        payload = Arrays.copyOf(packed, length);
+                        frame = mode.id << 24 | length;
+                    }
+                }
+                if (frame == BLOCK_SIZE) {
+                    run.bypassed++;
+                }
+                nonces[i] = nextNonce();
+                frames[i] = frame;
+                sealed[i] = cipher(Cipher.ENCRYPT_MODE, nonces[i], i, frame).doFinal(payload);
+                run.cipherBytes += payload.length;
+                int header = mode == Compression.NONE ? 12 : 12 + BlockDevice.FRAME_SIZE;
+                run.storedBytes += header + sealed[i].length;
+            }
+            run.sealNanos = System.nanoTime() - start;
+
+            byte[] out = new byte[BLOCK_SIZE];
+            start = System.nanoTime();
+            for (int i = 0; i < blocks.length; i++) {
+                byte[] plain = cipher(Cipher.DECRYPT_MODE, nonces[i], i, frames[i]).doFinal(sealed[i]);
+                if (frames[i] == BLOCK_SIZE) {
+                    System.arraycopy(plain, 0, out, 0, BLOCK_SIZE);
+                } else {
+                    BlockCompressor.decompress(mode, plain, 0, plain.length, out);
+                }
+                assertArrayEquals("Block " + i + " should open to the original", blocks[i], out);
+            }
+            run.openNanos = System.nanoTime() - start;
+            return run;
+        }
+
+        private byte[] nextNonce() {
+            return java.nio.ByteBuffer.allocate(12).putLong(4, ++nonceCounter).array();
+        }
+
+        private Cipher cipher(int opMode, byte[] nonce, long index, int frame) throws Exception {
+            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
+            cipher.init(opMode, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
+            cipher.updateAAD(mode == Compression.NONE
+                ? BlockEngine.blockAad(index) : BlockEngine.framedAad(index, frame));
+            return cipher;
+        }
+    }
+
+    /**
+     * Prose-like text over a skewed vocabulary
+     */
+    private byte[] text(int size) {
+        String[] words = new String[3000];
+        Random vocabulary = new Random(5);
+        for (int i = 0; i < words.length; i++) {
+            char[] w = new char[2 + vocabulary.nextInt(9)];
+            for (int j = 0; j < w.length; j++) {
+                w[j] = (char) ('a' + vocabulary.nextInt(26));
+            }
+            words[i] = new String(w);
+        }
+        StringBuilder sb = new StringBuilder(size + 16);
+        while (sb.length() < size) {
+            double u = random.nextDouble();
+            sb.append(words[(int) (words.length * u * u * u)]);
+            sb.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    /**
+     * Deflated text: real compressed data, as in JPEG, MP4 or ZIP files
+     */
+    private byte[] alreadyCompressed(int size) {
+        byte[] out = new byte[size];
+        int filled = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        while (filled < size) {
+            deflater.reset();
+            deflater.setInput(text(4 * BLOCK_SIZE));
+            deflater.finish();
+            while (!deflater.finished() && filled < size) {
+                filled += deflater.deflate(out, filled, size - filled);
+            }
+        }
+        deflater.end();
+        return out;
+    }
+
+    private static byte[] pattern(int size, int period) {
+        byte[] out = new byte[size];
+        for (int i = 0; i < size; i++) {
+            out[i] = (byte) (i % period * 37);
+        }
+        return out;
+    }
+
+    private byte[] halfAndHalf() {
+        byte[] out = text(BLOCK_SIZE);
+        byte[] noise = new byte[BLOCK_SIZE / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, out, BLOCK_SIZE / 2, noise.length);
+        return out;
+    }
+}
@@ -0,0 +1,290 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for incremental block-delta backups
+ *
+ * The source is a v2 volume with an integrity tree, whose hole puncher
+ * zeroes the punched range so trimmed blocks are exercised too.
+ *
+ * Tests:
+ * - A full delta makes a copy, and an incremental one brings it up to
+ *   date: the copy is byte for byte the volume, mounts with a clean tree
+ *   and holds the changed files
+ * - A damaged delta, or one made against another state than the copy's,
+ *   is refused and leaves the copy as it was
+ * - A volume not dismounted cleanly is not exported; after a remount
+ *   rebuilds the tree, tracking has restarted and the next delta is full
+ * - Benchmark: delta size and time against the changed blocks
+ */
+public class BlockDeltaTest {
+
+    private static final int HEADER_SIZE = VolumeHeader.V2_SIZE;
+    private static final int BLOCK_SIZE = 4096;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private File copyFile;
+    private File deltaFile;
+    private final Random random = new Random(44);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("delta", ".qd");
+        copyFile = File.createTempFile("delta-copy", ".qd");
+        copyFile.delete();
+        deltaFile = File.createTempFile("delta", ".qdd");
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+        copyFile.delete();
+        deltaFile.delete();
+    }
+
+    @Test
+    public void testIncrementalDeltaUpdatesCopy() throws Exception {
+        createVolume(512);
+        byte[] a = TestVolumes.randomBytes(random, 40 * BLOCK_SIZE);
+        byte[] b = TestVolumes.randomBytes(random, 30 * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            writeFile(fs, "a.bin", a);
+            writeFile(fs, "b.bin", b);
+            fs.close();
+        }
+
+        BlockDelta.Result full = export(null);
+        assertTrue("First delta is full", full.full);
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        assertArrayEquals("Copy is the volume", Files.readAllBytes(volumeFile.toPath()),
+            Files.readAllBytes(copyFile.toPath()));
+        assertEquals("Copy at the volume's state", full.after, BlockDelta.base(copyFile));
+
+        byte[] patch = TestVolumes.randomBytes(random, 3 * BLOCK_SIZE);
+        System.arraycopy(patch, 0, a, 10 * BLOCK_SIZE, patch.length);
+        byte[] c = TestVolumes.randomBytes(random, 5 * BLOCK_SIZE + 100);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            fs.write(fs.resolve("/a.bin"), 10 * BLOCK_SIZE, patch, 0, patch.length);
+            writeFile(fs, "c.bin", c);
+            fs.delete(VolumeFileSystem.ROOT_INODE, "b.bin");
+            fs.sync();
+            assertTrue("Freed blocks trimmed", fs.trimFreed(Long.MAX_VALUE) >= 30);
+            fs.close();
+        }
+
+        BlockDelta.Result delta = export(BlockDelta.base(copyFile));
+        assertFalse("Second delta is incremental", delta.full);
+        assertTrue("Only the changed blocks: " + delta.blocks, delta.blocks < 64);
+        assertTrue("Delta much smaller than the volume", deltaFile.length() * 10 < volumeFile.length());
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        assertSameVolume("Copy is the volume again", 512);
+        assertEquals("Copy at the new state", delta.after, BlockDelta.base(copyFile));
+
+        try (BlockEngine engine = openEngine(copyFile)) {
+            assertFalse("Copy mounts with its stored tree", engine.integrityTree().rebuilt());
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertArrayEquals("Changed file", a, readFile(fs, "a.bin"));
+            assertArrayEquals("New file", c, readFile(fs, "c.bin"));
+            try {
+                fs.resolve("/b.bin");
+                fail("Deleted file still there");
+            } catch (NoSuchFileException expected) {
+                // Gone from the copy too
+            }
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testDamagedOrMismatchedDeltaRefused() throws Exception {
+        createVolume(256);
+        export(null);
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            writeFile(fs, "a.bin", TestVolumes.randomBytes(random, 8 * BLOCK_SIZE));
+            fs.close();
+        }
+        export(BlockDelta.base(copyFile));
+        byte[] copyBefore = Files.readAllBytes(copyFile.toPath());
+
+        byte[] delta = Files.readAllBytes(deltaFile.toPath());
+        File damaged = File.createTempFile("damaged", ".qdd");
+        try {
+            delta[delta.length / 2] ^= 1;
+            Files.write(damaged.toPath(), delta);
+            assertApplyFails("Damaged delta", damaged, "damaged");
+            assertArrayEquals("Copy untouched by the damaged delta", copyBefore,
+                Files.readAllBytes(copyFile.toPath()));
+        } finally {
+            damaged.delete();
+        }
+
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        byte[] copyAfter = Files.readAllBytes(copyFile.toPath());
+        assertApplyFails("Same delta again", deltaFile, "not at the state");
+        assertArrayEquals("Copy untouched by the second apply", copyAfter, Files.readAllBytes(copyFile.toPath()));
+    }
+
+    @Test
+    public void testUncleanVolumeRestartsTracking() throws Exception {
+        createVolume(256);
+        export(null);
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        BlockDelta.Base base = BlockDelta.base(copyFile);
+
+        BlockEngine crashed = openEngine();
+        VolumeFileSystem fs = VolumeFileSystem.mount(crashed);
+        writeFile(fs, "a.bin", TestVolumes.randomBytes(random, 4 * BLOCK_SIZE));
+        // Dropped without a dismount, after a flush checkpointed the root
+        crashed.flush();
+
+        try {
+            export(base);
+            fail("Volume not dismounted cleanly exported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("dismounted cleanly"));
+        }
+
+        try (BlockEngine engine = openEngine()) {
+            assertTrue("Tree rebuilt", engine.integrityTree().rebuilt());
+            assertNotEquals("Tracking restarted", base.trackingId, engine.integrityTree().trackingId());
+        }
+        BlockDelta.Result delta = export(base);
+        assertTrue("Full delta after a restart", delta.full);
+        BlockDelta.apply(deltaFile, copyFile, new ShaHasher());
+        assertArrayEquals("Copy is the volume", Files.readAllBytes(volumeFile.toPath()),
+            Files.readAllBytes(copyFile.toPath()));
+    }
+
+    @Test
+    public void testDeltaSizeBenchmark() throws Exception {
+        int blocks = 8192;
+        createVolume(blocks);
+        byte[] content = TestVolumes.randomBytes(random, 4096 * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            writeFile(fs, "data.bin", content);
+            fs.close();
+        }
+        BlockDelta.Result full = export(null);
+        long fullBytes = deltaFile.length();
+        long applyNanos = BlockDelta.apply(deltaFile, copyFile, new ShaHasher()).nanos;
+        System.out.printf("Block deltas of a %d MB volume (%d KB blocks):%n"
+                + "  full:          %6d blocks  %9d bytes  export %6.1f ms  apply %6.1f ms%n",
+            volumeFile.length() >> 20, BLOCK_SIZE / 1024, full.blocks, fullBytes, full.nanos / 1e6,
+            applyNanos / 1e6);
+
+        for (int changed : new int[] {1, 16, 256}) {
+            try (BlockEngine engine = openEngine()) {
+                VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+                long ino = fs.resolve("/data.bin");
+                byte[] patch = TestVolumes.randomBytes(random, BLOCK_SIZE);
+                for (int i = 0; i < changed; i++) {
+                    fs.write(ino, (long) random.nextInt(4096) * BLOCK_SIZE, patch, 0, patch.length);
+                }
+                fs.close();
+            }
+            BlockDelta.Result delta = export(BlockDelta.base(copyFile));
+            applyNanos = BlockDelta.apply(deltaFile, copyFile, new ShaHasher()).nanos;
+            System.out.printf("  %3d written:   %6d blocks  %9d bytes  export %6.1f ms  apply %6.1f ms%n",
+                changed, delta.blocks, deltaFile.length(), delta.nanos / 1e6, applyNanos / 1e6);
+
+            assertFalse("Incremental", delta.full);
+            // Each block: its slot, plus tree nodes and generation; the header once
+            long bound = delta.blocks * (BLOCK_SIZE + BlockDevice.METADATA_ENTRY_SIZE + 20 * IntegrityTree.HASH_SIZE)
+                + HEADER_SIZE + 1024;
+            assertTrue("Delta of " + deltaFile.length() + " bytes proportional to " + delta.blocks + " blocks",
+                deltaFile.length() <= bound);
+        }
+        assertArrayEquals("Copy is the volume", Files.readAllBytes(volumeFile.toPath()),
+            Files.readAllBytes(copyFile.toPath()));
+    }
+
+    private BlockDelta.Result export(BlockDelta.Base since) throws IOException {
+        try (OutputStream out = new FileOutputStream(deltaFile)) {
+            return BlockDelta.export(volumeFile, since, out);
+        }
+    }
+
+    /**
+     * Assert that the copy holds the volume's bytes, but for the data of
+     * trimmed blocks, which is not shipped (it reads as zeros either way)
+     */
+    private void assertSameVolume(String message, long blocks) throws IOException {
+        byte[] volume = Files.readAllBytes(volumeFile.toPath());
+        byte[] copy = Files.readAllBytes(copyFile.toPath());
+        assertEquals(message + ": length", volume.length, copy.length);
+        long dataStart = BlockDevice.alignedDataStart(HEADER_SIZE, blocks);
+        for (int i = 0; i < blocks; i++) {
+            int entry = HEADER_SIZE + i * BlockDevice.METADATA_ENTRY_SIZE;
+            boolean trimmed = true;
+            for (int j = 0; j < BlockDevice.METADATA_ENTRY_SIZE; j++) {
+                trimmed &= volume[entry + j] == 0;
+            }
+            if (trimmed) {
+                int data = (int) (dataStart + (long) i * BLOCK_SIZE);
+                System.arraycopy(volume, data, copy, data, BLOCK_SIZE);
+            }
+        }
+        assertArrayEquals(message, volume, copy);
+    }
+
+    private void assertApplyFails(String what, File delta, String message) {
+        try {
+            BlockDelta.apply(delta, copyFile, new ShaHasher());
+            fail(what + " applied");
+        } catch (IOException e) {
+            assertTrue(what + ": " + e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static void writeFile(VolumeFileSystem fs, String name, byte[] content) throws IOException {
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, name);
+        fs.write(ino, 0, content, 0, content.length);
+    }
+
+    private static byte[] readFile(VolumeFileSystem fs, String name) throws IOException {
+        long ino = fs.resolve("/" + name);
+        byte[] content = new byte[(int) fs.stat(ino).size];
+        assertEquals("Whole file read", content.length, fs.read(ino, 0, content, 0, content.length));
+        return content;
+    }
+
+    private void createVolume(long blocks) throws IOException {
+        TestVolumes.createFormatted(volumeFile, TestVolumes.header(blocks, blocks, BLOCK_SIZE, Compression.NONE),
+            MASTER_KEY);
+    }
+
+    private BlockEngine openEngine() throws IOException {
+        return openEngine(volumeFile);
+    }
+
+    private static BlockEngine openEngine(File file) throws IOException {
+        // Zeroes the range, like a punched hole reads
+        return TestVolumes.openEngine(file, MASTER_KEY, (f, offset, length) -> {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(offset);
+                raf.write(new byte[(int) length]);
+            }
+            return true;
+        });
+    }
+}
@@ -15,6 +15,9 @@ import static org.junit.Assert.*;
  * - ChaCha20-Poly1305 encryption/decryption
  * - Argon2id key derivation
  * - ML-KEM-1024 key encapsulation
+ * - BLAKE2s-256 plain, keyed and batched
+ * - Key vault: keys by handle agree with the array variants, wrap and
+ *   unwrap, and destroyed handles are refused
  */
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 28)
@@ -242,6 +245,85 @@ public class CryptoNativeTest {
         // This is intentional for security (prevents timing attacks)
     }
 
+    @Test
+    public void testBlake2s() {
+        byte[] key = new byte[32];
+        byte[] data = new byte[40];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 3);
+        }
+
+        assertEquals("Plain BLAKE2s-256 should match the reference",
+            "52e540bf7c911ffeb65b55ff075b3da4466d1cc9c9edf94f4802011b4648746d",
+            toHex(crypto.blake2s(null, data)));
+        assertEquals("Keyed BLAKE2s-256 should match the reference",
+            "4f89d5fa78e1fed8a6b9b1b25b3a971df7d41aa1e14a445da7fdc69d1186f6aa",
+            toHex(crypto.blake2s(key, data)));
+        assertNull("Keys over 32 bytes should be rejected", crypto.blake2s(new byte[33], data));
+
+        byte[] batch = new byte[3 * 32];
+        assertTrue("Batch should succeed", crypto.blake2sBatch(new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}, 4, 3, batch));
+        assertArrayEquals("Batch entries should equal single hashes",
+            crypto.blake2s(null, new byte[] {5, 6, 7, 8}), java.util.Arrays.copyOfRange(batch, 32, 64));
+        assertFalse("Short input should be rejected", crypto.blake2sBatch(new byte[8], 4, 3, batch));
+    }
+
+    @Test
+    public void testKeyVault() throws Exception {
+        KeyVault vault = new KeyVault(crypto);
+        byte[] nonce = CryptoNative.generateNonce();
+        byte[] aad = "Block 7".getBytes();
+        byte[] plaintext = "Sealed by handle".getBytes();
+
+        try (KeyHandle masterKey = vault.generate(KeyVault.KEY_SIZE);
+             KeyHandle kek = vault.derive("password", CryptoNative.generateSalt())) {
+            byte[] ciphertext = crypto.encryptWithKey(plaintext, masterKey.id(), nonce, aad);
+            assertNotNull("Encryption by handle should succeed", ciphertext);
+            assertArrayEquals("Decryption by handle should round-trip", plaintext,
+                crypto.decryptWithKey(ciphertext, masterKey.id(), nonce, aad));
+
+            byte[] wrapped = vault.wrap(masterKey, kek, new byte[12]);
+            assertEquals("Wrapped key is key + tag", 48, wrapped.length);
+            try (KeyHandle unwrapped = vault.unwrap(wrapped, kek, new byte[12])) {
+                assertNotNull("Unwrap under the same key should succeed", unwrapped);
+                assertArrayEquals("Unwrapped key should open what the original sealed", plaintext,
+                    crypto.decryptWithKey(ciphertext, unwrapped.id(), nonce, aad));
+            }
+            try (KeyHandle other = vault.generate(KeyVault.KEY_SIZE)) {
+                assertNull("Unwrap under another key should fail", vault.unwrap(wrapped, other, new byte[12]));
+            }
+
+            KeyHandle copy = masterKey.copy();
+            long id = copy.id();
+            copy.close();
+            assertNull("Destroyed handle should be refused", crypto.encryptWithKey(plaintext, id, nonce, aad));
+            assertNull("Destroyed handle should not MAC", crypto.blake2sWithKey(id, aad));
+            assertNotNull("Original should survive its copy", crypto.blake2sWithKey(masterKey.id(), aad));
+        }
+
+        byte[] publicKey = new byte[KeyVault.MLKEM_PUBLIC_KEY_SIZE];
+        try (KeyHandle secretKey = vault.mlkemKeypair(publicKey)) {
+            Object[] encapsulated = crypto.mlkemEncapsulate(publicKey);
+            try (KeyHandle shared = vault.mlkemDecapsulate((byte[]) encapsulated[0], secretKey)) {
+                // Compared through a MAC: the decapsulated secret stays in the vault
+                assertArrayEquals("Decapsulation by handle should recover the shared secret",
+                    crypto.blake2s((byte[]) encapsulated[1], aad), crypto.blake2sWithKey(shared.id(), aad));
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
     @Test
     public void testEndToEndVolumeEncryption() {
         // Simulate volume creation and mounting
@@ -0,0 +1,116 @@
+package com.qubesdroid;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the self-test and warm-up of CryptoRuntime
+ *
+ * JdkAead, ShaHasher and HeapKeys stand in for the native library.
+ *
+ * Tests:
+ * - A working AEAD and hasher pass the self-test
+ * - An AEAD that does not authenticate the AAD fails it
+ * - The warm-up seals every round's block and leaves the key alive
+ * - Benchmark: the first block of a fresh process (seal, open, hash, as
+ *   a mount's first read) with and without the warm-up before it, each
+ *   in its own JVM so no other test has warmed it up
+ */
+public class CryptoRuntimeTest {
+
+    @Test
+    public void testSelfTestPasses() throws Exception {
+        try (KeyHandle key = HeapKeys.of(new byte[32])) {
+            CryptoRuntime.selfTest(new JdkAead(), new ShaHasher(), key);
+        }
+    }
+
+    @Test
+    public void testSelfTestCatchesIgnoredAad() {
+        // Authenticates the ciphertext but not the AAD
+        JdkAead jdk = new JdkAead();
+        BlockEngine.Aead lax = new BlockEngine.Aead() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, KeyHandle key, byte[] nonce, byte[] aad) {
+                return jdk.encrypt(plaintext, key, nonce, new byte[0]);
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertextWithTag, KeyHandle key, byte[] nonce, byte[] aad) {
+                return jdk.decrypt(ciphertextWithTag, key, nonce, new byte[0]);
+            }
+        };
+        try (KeyHandle key = HeapKeys.of(new byte[32])) {
+            CryptoRuntime.selfTest(lax, new ShaHasher(), key);
+            fail("Self-test passed an AEAD that ignores the AAD");
+        } catch (IOException expected) {
+            assertEquals("Names the failed check", "AEAD self-test failed: wrong AAD accepted",
+                expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testWarmUpSealsEveryRound() throws Exception {
+        JdkAead aead = new JdkAead();
+        try (KeyHandle key = HeapKeys.of(new byte[32])) {
+            CryptoRuntime.warmUp(aead, new ShaHasher(), key, 8, 4096);
+            assertEquals("Bytes sealed", 8 * 4096L, aead.sealed.get());
+            assertFalse("Key still alive", key.isDestroyed());
+        }
+    }
+
+    @Test
+    public void testWarmUpCutsFirstBlockLatency() throws Exception {
+        long cold = firstBlockNanos(false);
+        long warm = firstBlockNanos(true);
+        System.out.printf("First block in a fresh process: %.2f ms cold, %.2f ms after the warm-up%n",
+            cold / 1e6, warm / 1e6);
+        assertTrue("Warm-up should take the first-use cost off the first block: " + cold + " vs " + warm + " ns",
+            warm * 2 < cold);
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Nanoseconds a new JVM takes for its first block, run by main()
+     */
+    private static long firstBlockNanos(boolean warmUp) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            CryptoRuntimeTest.class.getName(), Boolean.toString(warmUp)).redirectErrorStream(true).start();
+        String line;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            line = out.readLine();
+        }
+        assertEquals("Child exit status, output " + line, 0, process.waitFor());
+        return Long.parseLong(line.trim());
+    }
+
+    /**
+     * Child of firstBlockNanos(): warm up if args[0] is true, then print
+     * the nanoseconds one block takes
+     */
+    public static void main(String[] args) throws IOException {
+        BlockEngine.Aead aead = new JdkAead();
+        IntegrityTree.Hasher hasher = new ShaHasher();
+        try (KeyHandle key = HeapKeys.of(new byte[32])) {
+            if (Boolean.parseBoolean(args[0])) {
+                CryptoRuntime.warmUp(aead, hasher, key, CryptoRuntime.WARM_UP_ROUNDS,
+                    CryptoRuntime.WARM_UP_BLOCK_SIZE);
+            }
+            long start = System.nanoTime();
+            CryptoRuntime.warmUp(aead, hasher, key, 1, CryptoRuntime.WARM_UP_BLOCK_SIZE);
+            System.out.println(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the defragmenter
+ *
+ * A file is fragmented the way churn does it: the volume is filled with
+ * small files, every other one is deleted, and the file is written into
+ * the gaps while the rest of the space is held by a ballast file.
+ *
+ * Tests:
+ * - The most fragmented file is picked first and ends up in one extent,
+ *   content intact, also after a remount
+ * - A pass stopped by its budget leaves the file intact, and the next
+ *   pass continues after its contiguous prefix
+ * - A set cancel flag stops the pass before it moves anything
+ * - Benchmark: sequential read of a fragmented file before and after
+ */
+public class DefragmenterTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private final Random random = new Random(42);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("defrag", ".qd");
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testMostFragmentedFileBecomesContiguous() throws Exception {
+        createVolume(2048);
+        byte[] small = TestVolumes.randomBytes(random, 8 * BLOCK_SIZE);
+        byte[] large = TestVolumes.randomBytes(random, 256 * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            long smallIno = writeFragmented(fs, "small.bin", small);
+            long largeIno = writeFragmented(fs, "large.bin", large);
+            int smallExtents = fs.stat(smallIno).extents.size();
+            int largeExtents = fs.stat(largeIno).extents.size();
+            assertTrue("Set up fragmented files", smallExtents > 1 && largeExtents > 16);
+
+            long[] picked = fs.fragmentedFiles(1);
+            assertArrayEquals("Most extents first", new long[] {largeIno}, picked);
+
+            Defragmenter.Result result = Defragmenter.forVolume(fs).defragment(Long.MAX_VALUE, null);
+            assertEquals("Both files moved", 2, result.files);
+            assertEquals("Every block of both moved", 264, result.blocksMoved);
+            assertEquals("Extents before", smallExtents + largeExtents, result.extentsBefore);
+            assertEquals("One extent per file after", 2, result.extentsAfter);
+            assertEquals("Nothing left to defragment", 0, fs.fragmentedFiles(16).length);
+            assertArrayEquals("Large file intact", large, readFile(fs, largeIno));
+            assertArrayEquals("Small file intact", small, readFile(fs, smallIno));
+            fs.close();
+        }
+
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            long ino = fs.resolve("/large.bin");
+            assertEquals("Still one extent after remount", 1, fs.stat(ino).extents.size());
+            assertArrayEquals("Intact after remount", large, readFile(fs, ino));
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testBudgetedPassesResume() throws Exception {
+        createVolume(2048);
+        byte[] content = TestVolumes.randomBytes(random, 256 * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine, Durability.LAZY);
+            long ino = writeFragmented(fs, "a.bin", content);
+            fs.sync();
+
+            assertEquals("First pass stops at its budget", 100, fs.defragment(ino, 100, null));
+            Inode half = fs.stat(ino);
+            assertEquals("Moved prefix is one extent", 100, half.extents.get(0).length);
+            assertArrayEquals("Intact halfway", content, readFile(fs, ino));
+            // Dropped without close: each step was committed as it went
+        }
+
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine, Durability.LAZY);
+            long ino = fs.resolve("/a.bin");
+            Inode inode = fs.stat(ino);
+            assertEquals("Prefix survived the remount", 100, inode.extents.get(0).length);
+            long prefixStart = inode.extents.get(0).start;
+
+            assertEquals("Second pass moves the rest", 156, fs.defragment(ino, Long.MAX_VALUE, null));
+            inode = fs.stat(ino);
+            assertEquals("One extent", 1, inode.extents.size());
+            assertEquals("Continued after the prefix", prefixStart, inode.extents.get(0).start);
+            assertArrayEquals("Intact", content, readFile(fs, ino));
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testCancelledPassMovesNothing() throws Exception {
+        createVolume(1024);
+        byte[] content = TestVolumes.randomBytes(random, 64 * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            long ino = writeFragmented(fs, "a.bin", content);
+            int extents = fs.stat(ino).extents.size();
+
+            Defragmenter.Result result = Defragmenter.forVolume(fs).defragment(Long.MAX_VALUE,
+                new AtomicBoolean(true));
+            assertEquals("Nothing moved", 0, result.blocksMoved);
+            assertEquals("Extents unchanged", extents, fs.stat(ino).extents.size());
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testSequentialReadBenchmark() throws Exception {
+        int fileBlocks = 1024;
+        createVolume(4096);
+        byte[] content = TestVolumes.randomBytes(random, fileBlocks * BLOCK_SIZE);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            long ino = writeFragmented(fs, "a.bin", content);
+            int extentsBefore = fs.stat(ino).extents.size();
+
+            try (FileExporter exporter = FileExporter.forDevice(fs, engine)) {
+                Read before = sequentialRead(exporter, engine, ino, content);
+                Defragmenter.Result result = Defragmenter.forVolume(fs).defragment(Long.MAX_VALUE, null);
+                Read after = sequentialRead(exporter, engine, ino, content);
+
+                System.out.printf("Sequential read of a %d KB file, %d KB blocks:%n"
+                        + "  before: %4d extents  %5d host reads  %7.1f MB/s%n"
+                        + "  after:  %4d extents  %5d host reads  %7.1f MB/s%n"
+                        + "  defragmented %d blocks in %.1f ms%n",
+                    content.length / 1024, BLOCK_SIZE / 1024,
+                    extentsBefore, before.ios, before.bytesPerSecond / 1e6,
+                    fs.stat(ino).extents.size(), after.ios, after.bytesPerSecond / 1e6,
+                    result.blocksMoved, result.nanos / 1e6);
+
+                assertEquals("One extent after", 1, fs.stat(ino).extents.size());
+                assertTrue("Contiguous reads should merge into far fewer host I/Os",
+                    after.ios * 4 < before.ios);
+            }
+            fs.close();
+        }
+    }
+
+    /**
+     * Host reads and throughput of the best of three exports
+     */
+    private static final class Read {
+        long ios = Long.MAX_VALUE;
+        double bytesPerSecond;
+    }
+
+    private static Read sequentialRead(FileExporter exporter, BlockEngine engine, long ino, byte[] expected)
+            throws IOException {
+        Read best = new Read();
+        for (int run = 0; run < 3; run++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(expected.length);
+            long ios = engine.scheduler().dispatchedIos();
+            Transfer.Result result = exporter.exportFile(ino, out, null, null);
+            best.ios = Math.min(best.ios, engine.scheduler().dispatchedIos() - ios);
+            best.bytesPerSecond = Math.max(best.bytesPerSecond, result.bytesPerSecond());
+            assertArrayEquals("Exported content", expected, out.toByteArray());
+        }
+        return best;
+    }
+
+    /**
+     * Write content as a new file in two-block pieces scattered over the
+     * volume (see class comment)
+     */
+    private static long writeFragmented(VolumeFileSystem fs, String name, byte[] content) throws IOException {
+        int pieces = content.length / BLOCK_SIZE / 2 + 1;
+        byte[] filler = new byte[2 * BLOCK_SIZE];
+        for (int i = 0; i < 2 * pieces; i++) {
+            long filled = fs.createFile(VolumeFileSystem.ROOT_INODE, name + ".filler" + i);
+            fs.write(filled, 0, filler, 0, filler.length);
+        }
+        for (int i = 0; i < 2 * pieces; i += 2) {
+            fs.delete(VolumeFileSystem.ROOT_INODE, name + ".filler" + i);
+        }
+        // Hold the rest of the free space, so the file can only go into the gaps
+        long ballastBlocks = fs.fragmentation().largestFreeRun - 2;
+        long ballast = fs.createFile(VolumeFileSystem.ROOT_INODE, name + ".ballast");
+        byte[] rest = new byte[(int) ballastBlocks * BLOCK_SIZE];
+        fs.write(ballast, 0, rest, 0, rest.length);
+
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, name);
+        fs.write(ino, 0, content, 0, content.length);
+        fs.delete(VolumeFileSystem.ROOT_INODE, name + ".ballast");
+        return ino;
+    }
+
+    private static byte[] readFile(VolumeFileSystem fs, long ino) throws IOException {
+        byte[] content = new byte[(int) fs.stat(ino).size];
+        assertEquals("Whole file read", content.length, fs.read(ino, 0, content, 0, content.length));
+        return content;
+    }
+
+    private void createVolume(long blocks) throws IOException {
+        TestVolumes.createFormatted(volumeFile, TestVolumes.header(blocks, 0, BLOCK_SIZE, Compression.NONE), MASTER_KEY);
+    }
+
+    private BlockEngine openEngine() throws IOException {
+        return TestVolumes.openEngine(volumeFile, MASTER_KEY);
+    }
+}
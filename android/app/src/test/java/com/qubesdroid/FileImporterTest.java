@@ -0,0 +1,156 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the streaming import pipeline over a memory block store
+ *
+ * Tests:
+ * - A multi-block stream with a partial tail reads back identically
+ * - A stream of unknown length imports the same as one of known length
+ * - Small sources end up inline
+ * - Cancelling mid-stream removes the file and returns its blocks
+ * - A failing source rolls the import back
+ */
+public class FileImporterTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 2048;
+
+    private MemoryBlockStore store;
+    private VolumeFileSystem fs;
+    private FileImporter importer;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT);
+        VolumeFileSystem.format(store);
+        fs = VolumeFileSystem.mount(store);
+        importer = new FileImporter(fs, store, 3, 8);
+    }
+
+    @After
+    public void tearDown() {
+        importer.close();
+    }
+
+    @Test
+    public void testImportRoundTrip() throws Exception {
+        byte[] content = random(300 * BLOCK_SIZE + 700, 1);
+        long free = fs.freeBytes();
+        Transfer.Result result = importer.importStream(new ByteArrayInputStream(content),
+            VolumeFileSystem.ROOT_INODE, "big.bin", content.length, null, null);
+
+        assertEquals("All bytes should be counted", content.length, result.bytes);
+        assertEquals("Size should match the source", content.length, fs.stat(result.inode).size);
+        assertArrayEquals("Content should match the source", content, readAll(result.inode));
+        // 300 data blocks, a tail block and the root directory's first leaf
+        assertEquals("Nothing mapped past the end should stay allocated",
+            302L * BLOCK_SIZE, free - fs.freeBytes());
+        assertEquals("Streamed blocks should be contiguous", 1, fs.stat(result.inode).extents.size());
+
+        fs = VolumeFileSystem.mount(store);
+        assertArrayEquals("Content should survive a remount", content,
+            readAll(fs.resolve("/big.bin")));
+    }
+
+    @Test
+    public void testUnknownLength() throws Exception {
+        byte[] content = random(5 * BLOCK_SIZE, 2);
+        long[] lastDone = {0};
+        Transfer.Result result = importer.importStream(new ByteArrayInputStream(content),
+            VolumeFileSystem.ROOT_INODE, "stream.bin", -1,
+            (done, total, rate) -> lastDone[0] = done, null);
+
+        assertEquals("Final progress should report every byte", content.length, lastDone[0]);
+        assertArrayEquals("Content should match the source", content, readAll(result.inode));
+    }
+
+    @Test
+    public void testSmallFileInline() throws Exception {
+        byte[] content = random(200, 3);
+        Transfer.Result result = importer.importStream(new ByteArrayInputStream(content),
+            VolumeFileSystem.ROOT_INODE, "note.txt", content.length, null, null);
+
+        assertTrue("Small file should be stored inline", fs.stat(result.inode).isInline());
+        assertArrayEquals("Content should match the source", content, readAll(result.inode));
+    }
+
+    @Test
+    public void testCancelRemovesFile() throws Exception {
+        long free = fs.freeBytes();
+        AtomicBoolean cancel = new AtomicBoolean();
+        byte[] content = random(200 * BLOCK_SIZE, 4);
+        InputStream in = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= 50 * BLOCK_SIZE) {
+                    cancel.set(true);
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        try {
+            importer.importStream(in, VolumeFileSystem.ROOT_INODE, "big.bin", content.length, null, cancel);
+            fail("Cancelled import should throw");
+        } catch (CancellationException expected) {
+            // expected
+        }
+        assertNull("Cancelled file should be removed", fs.lookup(VolumeFileSystem.ROOT_INODE, "big.bin"));
+        assertEquals("Blocks should be returned", free, fs.freeBytes());
+    }
+
+    @Test
+    public void testFailingSourceRollsBack() throws Exception {
+        long free = fs.freeBytes();
+        byte[] content = random(40 * BLOCK_SIZE, 5);
+        InputStream in = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= 20 * BLOCK_SIZE) {
+                    throw new IllegalStateException("source went away");
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        try {
+            importer.importStream(in, VolumeFileSystem.ROOT_INODE, "big.bin", content.length, null, null);
+            fail("Failing source should throw");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        assertNull("Failed file should be removed", fs.lookup(VolumeFileSystem.ROOT_INODE, "big.bin"));
+        assertEquals("Blocks should be returned", free, fs.freeBytes());
+
+        fs = VolumeFileSystem.mount(store);
+        assertEquals("Remount should see the same free space", free, fs.freeBytes());
+    }
+
+    private byte[] readAll(long ino) throws IOException {
+        byte[] data = new byte[(int) fs.stat(ino).size];
+        int done = 0;
+        while (done < data.length) {
+            done += fs.read(ino, done, data, done, data.length - done);
+        }
+        return data;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,84 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key store on the Java heap in place of the native KeyVault, for tests
+ * without the native crypto library
+ *
+ * JdkAead and ShaHasher look keys up here, and wrapper() wraps keys
+ * with JdkAead as KeyVault does natively. Counts the keys alive, so
+ * tests can check that every copy taken is destroyed.
+ */
+final class HeapKeys implements KeyHandle.Store, SecretKeyFile.Wrapper {
+
+    private static final HeapKeys STORE = new HeapKeys();
+    private static final Map<Long, byte[]> keys = new ConcurrentHashMap<>();
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final byte[] NO_AAD = new byte[0];
+
+    /**
+     * Handle of a copy of key
+     */
+    static KeyHandle of(byte[] key) {
+        return new KeyHandle(STORE, put(key.clone()));
+    }
+
+    /**
+     * The material behind a handle, or null once it is destroyed
+     */
+    static byte[] bytes(KeyHandle key) {
+        return keys.get(key.id());
+    }
+
+    static SecretKeyFile.Wrapper wrapper() {
+        return STORE;
+    }
+
+    /**
+     * Keys created and not destroyed yet
+     */
+    static int live() {
+        return keys.size();
+    }
+
+    @Override
+    public long copy(long id) {
+        byte[] key = keys.get(id);
+        return key != null ? put(key.clone()) : 0;
+    }
+
+    @Override
+    public void destroy(long id) {
+        byte[] key = keys.remove(id);
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    @Override
+    public byte[] wrap(KeyHandle key, KeyHandle kek, byte[] nonce) throws IOException {
+        byte[] material = bytes(key);
+        byte[] wrapped = material != null ? new JdkAead().encrypt(material, kek, nonce, NO_AAD) : null;
+        if (wrapped == null) {
+            throw new IOException("Key wrap failed");
+        }
+        return wrapped;
+    }
+
+    @Override
+    public KeyHandle unwrap(byte[] wrapped, KeyHandle kek, byte[] nonce) {
+        byte[] material = new JdkAead().decrypt(wrapped, kek, nonce, NO_AAD);
+        return material != null ? new KeyHandle(STORE, put(material)) : null;
+    }
+
+    private static long put(byte[] key) {
+        long id = nextId.incrementAndGet();
+        keys.put(id, key);
+        return id;
+    }
+}
@@ -0,0 +1,298 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the block-tag Merkle tree
+ *
+ * The native BLAKE2s is not available to JVM tests, so SHA-256 and
+ * HMAC-SHA256 stand in for it; the tree does not depend on the hash.
+ *
+ * Test volumes are random slots whose tree is stored with reseal(), as
+ * if created and dismounted.
+ *
+ * Tests:
+ * - After a clean dismount, mount checks only the root (no tree hashes)
+ *   and every block still verifies
+ * - An older version of a block put back in place is rejected, and so
+ *   is the volume if the header MAC is zeroed as well
+ * - A write costs one hash per level
+ * - A mount after a crash rebuilds the tree from the blocks on disk and
+ *   accepts it if the last checkpoint covers them; a crash after writes
+ *   past it is refused until the volume is resealed
+ * - A volume that never had a tree is refused
+ * - A tree created with the volume is stored with it, so the first
+ *   mount loads it instead of rebuilding
+ * - A damaged stored node is caught when a block below it is read
+ * - Mount cost with and without a clean tree, on a larger volume
+ */
+public class IntegrityTreeTest {
+
+    private static final int HEADER_SIZE = VolumeHeader.V1_SIZE;
+    private static final int BLOCK_SIZE = 64;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private BlockDevice device;
+    private final Random random = new Random(3);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("tree", ".qd");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (device != null) {
+            device.close();
+        }
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testCleanMountChecksOnlyRoot() throws Exception {
+        createVolume(1000);
+        IntegrityTree tree = openTree();
+        assertFalse("Sealed tree should be loaded", tree.rebuilt());
+        for (int i = 0; i < 50; i++) {
+            rewrite(tree, random.nextInt(1000));
+        }
+        byte[] root = tree.root();
+        dismount(tree);
+
+        tree = openTree();
+        assertFalse("Clean tree should be loaded, not rebuilt", tree.rebuilt());
+        assertEquals("Trailer should not add blocks", 1000, device.blockCount());
+        assertEquals("Mount should hash nothing but the root MAC", 0, tree.hashes());
+        assertArrayEquals("Same root as at dismount", root, tree.root());
+        for (int i = 0; i < 1000; i++) {
+            tree.verify(i, readSlot(i), device.slotSize() - BlockDevice.TAG_SIZE);
+        }
+    }
+
+    @Test
+    public void testRolledBackBlockRejected() throws Exception {
+        createVolume(256);
+        IntegrityTree tree = openTree();
+        byte[] old = readSlot(77);
+        rewrite(tree, 77);
+        dismount(tree);
+
+        // Put the older, validly sealed version back while dismounted
+        device.write(77, ByteBuffer.wrap(old));
+        tree = openTree();
+        assertFalse("Header root is still valid", tree.rebuilt());
+        try {
+            tree.verify(77, old, device.slotSize() - BlockDevice.TAG_SIZE);
+            fail("Rolled-back block should be rejected");
+        } catch (IOException expected) {
+            assertTrue("Message should name the block", expected.getMessage().contains("77"));
+        }
+        tree.verify(78, readSlot(78), device.slotSize() - BlockDevice.TAG_SIZE);
+        tree.close();
+
+        // Zeroing the MAC does not get the mount to rebuild and trust it
+        device.writeAt(IntegrityTree.HEADER_ROOT_OFFSET, ByteBuffer.allocate(IntegrityTree.HASH_SIZE));
+        assertRefused("Rolled-back block under a zeroed MAC");
+    }
+
+    @Test
+    public void testUpdateCostsOneHashPerLevel() throws Exception {
+        createVolume(20_000);
+        IntegrityTree tree = openTree();
+        int levels = 1 + (int) Math.ceil(Math.log(20_000) / Math.log(2));
+        // The stored tree is loaded lazily; checking the path once is not
+        // part of the update
+        tree.verify(12_345, readSlot(12_345), device.slotSize() - BlockDevice.TAG_SIZE);
+
+        long before = tree.hashes();
+        rewrite(tree, 12_345);
+        assertEquals("Leaf plus one hash per level above it", levels, tree.hashes() - before);
+    }
+
+    @Test
+    public void testCrashRebuildsTree() throws Exception {
+        createVolume(300);
+        IntegrityTree tree = openTree();
+        rewrite(tree, 10);
+        dismount(tree);
+        tree = openTree();
+        rewrite(tree, 20);
+        // What BlockEngine.flush() does once the write is on storage
+        tree.checkpoint(device, tree.mac());
+        tree.close();
+        crash();
+
+        tree = openTree();
+        assertTrue("Unclean volume should be rebuilt", tree.rebuilt());
+        tree.verify(20, readSlot(20), device.slotSize() - BlockDevice.TAG_SIZE);
+        tree.close();
+    }
+
+    @Test
+    public void testCrashPastCheckpointRefused() throws Exception {
+        createVolume(300);
+        IntegrityTree tree = openTree();
+        rewrite(tree, 10);
+        tree.checkpoint(device, tree.mac());
+        rewrite(tree, 20);
+        tree.close();
+        crash();
+
+        assertRefused("Write past the last checkpoint");
+        IntegrityTree.reseal(device, new ShaHasher(), MASTER_KEY);
+        tree = openTree();
+        assertFalse("Resealed tree should be loaded", tree.rebuilt());
+        tree.verify(10, readSlot(10), device.slotSize() - BlockDevice.TAG_SIZE);
+        tree.verify(20, readSlot(20), device.slotSize() - BlockDevice.TAG_SIZE);
+        tree.close();
+    }
+
+    @Test
+    public void testVolumeWithoutTreeRefused() throws Exception {
+        createVolume(100);
+        device.truncate(device.slotAreaEnd());
+        device.writeAt(IntegrityTree.HEADER_ROOT_OFFSET, ByteBuffer.allocate(IntegrityTree.HASH_SIZE));
+        assertRefused("Volume without a tree");
+    }
+
+    @Test
+    public void testCreatedTreeLoadedOnFirstMount() throws Exception {
+        createVolume(400);
+        IntegrityTree tree = IntegrityTree.create(device, new ShaHasher(), MASTER_KEY);
+        try {
+            tree.verify(5, readSlot(5), device.slotSize() - BlockDevice.TAG_SIZE);
+            fail("A block not written since creation should not verify");
+        } catch (IOException expected) {
+            // leaves start out as zeros
+        }
+        for (int i = 0; i < 400; i++) {
+            rewrite(tree, i);
+        }
+        byte[] root = tree.root();
+        dismount(tree);
+
+        tree = openTree();
+        assertFalse("First mount should load the stored tree", tree.rebuilt());
+        assertEquals("First mount hashes no nodes", 0, tree.hashes());
+        assertArrayEquals("Same root as at creation", root, tree.root());
+        for (int i = 0; i < 400; i++) {
+            tree.verify(i, readSlot(i), device.slotSize() - BlockDevice.TAG_SIZE);
+        }
+    }
+
+    @Test
+    public void testDamagedNodeDetected() throws Exception {
+        createVolume(512);
+        IntegrityTree tree = openTree();
+        dismount(tree);
+
+        // Flip a byte in the first node of level 1 (parent of blocks 0 and 1)
+        long node = device.slotAreaEnd() + 512L * IntegrityTree.HASH_SIZE;
+        ByteBuffer b = ByteBuffer.allocate(1);
+        device.readAt(node, b);
+        b.put(0, (byte) (b.get(0) ^ 1));
+        b.rewind();
+        device.writeAt(node, b);
+
+        tree = openTree();
+        assertFalse("Root is untouched, so the mount check passes", tree.rebuilt());
+        tree.verify(300, readSlot(300), device.slotSize() - BlockDevice.TAG_SIZE);
+        try {
+            tree.verify(1, readSlot(1), device.slotSize() - BlockDevice.TAG_SIZE);
+            fail("Damaged node should be caught");
+        } catch (IOException expected) {
+            assertTrue("Message should name the tree", expected.getMessage().contains("tree"));
+        }
+    }
+
+    @Test
+    public void testMountCost() throws Exception {
+        createVolume(200_000);
+        // Mounted and not dismounted, so the next mount rebuilds
+        openTree().close();
+        crash();
+        long start = System.nanoTime();
+        IntegrityTree tree = openTree();
+        long rebuildNanos = System.nanoTime() - start;
+        assertTrue("Dirty tree should be rebuilt", tree.rebuilt());
+        dismount(tree);
+
+        start = System.nanoTime();
+        tree = openTree();
+        long cleanNanos = System.nanoTime() - start;
+        System.out.printf("Integrity tree, 200000 blocks: rebuild %.1f ms, clean mount %.1f ms%n",
+            rebuildNanos / 1e6, cleanNanos / 1e6);
+
+        assertFalse("Second mount should use the stored tree", tree.rebuilt());
+        assertEquals("Clean mount hashes no nodes", 0, tree.hashes());
+    }
+
+    private void createVolume(int blocks) throws IOException {
+        VolumeHeader header = VolumeHeader.create(VolumeHeader.VERSION_1).blockSize(BLOCK_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(0);
+            raf.write(header.buffer().array());
+            raf.write(TestVolumes.randomBytes(random, blocks * (BLOCK_SIZE + 28)));
+        }
+        device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+        IntegrityTree.reseal(device, new ShaHasher(), MASTER_KEY);
+    }
+
+    private IntegrityTree openTree() throws IOException {
+        return IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+    }
+
+    /**
+     * Clean dismount, then reopen the device as a new mount would
+     */
+    private void dismount(IntegrityTree tree) throws IOException {
+        tree.persist(device);
+        tree.close();
+        device.close();
+        device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+    }
+
+    /**
+     * Drop the mount without a dismount and reopen the device
+     */
+    private void crash() throws IOException {
+        device.close();
+        device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+    }
+
+    private void assertRefused(String what) throws IOException {
+        try {
+            openTree().close();
+            fail(what + " should be refused");
+        } catch (IntegrityTree.MismatchException expected) {
+            assertTrue("Message should say why", expected.getMessage().contains("do not match"));
+        }
+    }
+
+    /**
+     * Write a new version of block index, as BlockEngine.writeBlock does
+     */
+    private void rewrite(IntegrityTree tree, long index) throws IOException {
+        byte[] slot = new byte[device.slotSize()];
+        random.nextBytes(slot);
+        tree.update(index, slot, slot.length - BlockDevice.TAG_SIZE);
+        device.write(index, ByteBuffer.wrap(slot));
+    }
+
+    private byte[] readSlot(long index) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(device.slotSize());
+        device.read(index, slot);
+        return slot.array();
+    }
+}
@@ -0,0 +1,216 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for IoScheduler request merging and priority classes
+ *
+ * Tests:
+ * - Adjacent block writes merge into one positional I/O
+ * - INTERACTIVE reads are served before queued BACKGROUND work
+ * - Reads of a block with a queued write see the new data
+ * - Short writes to framed slots leave the unused rest untouched
+ * - An unchecked exception fails its request, not the dispatcher
+ * - An interrupted dispatcher fails every queued request and every
+ *   later one instead of leaving them waiting
+ */
+public class IoSchedulerTest {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_COUNT = 32;
+
+    private File volumeFile;
+    private BlockDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("scheduler", ".qd");
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength((long) BLOCK_COUNT * (BLOCK_SIZE + 28));
+        }
+        device = BlockDevice.open(volumeFile, 0, BLOCK_SIZE, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        device.close();
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testAdjacentWritesMerge() throws Exception {
+        IoScheduler scheduler = new IoScheduler(device, 8);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writes.add(scheduler.submitWrite(i, slot(i), IoScheduler.IoClass.BULK));
+        }
+        scheduler.start();
+        for (CompletableFuture<Void> f : writes) {
+            IoScheduler.await(f);
+        }
+
+        assertEquals("Eight adjacent writes should be one I/O", 1, scheduler.dispatchedIos());
+
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer dst = ByteBuffer.allocate(device.slotSize());
+            scheduler.read(i, dst, IoScheduler.IoClass.INTERACTIVE);
+            assertEquals("Block contents should survive the merged write", slot(i), dst);
+        }
+        scheduler.close();
+    }
+
+    @Test
+    public void testInteractiveBeforeBackground() throws Exception {
+        IoScheduler scheduler = new IoScheduler(device, 2);
+        List<Long> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+
+        for (long block = 0; block < 8; block++) {
+            final long b = block;
+            reads.add(scheduler.submitRead(block, ByteBuffer.allocate(device.slotSize()),
+                IoScheduler.IoClass.BACKGROUND).thenRun(() -> order.add(b)));
+        }
+        reads.add(scheduler.submitRead(20, ByteBuffer.allocate(device.slotSize()),
+            IoScheduler.IoClass.INTERACTIVE).thenRun(() -> order.add(20L)));
+
+        assertEquals("Background queue depth", 8,
+            scheduler.queueDepth(IoScheduler.IoClass.BACKGROUND));
+
+        scheduler.start();
+        for (CompletableFuture<Void> f : reads) {
+            IoScheduler.await(f);
+        }
+
+        assertEquals("Interactive read should complete first", Long.valueOf(20), order.get(0));
+        assertEquals("Background reads should merge in pairs", 5, scheduler.dispatchedIos());
+        scheduler.close();
+    }
+
+    @Test
+    public void testReadSeesQueuedWrite() throws Exception {
+        IoScheduler scheduler = new IoScheduler(device, 4);
+        scheduler.submitWrite(3, slot(42), IoScheduler.IoClass.BACKGROUND);
+
+        ByteBuffer dst = ByteBuffer.allocate(device.slotSize());
+        CompletableFuture<Void> read = scheduler.submitRead(3, dst,
+            IoScheduler.IoClass.INTERACTIVE);
+
+        assertTrue("Read should be answered from the queued write", read.isDone());
+        assertEquals("Read should return the queued data", slot(42), dst);
+
+        scheduler.start();
+        scheduler.flush();
+        scheduler.close();
+    }
+
+    @Test
+    public void testShortFramedWritesKeepRestOfSlot() throws Exception {
+        BlockDevice framed = BlockDevice.open(volumeFile, 0, BLOCK_SIZE, BlockDevice.Layout.FRAMED, false);
+        int slotSize = framed.slotSize();
+        IoScheduler scheduler = new IoScheduler(framed, 8);
+        byte[] old = new byte[slotSize];
+        Arrays.fill(old, (byte) 0x5A);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submitWrite(i, ByteBuffer.wrap(old), IoScheduler.IoClass.BULK);
+        }
+        scheduler.start();
+        scheduler.flush();
+
+        byte[] frame = new byte[40];
+        Arrays.fill(frame, (byte) 7);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            writes.add(scheduler.submitWrite(i, ByteBuffer.wrap(frame), IoScheduler.IoClass.BULK));
+        }
+        for (CompletableFuture<Void> f : writes) {
+            IoScheduler.await(f);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer dst = ByteBuffer.allocate(slotSize);
+            scheduler.read(i, dst, IoScheduler.IoClass.INTERACTIVE);
+            assertEquals("Frame should be written", 7, dst.get(39));
+            assertEquals("Rest of the slot should be untouched", 0x5A, dst.get(40));
+        }
+        scheduler.close();
+        framed.close();
+    }
+
+    @Test
+    public void testUncheckedFailureFailsOnlyItsRequest() throws Exception {
+        IoScheduler scheduler = new IoScheduler(device, 1);
+        scheduler.start();
+        // Copying the slot into a read-only buffer throws ReadOnlyBufferException
+        ByteBuffer readOnly = ByteBuffer.allocate(device.slotSize()).asReadOnlyBuffer();
+        try {
+            scheduler.read(0, readOnly, IoScheduler.IoClass.INTERACTIVE);
+            fail("Read into a read-only buffer succeeded");
+        } catch (IOException expected) {
+            assertTrue("Carries the cause", expected.getCause() instanceof ReadOnlyBufferException);
+        }
+
+        scheduler.write(1, slot(7), IoScheduler.IoClass.INTERACTIVE);
+        ByteBuffer dst = ByteBuffer.allocate(device.slotSize());
+        scheduler.read(1, dst, IoScheduler.IoClass.INTERACTIVE);
+        assertEquals("Dispatcher still serves requests", slot(7), dst);
+        scheduler.close();
+    }
+
+    @Test
+    public void testInterruptedDispatcherFailsPendingRequests() throws Exception {
+        IoScheduler scheduler = new IoScheduler(device, 1);
+        // One slot of burst: after the first read the rest wait for tokens
+        scheduler.setThroughputCap(IoScheduler.IoClass.BACKGROUND, 1);
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            reads.add(scheduler.submitRead(i, ByteBuffer.allocate(device.slotSize()),
+                IoScheduler.IoClass.BACKGROUND));
+        }
+        // Completion callbacks run on the dispatcher
+        CompletableFuture<Void> interrupted = reads.get(0).thenRun(() -> Thread.currentThread().interrupt());
+        scheduler.start();
+
+        interrupted.get(5, TimeUnit.SECONDS);
+        for (int i = 1; i < reads.size(); i++) {
+            try {
+                reads.get(i).get(5, TimeUnit.SECONDS);
+                fail("Read " + i + " completed after the dispatcher was interrupted");
+            } catch (ExecutionException expected) {
+            }
+        }
+        CompletableFuture<Void> late = scheduler.submitRead(5, ByteBuffer.allocate(device.slotSize()),
+            IoScheduler.IoClass.INTERACTIVE);
+        assertTrue("Later request fails at once", late.isCompletedExceptionally());
+        try {
+            scheduler.flush();
+            fail("Flush succeeded after the dispatcher stopped");
+        } catch (IOException expected) {
+        }
+        scheduler.close();
+    }
+
+    private ByteBuffer slot(int seed) {
+        byte[] data = new byte[device.slotSize()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return ByteBuffer.wrap(data);
+    }
+}
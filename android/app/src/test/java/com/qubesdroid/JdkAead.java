@@ -0,0 +1,57 @@
+package com.qubesdroid;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ChaCha20-Poly1305 from the JDK in place of the native one, for block
+ * engine tests without the native crypto library
+ *
+ * Keys come from HeapKeys. Counts the plaintext bytes it seals, so tests
+ * can measure how much a workload encrypts.
+ */
+final class JdkAead implements BlockEngine.Aead {
+
+    final AtomicLong sealed = new AtomicLong();
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, KeyHandle key, byte[] nonce, byte[] aad) {
+        sealed.addAndGet(plaintext.length);
+        byte[] material = HeapKeys.bytes(key);
+        if (material == null) {
+            return null;
+        }
+        try {
+            return cipher(Cipher.ENCRYPT_MODE, material, nonce, aad).doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertextWithTag, KeyHandle key, byte[] nonce, byte[] aad) {
+        byte[] material = HeapKeys.bytes(key);
+        if (material == null) {
+            return null;
+        }
+        try {
+            return cipher(Cipher.DECRYPT_MODE, material, nonce, aad).doFinal(ciphertextWithTag);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Cipher cipher(int mode, byte[] key, byte[] nonce, byte[] aad)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
+        cipher.init(mode, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
+        cipher.updateAAD(aad);
+        return cipher;
+    }
+}
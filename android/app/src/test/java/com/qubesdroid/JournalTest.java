@@ -0,0 +1,195 @@
+package com.qubesdroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the metadata journal and durability modes
+ *
+ * Tests:
+ * - A crash at any flush, keeping a random subset of the unflushed
+ *   writes, mounts to the tree before or after the operation in progress
+ * - A damaged transaction ends replay without touching the volume
+ * - LAZY durability loses unsynced operations but stays consistent
+ * - Write-path cost (flushes, block writes, time) of each mode
+ */
+public class JournalTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 2048;
+
+    // Tree before and after the file system call in progress
+    private Map<String, byte[]> before = new TreeMap<>();
+    private Map<String, byte[]> after = new TreeMap<>();
+
+    @Test
+    public void testCrashAtEveryFlushIsConsistent() throws Exception {
+        MemoryBlockStore store = newStore();
+        store.trackDurability();
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        Random crashes = new Random(42);
+        int[] checked = {0};
+
+        store.setBeforeFlush(() -> {
+            try {
+                Map<String, byte[]> tree = readTree(VolumeFileSystem.mount(store.crashImage(crashes)));
+                assertTrue("Crash image should hold the tree before or after the call",
+                    sameTree(tree, before) || sameTree(tree, after));
+                checked[0]++;
+            } catch (IOException e) {
+                throw new AssertionError("Crash image failed to mount", e);
+            }
+        });
+
+        Random random = new Random(7);
+        for (int op = 0; op < 250; op++) {
+            String name = "f" + random.nextInt(60);
+            Long ino = before.containsKey(name) ? fs.lookup(VolumeFileSystem.ROOT_INODE, name).inode : null;
+            if (ino != null && random.nextInt(10) < 3) {
+                after.remove(name);
+                fs.delete(VolumeFileSystem.ROOT_INODE, name);
+                before = new TreeMap<>(after);
+                continue;
+            }
+            // Creating or emptying the file is a call of its own
+            after.put(name, new byte[0]);
+            if (ino == null) {
+                ino = fs.createFile(VolumeFileSystem.ROOT_INODE, name);
+            } else {
+                fs.truncate(ino, 0);
+            }
+            before = new TreeMap<>(after);
+
+            byte[] content = new byte[random.nextInt(4) == 0
+                ? random.nextInt(6 * BLOCK_SIZE) : random.nextInt(3000)];
+            random.nextBytes(content);
+            after.put(name, content);
+            fs.write(ino, 0, content, 0, content.length);
+            before = new TreeMap<>(after);
+        }
+        store.setBeforeFlush(null);
+
+        assertTrue("Crash points should have been checked", checked[0] > 500);
+        assertTrue("The log should have wrapped", fs.journal().checkpoints() > 0);
+        VolumeFileSystem remounted = VolumeFileSystem.mount(store.crashImage(crashes));
+        assertTrue("Final state should be durable", sameTree(readTree(remounted), after));
+    }
+
+    @Test
+    public void testDamagedTransactionStopsReplay() throws Exception {
+        MemoryBlockStore store = newStore();
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "a");
+        fs.write(ino, 0, new byte[100], 0, 100);
+        Journal journal = fs.journal();
+
+        // Commit "b" to the log only, then flip a bit in every logged block
+        store.trackDurability();
+        fs.createFile(VolumeFileSystem.ROOT_INODE, "b");
+        MemoryBlockStore image = store.crashImage(new Random(1));
+        for (long b = journal.start() + 1; b < journal.start() + journal.length(); b++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            image.readBlock(b, block, IoScheduler.IoClass.INTERACTIVE);
+            block[100] ^= 1;
+            image.writeBlock(b, block, IoScheduler.IoClass.INTERACTIVE);
+        }
+
+        VolumeFileSystem recovered = VolumeFileSystem.mount(image);
+        assertEquals("Nothing damaged should be replayed", 0, recovered.journal().replayed());
+        assertNotNull("Checkpointed file should survive", recovered.lookup(VolumeFileSystem.ROOT_INODE, "a"));
+    }
+
+    @Test
+    public void testLazyLosesOnlyUnsyncedOperations() throws Exception {
+        MemoryBlockStore store = newStore();
+        store.trackDurability();
+        VolumeFileSystem fs = VolumeFileSystem.mount(store, Durability.LAZY);
+        for (int i = 0; i < 20; i++) {
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "synced" + i);
+            fs.write(ino, 0, new byte[] {(byte) i}, 0, 1);
+        }
+        fs.sync();
+        int flushes = store.flushes;
+        for (int i = 0; i < 20; i++) {
+            fs.createFile(VolumeFileSystem.ROOT_INODE, "lost" + i);
+        }
+        assertEquals("LAZY should not flush before sync", flushes, store.flushes);
+
+        VolumeFileSystem recovered = VolumeFileSystem.mount(store.crashImage(new Random(5)));
+        Map<String, byte[]> tree = readTree(recovered);
+        assertEquals("Only synced files should survive", 20, tree.size());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals("Synced file " + i, new byte[] {(byte) i}, tree.get("synced" + i));
+        }
+    }
+
+    @Test
+    public void testDurabilityWriteCost() throws Exception {
+        Durability[] modes = {Durability.STRICT, Durability.groupCommit(1000, 64), Durability.LAZY};
+        int ops = 2000;
+        long[] flushes = new long[modes.length];
+        StringBuilder report = new StringBuilder("Durability write cost (" + ops + " create+write ops):\n");
+        for (int m = 0; m < modes.length; m++) {
+            MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, 8192);
+            VolumeFileSystem.format(store);
+            VolumeFileSystem fs = VolumeFileSystem.mount(store, modes[m]);
+            int flushesBefore = store.flushes;
+            int writesBefore = store.writes;
+            long start = System.nanoTime();
+            byte[] content = new byte[200];
+            for (int i = 0; i < ops / 2; i++) {
+                long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "file" + i);
+                fs.write(ino, 0, content, 0, content.length);
+            }
+            fs.close();
+            long nanos = System.nanoTime() - start;
+            flushes[m] = store.flushes - flushesBefore;
+            report.append(String.format("  %-28s %6.2f flushes/op %6.2f writes/op %8.1f us/op%n",
+                modes[m], (double) flushes[m] / ops, (double) (store.writes - writesBefore) / ops,
+                nanos / 1e3 / ops));
+        }
+        System.out.print(report);
+
+        assertTrue("STRICT should flush at least once per op", flushes[0] >= ops);
+        assertTrue("GROUP_COMMIT should flush about once per 64 ops", flushes[1] < ops / 16);
+        assertTrue("LAZY should flush far less than STRICT", flushes[2] * 50 < flushes[0]);
+    }
+
+    private static MemoryBlockStore newStore() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT);
+        VolumeFileSystem.format(store);
+        return store;
+    }
+
+    private static Map<String, byte[]> readTree(VolumeFileSystem fs) throws IOException {
+        Map<String, byte[]> tree = new TreeMap<>();
+        for (DirectoryBTree.Entry e : fs.list(VolumeFileSystem.ROOT_INODE, null, 10_000)) {
+            byte[] data = new byte[(int) fs.stat(e.inode).size];
+            int done = 0;
+            while (done < data.length) {
+                done += fs.read(e.inode, done, data, done, data.length - done);
+            }
+            tree.put(e.name, data);
+        }
+        return tree;
+    }
+
+    private static boolean sameTree(Map<String, byte[]> a, Map<String, byte[]> b) {
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> e : a.entrySet()) {
+            if (!Arrays.equals(e.getValue(), b.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for key handles and who owns the keys behind them
+ *
+ * HeapKeys stands in for the native KeyVault and counts the keys alive.
+ *
+ * Tests:
+ * - A copy outlives its original; a destroyed handle has id 0 and
+ *   cannot be copied; closing twice is harmless
+ * - The engine and the integrity tree keep keys of their own: the
+ *   caller's key can be destroyed right after the mount, and closing the
+ *   engine destroys every key they took
+ * - A finished key rotation destroys the old master key and root key
+ */
+public class KeyHandleTest {
+
+    private static final int HEADER_SIZE = 1712;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 8;
+
+    private File volumeFile;
+    private final Random random = new Random(47);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("keys", ".qd");
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(HEADER_SIZE + (long) BLOCKS * (BLOCK_SIZE + BlockDevice.NONCE_SIZE + BlockDevice.TAG_SIZE));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testCopyAndDestroy() {
+        int before = HeapKeys.live();
+        KeyHandle key = HeapKeys.of(randomKey());
+        KeyHandle copy = key.copy();
+        assertNotEquals("Copy has its own id", key.id(), copy.id());
+        assertArrayEquals("Same material", HeapKeys.bytes(key), HeapKeys.bytes(copy));
+
+        key.close();
+        assertTrue("Destroyed", key.isDestroyed());
+        assertEquals("Destroyed handle has id 0", 0, key.id());
+        key.close();
+        assertNotNull("Copy outlives the original", HeapKeys.bytes(copy));
+        try {
+            key.copy();
+            fail("A destroyed key was copied");
+        } catch (IllegalStateException expected) {
+        }
+        copy.close();
+        assertEquals("No key left behind", before, HeapKeys.live());
+    }
+
+    @Test
+    public void testEngineAndTreeOwnTheirKeys() throws Exception {
+        int before = HeapKeys.live();
+        byte[][] content = new byte[BLOCKS][BLOCK_SIZE];
+        KeyHandle masterKey = HeapKeys.of(randomKey());
+        seal(masterKey);
+        BlockEngine engine = openEngine(masterKey);
+        masterKey.close();
+        assertEquals("Engine copy and tree root key", before + 2, HeapKeys.live());
+
+        writeAll(engine, content);
+        assertReadsBack(engine, content);
+        engine.close();
+        assertEquals("Closing the engine destroys both", before, HeapKeys.live());
+    }
+
+    @Test
+    public void testFinishedRotationDestroysOldKeys() throws Exception {
+        int before = HeapKeys.live();
+        byte[][] content = new byte[BLOCKS][BLOCK_SIZE];
+        try (KeyHandle masterKey = HeapKeys.of(randomKey());
+             KeyHandle nextKey = HeapKeys.of(randomKey())) {
+            seal(masterKey);
+            try (BlockEngine engine = openEngine(masterKey)) {
+                writeAll(engine, content);
+                engine.beginKeyRotation(nextKey, 0);
+                assertEquals("Caller's two keys, engine's two, tree's one", before + 5, HeapKeys.live());
+
+                byte[] sealed = new byte[engine.sealedSize()];
+                for (long i = 0; i < BLOCKS; i++) {
+                    IoScheduler.await(engine.readSealed(i, sealed, IoScheduler.IoClass.BACKGROUND));
+                    byte[] rekeyed = engine.rekey(i, sealed);
+                    IoScheduler.await(engine.writeRekeyed(i, rekeyed, IoScheduler.IoClass.BACKGROUND));
+                }
+                engine.retireRekeyed(BLOCKS);
+                engine.finishKeyRotation();
+                assertEquals("Old master key and root key destroyed, new root key made",
+                    before + 4, HeapKeys.live());
+                assertReadsBack(engine, content);
+            }
+            assertEquals("Only the caller's keys left", before + 2, HeapKeys.live());
+
+            // The tree was persisted under the next key
+            try (BlockEngine engine = openEngine(nextKey)) {
+                assertFalse("Clean mount under the next key", engine.integrityTree().rebuilt());
+                assertReadsBack(engine, content);
+            }
+        }
+        assertEquals("No key left behind", before, HeapKeys.live());
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Store the tree of the empty volume under masterKey, as creating it
+     * does
+     */
+    private void seal(KeyHandle masterKey) throws IOException {
+        try (BlockDevice device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false)) {
+            IntegrityTree.reseal(device, new ShaHasher(), masterKey);
+        }
+    }
+
+    private BlockEngine openEngine(KeyHandle masterKey) throws IOException {
+        BlockDevice device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), masterKey);
+        return new BlockEngine(new IoScheduler(device), new JdkAead(), masterKey, tree, Compression.NONE);
+    }
+
+    private void writeAll(BlockEngine engine, byte[][] content) throws IOException {
+        for (int i = 0; i < content.length; i++) {
+            random.nextBytes(content[i]);
+            engine.writeBlock(i, content[i], IoScheduler.IoClass.INTERACTIVE);
+        }
+        engine.flush();
+    }
+
+    private static void assertReadsBack(BlockEngine engine, byte[][] content) throws IOException {
+        byte[] out = new byte[BLOCK_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+            assertTrue("Block " + i + " reads back", Arrays.equals(content[i], out));
+        }
+    }
+
+    private byte[] randomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+}
@@ -0,0 +1,381 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for online master key rotation on a v2 volume
+ *
+ * Tests:
+ * - A rotation re-keys every block, commits the next key to the header
+ *   and leaves a volume that opens cleanly with the next key only
+ * - Reads and writes during a throttled rotation of a compressed volume
+ *   see the latest data, and no write is undone by the rotator
+ * - A rotation paused and then lost to a crash resumes from the saved
+ *   progress with both keys, skipping blocks already under the next key
+ * - The ML-KEM key file opens under the next key after a rotation, and
+ *   a mount after a crash keeps whichever copy opens under the header's
+ *   key
+ * - v1 volumes and a second rotation are refused
+ */
+public class KeyRotatorTest {
+
+    private static final int BLOCK_SIZE = 16384;
+    private static final int HEADER_SIZE = VolumeMigrator.V2_HEADER_SIZE;
+    private static final KeyHandle CURRENT_KEY = HeapKeys.of(new byte[32]);
+    private static final KeyHandle NEXT_KEY;
+
+    static {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 0x5A);
+        NEXT_KEY = HeapKeys.of(key);
+    }
+
+    private File volumeFile;
+    private final Random random = new Random(39);
+    private final byte[] nextSalt = new byte[16];
+    private final byte[] wrappedNextKey = new byte[48];
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("rekey", ".qd");
+        random.nextBytes(nextSalt);
+        random.nextBytes(wrappedNextKey);
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+        SecretKeyFile.of(volumeFile).delete();
+        SecretKeyFile.next(volumeFile).delete();
+    }
+
+    @Test
+    public void testRotationReKeysEveryBlock() throws Exception {
+        int blocks = 200;
+        byte[] headerBefore = createVolume(blocks, Compression.NONE);
+        byte[][] content = new byte[blocks][BLOCK_SIZE];
+        try (BlockEngine engine = openEngine(CURRENT_KEY)) {
+            fill(engine, content);
+            KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+            assertTrue("Engine rotating", engine.isRotatingKey());
+            assertEquals("Header records the rotation", 0, KeyRotator.savedProgress(engine.scheduler().device()));
+
+            KeyRotator.Result result;
+            try (KeyRotator rotator = new KeyRotator(engine, 2, 8, 4, 0)) {
+                result = rotator.rotate(null, null);
+            }
+            assertEquals("Every block done", blocks, result.blocksDone);
+            assertEquals("Every block re-sealed", blocks, result.blocksResealed);
+            assertFalse("Rotation finished", engine.isRotatingKey());
+            assertReadsBack(engine, content);
+        }
+
+        byte[] header = readHeader();
+        ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        assertArrayEquals("Next salt is the salt", nextSalt,
+            Arrays.copyOfRange(header, KeyRotator.SALT_OFFSET, KeyRotator.SALT_OFFSET + KeyRotator.SALT_SIZE));
+        assertArrayEquals("Next key is the master key", wrappedNextKey, Arrays.copyOfRange(header,
+            KeyRotator.MASTER_KEY_OFFSET, KeyRotator.MASTER_KEY_OFFSET + KeyRotator.WRAPPED_KEY_SIZE));
+        assertEquals("Key generation counted", 1, fields.getInt(KeyRotator.KEY_GENERATION_OFFSET));
+        assertEquals("No rotation left", KeyRotator.STATE_NONE, fields.getInt(KeyRotator.ROTATION_STATE_OFFSET));
+        assertArrayEquals("Options kept", Arrays.copyOfRange(headerBefore, 1648, 1664),
+            Arrays.copyOfRange(header, 1648, 1664));
+        assertArrayEquals("Rotation record cleared", new byte[KeyRotator.ROTATION_END - KeyRotator.ROTATION_PROGRESS_OFFSET],
+            Arrays.copyOfRange(header, KeyRotator.ROTATION_PROGRESS_OFFSET, KeyRotator.ROTATION_END));
+
+        try (BlockEngine engine = openEngine(NEXT_KEY)) {
+            assertFalse("Root MAC is under the next key", engine.integrityTree().rebuilt());
+            assertReadsBack(engine, content);
+        }
+        try (BlockEngine engine = openEngine(CURRENT_KEY)) {
+            fail("The old key should no longer mount the volume");
+        } catch (IntegrityTree.MismatchException expected) {
+            // The blocks' tags do not open under the old root key
+        }
+    }
+
+    @Test
+    public void testKeyFileFollowsRotation() throws Exception {
+        createVolume(16, Compression.NONE);
+        SecretKeyFile.Wrapper wrapper = HeapKeys.wrapper();
+        File keyFile = SecretKeyFile.of(volumeFile);
+        byte[] secret = TestVolumes.randomBytes(random, 3168);
+        try (KeyHandle secretKey = HeapKeys.of(secret)) {
+            SecretKeyFile.write(keyFile, wrapper, secretKey, CURRENT_KEY);
+        }
+
+        try (BlockEngine engine = openEngine(CURRENT_KEY)) {
+            SecretKeyFile.prepareRotation(volumeFile, wrapper, CURRENT_KEY, NEXT_KEY);
+            KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+            assertKeyFile("Current key file kept until the commit", keyFile, CURRENT_KEY, secret);
+            try (KeyRotator rotator = new KeyRotator(engine, 2, 8, 4, 0)) {
+                rotator.rotate(null, null);
+            }
+        }
+        assertKeyFile("Key file under the next key", keyFile, NEXT_KEY, secret);
+        assertNull("Not under the old key", SecretKeyFile.read(keyFile, wrapper, CURRENT_KEY));
+        assertFalse("Next key file renamed", SecretKeyFile.next(volumeFile).exists());
+
+        // Crash before the header took otherKey: the stale copy is dropped
+        try (KeyHandle otherKey = HeapKeys.of(TestVolumes.randomBytes(random, 32))) {
+            SecretKeyFile.prepareRotation(volumeFile, wrapper, NEXT_KEY, otherKey);
+            SecretKeyFile.settle(volumeFile, wrapper, NEXT_KEY);
+            assertFalse("Stale next key file deleted", SecretKeyFile.next(volumeFile).exists());
+            assertKeyFile("Key file untouched", keyFile, NEXT_KEY, secret);
+
+            // Crash after the header took otherKey: the rename is finished
+            SecretKeyFile.prepareRotation(volumeFile, wrapper, NEXT_KEY, otherKey);
+            SecretKeyFile.settle(volumeFile, wrapper, otherKey);
+            assertFalse("Next key file renamed", SecretKeyFile.next(volumeFile).exists());
+            assertKeyFile("Key file under the committed key", keyFile, otherKey, secret);
+        }
+    }
+
+    @Test
+    public void testReadsAndWritesDuringThrottledRotation() throws Exception {
+        int blocks = 256;
+        long cap = 4L << 20;
+        createVolume(blocks, Compression.LZ4);
+        byte[][] content = new byte[blocks][BLOCK_SIZE];
+        long nanos;
+        int writes;
+        try (BlockEngine engine = openEngine(CURRENT_KEY)) {
+            fill(engine, content);
+            KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            int[] writeCount = new int[1];
+            Thread user = new Thread(() -> {
+                Random r = new Random(7);
+                byte[] out = new byte[BLOCK_SIZE];
+                try {
+                    while (!done.get()) {
+                        int index = r.nextInt(blocks);
+                        engine.readBlock(index, out, IoScheduler.IoClass.INTERACTIVE);
+                        if (!Arrays.equals(content[index], out)) {
+                            throw new AssertionError("Block " + index + " read back stale during rotation");
+                        }
+                        int target = r.nextInt(blocks);
+                        byte[] block = text(r);
+                        if (r.nextBoolean()) {
+                            r.nextBytes(block);
+                        }
+                        engine.writeBlock(target, block, IoScheduler.IoClass.INTERACTIVE);
+                        content[target] = block;
+                        writeCount[0]++;
+                        Thread.sleep(2);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+
+            long start = System.nanoTime();
+            user.start();
+            try (KeyRotator rotator = new KeyRotator(engine, 2, 8, 4, cap)) {
+                rotator.rotate(null, null);
+            } finally {
+                done.set(true);
+                user.join();
+            }
+            nanos = System.nanoTime() - start;
+            if (failure.get() != null) {
+                throw new AssertionError("Concurrent user failed", failure.get());
+            }
+            writes = writeCount[0];
+            assertReadsBack(engine, content);
+        }
+        assertTrue("Blocks were written during the rotation", writes > 10);
+        // 4 MB read and up to 4 MB written back at 4 MB/s, less a burst of
+        // up to 2 MB; unthrottled it takes a small fraction of that
+        assertTrue("Rotation should be held to the cap, took " + nanos / 1_000_000 + " ms",
+            nanos > 500_000_000L);
+
+        try (BlockEngine engine = openEngine(NEXT_KEY)) {
+            assertFalse("Clean tree under the next key", engine.integrityTree().rebuilt());
+            assertReadsBack(engine, content);
+        }
+    }
+
+    @Test
+    public void testResumeAfterCrash() throws Exception {
+        int blocks = 300;
+        createVolume(blocks, Compression.NONE);
+        byte[][] content = new byte[blocks][BLOCK_SIZE];
+
+        BlockEngine engine = openEngine(CURRENT_KEY);
+        fill(engine, content);
+        KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+        AtomicBoolean pause = new AtomicBoolean();
+        Thread watcher = new Thread(() -> {
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (engine.rekeyed() < blocks / 3 && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            pause.set(true);
+        });
+        watcher.start();
+        try (KeyRotator rotator = new KeyRotator(engine, 2, 8, 4, 4L << 20)) {
+            rotator.rotate(null, pause);
+            fail("Rotation should pause");
+        } catch (CancellationException expected) {
+            // progress saved
+        }
+        watcher.join();
+        BlockDevice device = engine.scheduler().device();
+        long saved = KeyRotator.savedProgress(device);
+        assertEquals("Progress saved on pause", engine.rekeyed(), saved);
+        assertTrue("Paused part way, at " + saved, saved >= blocks / 3 && saved < blocks - 1);
+
+        // Writes go under the next key, ahead of and behind the rotator
+        content[blocks - 1] = new byte[BLOCK_SIZE];
+        random.nextBytes(content[blocks - 1]);
+        engine.writeBlock(blocks - 1, content[blocks - 1], IoScheduler.IoClass.INTERACTIVE);
+        content[3] = new byte[BLOCK_SIZE];
+        random.nextBytes(content[3]);
+        engine.writeBlock(3, content[3], IoScheduler.IoClass.INTERACTIVE);
+        engine.flush();
+        // Crash: no clean dismount
+        device.close();
+
+        device = BlockDevice.openAligned(volumeFile, HEADER_SIZE, BLOCK_SIZE, BlockDevice.Layout.FIXED,
+            blocks, false);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), CURRENT_KEY);
+        assertTrue("Unclean volume rebuilds", tree.rebuilt());
+        try (BlockEngine resumed = new BlockEngine(new IoScheduler(device), new JdkAead(), CURRENT_KEY, tree,
+                Compression.NONE)) {
+            // What MountedVolume.open does with both keys unwrapped
+            resumed.beginKeyRotation(NEXT_KEY, KeyRotator.savedProgress(device));
+            assertReadsBack(resumed, content);
+
+            KeyRotator.Result result;
+            try (KeyRotator rotator = new KeyRotator(resumed, 2, 8, 4, 0)) {
+                result = rotator.rotate(null, null);
+            }
+            assertEquals("Resumes from the saved progress", blocks - saved, result.blocksDone);
+            assertEquals("Block written ahead is not re-sealed", blocks - saved - 1, result.blocksResealed);
+            assertReadsBack(resumed, content);
+        }
+        try (BlockEngine rotated = openEngine(NEXT_KEY)) {
+            assertFalse("Clean tree under the next key", rotated.integrityTree().rebuilt());
+            assertReadsBack(rotated, content);
+        }
+    }
+
+    @Test
+    public void testRefusedOnV1AndTwice() throws Exception {
+        int v1HeaderSize = 1712;
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(v1HeaderSize + 16L * (BLOCK_SIZE + BlockDevice.NONCE_SIZE + BlockDevice.TAG_SIZE));
+        }
+        BlockDevice v1 = BlockDevice.open(volumeFile, v1HeaderSize, BLOCK_SIZE, false);
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(v1), new JdkAead(), CURRENT_KEY, null,
+                Compression.NONE)) {
+            KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+            fail("A v1 volume has no room for the rotation record");
+        } catch (IOException expected) {
+            assertTrue("Message should point to the upgrade", expected.getMessage().contains("v2"));
+        }
+
+        createVolume(16, Compression.NONE);
+        try (BlockEngine engine = openEngine(CURRENT_KEY)) {
+            KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+            try {
+                KeyRotator.begin(engine, NEXT_KEY, nextSalt, wrappedNextKey);
+                fail("A second rotation should be refused");
+            } catch (IOException expected) {
+                assertTrue("Message should say why", expected.getMessage().contains("in progress"));
+            }
+        }
+    }
+
+    /**
+     * Empty v2 volume file with a recognisable salt, options and wrapped
+     * key in its header
+     *
+     * @return The header as written
+     */
+    private byte[] createVolume(long blocks, Compression compression) throws IOException {
+        byte[] salt = new byte[KeyRotator.SALT_SIZE];
+        for (int i = 0; i < salt.length; i++) {
+            salt[i] = (byte) (KeyRotator.SALT_OFFSET + i);
+        }
+        byte[] wrappedKey = new byte[KeyRotator.WRAPPED_KEY_SIZE];
+        for (int i = 0; i < wrappedKey.length; i++) {
+            wrappedKey[i] = (byte) ((KeyRotator.MASTER_KEY_OFFSET + i) * 7);
+        }
+        VolumeHeader header = TestVolumes.header(blocks, 0, BLOCK_SIZE, compression)
+            .salt(salt)
+            .wrappedKey(wrappedKey);
+        TestVolumes.create(volumeFile, header, CURRENT_KEY);
+        return header.buffer().array();
+    }
+
+    private static void assertKeyFile(String message, File keyFile, KeyHandle kek, byte[] secret)
+            throws IOException {
+        try (KeyHandle secretKey = SecretKeyFile.read(keyFile, HeapKeys.wrapper(), kek)) {
+            assertNotNull(message, secretKey);
+            assertArrayEquals(message, secret, HeapKeys.bytes(secretKey));
+        }
+    }
+
+    private BlockEngine openEngine(KeyHandle key) throws IOException {
+        return TestVolumes.openEngine(volumeFile, key);
+    }
+
+    /**
+     * Write every block: random data, with every third block compressible
+     */
+    private void fill(BlockEngine engine, byte[][] content) throws IOException {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = i % 3 == 0 ? text(random) : new byte[BLOCK_SIZE];
+            if (i % 3 != 0) {
+                random.nextBytes(content[i]);
+            }
+            engine.writeBlock(i, content[i], IoScheduler.IoClass.BULK);
+        }
+        engine.flush();
+    }
+
+    private static void assertReadsBack(BlockEngine engine, byte[][] content) throws IOException {
+        byte[] out = new byte[BLOCK_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Block " + i, content[i], out);
+        }
+    }
+
+    private static byte[] text(Random r) {
+        String[] words = {"volume", "block", "key", "rotation", "the", "of", "a", "next"};
+        StringBuilder sb = new StringBuilder(BLOCK_SIZE + 16);
+        while (sb.length() < BLOCK_SIZE) {
+            sb.append(words[r.nextInt(words.length)]).append(' ');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.US_ASCII), BLOCK_SIZE);
+    }
+
+    private byte[] readHeader() throws IOException {
+        byte[] bytes = new byte[HEADER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "r")) {
+            raf.readFully(bytes);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,188 @@
+package com.qubesdroid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * BlockStore kept in a byte array, for file system tests without the
+ * native crypto library
+ *
+ * With trackDurability(), writes since the last flush are kept apart so
+ * crashImage() can build the store a power cut would leave behind.
+ */
+class MemoryBlockStore implements BlockStore {
+
+    private final int blockSize;
+    private final long blockCount;
+    private final byte[] data;
+
+    int reads;
+    int writes;
+    int flushes;
+    int trims;
+    // Whether canTrim() says so
+    boolean trimming;
+
+    // Contents as of the last flush, and the writes since (null = not tracked)
+    private byte[] durable;
+    private List<PendingWrite> pending;
+    private Runnable beforeFlush;
+
+    MemoryBlockStore(int blockSize, int blockCount) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.data = new byte[blockSize * blockCount];
+    }
+
+    @Override
+    public int blockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long blockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized void readBlock(long index, byte[] dst, IoScheduler.IoClass ioClass)
+            throws IOException {
+        check(index);
+        reads++;
+        System.arraycopy(data, (int) index * blockSize, dst, 0, blockSize);
+    }
+
+    @Override
+    public synchronized void writeBlock(long index, byte[] src, IoScheduler.IoClass ioClass)
+            throws IOException {
+        check(index);
+        writes++;
+        System.arraycopy(src, 0, data, (int) index * blockSize, blockSize);
+        if (pending != null) {
+            pending.add(new PendingWrite(index, src.clone()));
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (beforeFlush != null) {
+            beforeFlush.run();
+        }
+        flushes++;
+        if (pending != null) {
+            System.arraycopy(data, 0, durable, 0, data.length);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Start keeping durable contents apart from unflushed writes
+     */
+    synchronized void trackDurability() {
+        durable = data.clone();
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * Run hook at the start of every flush (while writes are still pending)
+     */
+    synchronized void setBeforeFlush(Runnable hook) {
+        beforeFlush = hook;
+    }
+
+    /**
+     * The store after a crash now: flushed contents plus a random subset
+     * of the writes since
+     */
+    synchronized MemoryBlockStore crashImage(Random random) {
+        MemoryBlockStore image = new MemoryBlockStore(blockSize, (int) blockCount);
+        System.arraycopy(durable, 0, image.data, 0, durable.length);
+        for (PendingWrite w : pending) {
+            if (random.nextBoolean()) {
+                System.arraycopy(w.data, 0, image.data, (int) w.index * blockSize, blockSize);
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public byte[] seal(long index, byte[] plaintext) {
+        return plaintext.clone();
+    }
+
+    @Override
+    public int sealedSize() {
+        return blockSize;
+    }
+
+    @Override
+    public CompletableFuture<Void> writeSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            writeBlock(index, sealed, ioClass);
+            done.complete(null);
+        } catch (IOException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    @Override
+    public CompletableFuture<Void> readSealed(long index, byte[] sealed, IoScheduler.IoClass ioClass) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            readBlock(index, sealed, ioClass);
+            done.complete(null);
+        } catch (IOException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    @Override
+    public void open(long index, byte[] sealed, byte[] dst) throws IOException {
+        System.arraycopy(sealed, 0, dst, 0, blockSize);
+    }
+
+    @Override
+    public boolean canTrim() {
+        return trimming;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> trim(long index, IoScheduler.IoClass ioClass) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            check(index);
+            trims++;
+            Arrays.fill(data, (int) index * blockSize, (int) (index + 1) * blockSize, (byte) 0);
+            if (pending != null) {
+                pending.add(new PendingWrite(index, new byte[blockSize]));
+            }
+            done.complete(null);
+        } catch (IOException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    private static final class PendingWrite {
+        final long index;
+        final byte[] data;
+
+        PendingWrite(long index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private void check(long index) throws IOException {
+        if (index < 0 || index >= blockCount) {
+            throw new IOException("Block " + index + " out of range");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Metrics registry and what the block layers record
+ *
+ * Tests:
+ * - Every value lands in a bucket whose top is within 1/16 of it, and
+ *   the buckets are contiguous up to Long.MAX_VALUE
+ * - Quantiles of a known distribution, within the bucket precision
+ * - Recording allocates nothing (benchmark: 1M records, thread
+ *   allocation counter)
+ * - Block reads and writes through the engine, metadata cache hits and
+ *   misses and the scheduler's queue depth are recorded
+ * - The JSON export names every metric and the derived rates
+ */
+public class MetricsTest {
+
+    private static final int HEADER_SIZE = 1712;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 16;
+
+    private File volumeFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Metrics.reset();
+        volumeFile = File.createTempFile("metrics", ".qd");
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(HEADER_SIZE + (long) BLOCKS * (BLOCK_SIZE + BlockDevice.NONCE_SIZE + BlockDevice.TAG_SIZE));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testBucketPrecision() {
+        int last = -1;
+        for (long v = 0; v < 100_000; v++) {
+            int bucket = Metrics.Histogram.bucket(v);
+            assertTrue("Buckets never go back at " + v, bucket >= last);
+            assertTrue("Value " + v + " within its bucket", Metrics.Histogram.highestIn(bucket) >= v);
+            assertTrue("Bucket of " + v + " tight", Metrics.Histogram.highestIn(bucket) - v <= v / 16);
+            if (bucket != last) {
+                assertEquals("Buckets contiguous at " + v, last + 1, bucket);
+                last = bucket;
+            }
+        }
+        int top = Metrics.Histogram.bucket(Long.MAX_VALUE);
+        assertEquals("Last bucket", Metrics.Histogram.BUCKETS - 1, top);
+        assertEquals("Last bucket reaches Long.MAX_VALUE", Long.MAX_VALUE, Metrics.Histogram.highestIn(top));
+    }
+
+    @Test
+    public void testQuantiles() {
+        Metrics.Histogram h = new Metrics.Histogram();
+        for (long v = 1; v <= 10_000; v++) {
+            h.record(v * 1000);
+        }
+        Metrics.HistogramSnapshot s = h.snapshot();
+        assertEquals("Count", 10_000, s.count);
+        assertEquals("Max exact", 10_000_000, s.max);
+        assertEquals("Mean exact", 5_000_500, s.mean(), 0.5);
+        assertWithin("p50", 5_000_000, s.quantile(0.50));
+        assertWithin("p99", 9_900_000, s.quantile(0.99));
+        assertEquals("p100 is the max", 10_000_000, s.quantile(1.0));
+        assertEquals("Empty histogram", 0, new Metrics.Histogram().snapshot().quantile(0.5));
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        enableAllocationCounting(threads);
+        long thread = Thread.currentThread().getId();
+        // Warm up so the JIT has compiled record() before measuring
+        for (int i = 0; i < 200_000; i++) {
+            Metrics.BLOCK_READ.record(i);
+            Metrics.BYTES_READ.add(i);
+        }
+
+        int records = 1_000_000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            Metrics.BLOCK_READ.recordSince(start);
+            Metrics.BYTES_READ.add(BLOCK_SIZE);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("Metrics: %.1f ns per histogram record + counter add, %d bytes allocated%n",
+            (double) nanos / records, allocated);
+        // Any allocation per record is 16 bytes or more; allow the odd
+        // kilobyte the JIT or the measurement itself may take
+        assertTrue("Recording allocated " + allocated + " bytes", allocated < records / 16);
+    }
+
+    @Test
+    public void testBlockLayersRecord() throws Exception {
+        BlockDevice device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+        try (KeyHandle key = HeapKeys.of(new byte[32]);
+             BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), key, null,
+                 Compression.NONE)) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int i = 0; i < BLOCKS; i++) {
+                engine.writeBlock(i, block, IoScheduler.IoClass.INTERACTIVE);
+            }
+            for (int i = 0; i < BLOCKS; i++) {
+                engine.readBlock(i, block, IoScheduler.IoClass.INTERACTIVE);
+            }
+
+            MetadataCache cache = new MetadataCache(engine, 4);
+            cache.get(0);
+            cache.get(0);
+            cache.get(1);
+        }
+
+        Metrics.Snapshot s = Metrics.snapshot();
+        // The cache's miss reads go through the engine too
+        assertEquals("Reads", BLOCKS + 2, s.histograms.get("block.read_ns").count);
+        assertEquals("Writes", BLOCKS, s.histograms.get("block.write_ns").count);
+        assertEquals("Bytes read", (BLOCKS + 2L) * BLOCK_SIZE, s.counter("block.bytes_read"));
+        assertEquals("Bytes written", (long) BLOCKS * BLOCK_SIZE, s.counter("block.bytes_written"));
+        assertEquals("Cache hits", 1, s.counter("cache.hits"));
+        assertEquals("Cache misses", 2, s.counter("cache.misses"));
+        assertEquals("Hit rate", 1 / 3.0, s.cacheHitRate(), 1e-9);
+        assertTrue("Queue depth recorded per request", s.histograms.get("io.queue_depth").count >= 2 * BLOCKS);
+        assertTrue("Queue depth at least one", s.histograms.get("io.queue_depth").quantile(0) >= 1);
+        assertTrue("Read rate", s.rate("block.bytes_read", null) > 0);
+    }
+
+    @Test
+    public void testJsonExport() {
+        Metrics.BYTES_WRITTEN.add(4096);
+        Metrics.ARGON2.record(250_000_000);
+        String json = Metrics.snapshot().toJson();
+        assertTrue("Counter", json.contains("\"block.bytes_written\": 4096"));
+        assertTrue("Histogram", json.contains("\"crypto.argon2_ns\": {\"count\": 1, \"mean\": 250000000.0"));
+        assertTrue("Max", json.contains("\"max\": 250000000}"));
+        for (String name : new String[] {"crypto.seal_ns", "crypto.open_ns", "crypto.open_failed", "block.read_ns",
+                "cache.hits", "cache.misses", "io.queue_depth", "cache.hit_rate", "block.write_bytes_per_s"}) {
+            assertTrue("Names " + name, json.contains("\"" + name + "\""));
+        }
+        assertEquals("Balanced braces", count(json, '{'), count(json, '}'));
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private static void assertWithin(String message, long expected, long actual) {
+        assertTrue(message + ": " + actual + " vs " + expected, Math.abs(actual - expected) <= expected / 16);
+    }
+
+    private static void enableAllocationCounting(com.sun.management.ThreadMXBean threads) {
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    private static int count(String s, char c) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
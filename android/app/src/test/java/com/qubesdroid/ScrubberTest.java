@@ -0,0 +1,164 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the integrity scrubber
+ *
+ * Tests:
+ * - Every block is checked and exactly the damaged ones are reported
+ * - A block that fails only because it was rewritten mid-scrub is not
+ *   reported
+ * - A cancelled scrub resumes from its saved checkpoint and finds the
+ *   same blocks as an uninterrupted one, without checking any twice
+ */
+public class ScrubberTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 3000;
+
+    private Scrubber scrubber;
+    private File checkpointFile;
+
+    @After
+    public void tearDown() throws IOException {
+        if (scrubber != null) {
+            scrubber.close();
+        }
+        if (checkpointFile != null) {
+            Scrubber.Checkpoint.delete(checkpointFile);
+        }
+    }
+
+    @Test
+    public void testFindsDamagedBlocks() throws Exception {
+        DamagedStore store = new DamagedStore(137, 1024, 2999);
+        scrubber = new Scrubber(store, 4, 16, 8);
+
+        Scrubber.Result result = scrubber.scrub(Scrubber.Checkpoint.start(BLOCK_COUNT), null, null, null);
+
+        assertEquals("Every block should be checked", BLOCK_COUNT, result.blocksChecked);
+        // Damaged blocks are read and opened a second time before being reported
+        assertEquals("Every block should be opened once", BLOCK_COUNT + 3, store.opened.get());
+        assertEquals("Damaged blocks in order", Arrays.asList(137L, 1024L, 2999L), result.corrupt);
+    }
+
+    @Test
+    public void testRewrittenBlockNotReported() throws Exception {
+        DamagedStore store = new DamagedStore(42);
+        store.staleOnce.add(700L);
+        scrubber = new Scrubber(store, 4, 16, 8);
+
+        Scrubber.Result result = scrubber.scrub(Scrubber.Checkpoint.start(BLOCK_COUNT), null, null, null);
+
+        assertEquals("Only the really damaged block", Arrays.asList(42L), result.corrupt);
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        checkpointFile = File.createTempFile("scrub", ".ckpt");
+        DamagedStore store = new DamagedStore(5, 1500, 2500);
+        AtomicBoolean cancel = new AtomicBoolean();
+        store.cancelAfter(1200, cancel);
+        scrubber = new Scrubber(store, 4, 16, 8);
+
+        try {
+            scrubber.scrub(Scrubber.Checkpoint.start(BLOCK_COUNT), checkpointFile, null, cancel);
+            fail("Scrub should have been cancelled");
+        } catch (CancellationException expected) {
+            // checkpoint saved
+        }
+
+        Scrubber.Checkpoint resumed = Scrubber.Checkpoint.load(checkpointFile, BLOCK_COUNT);
+        assertNotNull("Checkpoint should have been saved", resumed);
+        long next = resumed.next();
+        assertTrue("Checkpoint should cover what was retired", next >= 1000 && next < BLOCK_COUNT);
+        assertEquals("Corrupt blocks found before cancelling", Arrays.asList(5L), resumed.corrupt());
+        assertNull("Checkpoint for another volume size should be ignored",
+            Scrubber.Checkpoint.load(checkpointFile, BLOCK_COUNT + 1));
+
+        store.cancelAfter(-1, null);
+        int openedBefore = store.opened.get();
+        Scrubber.Result result = scrubber.scrub(resumed, checkpointFile, null, null);
+
+        assertEquals("Resume should check only the rest", BLOCK_COUNT - next, result.blocksChecked);
+        assertEquals("Resume should not reopen retired blocks",
+            BLOCK_COUNT - next + 2, store.opened.get() - openedBefore);
+        assertEquals("Same corrupt blocks as a full scrub", Arrays.asList(5L, 1500L, 2500L), result.corrupt);
+        assertFalse("Checkpoint should be removed once complete", checkpointFile.exists());
+    }
+
+    @Test
+    public void testReadFailureStopsScrub() throws Exception {
+        checkpointFile = File.createTempFile("scrub", ".ckpt");
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT) {
+            @Override
+            public void readBlock(long index, byte[] dst, IoScheduler.IoClass ioClass) throws IOException {
+                if (index == 2000) {
+                    throw new IOException("EIO");
+                }
+                super.readBlock(index, dst, ioClass);
+            }
+        };
+        scrubber = new Scrubber(store, 2, 16, 4);
+
+        try {
+            scrubber.scrub(Scrubber.Checkpoint.start(BLOCK_COUNT), checkpointFile, null, null);
+            fail("Unreadable block should fail the scrub");
+        } catch (IOException expected) {
+            // checkpoint saved
+        }
+        Scrubber.Checkpoint saved = Scrubber.Checkpoint.load(checkpointFile, BLOCK_COUNT);
+        assertNotNull("Checkpoint should be saved on failure", saved);
+        assertEquals("Checkpoint should stop at the failed run", 2000 / 16 * 16, saved.next());
+    }
+
+    /**
+     * Memory store whose open() fails for chosen blocks, as BlockEngine
+     * does for a block that fails authentication
+     */
+    private static final class DamagedStore extends MemoryBlockStore {
+        final Set<Long> damaged = new HashSet<>();
+        // Fail the first open only, like a slot read just before a rewrite
+        final Set<Long> staleOnce = ConcurrentHashMap.newKeySet();
+        final AtomicInteger opened = new AtomicInteger();
+        private volatile int cancelAt = -1;
+        private volatile AtomicBoolean cancel;
+
+        DamagedStore(long... damaged) {
+            super(BLOCK_SIZE, BLOCK_COUNT);
+            for (long index : damaged) {
+                this.damaged.add(index);
+            }
+        }
+
+        void cancelAfter(int blocks, AtomicBoolean cancel) {
+            this.cancelAt = blocks;
+            this.cancel = cancel;
+        }
+
+        @Override
+        public void open(long index, byte[] sealed, byte[] dst) throws IOException {
+            if (opened.incrementAndGet() == cancelAt) {
+                cancel.set(true);
+            }
+            if (damaged.contains(index) || staleOnce.remove(index)) {
+                throw new IOException("Block " + index + " failed authentication");
+            }
+            super.open(index, sealed, dst);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.qubesdroid;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SHA-256 and HMAC-SHA256 in place of the native BLAKE2s, for integrity
+ * tree tests without the native crypto library (the tree does not
+ * depend on the hash); keys come from HeapKeys
+ */
+final class ShaHasher implements IntegrityTree.Hasher {
+
+    @Override
+    public void hash(byte[] in, int stride, int count, byte[] out) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < count; i++) {
+                sha.update(in, i * stride, stride);
+                sha.digest(out, i * IntegrityTree.HASH_SIZE, IntegrityTree.HASH_SIZE);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] mac(KeyHandle key, byte[] data) {
+        byte[] material = HeapKeys.bytes(key);
+        if (material == null) {
+            return null;
+        }
+        return hmac(material, data);
+    }
+
+    @Override
+    public KeyHandle deriveKey(KeyHandle key, byte[] label) {
+        byte[] derived = hmac(HeapKeys.bytes(key), label);
+        try {
+            return HeapKeys.of(derived);
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.qubesdroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for copy-on-write snapshots
+ *
+ * Tests:
+ * - A mounted snapshot shows the tree as it was, file data and metadata,
+ *   while the live tree moves on; also after a remount
+ * - A mounted snapshot is read-only and cannot be deleted
+ * - A crash at any flush after a snapshot leaves the snapshot intact
+ * - Deleting snapshots in any order keeps the others intact, and
+ *   deleting all of them gives back every block they held
+ * - Benchmark: snapshot creation cost and write overhead as the volume
+ *   grows
+ */
+public class SnapshotTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 2048;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testSnapshotShowsOldTree() throws Exception {
+        MemoryBlockStore store = newStore(BLOCK_COUNT);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        long big = fs.createFile(VolumeFileSystem.ROOT_INODE, "big.bin");
+        fs.write(big, 0, randomBytes(64 * BLOCK_SIZE), 0, 64 * BLOCK_SIZE);
+        long small = fs.createFile(VolumeFileSystem.ROOT_INODE, "small.txt");
+        fs.write(small, 0, randomBytes(100), 0, 100);
+        long docs = fs.mkdir(VolumeFileSystem.ROOT_INODE, "docs");
+        long note = fs.createFile(docs, "note.txt");
+        fs.write(note, 0, randomBytes(BLOCK_SIZE + 300), 0, BLOCK_SIZE + 300);
+        Map<String, byte[]> before = readTree(fs);
+
+        assertEquals("Snapshot listed", "before",
+            fs.createSnapshot("before").name);
+        byte[] patch = randomBytes(10 * BLOCK_SIZE);
+        fs.write(big, 5 * BLOCK_SIZE + 17, patch, 0, patch.length);
+        fs.delete(VolumeFileSystem.ROOT_INODE, "small.txt");
+        fs.rename(VolumeFileSystem.ROOT_INODE, "docs", VolumeFileSystem.ROOT_INODE, "papers");
+        fs.truncate(note, 50);
+        long fresh = fs.createFile(VolumeFileSystem.ROOT_INODE, "new.bin");
+        fs.write(fresh, 0, randomBytes(8 * BLOCK_SIZE), 0, 8 * BLOCK_SIZE);
+        Map<String, byte[]> after = readTree(fs);
+        assertFalse("Live tree changed", sameTree(before, after));
+
+        VolumeFileSystem snapshot = fs.openSnapshot("before");
+        assertTrue("Snapshot shows the tree as it was", sameTree(before, readTree(snapshot)));
+        assertTrue("Live tree is the new one", sameTree(after, readTree(fs)));
+        snapshot.close();
+        fs.close();
+
+        fs = VolumeFileSystem.mount(store);
+        List<SnapshotTable.Snapshot> snapshots = fs.listSnapshots();
+        assertEquals("Snapshot survived the remount", 1, snapshots.size());
+        assertEquals("Its name", "before", snapshots.get(0).name);
+        snapshot = fs.openSnapshot("before");
+        assertTrue("Snapshot intact after remount", sameTree(before, readTree(snapshot)));
+        assertTrue("Live tree intact after remount", sameTree(after, readTree(fs)));
+        snapshot.close();
+        fs.close();
+    }
+
+    @Test
+    public void testMountedSnapshotIsReadOnly() throws Exception {
+        MemoryBlockStore store = newStore(BLOCK_COUNT);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "a");
+        fs.write(ino, 0, new byte[100], 0, 100);
+        fs.createSnapshot("s");
+        try {
+            fs.createSnapshot("s");
+            fail("Snapshot names are unique");
+        } catch (IOException expected) {
+            // FileAlreadyExistsException
+        }
+
+        VolumeFileSystem snapshot = fs.openSnapshot("s");
+        try {
+            snapshot.write(ino, 0, new byte[1], 0, 1);
+            fail("Snapshot should be read-only");
+        } catch (IOException expected) {
+            // Read-only
+        }
+        try {
+            snapshot.createFile(VolumeFileSystem.ROOT_INODE, "b");
+            fail("Snapshot should be read-only");
+        } catch (IOException expected) {
+            // Read-only
+        }
+        try {
+            fs.deleteSnapshot("s");
+            fail("A mounted snapshot cannot be deleted");
+        } catch (IOException expected) {
+            // Mounted
+        }
+        assertEquals("Still listed", 1, fs.listSnapshots().size());
+
+        snapshot.close();
+        fs.deleteSnapshot("s");
+        assertTrue("Deleted once unmounted", fs.listSnapshots().isEmpty());
+        try {
+            fs.openSnapshot("s");
+            fail("Deleted snapshot cannot be mounted");
+        } catch (IOException expected) {
+            // NoSuchFileException
+        }
+        fs.close();
+    }
+
+    @Test
+    public void testCrashAfterSnapshotKeepsIt() throws Exception {
+        MemoryBlockStore store = newStore(BLOCK_COUNT);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        for (int i = 0; i < 8; i++) {
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "file" + i);
+            byte[] content = randomBytes(random.nextInt(6 * BLOCK_SIZE));
+            fs.write(ino, 0, content, 0, content.length);
+        }
+        fs.createSnapshot("s");
+        Map<String, byte[]> snapshotTree = readTree(fs);
+        store.trackDurability();
+
+        Random crashes = new Random(7);
+        int[] checked = {0};
+        store.setBeforeFlush(() -> {
+            try {
+                VolumeFileSystem recovered = VolumeFileSystem.mount(store.crashImage(crashes));
+                VolumeFileSystem snapshot = recovered.openSnapshot("s");
+                assertTrue("Snapshot intact after a crash", sameTree(snapshotTree, readTree(snapshot)));
+                snapshot.close();
+                checked[0]++;
+            } catch (IOException e) {
+                throw new AssertionError("Crash image failed to mount", e);
+            }
+        });
+        for (int op = 0; op < 60; op++) {
+            String name = "file" + random.nextInt(12);
+            DirectoryBTree.Entry entry = fs.lookup(VolumeFileSystem.ROOT_INODE, name);
+            if (entry != null && random.nextInt(4) == 0) {
+                fs.delete(VolumeFileSystem.ROOT_INODE, name);
+                continue;
+            }
+            long ino = entry != null ? entry.inode : fs.createFile(VolumeFileSystem.ROOT_INODE, name);
+            byte[] content = randomBytes(1 + random.nextInt(3 * BLOCK_SIZE));
+            fs.write(ino, random.nextInt(4 * BLOCK_SIZE), content, 0, content.length);
+        }
+        store.setBeforeFlush(null);
+        assertTrue("Crash points should have been checked", checked[0] > 60);
+    }
+
+    @Test
+    public void testDeletingSnapshotsReclaimsSpace() throws Exception {
+        MemoryBlockStore store = newStore(BLOCK_COUNT);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "a.bin");
+        fs.write(ino, 0, randomBytes(128 * BLOCK_SIZE), 0, 128 * BLOCK_SIZE);
+        long baseline = fs.freeBytes();
+
+        String[] names = {"s1", "s2", "s3"};
+        Map<String, Map<String, byte[]>> trees = new TreeMap<>();
+        for (String name : names) {
+            fs.createSnapshot(name);
+            trees.put(name, readTree(fs));
+            byte[] patch = randomBytes(24 * BLOCK_SIZE);
+            fs.write(ino, random.nextInt(100) * BLOCK_SIZE, patch, 0, patch.length);
+        }
+        Map<String, byte[]> live = readTree(fs);
+        assertTrue("Snapshots hold blocks", fs.freeBytes() < baseline);
+        for (SnapshotTable.Snapshot s : fs.listSnapshots()) {
+            assertTrue("Each snapshot holds its overwritten blocks", s.blocks >= 24);
+        }
+
+        // Middle one first: its blocks move to the older snapshot
+        fs.deleteSnapshot("s2");
+        assertTree(fs, "s1", trees.get("s1"));
+        assertTree(fs, "s3", trees.get("s3"));
+        fs.deleteSnapshot("s3");
+        assertTree(fs, "s1", trees.get("s1"));
+        fs.deleteSnapshot("s1");
+
+        assertTrue("No snapshots left", fs.listSnapshots().isEmpty());
+        assertTrue("Live tree untouched", sameTree(live, readTree(fs)));
+        assertEquals("Every held block freed", baseline, fs.freeBytes());
+        fs.close();
+        fs = VolumeFileSystem.mount(store);
+        assertEquals("Freed for good", baseline, fs.freeBytes());
+        fs.close();
+    }
+
+    @Test
+    public void testCreationAndWriteOverheadBenchmark() throws Exception {
+        int[] sizes = {2048, 8192, 32768};
+        int writes = 256;
+        long[] createWrites = new long[2 * sizes.length];
+        StringBuilder report = new StringBuilder(String.format(
+            "Snapshots of half-full volumes (%d KB blocks, %d one-block overwrites per pass):%n"
+                + "  %7s  %14s  %14s  %16s  %16s  %16s%n",
+            BLOCK_SIZE / 1024, writes, "blocks", "1st snapshot", "2nd snapshot",
+            "no snapshot", "1st after", "2nd after"));
+        for (int s = 0; s < sizes.length; s++) {
+            MemoryBlockStore store = newStore(sizes[s]);
+            VolumeFileSystem fs = VolumeFileSystem.mount(store);
+            int fileBlocks = 64;
+            int files = sizes[s] / 2 / fileBlocks;
+            long[] inos = new long[files];
+            byte[] content = new byte[fileBlocks * BLOCK_SIZE];
+            for (int i = 0; i < files; i++) {
+                inos[i] = fs.createFile(VolumeFileSystem.ROOT_INODE, "file" + i);
+                fs.write(inos[i], 0, content, 0, content.length);
+            }
+            long[][] targets = new long[writes][];
+            for (int i = 0; i < writes; i++) {
+                targets[i] = new long[] {inos[random.nextInt(files)], random.nextInt(fileBlocks)};
+            }
+
+            Cost plain = overwrite(fs, store, targets);
+            Cost first = snapshot(fs, store, "first");
+            Cost firstAfter = overwrite(fs, store, targets);
+            Cost secondAfter = overwrite(fs, store, targets);
+            Cost second = snapshot(fs, store, "second");
+            createWrites[2 * s] = first.writes;
+            createWrites[2 * s + 1] = second.writes;
+            fs.close();
+
+            report.append(String.format("  %7d  %14s  %14s  %16s  %16s  %16s%n", sizes[s],
+                first.format(1), second.format(1), plain.format(writes), firstAfter.format(writes),
+                secondAfter.format(writes)));
+            assertTrue("Rewriting blocks already copied should cost about what it did without a snapshot",
+                2 * secondAfter.writes <= 3 * plain.writes);
+            assertTrue("First writes after a snapshot should cost a few block writes more",
+                firstAfter.writes <= 4 * plain.writes);
+        }
+        report.append("  (block writes and time per snapshot or per overwrite)\n");
+        System.out.print(report);
+
+        for (long w : createWrites) {
+            assertTrue("Taking a snapshot should write a handful of blocks, whatever the volume size",
+                w <= 32);
+        }
+    }
+
+    /**
+     * Block writes and time of some work
+     */
+    private static final class Cost {
+        long writes;
+        long nanos;
+
+        String format(int per) {
+            return String.format("%5.1f w %6.1f us", (double) writes / per, nanos / 1e3 / per);
+        }
+    }
+
+    private static Cost snapshot(VolumeFileSystem fs, MemoryBlockStore store, String name) throws IOException {
+        Cost cost = new Cost();
+        int writes = store.writes;
+        long start = System.nanoTime();
+        fs.createSnapshot(name);
+        cost.nanos = System.nanoTime() - start;
+        cost.writes = store.writes - writes;
+        return cost;
+    }
+
+    private Cost overwrite(VolumeFileSystem fs, MemoryBlockStore store, long[][] targets) throws IOException {
+        Cost cost = new Cost();
+        byte[] block = randomBytes(BLOCK_SIZE);
+        int writes = store.writes;
+        long start = System.nanoTime();
+        for (long[] t : targets) {
+            fs.write(t[0], t[1] * BLOCK_SIZE, block, 0, block.length);
+        }
+        cost.nanos = System.nanoTime() - start;
+        cost.writes = store.writes - writes;
+        return cost;
+    }
+
+    private static void assertTree(VolumeFileSystem fs, String name, Map<String, byte[]> expected)
+            throws IOException {
+        VolumeFileSystem snapshot = fs.openSnapshot(name);
+        assertTrue("Snapshot " + name + " intact", sameTree(expected, readTree(snapshot)));
+        snapshot.close();
+    }
+
+    private static MemoryBlockStore newStore(int blocks) throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, blocks);
+        VolumeFileSystem.format(store);
+        return store;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Every file and directory under the root by path ("/" suffix for
+     * directories, which map to nothing)
+     */
+    private static Map<String, byte[]> readTree(VolumeFileSystem fs) throws IOException {
+        Map<String, byte[]> tree = new TreeMap<>();
+        readTree(fs, VolumeFileSystem.ROOT_INODE, "/", tree);
+        return tree;
+    }
+
+    private static void readTree(VolumeFileSystem fs, long dir, String path, Map<String, byte[]> tree)
+            throws IOException {
+        for (DirectoryBTree.Entry e : fs.list(dir, null, 10_000)) {
+            if (e.isDirectory()) {
+                tree.put(path + e.name + "/", new byte[0]);
+                readTree(fs, e.inode, path + e.name + "/", tree);
+                continue;
+            }
+            byte[] data = new byte[(int) fs.stat(e.inode).size];
+            int done = 0;
+            while (done < data.length) {
+                done += fs.read(e.inode, done, data, done, data.length - done);
+            }
+            tree.put(path + e.name, data);
+        }
+    }
+
+    private static boolean sameTree(Map<String, byte[]> a, Map<String, byte[]> b) {
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> e : a.entrySet()) {
+            if (!Arrays.equals(e.getValue(), b.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
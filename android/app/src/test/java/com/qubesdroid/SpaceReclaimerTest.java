@@ -0,0 +1,265 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for trimming freed blocks and compacting the volume
+ *
+ * A HolePuncher that zeroes the range stands in for fallocate().
+ *
+ * Tests:
+ * - Trimmed blocks read as zeros, without I/O while mounted and from
+ *   their zeroed entries after a remount, and have their ciphertext
+ *   punched out
+ * - A metadata entry zeroed behind the tree's back is rejected
+ * - A host file system without holes turns punching off; trimmed blocks
+ *   still read as zeros and a key rotation skips them
+ * - The file system trims only committed frees, and not inside a batch
+ * - Compaction moves small extents down into the gaps, files intact,
+ *   and the reclaimer then trims the whole free space
+ * - The reclaimer trims on its own while the volume is mounted
+ */
+public class SpaceReclaimerTest {
+
+    private static final int HEADER_SIZE = VolumeMigrator.V2_HEADER_SIZE;
+    private static final int BLOCK_SIZE = 4096;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private final Random random = new Random(41);
+    private final List<long[]> punched = new ArrayList<>();
+    private boolean holes = true;
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("reclaim", ".qd");
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testTrimmedBlocksReadAsZeros() throws Exception {
+        createVolume(64);
+        byte[][] blocks = new byte[64][BLOCK_SIZE];
+        long dataStart;
+        try (BlockEngine engine = openEngine()) {
+            dataStart = engine.scheduler().device().dataStart();
+            for (int i = 0; i < blocks.length; i++) {
+                random.nextBytes(blocks[i]);
+                engine.writeBlock(i, blocks[i], IoScheduler.IoClass.INTERACTIVE);
+            }
+            assertTrue("Engine trims", engine.canTrim());
+            trim(engine, 10, 10);
+            engine.flush();
+
+            long ios = engine.scheduler().dispatchedIos();
+            byte[] out = new byte[BLOCK_SIZE];
+            engine.readBlock(12, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Trimmed block reads as zeros", new byte[BLOCK_SIZE], out);
+            assertEquals("Answered without I/O", ios, engine.scheduler().dispatchedIos());
+            engine.readBlock(9, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Neighbour kept", blocks[9], out);
+        }
+        long bytes = 0;
+        for (long[] range : punched) {
+            assertTrue("Hole inside the trimmed blocks", range[0] >= dataStart + 10L * BLOCK_SIZE
+                && range[0] + range[1] <= dataStart + 20L * BLOCK_SIZE);
+            bytes += range[1];
+        }
+        assertEquals("Ciphertext punched out", 10L * BLOCK_SIZE, bytes);
+
+        try (BlockEngine engine = openEngine()) {
+            assertFalse("Tree stored with the trimmed leaves", engine.integrityTree().rebuilt());
+            byte[] out = new byte[BLOCK_SIZE];
+            for (int i = 0; i < blocks.length; i++) {
+                engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+                assertArrayEquals("Block " + i + " after remount", i >= 10 && i < 20 ? new byte[BLOCK_SIZE]
+                    : blocks[i], out);
+            }
+            engine.writeBlock(12, blocks[12], IoScheduler.IoClass.INTERACTIVE);
+            engine.readBlock(12, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Trimmed block written again", blocks[12], out);
+        }
+    }
+
+    @Test
+    public void testZeroedEntryRejected() throws Exception {
+        createVolume(16);
+        try (BlockEngine engine = openEngine()) {
+            byte[] block = new byte[BLOCK_SIZE];
+            random.nextBytes(block);
+            engine.writeBlock(5, block, IoScheduler.IoClass.INTERACTIVE);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.seek(HEADER_SIZE + 5L * BlockDevice.METADATA_ENTRY_SIZE);
+            raf.write(new byte[BlockDevice.METADATA_ENTRY_SIZE]);
+        }
+        try (BlockEngine engine = openEngine()) {
+            engine.readBlock(5, new byte[BLOCK_SIZE], IoScheduler.IoClass.INTERACTIVE);
+            fail("Block with a zeroed entry read as trimmed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testHostWithoutHoles() throws Exception {
+        createVolume(16);
+        holes = false;
+        try (BlockEngine engine = openEngine()) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int i = 0; i < 16; i++) {
+                random.nextBytes(block);
+                engine.writeBlock(i, block, IoScheduler.IoClass.INTERACTIVE);
+            }
+            trim(engine, 3, 1);
+            assertFalse("Punching turned off", engine.canTrim());
+            byte[] out = new byte[BLOCK_SIZE];
+            engine.readBlock(3, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Trimmed block reads as zeros", new byte[BLOCK_SIZE], out);
+
+            byte[] sealed = new byte[engine.sealedSize()];
+            engine.beginKeyRotation(MASTER_KEY, 0);
+            IoScheduler.await(engine.readSealed(3, sealed, IoScheduler.IoClass.BACKGROUND));
+            assertNull("Nothing to re-key", engine.rekey(3, sealed));
+            IoScheduler.await(engine.readSealed(4, sealed, IoScheduler.IoClass.BACKGROUND));
+            assertNotNull("Written block re-keyed", engine.rekey(4, sealed));
+        }
+    }
+
+    @Test
+    public void testOnlyCommittedFreesTrimmed() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, 512);
+        store.trimming = true;
+        VolumeFileSystem.format(store);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store, Durability.LAZY);
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "a.bin");
+        byte[] data = new byte[20 * BLOCK_SIZE];
+        random.nextBytes(data);
+        fs.write(ino, 0, data, 0, data.length);
+        fs.sync();
+        long free = fs.freeBytes() / BLOCK_SIZE;
+
+        fs.beginBatch();
+        fs.delete(VolumeFileSystem.ROOT_INODE, "a.bin");
+        assertEquals("Nothing trimmed inside a batch", 0, fs.trimFreed(Long.MAX_VALUE));
+        fs.endBatch();
+
+        fs.createFile(VolumeFileSystem.ROOT_INODE, "b.bin");
+        int flushes = store.flushes;
+        assertEquals("Freed blocks trimmed", fs.freeBytes() / BLOCK_SIZE - free, fs.trimFreed(Long.MAX_VALUE));
+        assertTrue("Deferred operation committed first", store.flushes > flushes);
+        assertEquals("Each trimmed once", 20, store.trims);
+        assertEquals("Nothing left", 0, fs.trimFreed(Long.MAX_VALUE));
+        fs.close();
+
+        fs = VolumeFileSystem.mount(store);
+        assertNotNull("Created after the delete", fs.lookup(VolumeFileSystem.ROOT_INODE, "b.bin"));
+        assertNull("Deleted", fs.lookup(VolumeFileSystem.ROOT_INODE, "a.bin"));
+        fs.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, 1024);
+        store.trimming = true;
+        VolumeFileSystem.format(store);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store);
+        byte[][] contents = new byte[40][3 * BLOCK_SIZE];
+        for (int i = 0; i < contents.length; i++) {
+            random.nextBytes(contents[i]);
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "f" + i);
+            fs.write(ino, 0, contents[i], 0, contents[i].length);
+        }
+        for (int i = 0; i < contents.length; i += 2) {
+            fs.delete(VolumeFileSystem.ROOT_INODE, "f" + i);
+        }
+        VolumeFileSystem.Fragmentation before = fs.fragmentation();
+
+        SpaceReclaimer reclaimer = new SpaceReclaimer(fs, 1000, 1000, Long.MAX_VALUE);
+        store.trims = 0;
+        long moved = reclaimer.compactPass();
+        VolumeFileSystem.Fragmentation after = fs.fragmentation();
+        assertTrue("Extents moved", moved > 0);
+        assertEquals("No space lost", before.freeBlocks, after.freeBlocks);
+        assertEquals("Files keep their extents", before.extents, after.extents);
+        assertTrue("Free space in fewer runs", after.freeRuns < before.freeRuns);
+        assertTrue("Longer free run", after.largestFreeRun > before.largestFreeRun);
+        assertEquals("Whole free space trimmed", after.freeBlocks, store.trims);
+        assertEquals("Nothing left to move", 0, reclaimer.compactPass());
+        reclaimer.close();
+        fs.close();
+
+        fs = VolumeFileSystem.mount(store);
+        for (int i = 1; i < contents.length; i += 2) {
+            long ino = fs.resolve("/f" + i);
+            byte[] out = new byte[contents[i].length];
+            fs.read(ino, 0, out, 0, out.length);
+            assertArrayEquals("File " + i + " after compaction", contents[i], out);
+        }
+        fs.close();
+    }
+
+    @Test
+    public void testReclaimerRunsPeriodically() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, 512);
+        store.trimming = true;
+        VolumeFileSystem.format(store);
+        VolumeFileSystem fs = VolumeFileSystem.mount(store, Durability.groupCommit(10, 100));
+        long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "a.bin");
+        fs.write(ino, 0, new byte[8 * BLOCK_SIZE], 0, 8 * BLOCK_SIZE);
+        fs.delete(VolumeFileSystem.ROOT_INODE, "a.bin");
+
+        try (SpaceReclaimer reclaimer = new SpaceReclaimer(fs, 10, 60_000, 0)) {
+            reclaimer.start();
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (store.trims < 8 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // The file's blocks, and any metadata blocks the delete freed
+            assertTrue("Freed blocks trimmed in the background", store.trims >= 8);
+            assertNull("No failure", reclaimer.failure());
+        }
+        fs.close();
+    }
+
+    private void trim(BlockEngine engine, long first, int count) throws IOException {
+        CompletableFuture<?>[] trims = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            trims[i] = engine.trim(first + i, IoScheduler.IoClass.BACKGROUND);
+        }
+        IoScheduler.await(CompletableFuture.allOf(trims));
+    }
+
+    private void createVolume(long blocks) throws IOException {
+        TestVolumes.create(volumeFile, TestVolumes.header(blocks, 0, BLOCK_SIZE, Compression.NONE), MASTER_KEY);
+    }
+
+    private BlockEngine openEngine() throws IOException {
+        return TestVolumes.openEngine(volumeFile, MASTER_KEY, (file, offset, length) -> {
+            if (!holes) {
+                return false;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(offset);
+                raf.write(new byte[(int) length]);
+            }
+            punched.add(new long[] {offset, length});
+            return true;
+        });
+    }
+}
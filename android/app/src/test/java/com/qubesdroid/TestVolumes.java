@@ -0,0 +1,97 @@
+package com.qubesdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * v2 volume files for tests of the layers above BlockDevice, without the
+ * native crypto library
+ *
+ * Headers are built with VolumeHeader, and engines are opened from the
+ * header the way MountedVolume opens them, with JdkAead, ShaHasher and
+ * an IntegrityTree.
+ */
+final class TestVolumes {
+
+    private TestVolumes() {
+    }
+
+    /**
+     * v2 header of a volume of blocks blocks with room for capacity
+     * metadata entries (0 for the block count)
+     */
+    static VolumeHeader header(long blocks, long capacity, int blockSize, Compression compression) {
+        return VolumeHeader.create(VolumeHeader.VERSION_2)
+            .volumeSize(blocks * blockSize)
+            .compression(compression)
+            .blockSize(blockSize)
+            .blockCount(blocks)
+            .metadataCapacity(capacity);
+    }
+
+    /**
+     * Replace file with header followed by empty slots, under a tree
+     * stored with its root MAC under key
+     */
+    static void create(File file, VolumeHeader header, KeyHandle key) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(header.buffer().array(), 0, header.headerSize());
+            raf.setLength(BlockDevice.alignedAreaEnd(header.headerSize(), header.blockSize(),
+                header.blockCount(), header.metadataCapacity()));
+        }
+        try (BlockDevice device = header.open(file, false)) {
+            IntegrityTree.reseal(device, new ShaHasher(), key);
+        }
+    }
+
+    /**
+     * Replace file with header, a sealed zero block in every slot and an
+     * empty file system, dismounted cleanly
+     */
+    static void createFormatted(File file, VolumeHeader header, KeyHandle key) throws IOException {
+        create(file, header, key);
+        try (BlockEngine engine = openEngine(file, key)) {
+            byte[] zeros = new byte[header.blockSize()];
+            CompletableFuture<?>[] writes = new CompletableFuture<?>[(int) header.blockCount()];
+            for (int i = 0; i < writes.length; i++) {
+                writes[i] = engine.writeSealed(i, engine.seal(i, zeros), IoScheduler.IoClass.BULK);
+            }
+            IoScheduler.await(CompletableFuture.allOf(writes));
+            VolumeFileSystem.format(engine);
+        }
+    }
+
+    static BlockEngine openEngine(File file, KeyHandle key) throws IOException {
+        return openEngine(file, key, null);
+    }
+
+    /**
+     * Mount the volume in file as its header describes
+     *
+     * @param puncher Hole puncher for the device, null for none
+     */
+    static BlockEngine openEngine(File file, KeyHandle key, BlockDevice.HolePuncher puncher) throws IOException {
+        VolumeHeader header = VolumeHeader.read(file);
+        BlockDevice device = header.open(file, false);
+        try {
+            if (puncher != null) {
+                device.setHolePuncher(puncher);
+            }
+            IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), key);
+            return new BlockEngine(new IoScheduler(device), new JdkAead(), key, tree, header.compression());
+        } catch (IOException e) {
+            device.close();
+            throw e;
+        }
+    }
+
+    static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
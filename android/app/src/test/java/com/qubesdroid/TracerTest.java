@@ -0,0 +1,208 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Tracer span ring and its Chrome trace export
+ *
+ * Tests:
+ * - A span records its kind, thread, argument and duration
+ * - A full ring keeps the last CAPACITY spans, oldest first
+ * - Spans from concurrent threads are never torn (every record's
+ *   argument names the thread that recorded it), and few are dropped
+ * - Recording allocates nothing (benchmark: 1M spans, thread allocation
+ *   counter)
+ * - The block engine records reads, writes and fsyncs
+ * - The Chrome export has one complete event per span and the thread
+ *   names
+ */
+public class TracerTest {
+
+    private static final int HEADER_SIZE = 1712;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 8;
+
+    private File volumeFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Tracer.clear();
+        volumeFile = File.createTempFile("trace", ".qd");
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(HEADER_SIZE + (long) BLOCKS * (BLOCK_SIZE + BlockDevice.NONCE_SIZE + BlockDevice.TAG_SIZE));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+    }
+
+    @Test
+    public void testSpanRecorded() throws Exception {
+        long span = Tracer.begin(Tracer.Span.CACHE_MISS);
+        Thread.sleep(5);
+        Tracer.end(Tracer.Span.CACHE_MISS, span, 42);
+
+        List<Tracer.Record> records = Tracer.snapshot();
+        assertEquals("One span", 1, records.size());
+        Tracer.Record r = records.get(0);
+        assertEquals("Kind", Tracer.Span.CACHE_MISS, r.span);
+        assertEquals("Argument", 42, r.arg);
+        assertEquals("Thread", Thread.currentThread().getId(), r.thread);
+        assertEquals("Start", span, r.startNanos);
+        assertTrue("Duration " + r.durationNanos, r.durationNanos >= 5_000_000);
+    }
+
+    @Test
+    public void testRingKeepsLastSpans() {
+        int extra = 10;
+        for (int i = 0; i < Tracer.CAPACITY + extra; i++) {
+            Tracer.end(Tracer.Span.BLOCK_READ, Tracer.begin(Tracer.Span.BLOCK_READ), i);
+        }
+        List<Tracer.Record> records = Tracer.snapshot();
+        assertEquals("Ring full", Tracer.CAPACITY, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("Oldest first, oldest overwritten", i + extra, records.get(i).arg);
+        }
+    }
+
+    @Test
+    public void testConcurrentSpansNotTorn() throws Exception {
+        int perThread = 20_000;
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                for (int i = 0; i < perThread; i++) {
+                    Tracer.end(Tracer.Span.BLOCK_WRITE, Tracer.begin(Tracer.Span.BLOCK_WRITE), id);
+                }
+            });
+        }
+        for (Thread w : writers) {
+            w.start();
+        }
+        int snapshots = 0;
+        while (writers[writers.length - 1].isAlive() || snapshots == 0) {
+            for (Tracer.Record r : Tracer.snapshot()) {
+                assertEquals("Record from one writer", r.thread, r.arg);
+            }
+            snapshots++;
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+        // A span lapped by a whole ring is dropped, so a few slots may
+        // still hold spans older than the ring
+        List<Tracer.Record> records = Tracer.snapshot();
+        assertTrue("Ring nearly full: " + records.size(), records.size() > Tracer.CAPACITY * 9 / 10);
+        for (Tracer.Record r : records) {
+            assertEquals("Record from one writer", r.thread, r.arg);
+        }
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        long thread = Thread.currentThread().getId();
+        // Warm up so the JIT has compiled begin() and end() before measuring
+        for (int i = 0; i < 200_000; i++) {
+            Tracer.end(Tracer.Span.BLOCK_READ, Tracer.begin(Tracer.Span.BLOCK_READ), i);
+        }
+
+        int spans = 1_000_000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < spans; i++) {
+            Tracer.end(Tracer.Span.BLOCK_READ, Tracer.begin(Tracer.Span.BLOCK_READ), i);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("Tracer: %.1f ns per span, %d bytes allocated%n", (double) nanos / spans, allocated);
+        // Any allocation per span is 16 bytes or more; allow the odd
+        // kilobyte the JIT or the measurement itself may take
+        assertTrue("Recording allocated " + allocated + " bytes", allocated < spans / 16);
+    }
+
+    @Test
+    public void testEngineRecordsSpans() throws Exception {
+        BlockDevice device = BlockDevice.open(volumeFile, HEADER_SIZE, BLOCK_SIZE, false);
+        try (KeyHandle key = HeapKeys.of(new byte[32]);
+             BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), key, null,
+                 Compression.NONE)) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int i = 0; i < BLOCKS; i++) {
+                engine.writeBlock(i, block, IoScheduler.IoClass.INTERACTIVE);
+            }
+            engine.flush();
+            engine.readBlock(3, block, IoScheduler.IoClass.INTERACTIVE);
+        }
+
+        long writes = 0;
+        long fsyncs = 0;
+        Tracer.Record read = null;
+        for (Tracer.Record r : Tracer.snapshot()) {
+            if (r.span == Tracer.Span.BLOCK_WRITE) {
+                assertEquals("Writes in order", writes++, r.arg);
+            } else if (r.span == Tracer.Span.FSYNC) {
+                fsyncs++;
+            } else if (r.span == Tracer.Span.BLOCK_READ) {
+                read = r;
+            }
+        }
+        assertEquals("Writes", BLOCKS, writes);
+        assertTrue("Flush synced the device", fsyncs >= 1);
+        assertNotNull("Read", read);
+        assertEquals("Read's block", 3, read.arg);
+    }
+
+    @Test
+    public void testChromeExport() throws Exception {
+        Thread worker = new Thread(() -> {
+            long span = Tracer.begin(Tracer.Span.KEY_DERIVATION);
+            Tracer.end(Tracer.Span.KEY_DERIVATION, span);
+        }, "trace-worker");
+        worker.start();
+        worker.join();
+        long span = Tracer.begin(Tracer.Span.BLOCK_READ);
+        Tracer.end(Tracer.Span.BLOCK_READ, span, 7);
+
+        List<Tracer.Record> records = Tracer.snapshot();
+        String json = Tracer.toChromeJson(records, 1234);
+        assertTrue("Starts with the event array", json.startsWith("{\"displayTimeUnit\": \"ms\", \"traceEvents\": ["));
+        assertEquals("Complete events", 2, occurrences(json, "\"ph\": \"X\""));
+        assertTrue("Span name", json.contains("\"name\": \"key_derivation\""));
+        assertTrue("Argument", json.contains("\"args\": {\"block\": 7}"));
+        assertTrue("Process id", json.contains("\"pid\": 1234"));
+        assertTrue("Microsecond timestamp",
+            json.contains(String.format(java.util.Locale.US, "\"ts\": %.3f", records.get(1).startNanos / 1e3)));
+        // The worker has ended, so only this thread is named
+        assertEquals("Thread names of live threads", 1, occurrences(json, "\"thread_name\""));
+        assertEquals("Balanced braces", occurrences(json, "{"), occurrences(json, "}"));
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private static int occurrences(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}
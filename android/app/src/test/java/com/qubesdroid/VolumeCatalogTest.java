@@ -0,0 +1,264 @@
+package com.qubesdroid;
+
+import android.os.FileObserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the persistent volume catalog
+ *
+ * Volumes are header-only files (the catalog reads nothing past the
+ * header); the FileObserver events are fed to onFileEvent() directly.
+ *
+ * Tests:
+ * - A scan of two roots catalogues the volumes of both, with what their
+ *   headers say, and ignores other files and non-volumes
+ * - A new catalog over the same store lists them without reading any
+ *   header; reconciling reads only changed and new volumes and drops
+ *   deleted ones
+ * - File events add, update and remove single volumes; the fingerprint
+ *   ignores the root MAC but not the salt
+ * - Benchmark: cold scan against a stored catalog with hundreds of volumes
+ */
+public class VolumeCatalogTest {
+
+    private File dir;
+    private File store;
+    private File rootA;
+    private File rootB;
+    private final Random random = new Random(45);
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("catalog").toFile();
+        store = new File(dir, "volume_catalog");
+        rootA = new File(dir, "internal/volumes");
+        rootB = new File(dir, "sdcard/volumes");
+        rootA.mkdirs();
+        rootB.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testScanCataloguesVolumesOfAllRoots() throws Exception {
+        File a = writeVolume(rootA, "alpha.qd", VolumeMigrator.VERSION_2, 4096, 1000);
+        File b = writeVolume(rootB, "beta.qd", 0x01000000, 0, 2000);
+        Files.write(new File(rootA, "notes.txt").toPath(), new byte[2000]);
+        Files.write(new File(rootB, "broken.qd").toPath(), new byte[2000]);
+
+        VolumeCatalog catalog = newCatalog();
+        catalog.load();
+        assertTrue("Empty without a store", catalog.volumes().isEmpty());
+        assertTrue("Scan changes the catalog", catalog.reconcile());
+
+        List<VolumeCatalog.Entry> volumes = catalog.volumes();
+        assertEquals("Both volumes, nothing else", 2, volumes.size());
+        VolumeCatalog.Entry alpha = find(volumes, a);
+        assertEquals("Name", "alpha", alpha.name());
+        assertEquals("Creation time", 1000, alpha.createdTime);
+        assertEquals("Version", VolumeMigrator.VERSION_2, alpha.version);
+        assertEquals("Block size", 4096, alpha.blockSize);
+        assertEquals("Block count", 77, alpha.blockCount);
+        assertEquals("Size", a.length(), alpha.size);
+        VolumeCatalog.Entry beta = find(volumes, b);
+        assertEquals("v1 block size defaults", MountedVolume.DEFAULT_BLOCK_SIZE, beta.blockSize);
+        assertEquals("v1 has no block count", -1, beta.blockCount);
+        assertFalse("Nothing more to do", catalog.reconcile());
+        catalog.close();
+    }
+
+    @Test
+    public void testStoredCatalogReconciledLazily() throws Exception {
+        File a = writeVolume(rootA, "a.qd", VolumeMigrator.VERSION_2, 4096, 1);
+        File b = writeVolume(rootA, "b.qd", VolumeMigrator.VERSION_2, 4096, 2);
+        File c = writeVolume(rootB, "c.qd", VolumeMigrator.VERSION_2, 4096, 3);
+        VolumeCatalog first = newCatalog();
+        first.load();
+        first.reconcile();
+        assertEquals("Every header read", 3, first.headerReads());
+        first.close();
+
+        VolumeCatalog second = newCatalog();
+        second.load();
+        assertEquals("Listed from the store", 3, second.volumes().size());
+        assertArrayEquals("Fingerprint stored", find(first.volumes(), a).fingerprint,
+            find(second.volumes(), a).fingerprint);
+        assertFalse("Unchanged volumes", second.reconcile());
+        assertEquals("No header read", 0, second.headerReads());
+
+        // b written (a header field and the time), c deleted, d new
+        try (RandomAccessFile raf = new RandomAccessFile(b, "rw")) {
+            raf.seek(KeyRotator.SALT_OFFSET);
+            raf.write(new byte[16]);
+        }
+        b.setLastModified(b.lastModified() + 5000);
+        assertTrue(c.delete());
+        File d = writeVolume(rootB, "d.qd", VolumeMigrator.VERSION_2, 4096, 4);
+        assertTrue("Changes seen", second.reconcile());
+        assertEquals("Only b and d read", 2, second.headerReads());
+        assertEquals("a, b and d", 3, second.volumes().size());
+        assertNotNull("d catalogued", find(second.volumes(), d));
+        assertFalse("b fingerprint changed", Arrays.equals(find(first.volumes(), b).fingerprint,
+            find(second.volumes(), b).fingerprint));
+        second.close();
+
+        store.delete();
+        Files.write(new File(store.getPath()).toPath(), "QDCATLG1 damaged".getBytes(StandardCharsets.US_ASCII));
+        VolumeCatalog third = newCatalog();
+        third.load();
+        assertTrue("Damaged store gives an empty catalog", third.volumes().isEmpty());
+        third.reconcile();
+        assertEquals("Rebuilt by a scan", 3, third.volumes().size());
+        third.close();
+    }
+
+    @Test
+    public void testFileEventsUpdateSingleVolumes() throws Exception {
+        VolumeCatalog catalog = newCatalog();
+        catalog.load();
+        catalog.reconcile();
+        List<Integer> published = new ArrayList<>();
+        VolumeCatalog.Listener listener = volumes -> published.add(volumes.size());
+        catalog.addListener(listener);
+
+        File a = writeVolume(rootA, "a.qd", VolumeMigrator.VERSION_2, 4096, 1);
+        catalog.onFileEvent(rootA, FileObserver.CLOSE_WRITE, "a.qd");
+        assertEquals("Volume added", 1, catalog.volumes().size());
+        byte[] before = catalog.volumes().get(0).fingerprint;
+        catalog.onFileEvent(rootA, FileObserver.CLOSE_WRITE, "a.qd");
+        assertEquals("Unchanged volume not read again", 1, catalog.headerReads());
+
+        // A mount rewrites the root MAC only
+        try (RandomAccessFile raf = new RandomAccessFile(a, "rw")) {
+            raf.seek(IntegrityTree.HEADER_ROOT_OFFSET);
+            raf.write(randomBytes(IntegrityTree.HASH_SIZE));
+        }
+        a.setLastModified(a.lastModified() + 5000);
+        catalog.onFileEvent(rootA, FileObserver.CLOSE_WRITE, "a.qd");
+        assertEquals("Changed volume read again", 2, catalog.headerReads());
+        assertArrayEquals("Root MAC not fingerprinted", before, catalog.volumes().get(0).fingerprint);
+
+        Files.write(new File(rootA, "x.txt").toPath(), new byte[10]);
+        catalog.onFileEvent(rootA, FileObserver.CREATE, "x.txt");
+        catalog.onFileEvent(rootB, FileObserver.MOVED_FROM, "a.qd");
+        assertEquals("Other files and roots ignored", 1, catalog.volumes().size());
+        catalog.onFileEvent(rootA, FileObserver.DELETE, "a.qd");
+        assertTrue("Volume removed", catalog.volumes().isEmpty());
+
+        // Picked copies elsewhere are not catalogued
+        catalog.refresh(writeVolume(dir, "picked.qd", VolumeMigrator.VERSION_2, 4096, 1));
+        assertTrue("Copy outside the roots", catalog.volumes().isEmpty());
+
+        catalog.removeListener(listener);
+        catalog.close();
+        assertEquals("Listener told of the list, the add, the update and the remove",
+            Arrays.asList(0, 1, 1, 0), published);
+    }
+
+    @Test
+    public void testCatalogLoadBenchmark() throws Exception {
+        int count = 400;
+        for (int i = 0; i < count; i++) {
+            writeVolume(i % 2 == 0 ? rootA : rootB, "volume" + i + ".qd", VolumeMigrator.VERSION_2, 4096, i);
+        }
+
+        long t0 = System.nanoTime();
+        VolumeCatalog cold = newCatalog();
+        cold.load();
+        cold.reconcile();
+        long coldNanos = System.nanoTime() - t0;
+        cold.close();
+
+        long t1 = System.nanoTime();
+        VolumeCatalog warm = newCatalog();
+        warm.load();
+        long listedNanos = System.nanoTime() - t1;
+        int listed = warm.volumes().size();
+        warm.reconcile();
+        long warmNanos = System.nanoTime() - t1;
+        warm.close();
+
+        System.out.println("=== Volume catalog benchmark ===");
+        System.out.printf("%d volumes in 2 roots, catalog %d bytes%n", count, store.length());
+        System.out.printf("cold scan:        %7.2f ms, %d headers read%n", coldNanos / 1e6, cold.headerReads());
+        System.out.printf("catalog listed:   %7.2f ms%n", listedNanos / 1e6);
+        System.out.printf("catalog checked:  %7.2f ms, %d headers read%n", warmNanos / 1e6, warm.headerReads());
+
+        assertEquals("Cold scan reads every header", count, cold.headerReads());
+        assertEquals("Listed before any file system access", count, listed);
+        assertEquals("Stored catalog reads no header", 0, warm.headerReads());
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private VolumeCatalog newCatalog() {
+        return new VolumeCatalog(store, Arrays.asList(rootA, rootB));
+    }
+
+    /**
+     * Header of a volume (77 blocks for v2) with a random salt, nothing
+     * past it
+     */
+    private File writeVolume(File root, String name, int version, int blockSize, long createdTime)
+            throws IOException {
+        VolumeHeader header = VolumeHeader.create(version)
+            .volumeSize(77L * Math.max(blockSize, 1))
+            .createdTime(createdTime)
+            .salt(randomBytes(VolumeHeader.SALT_SIZE))
+            .blockSize(blockSize);
+        if (version == VolumeMigrator.VERSION_2) {
+            header.blockCount(77);
+        }
+        File file = new File(root, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(header.buffer().array());
+        }
+        return file;
+    }
+
+    private static VolumeCatalog.Entry find(List<VolumeCatalog.Entry> volumes, File file) {
+        for (VolumeCatalog.Entry e : volumes) {
+            if (e.file.equals(file)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private byte[] randomBytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
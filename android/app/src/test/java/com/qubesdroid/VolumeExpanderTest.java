@@ -0,0 +1,282 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for growing a v2 volume in place
+ *
+ * Tests:
+ * - Growing within the metadata capacity seals only the new blocks,
+ *   keeps the data region where it was and the tree clean, and the file
+ *   system takes in the new blocks at mount
+ * - A bitmap that outgrows its blocks moves to the new space, with the
+ *   free space accounted for across remounts
+ * - A volume without metadata room is rewritten with headroom, its
+ *   sealed slots moved rather than re-encrypted
+ * - An expansion that fails before its commit leaves the volume at its
+ *   old size with its files, and can be run again
+ * - v1 volumes, volumes in a key rotation and shrinking are refused
+ */
+public class VolumeExpanderTest {
+
+    private static final int HEADER_SIZE = VolumeMigrator.V2_HEADER_SIZE;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private final Random random = new Random(40);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("expand", ".qd");
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+        new File(volumeFile.getPath() + ".growtmp").delete();
+    }
+
+    @Test
+    public void testGrowInPlace() throws Exception {
+        int blockSize = 16384;
+        createVolume(64, 256, blockSize, Compression.NONE);
+        byte[] content = new byte[5 * blockSize + 100];
+        random.nextBytes(content);
+        writeFile("a.bin", content);
+        long dataStart = dataStart(64, 256, blockSize, Compression.NONE);
+
+        JdkAead aead = new JdkAead();
+        AtomicLong reported = new AtomicLong();
+        VolumeExpander.expand(volumeFile, 200, aead, new ShaHasher(), MASTER_KEY, 3,
+            (done, total) -> reported.accumulateAndGet(done, Math::max));
+        assertEquals("Only the new blocks sealed", (200 - 64) * (long) blockSize, aead.sealed.get());
+        assertEquals("Progress reaches the end", 200, reported.get());
+
+        ByteBuffer header = readHeader();
+        assertEquals("Block count committed", 200, header.getLong(VolumeMigrator.BLOCK_COUNT_OFFSET));
+        assertEquals("Volume size grown", 200L * blockSize, header.getLong(16));
+        assertEquals("Capacity kept", 256, header.getLong(VolumeExpander.METADATA_CAPACITY_OFFSET));
+        assertEquals("Data region not moved", dataStart, dataStart(200, 256, blockSize, Compression.NONE));
+
+        try (BlockEngine engine = openEngine()) {
+            assertFalse("Grown tree stored on close", engine.integrityTree().rebuilt());
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("File system grown", 200L * blockSize, fs.totalBytes());
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            // Larger than the whole volume was
+            byte[] big = new byte[100 * blockSize];
+            random.nextBytes(big);
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "big.bin");
+            fs.write(ino, 0, big, 0, big.length);
+            fs.close();
+        }
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("Still grown after remount", 200L * blockSize, fs.totalBytes());
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testBitmapMoves() throws Exception {
+        // 32768 blocks per bitmap block at 4 KB: 2000 blocks need one, 40000 two
+        int blockSize = 4096;
+        createVolume(2000, 160000, blockSize, Compression.LZ4);
+        byte[] content = new byte[30000];
+        random.nextBytes(content);
+        writeFile("a.bin", content);
+        long freeBefore;
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            freeBefore = fs.freeBytes() / blockSize;
+            fs.close();
+        }
+
+        VolumeExpander.expand(volumeFile, 40000, new JdkAead(), new ShaHasher(), MASTER_KEY, 2, null);
+        long expectedFree = freeBefore + (40000 - 2000) - 2 + 1;
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("New blocks free, bitmap moved", expectedFree, fs.freeBytes() / blockSize);
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            byte[] big = new byte[3000 * blockSize];
+            random.nextBytes(big);
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, "big.bin");
+            fs.write(ino, 0, big, 0, big.length);
+            expectedFree = fs.freeBytes() / blockSize;
+            fs.close();
+        }
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("Moved bitmap reloads", expectedFree, fs.freeBytes() / blockSize);
+            assertEquals("Data in the new space", 3000 * blockSize, readFile(fs, "big.bin").length);
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testRewriteWithoutRoom() throws Exception {
+        // No recorded capacity: room for what fits below the first 1 MiB
+        int blockSize = 4096;
+        createVolume(1000, 0, blockSize, Compression.LZ4);
+        byte[] content = new byte[50000];
+        random.nextBytes(content);
+        writeFile("a.bin", content);
+        long room;
+        byte[] entries = new byte[1000 * BlockDevice.METADATA_ENTRY_SIZE];
+        try (BlockDevice device = BlockDevice.openAligned(volumeFile, HEADER_SIZE, blockSize,
+                BlockDevice.Layout.FRAMED, 1000, 0, true)) {
+            room = device.metadataRoom();
+            device.readMetadata(0, ByteBuffer.wrap(entries));
+        }
+        long target = room + 100;
+
+        VolumeExpander.expand(volumeFile, target, new JdkAead(), new ShaHasher(), MASTER_KEY, 2, null);
+        assertFalse("Temporary copy renamed", new File(volumeFile.getPath() + ".growtmp").exists());
+        long capacity = readHeader().getLong(VolumeExpander.METADATA_CAPACITY_OFFSET);
+        assertEquals("Headroom recorded", target * VolumeExpander.METADATA_HEADROOM, capacity);
+        try (BlockDevice device = BlockDevice.openAligned(volumeFile, HEADER_SIZE, blockSize,
+                BlockDevice.Layout.FRAMED, target, capacity, true)) {
+            byte[] moved = new byte[entries.length];
+            device.readMetadata(0, ByteBuffer.wrap(moved));
+            assertArrayEquals("Slots moved, not re-encrypted", entries, moved);
+            assertTrue("Room for the headroom", device.metadataRoom() >= capacity);
+        }
+        try (BlockEngine engine = openEngine()) {
+            assertFalse("Tree carried over and grown", engine.integrityTree().rebuilt());
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("File system grown", target * blockSize, fs.totalBytes());
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testFailureBeforeCommit() throws Exception {
+        int blockSize = 16384;
+        createVolume(64, 256, blockSize, Compression.NONE);
+        byte[] content = new byte[3 * blockSize];
+        random.nextBytes(content);
+        writeFile("a.bin", content);
+
+        JdkAead jdk = new JdkAead();
+        AtomicLong seals = new AtomicLong();
+        BlockEngine.Aead failing = new BlockEngine.Aead() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, KeyHandle key, byte[] nonce, byte[] aad) {
+                return seals.incrementAndGet() > 50 ? null : jdk.encrypt(plaintext, key, nonce, aad);
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertextWithTag, KeyHandle key, byte[] nonce, byte[] aad) {
+                return jdk.decrypt(ciphertextWithTag, key, nonce, aad);
+            }
+        };
+        try {
+            VolumeExpander.expand(volumeFile, 200, failing, new ShaHasher(), MASTER_KEY, 2, null);
+            fail("Expansion with failing encryption succeeded");
+        } catch (IOException expected) {
+        }
+        assertEquals("Block count not committed", 64, readHeader().getLong(VolumeMigrator.BLOCK_COUNT_OFFSET));
+
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("Old size", 64L * blockSize, fs.totalBytes());
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            fs.close();
+        }
+        VolumeExpander.expand(volumeFile, 200, new JdkAead(), new ShaHasher(), MASTER_KEY, 2, null);
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            assertEquals("Grown on the second run", 200L * blockSize, fs.totalBytes());
+            assertArrayEquals("File kept", content, readFile(fs, "a.bin"));
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        int blockSize = 16384;
+        createVolume(64, 256, blockSize, Compression.NONE);
+        assertRefused("Shrinking", 32, "already has");
+
+        putHeaderInt(KeyRotator.ROTATION_STATE_OFFSET, KeyRotator.STATE_ROTATING);
+        assertRefused("Key rotation in progress", 128, "key rotation");
+        putHeaderInt(KeyRotator.ROTATION_STATE_OFFSET, KeyRotator.STATE_NONE);
+
+        putHeaderInt(8, VolumeMigrator.VERSION_1);
+        putHeaderInt(12, VolumeHeader.V1_SIZE);
+        assertRefused("v1 volume", 128, "v2");
+    }
+
+    private void assertRefused(String what, long blockCount, String message) {
+        try {
+            VolumeExpander.expand(volumeFile, blockCount, new JdkAead(), new ShaHasher(), MASTER_KEY, 1, null);
+            fail(what + " was expanded");
+        } catch (IOException e) {
+            assertTrue(what + ": " + e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private void createVolume(long blocks, long capacity, int blockSize, Compression compression)
+            throws IOException {
+        TestVolumes.createFormatted(volumeFile, TestVolumes.header(blocks, capacity, blockSize, compression),
+            MASTER_KEY);
+    }
+
+    private void writeFile(String name, byte[] content) throws IOException {
+        try (BlockEngine engine = openEngine()) {
+            VolumeFileSystem fs = VolumeFileSystem.mount(engine);
+            long ino = fs.createFile(VolumeFileSystem.ROOT_INODE, name);
+            fs.write(ino, 0, content, 0, content.length);
+            fs.close();
+        }
+    }
+
+    private static byte[] readFile(VolumeFileSystem fs, String name) throws IOException {
+        long ino = fs.resolve("/" + name);
+        byte[] content = new byte[(int) fs.stat(ino).size];
+        assertEquals("Whole file read", content.length, fs.read(ino, 0, content, 0, content.length));
+        return content;
+    }
+
+    private BlockEngine openEngine() throws IOException {
+        return TestVolumes.openEngine(volumeFile, MASTER_KEY);
+    }
+
+    private long dataStart(long blocks, long capacity, int blockSize, Compression compression) throws IOException {
+        try (BlockDevice device = BlockDevice.openAligned(volumeFile, HEADER_SIZE, blockSize,
+                compression.layout(), blocks, capacity, true)) {
+            return device.dataStart();
+        }
+    }
+
+    private void putHeaderInt(int offset, int value) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        field.putInt(0, value);
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.seek(offset);
+            raf.write(field.array());
+        }
+    }
+
+    private ByteBuffer readHeader() throws IOException {
+        byte[] bytes = new byte[HEADER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "r")) {
+            raf.readFully(bytes);
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,344 @@
+package com.qubesdroid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the in-volume file system over a memory block store
+ *
+ * Tests:
+ * - Files written before a remount read back identically
+ * - Overwriting part of a file rewrites only the blocks it touches
+ * - Large directories stay sorted and lookups read O(log n) blocks
+ * - Delete returns blocks and inodes for reuse
+ * - Fragmented files spill extents into overflow blocks
+ * - A failed operation leaves no partial metadata behind
+ * - In a batch, a failed operation is undone alone and nothing reaches
+ *   the store before the group commit
+ * - Small files and short tails take no data blocks of their own
+ * - Random writes and truncates across inline, tail and block layouts
+ *   match a byte-array model
+ */
+public class VolumeFileSystemTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 2048;
+
+    private MemoryBlockStore store;
+    private VolumeFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(BLOCK_SIZE, BLOCK_COUNT);
+        assertTrue("New store should be blank", VolumeFileSystem.isBlank(store));
+        VolumeFileSystem.format(store);
+        fs = VolumeFileSystem.mount(store);
+    }
+
+    @Test
+    public void testWriteReadAcrossRemount() throws Exception {
+        long docs = fs.mkdir(VolumeFileSystem.ROOT_INODE, "docs");
+        long file = fs.createFile(docs, "report.bin");
+        byte[] content = random(3 * BLOCK_SIZE + 123, 1);
+        fs.write(file, 0, content, 0, content.length);
+        fs.write(file, 10, new byte[] {7, 7, 7}, 0, 3);
+        content[10] = content[11] = content[12] = 7;
+
+        fs = VolumeFileSystem.mount(store);
+        long resolved = fs.resolve("/docs/report.bin");
+        assertEquals("Path should resolve to the same inode", file, resolved);
+        assertEquals("Size should persist", content.length, fs.stat(resolved).size);
+        assertArrayEquals("Content should persist", content, readAll(resolved));
+    }
+
+    @Test
+    public void testSparseWriteReadsZerosInGap() throws Exception {
+        long file = fs.createFile(VolumeFileSystem.ROOT_INODE, "sparse");
+        fs.write(file, 0, new byte[] {1, 2, 3}, 0, 3);
+        fs.truncate(file, 1);
+        fs.write(file, 2 * BLOCK_SIZE, new byte[] {9}, 0, 1);
+
+        byte[] expected = new byte[2 * BLOCK_SIZE + 1];
+        expected[0] = 1;
+        expected[2 * BLOCK_SIZE] = 9;
+        assertArrayEquals("Gap after truncate should read as zeros", expected, readAll(file));
+    }
+
+    @Test
+    public void testOverwriteRewritesOnlyTouchedBlocks() throws Exception {
+        long file = fs.createFile(VolumeFileSystem.ROOT_INODE, "big.bin");
+        byte[] content = random(64 * BLOCK_SIZE, 4);
+        fs.write(file, 0, content, 0, content.length);
+
+        byte[] patch = random(100, 5);
+        int writesBefore = store.writes;
+        fs.write(file, 3 * BLOCK_SIZE - 50, patch, 0, patch.length);
+        System.arraycopy(patch, 0, content, 3 * BLOCK_SIZE - 50, patch.length);
+        int dataAndMetadata = store.writes - writesBefore;
+
+        assertTrue("Two data blocks plus metadata, not the rest of the file: " + dataAndMetadata,
+            dataAndMetadata < 16);
+        assertArrayEquals("Content should match", content, readAll(file));
+    }
+
+    @Test
+    public void testLargeDirectoryLookupAndOrder() throws Exception {
+        int count = 3000;
+        for (int i = count - 1; i >= 0; i--) {
+            fs.createFile(VolumeFileSystem.ROOT_INODE, name(i));
+        }
+        assertEquals("Directory size should count entries", count,
+            fs.stat(VolumeFileSystem.ROOT_INODE).size);
+        for (int i = 0; i < count; i += 97) {
+            assertNotNull("Entry should be found: " + name(i),
+                fs.lookup(VolumeFileSystem.ROOT_INODE, name(i)));
+        }
+        assertNull("Missing name should not be found",
+            fs.lookup(VolumeFileSystem.ROOT_INODE, "zzz"));
+
+        // Cold lookup reads the root inode block plus one node per tree level
+        fs = VolumeFileSystem.mount(store);
+        int readsBefore = store.reads;
+        assertNotNull("Entry should be found after remount",
+            fs.lookup(VolumeFileSystem.ROOT_INODE, name(count / 2)));
+        assertTrue("Lookup should touch O(log n) blocks, read " + (store.reads - readsBefore),
+            store.reads - readsBefore <= 5);
+
+        String last = null;
+        int seen = 0;
+        while (true) {
+            List<DirectoryBTree.Entry> page = fs.list(VolumeFileSystem.ROOT_INODE, last, 500);
+            if (page.isEmpty()) {
+                break;
+            }
+            for (DirectoryBTree.Entry e : page) {
+                assertEquals("Listing should be in name order", name(seen++), e.name);
+            }
+            last = page.get(page.size() - 1).name;
+        }
+        assertEquals("Paged listing should return every entry", count, seen);
+
+        try {
+            fs.createFile(VolumeFileSystem.ROOT_INODE, name(5));
+            fail("Duplicate name should be rejected");
+        } catch (FileAlreadyExistsException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeleteReleasesSpace() throws Exception {
+        long freeBefore = fs.freeBytes();
+        long dir = fs.mkdir(VolumeFileSystem.ROOT_INODE, "tmp");
+        long file = fs.createFile(dir, "big");
+        byte[] content = random(20 * BLOCK_SIZE, 2);
+        fs.write(file, 0, content, 0, content.length);
+
+        try {
+            fs.delete(VolumeFileSystem.ROOT_INODE, "tmp");
+            fail("Non-empty directory should not be deleted");
+        } catch (DirectoryNotEmptyException expected) {
+            // expected
+        }
+        fs.delete(dir, "big");
+        fs.delete(VolumeFileSystem.ROOT_INODE, "tmp");
+
+        assertEquals("All blocks should be returned", freeBefore, fs.freeBytes());
+        assertEquals("Most recently freed inode should be reused first", dir,
+            fs.createFile(VolumeFileSystem.ROOT_INODE, "again"));
+        try {
+            fs.resolve("/tmp/big");
+            fail("Deleted path should not resolve");
+        } catch (NoSuchFileException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFragmentedFileUsesOverflowExtents() throws Exception {
+        // Fill the volume with one-block files, then free every other one
+        byte[] block = new byte[BLOCK_SIZE];
+        int created = 0;
+        try {
+            while (true) {
+                long f = fs.createFile(VolumeFileSystem.ROOT_INODE, name(created));
+                fs.write(f, 0, block, 0, BLOCK_SIZE);
+                created++;
+            }
+        } catch (IOException full) {
+            // volume full
+        }
+        for (int i = 0; i < created; i += 2) {
+            fs.delete(VolumeFileSystem.ROOT_INODE, name(i));
+        }
+
+        long file = fs.createFile(VolumeFileSystem.ROOT_INODE, "scattered");
+        byte[] content = random(60 * BLOCK_SIZE, 3);
+        fs.write(file, 0, content, 0, content.length);
+        assertTrue("File should need overflow extents",
+            fs.stat(file).extents.size() > Inode.DIRECT_EXTENTS);
+
+        fs = VolumeFileSystem.mount(store);
+        assertArrayEquals("Scattered file should survive remount", content, readAll(file));
+
+        long freeBefore = fs.freeBytes();
+        fs.truncate(file, BLOCK_SIZE);
+        assertEquals("Truncate should free 59 data blocks and the overflow block",
+            freeBefore + 60L * BLOCK_SIZE, fs.freeBytes());
+    }
+
+    @Test
+    public void testFailedWriteRollsBack() throws Exception {
+        long file = fs.createFile(VolumeFileSystem.ROOT_INODE, "huge");
+        long freeBefore = fs.freeBytes();
+        byte[] tooBig = new byte[BLOCK_COUNT * BLOCK_SIZE];
+        try {
+            fs.write(file, 0, tooBig, 0, tooBig.length);
+            fail("Write larger than the volume should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+        assertEquals("Free space should be unchanged", freeBefore, fs.freeBytes());
+        assertEquals("File should still be empty", 0, fs.stat(file).size);
+
+        fs = VolumeFileSystem.mount(store);
+        assertEquals("Remounted free space should be unchanged", freeBefore, fs.freeBytes());
+    }
+
+    @Test
+    public void testBatchUndoesOnlyFailedOperation() throws Exception {
+        fs.beginBatch();
+        int writes = store.writes;
+        int flushes = store.flushes;
+        long kept = fs.createFile(VolumeFileSystem.ROOT_INODE, "kept");
+        byte[] content = random(2 * BLOCK_SIZE + 300, 9);
+        fs.write(kept, 0, content, 0, content.length);
+        long freeBefore = fs.freeBytes();
+        long huge = fs.createFile(VolumeFileSystem.ROOT_INODE, "huge");
+        byte[] tooBig = new byte[BLOCK_COUNT * BLOCK_SIZE];
+        try {
+            fs.write(huge, 0, tooBig, 0, tooBig.length);
+            fail("Write larger than the volume should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+        fs.delete(VolumeFileSystem.ROOT_INODE, "huge");
+        assertEquals("Only data blocks should be written before the commit", writes + 2, store.writes);
+        assertEquals("Nothing should be flushed before the commit", flushes, store.flushes);
+        fs.endBatch();
+
+        fs = VolumeFileSystem.mount(store);
+        assertEquals("Free space should survive the remount", freeBefore, fs.freeBytes());
+        assertArrayEquals("Earlier operations of the batch should be kept", content,
+            readAll(fs.resolve("/kept")));
+    }
+
+    @Test
+    public void testSmallFilesShareBlocks() throws Exception {
+        // Volume block size, where a block per small file hurts most
+        int blockSize = 65536;
+        store = new MemoryBlockStore(blockSize, 256);
+        VolumeFileSystem.format(store);
+        fs = VolumeFileSystem.mount(store);
+        long freeBefore = fs.freeBytes();
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            long f = fs.createFile(VolumeFileSystem.ROOT_INODE, name(i));
+            byte[] content = random(100 + i * 2, i);
+            fs.write(f, 0, content, 0, content.length);
+        }
+        long usedBlocks = (freeBefore - fs.freeBytes()) / blockSize;
+        assertTrue("500 small files should fit in a few blocks, used " + usedBlocks,
+            usedBlocks <= 16);
+
+        int writesBefore = store.writes;
+        long note = fs.resolve("/" + name(7));
+        fs.write(note, 3, new byte[] {42}, 0, 1);
+        // At most two metadata blocks, each logged and written home, plus the journal descriptor
+        assertTrue("Editing an inline file should only write metadata, wrote "
+            + (store.writes - writesBefore), store.writes - writesBefore <= 2 * 2 + 1);
+
+        fs = VolumeFileSystem.mount(store);
+        for (int i = 0; i < count; i += 37) {
+            byte[] expected = random(100 + i * 2, i);
+            if (i == 7) {
+                expected[3] = 42;
+            }
+            assertArrayEquals("Small file " + i + " should survive remount", expected,
+                readAll(fs.resolve("/" + name(i))));
+        }
+
+        for (int i = 0; i < count; i++) {
+            fs.delete(VolumeFileSystem.ROOT_INODE, name(i));
+        }
+        assertTrue("Deleting every file should return the tail blocks",
+            fs.freeBytes() >= freeBefore - 4L * blockSize);
+    }
+
+    @Test
+    public void testLayoutsMatchModel() throws Exception {
+        Random random = new Random(7);
+        int files = 12;
+        long[] inodes = new long[files];
+        byte[][] model = new byte[files][0];
+        for (int i = 0; i < files; i++) {
+            inodes[i] = fs.createFile(VolumeFileSystem.ROOT_INODE, name(i));
+        }
+        int[] sizes = {0, 1, 300, Inode.INLINE_CAPACITY, Inode.INLINE_CAPACITY + 1, 700,
+            BLOCK_SIZE / 4, BLOCK_SIZE / 4 + 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 5,
+            2 * BLOCK_SIZE + BLOCK_SIZE / 8, 3 * BLOCK_SIZE + BLOCK_SIZE / 2};
+
+        for (int op = 0; op < 600; op++) {
+            int f = random.nextInt(files);
+            int target = sizes[random.nextInt(sizes.length)];
+            if (random.nextInt(4) == 0) {
+                fs.truncate(inodes[f], target);
+                model[f] = Arrays.copyOf(model[f], target);
+            } else {
+                int offset = Math.max(0, target - random.nextInt(BLOCK_SIZE / 2 + 1));
+                int len = Math.max(0, target - offset);
+                byte[] data = random(len, op);
+                fs.write(inodes[f], offset, data, 0, len);
+                if (model[f].length < offset + len) {
+                    model[f] = Arrays.copyOf(model[f], offset + len);
+                }
+                System.arraycopy(data, 0, model[f], offset, len);
+            }
+            assertArrayEquals("File " + f + " should match model after op " + op, model[f], readAll(inodes[f]));
+        }
+
+        fs = VolumeFileSystem.mount(store);
+        for (int i = 0; i < files; i++) {
+            assertArrayEquals("File " + i + " should match model after remount", model[i], readAll(inodes[i]));
+        }
+    }
+
+    private byte[] readAll(long ino) throws IOException {
+        byte[] data = new byte[(int) fs.stat(ino).size];
+        int done = 0;
+        while (done < data.length) {
+            done += fs.read(ino, done, data, done, data.length - done);
+        }
+        return data;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static String name(int i) {
+        return String.format("file-%05d.dat", i);
+    }
+}
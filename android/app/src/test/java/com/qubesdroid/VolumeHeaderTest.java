@@ -0,0 +1,290 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the volume header codec
+ *
+ * Tests:
+ * - Every field written through the codec reads back from the file, in
+ *   v1 and v2, and v2-only fields read as their defaults in v1
+ * - Wrong magic, unknown versions, a header size not matching the
+ *   version, a truncated header and unusable geometry are refused
+ * - Extensions are added, replaced and removed, survive field writes and
+ *   copies, and a v1 header or a full padding takes none
+ * - The field digest ignores the root MAC only
+ * - Benchmark: bytes allocated per header parsed, against copying the
+ *   byte fields out as the activities used to
+ */
+public class VolumeHeaderTest {
+
+    private File file;
+    private final Random random = new Random(46);
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("header", ".qd");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testFieldsRoundTrip() throws Exception {
+        byte[] publicKey = randomBytes(VolumeHeader.PUBLIC_KEY_SIZE);
+        byte[] salt = randomBytes(VolumeHeader.SALT_SIZE);
+        byte[] wrapped = randomBytes(VolumeHeader.WRAPPED_KEY_SIZE);
+        VolumeHeader written = VolumeHeader.create(VolumeHeader.VERSION_2)
+            .volumeSize(123456789L)
+            .createdTime(1700000000L)
+            .publicKey(publicKey)
+            .salt(salt)
+            .compression(Compression.LZ4)
+            .blockSize(16384)
+            .blockCount(7000)
+            .metadataCapacity(28000)
+            .wrappedKey(wrapped);
+        write(written, VolumeHeader.V2_SIZE);
+
+        VolumeHeader read = VolumeHeader.read(file);
+        assertEquals("Version", VolumeHeader.VERSION_2, read.version());
+        assertTrue("Aligned", read.isAligned());
+        assertEquals("Header size", VolumeHeader.V2_SIZE, read.headerSize());
+        assertEquals("Volume size", 123456789L, read.volumeSize());
+        assertEquals("Created", 1700000000L, read.createdTime());
+        assertArrayEquals("Public key", publicKey, read.copyPublicKey());
+        assertArrayEquals("Salt", salt, read.copySalt());
+        assertEquals("Compression", Compression.LZ4, read.compression());
+        assertEquals("Block size", 16384, read.blockSize());
+        assertEquals("Block count", 7000, read.blockCount());
+        assertEquals("Metadata capacity", 28000, read.metadataCapacity());
+        assertArrayEquals("Wrapped key", wrapped, read.copyWrappedKey());
+        assertFalse("No rotation", read.isRotatingKey());
+        assertEquals("Same layout as the raw offsets", 7000,
+            read.buffer().getLong(VolumeMigrator.BLOCK_COUNT_OFFSET));
+
+        // v1: 1712 bytes followed by slots, no v2 fields
+        VolumeHeader v1 = VolumeHeader.create(VolumeHeader.VERSION_1).blockSize(0).salt(salt);
+        byte[] slots = new byte[4096];
+        Arrays.fill(slots, (byte) 0x5A);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(v1.buffer().array());
+            out.write(slots);
+        }
+        read = VolumeHeader.read(file);
+        assertFalse("v1 not aligned", read.isAligned());
+        assertEquals("Default block size", MountedVolume.DEFAULT_BLOCK_SIZE, read.blockSize());
+        assertEquals("No block count", -1, read.blockCount());
+        assertEquals("No metadata capacity", 0, read.metadataCapacity());
+        assertEquals("No key generation", 0, read.keyGeneration());
+        assertFalse("No rotation", read.isRotatingKey());
+        VolumeHeader v2 = read.copy(VolumeHeader.V2_SIZE).version(VolumeHeader.VERSION_2);
+        assertEquals("Upgraded header size", VolumeHeader.V2_SIZE, v2.headerSize());
+        assertEquals("Slots not copied", -1, v2.findExtension(0x5A5A));
+        assertEquals("Padding zero", 0, v2.buffer().get(VolumeHeader.V1_SIZE));
+    }
+
+    @Test
+    public void testBadHeadersRefused() throws Exception {
+        assertRefused("Wrong magic", valid().put(0, (byte) 'X'), VolumeHeader.V2_SIZE, "Not a QubesDroid");
+        assertRefused("Unknown version", valid().putInt(VolumeHeader.VERSION_OFFSET, 0x03000000),
+            VolumeHeader.V2_SIZE, "version 0x03000000");
+        assertRefused("Header size", valid().putInt(VolumeHeader.HEADER_SIZE_OFFSET, VolumeHeader.V1_SIZE),
+            VolumeHeader.V2_SIZE, "header size");
+        assertRefused("Truncated", valid(), VolumeHeader.FIELDS_END - 1, "too short");
+        assertRefused("Block size", valid().putInt(VolumeHeader.BLOCK_SIZE_OFFSET, 1000),
+            VolumeHeader.V2_SIZE, "block size");
+        assertRefused("Compression", valid().put(VolumeHeader.COMPRESSION_OFFSET, (byte) 99),
+            VolumeHeader.V2_SIZE, "Unsupported volume");
+    }
+
+    @Test
+    public void testExtensions() throws Exception {
+        VolumeHeader header = VolumeHeader.create(VolumeHeader.VERSION_2).blockSize(4096).blockCount(10);
+        assertEquals("None at first", -1, header.findExtension(1));
+        header.putExtension(1, new byte[]{1, 2, 3});
+        header.putExtension(2, new byte[]{4, 5});
+        header.putExtension(1, new byte[]{6, 7, 8, 9});
+        ByteBuffer first = header.extension(1);
+        assertEquals("Replaced", 4, first.remaining());
+        assertEquals("Replaced payload", 6, first.get(0));
+        assertEquals("Moved down", VolumeHeader.EXTENSIONS_OFFSET + VolumeHeader.EXTENSION_HEADER_SIZE,
+            header.findExtension(2));
+
+        // Field writes and copies keep them
+        header.blockCount(20).metadataCapacity(80);
+        write(header, VolumeHeader.V2_SIZE);
+        VolumeHeader read = VolumeHeader.read(file);
+        assertEquals("Read back", 5, read.extension(2).get(1));
+        VolumeHeader copy = read.copy(VolumeHeader.V2_SIZE).metadataCapacity(160);
+        assertEquals("Copied", 4, copy.extension(1).remaining());
+
+        copy.removeExtension(2);
+        assertNull("Removed", copy.extension(2));
+        assertEquals("Other kept", 9, copy.extension(1).get(3));
+        assertEquals("Padding behind zeroed", 0, copy.buffer().getInt(copy.findExtension(1) + 4));
+
+        try {
+            copy.putExtension(3, new byte[VolumeHeader.V2_SIZE - VolumeHeader.FIELDS_END]);
+            fail("Extension larger than the padding");
+        } catch (IOException expected) {
+            assertNotNull("Earlier ones kept", copy.extension(1));
+        }
+        try {
+            VolumeHeader.create(VolumeHeader.VERSION_1).putExtension(1, new byte[1]);
+            fail("v1 took an extension");
+        } catch (IOException expected) {
+            // No padding in v1
+        }
+    }
+
+    @Test
+    public void testDigestIgnoresRootMac() throws Exception {
+        VolumeHeader header = VolumeHeader.create(VolumeHeader.VERSION_2).salt(randomBytes(16));
+        byte[] before = digest(header);
+        header.buffer().put(VolumeHeader.ROOT_MAC_OFFSET + 5, (byte) 1);
+        assertArrayEquals("Root MAC ignored", before, digest(header));
+        header.salt(randomBytes(16));
+        assertFalse("Salt digested", Arrays.equals(before, digest(header)));
+        assertEquals("Buffer left as it was", VolumeHeader.V2_SIZE, header.buffer().limit());
+        assertEquals("Position left as it was", 0, header.buffer().position());
+    }
+
+    @Test
+    public void testParseAllocationBenchmark() throws Exception {
+        int count = 1000;
+        ByteBuffer headers = ByteBuffer.allocateDirect(count * VolumeHeader.FIELDS_END);
+        for (int i = 0; i < count; i++) {
+            VolumeHeader h = VolumeHeader.create(VolumeHeader.VERSION_2).createdTime(i).blockSize(4096)
+                .blockCount(i).salt(randomBytes(16));
+            h.buffer().limit(VolumeHeader.FIELDS_END);
+            headers.put(h.buffer());
+        }
+        ByteBuffer one = ByteBuffer.allocateDirect(VolumeHeader.FIELDS_END);
+        VolumeHeader view = VolumeHeader.of(one);
+
+        long sum = 0;
+        long flyweightBytes = 0;
+        long copyingBytes = 0;
+        for (int round = 0; round < 5; round++) {
+            long a0 = allocatedBytes();
+            sum += parseFlyweight(headers, one, view, count);
+            long a1 = allocatedBytes();
+            sum += parseCopying(headers, count);
+            long a2 = allocatedBytes();
+            flyweightBytes = a1 - a0;
+            copyingBytes = a2 - a1;
+        }
+
+        System.out.println("=== Volume header parse benchmark ===");
+        System.out.printf("%d headers, checked, all fields read%n", count);
+        System.out.printf("flyweight: %8.1f bytes allocated per header%n", flyweightBytes / (double) count);
+        System.out.printf("copying:   %8.1f bytes allocated per header%n", copyingBytes / (double) count);
+        assertTrue("Checksum", sum != 0);
+        assertTrue("Flyweight allocates almost nothing: " + flyweightBytes,
+            flyweightBytes < count * 64L);
+        assertTrue("Copying allocates the byte fields", copyingBytes > count * 1600L);
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Reuse one view over one buffer, as VolumeCatalog does
+     */
+    private static long parseFlyweight(ByteBuffer headers, ByteBuffer one, VolumeHeader view, int count)
+            throws IOException {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer source = headers;
+            source.limit((i + 1) * VolumeHeader.FIELDS_END).position(i * VolumeHeader.FIELDS_END);
+            one.clear();
+            one.put(source);
+            one.flip();
+            view.check();
+            sum += view.createdTime() + view.blockCount() + view.blockSize() + view.keyGeneration()
+                + view.buffer().get(VolumeHeader.SALT_OFFSET);
+        }
+        headers.clear();
+        return sum;
+    }
+
+    /**
+     * Copy every field out, byte fields in arrays of their own
+     */
+    private static long parseCopying(ByteBuffer headers, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[VolumeHeader.FIELDS_END];
+            headers.position(i * VolumeHeader.FIELDS_END);
+            headers.get(bytes);
+            ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] publicKey = Arrays.copyOfRange(bytes, VolumeHeader.PUBLIC_KEY_OFFSET,
+                VolumeHeader.PUBLIC_KEY_OFFSET + VolumeHeader.PUBLIC_KEY_SIZE);
+            byte[] salt = Arrays.copyOfRange(bytes, VolumeHeader.SALT_OFFSET, VolumeHeader.SALT_OFFSET + 32);
+            byte[] wrapped = Arrays.copyOfRange(bytes, VolumeHeader.MASTER_KEY_OFFSET,
+                VolumeHeader.MASTER_KEY_OFFSET + VolumeHeader.WRAPPED_KEY_SIZE);
+            sum += b.getLong(VolumeHeader.CREATED_OFFSET) + b.getLong(VolumeHeader.BLOCK_COUNT_OFFSET)
+                + b.getInt(VolumeHeader.BLOCK_SIZE_OFFSET) + publicKey[0] + salt[0] + wrapped[0];
+        }
+        headers.clear();
+        return sum;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static ByteBuffer valid() {
+        return VolumeHeader.create(VolumeHeader.VERSION_2).blockSize(4096).blockCount(10).buffer();
+    }
+
+    private void assertRefused(String what, ByteBuffer header, int length, String message) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(header.array(), 0, length);
+        }
+        try {
+            VolumeHeader.read(file);
+            fail(what + " was accepted");
+        } catch (IOException e) {
+            assertTrue(what + ": " + e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private void write(VolumeHeader header, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(header.buffer().array(), 0, length);
+        }
+    }
+
+    private static byte[] digest(VolumeHeader header) throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        header.digestFields(sha);
+        return sha.digest();
+    }
+
+    private byte[] randomBytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+}
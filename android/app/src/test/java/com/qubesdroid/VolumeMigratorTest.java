@@ -0,0 +1,285 @@
+package com.qubesdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the aligned v2 layout and the v1 to v2 conversion
+ *
+ * Tests:
+ * - Every v2 data block starts on an erase-block aligned, page aligned
+ *   offset and holds exactly the ciphertext of its slot
+ * - Merged scheduler reads and writes on a v2 device round trip
+ * - A converted volume reads back, keeps its clean integrity tree and
+ *   header root, and rejects a rolled-back block
+ * - A converted compressed volume reads back
+ * - After a crash, a v2 volume rebuilds its tree from the metadata
+ *   region and verifies blocks against it
+ * - A v2 volume is not converted again
+ */
+public class VolumeMigratorTest {
+
+    private static final int V1_HEADER_SIZE = 1712;
+    private static final int BLOCK_SIZE = 16384;
+    private static final KeyHandle MASTER_KEY = HeapKeys.of(new byte[32]);
+
+    private File volumeFile;
+    private final Random random = new Random(38);
+
+    @Before
+    public void setUp() throws Exception {
+        volumeFile = File.createTempFile("migrate", ".qd");
+    }
+
+    @After
+    public void tearDown() {
+        volumeFile.delete();
+        new File(volumeFile.getPath() + ".v2tmp").delete();
+    }
+
+    @Test
+    public void testAlignedPlacement() throws Exception {
+        long blocks = 40;
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(BlockDevice.alignedAreaEnd(BlockDevice.PAGE_SIZE, BLOCK_SIZE, blocks));
+        }
+        try (BlockDevice device = BlockDevice.openAligned(volumeFile, BlockDevice.PAGE_SIZE, BLOCK_SIZE,
+                BlockDevice.Layout.FIXED, blocks, false)) {
+            assertEquals("Data region on an erase block", 0, device.dataStart() % BlockDevice.DATA_ALIGNMENT);
+            assertTrue("Metadata fits before the data",
+                BlockDevice.PAGE_SIZE + blocks * BlockDevice.METADATA_ENTRY_SIZE <= device.dataStart());
+
+            byte[] slots = new byte[3 * device.slotSize()];
+            random.nextBytes(slots);
+            device.write(7, ByteBuffer.wrap(slots));
+            for (int i = 0; i < 3; i++) {
+                long offset = device.dataStart() + (7 + i) * (long) BLOCK_SIZE;
+                assertEquals("Block on a page", 0, offset % BlockDevice.PAGE_SIZE);
+                ByteBuffer ciphertext = ByteBuffer.allocate(BLOCK_SIZE);
+                device.readAt(offset, ciphertext);
+                int slot = i * device.slotSize();
+                assertArrayEquals("Data region holds only the ciphertext",
+                    Arrays.copyOfRange(slots, slot + BlockDevice.NONCE_SIZE, slot + BlockDevice.NONCE_SIZE + BLOCK_SIZE),
+                    ciphertext.array());
+            }
+            ByteBuffer back = ByteBuffer.allocate(slots.length);
+            device.read(7, back);
+            assertArrayEquals("Slots put back together", slots, back.array());
+        }
+    }
+
+    @Test
+    public void testSchedulerOnAlignedDevice() throws Exception {
+        long blocks = 200;
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(BlockDevice.alignedAreaEnd(BlockDevice.PAGE_SIZE, BLOCK_SIZE, blocks));
+        }
+        BlockDevice device = BlockDevice.openAligned(volumeFile, BlockDevice.PAGE_SIZE, BLOCK_SIZE,
+            BlockDevice.Layout.FIXED, blocks, false);
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, null,
+                Compression.NONE)) {
+            byte[][] content = new byte[(int) blocks][BLOCK_SIZE];
+            for (int i = 0; i < blocks; i++) {
+                random.nextBytes(content[i]);
+                engine.writeBlock(i, content[i], IoScheduler.IoClass.BULK);
+            }
+            engine.flush();
+            byte[] out = new byte[BLOCK_SIZE];
+            for (int i = 0; i < blocks; i++) {
+                engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+                assertArrayEquals("Block " + i, content[i], out);
+            }
+        }
+    }
+
+    @Test
+    public void testConvertedVolumeKeepsTree() throws Exception {
+        int blocks = 300;
+        byte[][] content = createV1(blocks, Compression.NONE, false);
+        byte[] old = readV1Slot(5, Compression.NONE);
+        writeV1Block(5, content[5], Compression.NONE);
+        byte[] v1Header = readHeader(V1_HEADER_SIZE);
+
+        long[] progress = new long[1];
+        VolumeMigrator.migrate(volumeFile, (done, total) -> progress[0] = done);
+        assertEquals("Progress should reach every block", blocks, progress[0]);
+        assertEquals("Version 2", VolumeMigrator.VERSION_2, VolumeMigrator.version(volumeFile));
+
+        ByteBuffer header = ByteBuffer.wrap(readHeader(VolumeMigrator.V2_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("Header padded to a page", VolumeMigrator.V2_HEADER_SIZE, header.getInt(12));
+        assertEquals("Block count recorded", blocks, header.getLong(VolumeMigrator.BLOCK_COUNT_OFFSET));
+        assertArrayEquals("Root MAC and keys copied",
+            Arrays.copyOfRange(v1Header, 16, 1648), Arrays.copyOfRange(header.array(), 16, 1648));
+
+        BlockDevice device = BlockDevice.openAligned(volumeFile, VolumeMigrator.V2_HEADER_SIZE, BLOCK_SIZE,
+            BlockDevice.Layout.FIXED, blocks, false);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+        assertFalse("Copied tree should match the copied root", tree.rebuilt());
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, tree,
+                Compression.NONE)) {
+            byte[] out = new byte[BLOCK_SIZE];
+            for (int i = 0; i < blocks; i++) {
+                engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+                assertArrayEquals("Block " + i, content[i], out);
+            }
+            // The older version of block 5, put back in its new place
+            try {
+                engine.open(5, old, out);
+                fail("Rolled-back block should still be rejected after conversion");
+            } catch (IOException expected) {
+                assertTrue("Message should name the block", expected.getMessage().contains("5"));
+            }
+        }
+    }
+
+    @Test
+    public void testConvertedCompressedVolume() throws Exception {
+        int blocks = 120;
+        byte[][] content = createV1(blocks, Compression.LZ4, true);
+        VolumeMigrator.migrate(volumeFile, null);
+
+        BlockDevice device = BlockDevice.openAligned(volumeFile, VolumeMigrator.V2_HEADER_SIZE, BLOCK_SIZE,
+            BlockDevice.Layout.FRAMED, blocks, false);
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, null,
+                Compression.LZ4)) {
+            byte[] out = new byte[BLOCK_SIZE];
+            for (int i = 0; i < blocks; i++) {
+                engine.readBlock(i, out, IoScheduler.IoClass.INTERACTIVE);
+                assertArrayEquals("Block " + i, content[i], out);
+            }
+        }
+    }
+
+    @Test
+    public void testRebuildOnAlignedVolume() throws Exception {
+        int blocks = 500;
+        byte[][] content = createV1(blocks, Compression.NONE, false);
+        VolumeMigrator.migrate(volumeFile, null);
+
+        BlockDevice device = BlockDevice.openAligned(volumeFile, VolumeMigrator.V2_HEADER_SIZE, BLOCK_SIZE,
+            BlockDevice.Layout.FIXED, blocks, false);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+        BlockEngine crashed = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, tree,
+            Compression.NONE);
+        content[9] = new byte[BLOCK_SIZE];
+        random.nextBytes(content[9]);
+        crashed.writeBlock(9, content[9], IoScheduler.IoClass.INTERACTIVE);
+        crashed.flush();
+        // Crash after the flush: the header has its root MAC, but the
+        // stored tree is marked dirty
+        device.close();
+
+        device = BlockDevice.openAligned(volumeFile, VolumeMigrator.V2_HEADER_SIZE, BLOCK_SIZE,
+            BlockDevice.Layout.FIXED, blocks, false);
+        tree = IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+        assertTrue("Unclean volume rebuilds", tree.rebuilt());
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, tree,
+                Compression.NONE)) {
+            byte[] out = new byte[BLOCK_SIZE];
+            engine.readBlock(9, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Rewritten block verifies against the rebuilt tree", content[9], out);
+            engine.readBlock(400, out, IoScheduler.IoClass.INTERACTIVE);
+            assertArrayEquals("Untouched block too", content[400], out);
+        }
+    }
+
+    @Test
+    public void testV2NotConvertedAgain() throws Exception {
+        createV1(20, Compression.NONE, false);
+        VolumeMigrator.migrate(volumeFile, null);
+        byte[] before = readHeader(VolumeMigrator.V2_HEADER_SIZE);
+        try {
+            VolumeMigrator.migrate(volumeFile, null);
+            fail("A v2 volume should be refused");
+        } catch (IOException expected) {
+            assertTrue("Message should name the version", expected.getMessage().contains("v1"));
+        }
+        assertArrayEquals("Refused volume unchanged", before, readHeader(VolumeMigrator.V2_HEADER_SIZE));
+        assertFalse("No temporary file left", new File(volumeFile.getPath() + ".v2tmp").exists());
+    }
+
+    /**
+     * v1 volume of blocks sealed blocks and a cleanly dismounted tree
+     *
+     * @param mixed Leave even blocks zero (compressible) and fill only
+     *              odd ones with random data
+     * @return Plaintext of each block
+     */
+    private byte[][] createV1(int blocks, Compression compression, boolean mixed) throws IOException {
+        int slotSize = BLOCK_SIZE + BlockDevice.NONCE_SIZE + BlockDevice.TAG_SIZE
+            + (compression.layout() == BlockDevice.Layout.FRAMED ? BlockDevice.FRAME_SIZE : 0);
+        ByteBuffer header = ByteBuffer.allocate(V1_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("QUBESDRD".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(VolumeMigrator.VERSION_1);
+        header.putInt(V1_HEADER_SIZE);
+        header.put(1648, (byte) compression.id);
+        header.putInt(1652, BLOCK_SIZE);
+        for (int i = 64; i < 1632; i++) {
+            header.put(i, (byte) i);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "rw")) {
+            raf.setLength(0);
+            raf.write(header.array());
+            raf.setLength(V1_HEADER_SIZE + (long) blocks * slotSize);
+        }
+
+        byte[][] content = new byte[blocks][BLOCK_SIZE];
+        BlockDevice device = BlockDevice.open(volumeFile, V1_HEADER_SIZE, BLOCK_SIZE, compression.layout(), false);
+        IntegrityTree.reseal(device, new ShaHasher(), MASTER_KEY);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, tree,
+                compression)) {
+            for (int i = 0; i < blocks; i++) {
+                if (!mixed || i % 2 == 1) {
+                    random.nextBytes(content[i]);
+                }
+                engine.writeBlock(i, content[i], IoScheduler.IoClass.BULK);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Rewrite one block of the v1 volume and dismount cleanly again
+     */
+    private void writeV1Block(long index, byte[] plaintext, Compression compression) throws IOException {
+        BlockDevice device = BlockDevice.open(volumeFile, V1_HEADER_SIZE, BLOCK_SIZE, compression.layout(), false);
+        IntegrityTree tree = IntegrityTree.open(device, new ShaHasher(), MASTER_KEY);
+        try (BlockEngine engine = new BlockEngine(new IoScheduler(device), new JdkAead(), MASTER_KEY, tree,
+                compression)) {
+            byte[] changed = plaintext.clone();
+            changed[0] ^= 1;
+            engine.writeBlock(index, changed, IoScheduler.IoClass.INTERACTIVE);
+            engine.writeBlock(index, plaintext, IoScheduler.IoClass.INTERACTIVE);
+        }
+    }
+
+    private byte[] readV1Slot(long index, Compression compression) throws IOException {
+        try (BlockDevice device = BlockDevice.open(volumeFile, V1_HEADER_SIZE, BLOCK_SIZE,
+                compression.layout(), true)) {
+            ByteBuffer slot = ByteBuffer.allocate(device.slotSize());
+            device.read(index, slot);
+            return slot.array();
+        }
+    }
+
+    private byte[] readHeader(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        try (RandomAccessFile raf = new RandomAccessFile(volumeFile, "r")) {
+            raf.readFully(bytes);
+        }
+        return bytes;
+    }
+}